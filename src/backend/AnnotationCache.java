@@ -0,0 +1,389 @@
+package backend;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * In-memory cache of the annotations of loci, shared by all datasets opened in
+ * the tool, so that a locus annotated for one tab is not queried again for
+ * the next one.
+ *
+ * An entry is keyed by track, chromosome, start and end coordinate of a locus,
+ * and holds the dictionary codes of the values of the track (eg. name, class
+ * and family for rmsk), so a hit is copied into a column without encoding any
+ * String. The codes are only valid for the dictionary of one assembly, so the
+ * cache is cleared when the assembly is switched.
+ *
+ * The entries are spread over a fixed number of stripes by the hash of their
+ * key. Each stripe has its own lock and holds its entries in the order of
+ * their last use, evicting the least recently used ones once it takes more
+ * than its share of the size limit; fetchers of different tracks running at
+ * the same time rarely wait for each other. Loci missing in memory are looked
+ * up in the ResultCache on disk, if it is switched on, and its hits are kept
+ * in memory as well.
+ *
+ * @author mkumar
+ * @since v1.1
+ */
+public class AnnotationCache {
+	private static final Logger logger = Logger
+			.getLogger(AnnotationCache.class);
+	// number of stripes, a power of two
+	private static final int NR_OF_STRIPES = 16;
+	// estimated bytes of memory taken by an entry, besides its codes
+	private static final int ENTRY_OVERHEAD = 112;
+	private static AnnotationCache instance = null;
+
+	private Stripe[] m_stripes = new Stripe[NR_OF_STRIPES];
+	private long m_maxBytesPerStripe;
+	private volatile String m_assembly;
+	private AtomicLong m_hits = new AtomicLong();
+	private AtomicLong m_misses = new AtomicLong();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param maxBytes
+	 *            largest number of bytes taken by the entries
+	 */
+	public AnnotationCache(long maxBytes) {
+		super();
+		this.m_maxBytesPerStripe = maxBytes / NR_OF_STRIPES;
+		for (int i = 0; i < NR_OF_STRIPES; i++) {
+			m_stripes[i] = new Stripe();
+		}
+		this.m_assembly = AnnotationDictionary.getInstance().getAssembly();
+	}
+
+	/**
+	 * Returns the annotation cache.
+	 *
+	 * @return cache, or null if neither the cache in memory nor the
+	 *         ResultCache on disk is switched on
+	 */
+	public static synchronized AnnotationCache getInstance() {
+		if (!GlobalParameters.USE_ANNOTATION_CACHE
+				&& !GlobalParameters.USE_RESULT_CACHE) {
+			return null;
+		}
+		if (instance == null) {
+			instance = new AnnotationCache(
+					GlobalParameters.ANNOTATION_CACHE_MAX_BYTES);
+		}
+		return instance;
+	}
+
+	/**
+	 * Clears the cache, if it was created; called when the assembly is
+	 * switched.
+	 */
+	public static synchronized void clearInstance() {
+		if (instance != null) {
+			instance.clear();
+		}
+	}
+
+	/**
+	 * Sets the cached values of a track for all loci which are in memory or
+	 * in the ResultCache.
+	 *
+	 * @param track
+	 *            track, eg. ResultCache.TRACK_GENES
+	 * @param locusStore
+	 *            store of loci
+	 * @param loci
+	 *            indexes of the loci to look up
+	 * @param columns
+	 *            columns of the track, which receive the cached values
+	 * @return indexes of the loci which are not in the cache
+	 */
+	public int[] lookup(String track, LocusStore locusStore, int[] loci,
+			AnnotationColumn... columns) {
+		checkAssembly();
+		int[] misses = loci;
+		int nrOfMisses = loci.length;
+		if (GlobalParameters.USE_ANNOTATION_CACHE) {
+			misses = new int[loci.length];
+			nrOfMisses = 0;
+			for (int locus : loci) {
+				Key key = new Key(track, locusStore, locus);
+				int[] codes = getStripe(key).get(key);
+				if (codes == null || codes.length != columns.length) {
+					misses[nrOfMisses++] = locus;
+					continue;
+				}
+				for (int k = 0; k < columns.length; k++) {
+					columns[k].setCode(locus, codes[k]);
+				}
+			}
+			m_hits.addAndGet(loci.length - nrOfMisses);
+			m_misses.addAndGet(nrOfMisses);
+			logger.debug(track + ": " + (loci.length - nrOfMisses) + " of "
+					+ loci.length + " loci found in annotation cache");
+			if (nrOfMisses < misses.length) {
+				int[] result = new int[nrOfMisses];
+				System.arraycopy(misses, 0, result, 0, nrOfMisses);
+				misses = result;
+			}
+		}
+
+		ResultCache resultCache = ResultCache.getInstance();
+		if (resultCache == null || misses.length == 0) {
+			return misses;
+		}
+		int[] remaining = resultCache.lookup(track, locusStore, misses,
+				columns);
+		if (GlobalParameters.USE_ANNOTATION_CACHE
+				&& remaining.length < misses.length) {
+			put(track, locusStore, getFound(misses, remaining), columns);
+		}
+		return remaining;
+	}
+
+	/**
+	 * Returns true if the cache holds a track for all loci of a store, in
+	 * memory or in the ResultCache.
+	 *
+	 * @param tracks
+	 *            tracks, eg. ResultCache.TRACK_GENES
+	 * @param locusStore
+	 *            store of loci
+	 * @return true if no locus has to be queried for any of the tracks
+	 */
+	public boolean containsAll(Iterable<String> tracks, LocusStore locusStore) {
+		checkAssembly();
+		ResultCache resultCache = ResultCache.getInstance();
+		for (String track : tracks) {
+			int[] misses = new int[locusStore.size()];
+			int nrOfMisses = 0;
+			for (int locus = 0; locus < locusStore.size(); locus++) {
+				Key key = new Key(track, locusStore, locus);
+				if (!GlobalParameters.USE_ANNOTATION_CACHE
+						|| !getStripe(key).contains(key)) {
+					misses[nrOfMisses++] = locus;
+				}
+			}
+			if (nrOfMisses == 0) {
+				continue;
+			}
+			if (resultCache == null) {
+				return false;
+			}
+			int[] lociToCheck = new int[nrOfMisses];
+			System.arraycopy(misses, 0, lociToCheck, 0, nrOfMisses);
+			if (!resultCache.containsAll(track, locusStore, lociToCheck)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Stores the values of a track for some loci in memory, and in the
+	 * ResultCache if it is switched on.
+	 *
+	 * @param track
+	 *            track, eg. ResultCache.TRACK_GENES
+	 * @param locusStore
+	 *            store of loci
+	 * @param loci
+	 *            indexes of the loci to store
+	 * @param columns
+	 *            columns of the track, holding the fetched values
+	 */
+	public void store(String track, LocusStore locusStore, int[] loci,
+			AnnotationColumn... columns) {
+		checkAssembly();
+		if (GlobalParameters.USE_ANNOTATION_CACHE) {
+			put(track, locusStore, loci, columns);
+		}
+		ResultCache resultCache = ResultCache.getInstance();
+		if (resultCache != null) {
+			resultCache.store(track, locusStore, loci, columns);
+		}
+	}
+
+	/**
+	 * Removes all entries from memory, and resets the counters.
+	 */
+	public void clear() {
+		for (Stripe stripe : m_stripes) {
+			stripe.clear();
+		}
+		m_hits.set(0);
+		m_misses.set(0);
+		logger.debug("annotation cache cleared");
+	}
+
+	/**
+	 * Returns the number of loci found in memory since the cache was created
+	 * or cleared.
+	 *
+	 * @return number of hits
+	 */
+	public long getHits() {
+		return m_hits.get();
+	}
+
+	/**
+	 * Returns the number of loci not found in memory since the cache was
+	 * created or cleared.
+	 *
+	 * @return number of misses
+	 */
+	public long getMisses() {
+		return m_misses.get();
+	}
+
+	/**
+	 * Returns the number of entries in memory.
+	 *
+	 * @return number of entries
+	 */
+	public int size() {
+		int size = 0;
+		for (Stripe stripe : m_stripes) {
+			size += stripe.size();
+		}
+		return size;
+	}
+
+	/**
+	 * Clears the cache if the assembly was switched without clearing it, so
+	 * that codes of another dictionary are never handed out.
+	 */
+	private void checkAssembly() {
+		String assembly = AnnotationDictionary.getInstance().getAssembly();
+		if (!assembly.equals(m_assembly)) {
+			synchronized (this) {
+				if (!assembly.equals(m_assembly)) {
+					clear();
+					m_assembly = assembly;
+				}
+			}
+		}
+	}
+
+	private void put(String track, LocusStore locusStore, int[] loci,
+			AnnotationColumn... columns) {
+		for (int locus : loci) {
+			int[] codes = new int[columns.length];
+			for (int k = 0; k < columns.length; k++) {
+				codes[k] = columns[k].getCode(locus);
+			}
+			Key key = new Key(track, locusStore, locus);
+			getStripe(key).put(key, codes);
+		}
+	}
+
+	/**
+	 * Returns the loci which are not among the misses; the misses are a
+	 * subsequence of the loci, in the same order.
+	 */
+	private static int[] getFound(int[] loci, int[] misses) {
+		int[] found = new int[loci.length - misses.length];
+		int nrOfFound = 0;
+		int j = 0;
+		for (int locus : loci) {
+			if (j < misses.length && misses[j] == locus) {
+				j++;
+			} else {
+				found[nrOfFound++] = locus;
+			}
+		}
+		return found;
+	}
+
+	private Stripe getStripe(Key key) {
+		int hash = key.hashCode();
+		return m_stripes[(hash ^ (hash >>> 16)) & (NR_OF_STRIPES - 1)];
+	}
+
+	/**
+	 * Part of the cache, with its own lock and its own share of the size
+	 * limit.
+	 */
+	private class Stripe {
+		private LinkedHashMap<Key, int[]> m_entries = new LinkedHashMap<Key, int[]>(
+				256, 0.75f, true);
+		private long m_bytes = 0;
+
+		synchronized int[] get(Key key) {
+			return m_entries.get(key);
+		}
+
+		synchronized boolean contains(Key key) {
+			// containsKey does not count as a use of the entry
+			return m_entries.containsKey(key);
+		}
+
+		synchronized void put(Key key, int[] codes) {
+			int[] old = m_entries.put(key, codes);
+			if (old != null) {
+				m_bytes -= getEntryBytes(key, old);
+			}
+			m_bytes += getEntryBytes(key, codes);
+			Iterator<Map.Entry<Key, int[]>> eldest = m_entries.entrySet()
+					.iterator();
+			while (m_bytes > m_maxBytesPerStripe && eldest.hasNext()) {
+				Map.Entry<Key, int[]> entry = eldest.next();
+				m_bytes -= getEntryBytes(entry.getKey(), entry.getValue());
+				eldest.remove();
+			}
+		}
+
+		synchronized void clear() {
+			m_entries.clear();
+			m_bytes = 0;
+		}
+
+		synchronized int size() {
+			return m_entries.size();
+		}
+
+		private long getEntryBytes(Key key, int[] codes) {
+			return ENTRY_OVERHEAD + 4 * codes.length;
+		}
+	}
+
+	/**
+	 * Key of an entry. The track and chromosome names are shared by all keys
+	 * of a dataset, so a key adds only its own fields to the memory taken.
+	 */
+	private static class Key {
+		private final String m_track;
+		private final String m_chr;
+		private final int m_start;
+		private final int m_end;
+		private final int m_hash;
+
+		Key(String track, LocusStore locusStore, int locus) {
+			this.m_track = track;
+			this.m_chr = locusStore.getChr(locus);
+			this.m_start = locusStore.getStartPos(locus);
+			this.m_end = locusStore.getEndPos(locus);
+			this.m_hash = ((track.hashCode() * 31 + m_chr.hashCode()) * 31 + m_start)
+					* 31 + m_end;
+		}
+
+		@Override
+		public int hashCode() {
+			return m_hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return m_hash == other.m_hash && m_start == other.m_start
+					&& m_end == other.m_end && m_chr.equals(other.m_chr)
+					&& m_track.equals(other.m_track);
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package backend;
+
+import java.nio.IntBuffer;
+
+/**
+ * One annotation column of a dataset, eg. the gene or the cytoband of each
+ * locus.
+ *
+ * The column holds one int code per locus, which points into the
+ * AnnotationDictionary of the assembly. The codes are allocated from the
+ * ColumnStorage of the dataset, and a value is only decoded into a String when
+ * it is read, eg. when a cell of the results table is shown or exported. New
+ * columns hold the empty value (GlobalParameters.STR_EMPTY_VALUE) for every
+ * locus; it can be tested with isEmpty(), which is a plain integer compare.
+ * Loci whose annotation could not be fetched hold the failed value
+ * (GlobalParameters.STR_FAILED_VALUE), tested with isFailed().
+ *
+ * @author mkumar
+ * @since v1.1
+ */
+public class AnnotationColumn {
+	private IntBuffer m_codes;
+	private AnnotationDictionary m_dictionary;
+	private int m_size;
+
+	/**
+	 * Constructor, allocates a column in which every locus has the empty
+	 * value.
+	 *
+	 * @param size
+	 *            number of loci
+	 * @param columnStorage
+	 *            storage of the dataset
+	 * @param dictionary
+	 *            dictionary of the assembly
+	 */
+	public AnnotationColumn(int size, ColumnStorage columnStorage,
+			AnnotationDictionary dictionary) {
+		super();
+		this.m_codes = columnStorage.allocateInts(size);
+		this.m_dictionary = dictionary;
+		this.m_size = size;
+	}
+
+	/**
+	 * Constructor, allocates a column for all loci of a store, from the
+	 * storage of the store and with the dictionary of the current assembly.
+	 *
+	 * @param locusStore
+	 *            store of loci
+	 */
+	public AnnotationColumn(LocusStore locusStore) {
+		this(locusStore.size(), locusStore.getColumnStorage(),
+				AnnotationDictionary.getInstance());
+	}
+
+	/**
+	 * Returns the number of values in the column.
+	 *
+	 * @return size number of values
+	 */
+	public int size() {
+		return m_size;
+	}
+
+	/**
+	 * Sets the value for a locus.
+	 *
+	 * @param index
+	 *            index of the locus
+	 * @param value
+	 *            annotation value, null for the empty value
+	 */
+	public void set(int index, String value) {
+		m_codes.put(index, m_dictionary.encode(value));
+	}
+
+	/**
+	 * Sets the code of the value for a locus.
+	 *
+	 * @param index
+	 *            index of the locus
+	 * @param code
+	 *            code of the value in the dictionary of this column
+	 */
+	public void setCode(int index, int code) {
+		m_codes.put(index, code);
+	}
+
+	/**
+	 * Returns the value for a locus.
+	 *
+	 * @param index
+	 *            index of the locus
+	 * @return value for the locus
+	 */
+	public String get(int index) {
+		return m_dictionary.decode(m_codes.get(index));
+	}
+
+	/**
+	 * Returns the code of the value for a locus.
+	 *
+	 * @param index
+	 *            index of the locus
+	 * @return code of the value in the dictionary of this column
+	 */
+	public int getCode(int index) {
+		return m_codes.get(index);
+	}
+
+	/**
+	 * Checks whether the value for a locus is the empty value.
+	 *
+	 * @param index
+	 *            index of the locus
+	 * @return true if there is no value for the locus
+	 */
+	public boolean isEmpty(int index) {
+		return m_codes.get(index) == AnnotationDictionary.EMPTY_CODE;
+	}
+
+	/**
+	 * Checks whether the annotation of a locus could not be fetched.
+	 *
+	 * @param index
+	 *            index of the locus
+	 * @return true if the locus holds the failed value
+	 */
+	public boolean isFailed(int index) {
+		return m_codes.get(index) == AnnotationDictionary.FAILED_CODE;
+	}
+
+	/**
+	 * Returns the dictionary into which the codes of this column point.
+	 *
+	 * @return dictionary of the assembly
+	 */
+	public AnnotationDictionary getDictionary() {
+		return m_dictionary;
+	}
+}
@@ -0,0 +1,217 @@
+package backend;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Dictionary of annotation values, eg. cytobands, gene names, repeat classes
+ * and families, and omim accession numbers.
+ *
+ * Annotation columns do not hold Strings, but int codes into this dictionary.
+ * The values are very repetitive (a few hundred cytobands, some 20k genes, a
+ * handful of repeat classes), so each distinct value is held only once, and is
+ * shared by all datasets of the same assembly. Code 0 is always the empty value
+ * (GlobalParameters.STR_EMPTY_VALUE), and code 1 the value of a locus whose
+ * annotation could not be fetched (GlobalParameters.STR_FAILED_VALUE). Values
+ * which rarely repeat, like the list of repeat elements of each locus, are
+ * held in a private dictionary of their dataset instead (see createPrivate()).
+ *
+ * Values are encoded by the fetchers of several tracks at once, and decoded on
+ * the event dispatch thread for every cell of the results table, so neither
+ * takes a lock for a value which is known. The codes of known values are held
+ * in a ConcurrentHashMap; only a new value takes the lock, to append it to an
+ * array which is published through a volatile field. The array only grows,
+ * so a code once handed out is decoded without any lock.
+ *
+ * The dictionary of an assembly is used by the open tabs of its datasets, by
+ * the annotations in progress, and by the local indexes of its tables. It is
+ * dropped, with these indexes, once another assembly is selected and no tab
+ * or annotation of its own is left; see dropUnused().
+ *
+ * @author mkumar
+ * @since v1.1
+ */
+public class AnnotationDictionary {
+	private static final Logger logger = Logger
+			.getLogger(AnnotationDictionary.class);
+	public static final int EMPTY_CODE = 0;
+	public static final int FAILED_CODE = 1;
+	private static final int INITIAL_CAPACITY = 1024;
+	private static HashMap<String, AnnotationDictionary> dictionaries = new HashMap<String, AnnotationDictionary>();
+	// number of open datasets and annotations in progress per assembly
+	private static HashMap<String, Integer> nrOfUsers = new HashMap<String, Integer>();
+
+	private String m_assembly;
+	private ConcurrentHashMap<String, Integer> m_codes = new ConcurrentHashMap<String, Integer>();
+	// written only while holding the lock of the dictionary
+	private volatile String[] m_values = new String[INITIAL_CAPACITY];
+	private volatile int m_size = 0;
+
+	private AnnotationDictionary(String assembly) {
+		super();
+		this.m_assembly = assembly;
+		encode(GlobalParameters.STR_EMPTY_VALUE);
+		encode(GlobalParameters.STR_FAILED_VALUE);
+	}
+
+	/**
+	 * Returns the dictionary of the assembly currently selected in the
+	 * settings, creating it if it does not exist yet.
+	 *
+	 * @return dictionary of the current assembly
+	 */
+	public static synchronized AnnotationDictionary getInstance() {
+		String assembly = getSelectedAssembly();
+		AnnotationDictionary dictionary = dictionaries.get(assembly);
+		if (dictionary == null) {
+			logger.debug("creating annotation dictionary for " + assembly);
+			dictionary = new AnnotationDictionary(assembly);
+			dictionaries.put(assembly, dictionary);
+		}
+		return dictionary;
+	}
+
+	/**
+	 * Creates a dictionary which is not shared with other datasets, for values
+	 * which are mostly unique to their locus. It is freed with the columns of
+	 * the dataset, and its codes must not be cached or copied into a column
+	 * of another dictionary.
+	 *
+	 * @param assembly
+	 *            assembly of the dataset, eg. hg19
+	 * @return new dictionary holding only the empty and the failed value
+	 */
+	public static AnnotationDictionary createPrivate(String assembly) {
+		return new AnnotationDictionary(assembly);
+	}
+
+	/**
+	 * Notes that a dataset of an assembly is annotated or shown in a tab, so
+	 * that the dictionary of the assembly is kept.
+	 *
+	 * @param assembly
+	 *            assembly of the dataset, eg. hg19
+	 */
+	public static synchronized void retain(String assembly) {
+		Integer count = nrOfUsers.get(assembly);
+		nrOfUsers.put(assembly, count == null ? 1 : count + 1);
+	}
+
+	/**
+	 * Notes that the annotation of a dataset is over, or that its tab was
+	 * closed. The dictionary is not dropped here, see dropUnused().
+	 *
+	 * @param assembly
+	 *            assembly of the dataset, eg. hg19
+	 */
+	public static synchronized void release(String assembly) {
+		Integer count = nrOfUsers.get(assembly);
+		if (count == null || count <= 1) {
+			nrOfUsers.remove(assembly);
+		} else {
+			nrOfUsers.put(assembly, count - 1);
+		}
+	}
+
+	/**
+	 * Drops the dictionaries of the assemblies which are not selected in the
+	 * settings and not used by any dataset. The local indexes of these
+	 * assemblies hold codes of the dropped dictionaries, and must be dropped
+	 * by the caller as well (see TaskManager.dropUnusedAssemblies()).
+	 *
+	 * @return assemblies whose dictionary was dropped
+	 */
+	public static synchronized ArrayList<String> dropUnused() {
+		String selectedAssembly = getSelectedAssembly();
+		ArrayList<String> droppedAssemblies = new ArrayList<String>();
+		Iterator<AnnotationDictionary> it = dictionaries.values().iterator();
+		while (it.hasNext()) {
+			AnnotationDictionary dictionary = it.next();
+			if (!dictionary.m_assembly.equals(selectedAssembly)
+					&& !nrOfUsers.containsKey(dictionary.m_assembly)) {
+				it.remove();
+				droppedAssemblies.add(dictionary.m_assembly);
+				logger.info("dropped annotation dictionary of "
+						+ dictionary.m_assembly + " with "
+						+ dictionary.size() + " values");
+			}
+		}
+		return droppedAssemblies;
+	}
+
+	/**
+	 * Returns the code of a value, adding the value to the dictionary if it
+	 * was not seen before. null is encoded as the empty value.
+	 *
+	 * @param value
+	 *            annotation value
+	 * @return code of the value
+	 */
+	public int encode(String value) {
+		if (value == null) {
+			return EMPTY_CODE;
+		}
+		Integer code = m_codes.get(value);
+		if (code != null) {
+			return code;
+		}
+		synchronized (this) {
+			code = m_codes.get(value);
+			if (code == null) {
+				String[] values = m_values;
+				int size = m_size;
+				if (size == values.length) {
+					values = Arrays.copyOf(values, size * 2);
+				}
+				values[size] = value;
+				// the value is published before its code is handed out
+				m_values = values;
+				m_size = size + 1;
+				code = size;
+				m_codes.put(value, code);
+			}
+			return code;
+		}
+	}
+
+	/**
+	 * Returns the value for a code.
+	 *
+	 * @param code
+	 *            code of the value
+	 * @return annotation value
+	 */
+	public String decode(int code) {
+		if (code >= m_size) {
+			throw new IndexOutOfBoundsException("unknown code " + code);
+		}
+		return m_values[code];
+	}
+
+	/**
+	 * Returns the number of distinct values in the dictionary.
+	 *
+	 * @return number of values
+	 */
+	public int size() {
+		return m_size;
+	}
+
+	/**
+	 * Returns the assembly to which this dictionary belongs.
+	 *
+	 * @return assembly, eg. hg19
+	 */
+	public String getAssembly() {
+		return m_assembly;
+	}
+
+	private static String getSelectedAssembly() {
+		return GlobalParameters.IS_HG18_ON_UCSC ? "hg18" : "hg19";
+	}
+}
@@ -0,0 +1,687 @@
+package backend;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Local snapshot of the annotation tables of one assembly, built from the
+ * UCSC table dumps by the SnapshotImporter.
+ *
+ * A snapshot holds the tracks refGene, cytoBand and rmsk, and the map from
+ * gene name to OMIM accession number. If a snapshot exists for the selected
+ * assembly, the fetchers annotate the loci from it instead of querying the
+ * remote database, so that the tool works without any network.
+ *
+ * The file is memory-mapped, not read: the rows of each chromosome are stored
+ * sorted by start coordinate together with the lookup tree of an
+ * IntervalIndex, so that lookups run directly on the mapped buffers and
+ * opening a snapshot takes about constant time, whatever its size. Only the
+ * pages actually touched by a lookup are read from disk.
+ *
+ * All numbers are little-endian. The file starts with a header:
+ * <ul>
+ * <li>the magic string, the format version and the length of the header</li>
+ * <li>the length of the body and its CRC32 checksum, and the time the
+ * snapshot was written</li>
+ * <li>the assembly</li>
+ * <li>for each section (the string table, and one per track): its name, the
+ * version of its layout, the time of the dump it was read from, and its offset
+ * and length in the file</li>
+ * </ul>
+ * Each section starts at a multiple of 8 bytes, and is a sequence of ints:
+ * <ul>
+ * <li>string table: number of strings n, n+1 offsets into the bytes, and the
+ * UTF-8 bytes of all strings</li>
+ * <li>interval track: number of values per row, number of rows, number of
+ * chromosomes, length of the tree; for each chromosome its code, first row,
+ * number of rows, offset and number of leaves in the tree; then the starts,
+ * ends, ordinals (row in the explicit order of the queries of the track, see
+ * SnapshotImporter), the rows of each chromosome sorted by end,
+ * the codes of each value, and the inner nodes of the tree of each
+ * chromosome</li>
+ * <li>gene map: number of genes n, the codes of the genes sorted by name, and
+ * the code of the accession number of each</li>
+ * </ul>
+ * A track whose layout version is unknown to this reader is left out, and is
+ * then fetched from the remote database.
+ *
+ * @author mkumar
+ * @since v1.1
+ */
+public class AnnotationSnapshot {
+	private static final Logger logger = Logger
+			.getLogger(AnnotationSnapshot.class);
+	public static final String MAGIC = "LOCUSVU-SNAPSHOT";
+	public static final int FORMAT_VERSION = 2;
+	public static final String TRACK_REFGENE = "refGene";
+	public static final String TRACK_CYTOBAND = "cytoBand";
+	public static final String TRACK_RMSK = "rmsk";
+	public static final String TRACK_OMIM = "omim";
+	static final String SECTION_STRINGS = "strings";
+	// versions of the layout of the sections
+	static final int STRINGS_VERSION = 1;
+	// version 1 had the rows in the order of the dump as ordinals
+	static final int INTERVAL_TRACK_VERSION = 2;
+	static final int GENE_MAP_VERSION = 1;
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	// snapshot of each assembly, or null if there is none
+	private static HashMap<String, AnnotationSnapshot> snapshots = new HashMap<String, AnnotationSnapshot>();
+
+	private String m_assembly;
+	private long m_creationTime;
+	private ByteBuffer m_stringBytes;
+	private IntBuffer m_stringOffsets;
+	// strings decoded so far
+	private String[] m_strings;
+	private HashMap<String, Track> m_tracks = new HashMap<String, Track>();
+	private IntBuffer m_genes = null;
+	// time of the map file the accession numbers were copied from
+	private long m_omimSourceTime = 0;
+	private IntBuffer m_accessionNums = null;
+
+	private AnnotationSnapshot() {
+		super();
+	}
+
+	/**
+	 * Returns the snapshot of the assembly currently selected in the settings,
+	 * opening it on first use.
+	 *
+	 * @return snapshot, or null if there is no snapshot for the assembly or
+	 *         offline snapshots are switched off
+	 */
+	public static AnnotationSnapshot getInstance() {
+		if (!GlobalParameters.USE_OFFLINE_SNAPSHOT) {
+			return null;
+		}
+		String assembly = AnnotationDictionary.getInstance().getAssembly();
+		synchronized (snapshots) {
+			if (!snapshots.containsKey(assembly)) {
+				snapshots.put(assembly, open(getFile(assembly),
+						GlobalParameters.VERIFY_SNAPSHOT_CHECKSUM));
+			}
+			return snapshots.get(assembly);
+		}
+	}
+
+	/**
+	 * Drops the open snapshot of an assembly, eg. after a new import, so that
+	 * it is opened again on next use.
+	 *
+	 * @param assembly
+	 *            assembly, eg. hg19
+	 */
+	public static void reset(String assembly) {
+		synchronized (snapshots) {
+			snapshots.remove(assembly);
+		}
+	}
+
+	/**
+	 * Returns the snapshot file of an assembly.
+	 *
+	 * @param assembly
+	 *            assembly, eg. hg19
+	 * @return snapshot file
+	 */
+	public static File getFile(String assembly) {
+		return new File(GlobalParameters.PATH_SNAPSHOT_DIR, assembly
+				+ ".snapshot");
+	}
+
+	/**
+	 * Maps a snapshot file into memory.
+	 *
+	 * @param file
+	 *            snapshot file
+	 * @param isChecksumVerified
+	 *            true to compare the checksum of the whole body, which reads
+	 *            the whole file once
+	 * @return snapshot, or null if the file does not exist, cannot be read, or
+	 *         is not a valid snapshot
+	 */
+	static AnnotationSnapshot open(File file, boolean isChecksumVerified) {
+		if (!file.isFile()) {
+			return null;
+		}
+		long startTime = System.currentTimeMillis();
+		ByteBuffer map;
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				FileChannel channel = raf.getChannel();
+				if (channel.size() > Integer.MAX_VALUE) {
+					logger.error(file.getName() + " is too large to be mapped");
+					return null;
+				}
+				// the mapping stays valid after the channel is closed
+				map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel
+						.size());
+			} finally {
+				raf.close();
+			}
+		} catch (IOException ioe) {
+			logger.error("cannot read snapshot " + file.getName());
+			return null;
+		}
+
+		AnnotationSnapshot snapshot = new AnnotationSnapshot();
+		try {
+			snapshot.readHeader(map, isChecksumVerified);
+		} catch (IOException ioe) {
+			logger.error("snapshot " + file.getName() + " is not valid: "
+					+ ioe.getMessage());
+			return null;
+		} catch (RuntimeException ex) {
+			// eg. a section which lies outside of the file
+			logger.error("snapshot " + file.getName() + " is not valid: " + ex);
+			return null;
+		}
+		logger.info("opened snapshot of " + snapshot.m_assembly + " in "
+				+ (System.currentTimeMillis() - startTime) + " ms");
+		return snapshot;
+	}
+
+	/**
+	 * Reads the header, checks it, and maps the sections.
+	 */
+	private void readHeader(ByteBuffer map, boolean isChecksumVerified)
+			throws IOException {
+		ByteBuffer header = map.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		byte[] magic = new byte[MAGIC.length()];
+		if (header.remaining() < magic.length + 8) {
+			throw new IOException("file is truncated");
+		}
+		header.get(magic);
+		if (!MAGIC.equals(new String(magic, UTF_8))) {
+			throw new IOException("not a snapshot");
+		}
+		int formatVersion = header.getInt();
+		if (formatVersion != FORMAT_VERSION) {
+			throw new IOException("format version " + formatVersion
+					+ " is not supported, please import the dumps again");
+		}
+		int headerLength = header.getInt();
+		long bodyLength = header.getLong();
+		long checksum = header.getLong();
+		if (headerLength + bodyLength != map.capacity()) {
+			throw new IOException("file is truncated");
+		}
+		if (isChecksumVerified
+				&& getChecksum(map, headerLength, (int) bodyLength) != checksum) {
+			throw new IOException("checksum does not match");
+		}
+		m_creationTime = header.getLong();
+		m_assembly = getString(header);
+
+		int nrOfSections = header.getInt();
+		HashMap<String, IntBuffer> sections = new HashMap<String, IntBuffer>();
+		HashMap<String, Long> sourceTimes = new HashMap<String, Long>();
+		ByteBuffer strings = null;
+		for (int s = 0; s < nrOfSections; s++) {
+			String name = getString(header);
+			int version = header.getInt();
+			long sourceTime = header.getLong();
+			int offset = (int) header.getLong();
+			int length = (int) header.getLong();
+			ByteBuffer section = slice(map, offset, length);
+			if (name.equals(SECTION_STRINGS) && version == STRINGS_VERSION) {
+				strings = section;
+			} else if ((name.equals(TRACK_OMIM) && version == GENE_MAP_VERSION)
+					|| (!name.equals(TRACK_OMIM) && version == INTERVAL_TRACK_VERSION)) {
+				sections.put(name, section.asIntBuffer());
+				sourceTimes.put(name, sourceTime);
+			} else {
+				logger.info("skipping track " + name + " of unknown version "
+						+ version);
+			}
+		}
+		if (strings == null) {
+			throw new IOException("string table is missing");
+		}
+
+		IntBuffer stringInts = strings.asIntBuffer();
+		int nrOfStrings = stringInts.get(0);
+		m_stringOffsets = slice(stringInts, 1, nrOfStrings + 1);
+		m_stringBytes = slice(strings, 4 * (nrOfStrings + 2), strings
+				.capacity()
+				- 4 * (nrOfStrings + 2));
+		m_strings = new String[nrOfStrings];
+
+		for (String name : sections.keySet()) {
+			IntBuffer ints = sections.get(name);
+			if (name.equals(TRACK_OMIM)) {
+				int nrOfGenes = ints.get(0);
+				m_genes = slice(ints, 1, nrOfGenes);
+				m_accessionNums = slice(ints, 1 + nrOfGenes, nrOfGenes);
+				m_omimSourceTime = sourceTimes.get(name);
+			} else {
+				m_tracks.put(name, new Track(name, sourceTimes.get(name), ints));
+			}
+		}
+	}
+
+	private static long getChecksum(ByteBuffer map, int offset, int length) {
+		ByteBuffer body = slice(map, offset, length);
+		CRC32 crc = new CRC32();
+		byte[] chunk = new byte[1 << 16];
+		while (body.hasRemaining()) {
+			int n = Math.min(chunk.length, body.remaining());
+			body.get(chunk, 0, n);
+			crc.update(chunk, 0, n);
+		}
+		return crc.getValue();
+	}
+
+	private static String getString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getShort() & 0xffff];
+		buffer.get(bytes);
+		return new String(bytes, UTF_8);
+	}
+
+	private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+		ByteBuffer slice = buffer.duplicate();
+		slice.position(offset);
+		slice.limit(offset + length);
+		// a slice has the default byte order again
+		return slice.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static IntBuffer slice(IntBuffer buffer, int offset, int length) {
+		IntBuffer slice = buffer.duplicate();
+		slice.position(offset);
+		slice.limit(offset + length);
+		return slice.slice();
+	}
+
+	/**
+	 * Returns the assembly of the snapshot.
+	 *
+	 * @return assembly, eg. hg19
+	 */
+	public String getAssembly() {
+		return m_assembly;
+	}
+
+	/**
+	 * Returns the time the snapshot was written.
+	 *
+	 * @return time in milliseconds
+	 */
+	public long getCreationTime() {
+		return m_creationTime;
+	}
+
+	/**
+	 * Returns a track of the snapshot.
+	 *
+	 * @param name
+	 *            name of the track, eg. AnnotationSnapshot.TRACK_REFGENE
+	 * @return track, or null if the snapshot does not hold it
+	 */
+	public Track getTrack(String name) {
+		return m_tracks.get(name);
+	}
+
+	/**
+	 * Returns the number of strings in the string table, eg. to map the codes
+	 * of the snapshot to codes of the AnnotationDictionary.
+	 *
+	 * @return number of strings
+	 */
+	public int getNrOfStrings() {
+		return m_strings.length;
+	}
+
+	/**
+	 * Returns a string of the string table. The string is decoded from the
+	 * mapped bytes on first use.
+	 *
+	 * @param code
+	 *            code of the string
+	 * @return string
+	 */
+	public String getString(int code) {
+		String value = m_strings[code];
+		if (value == null) {
+			int from = m_stringOffsets.get(code);
+			byte[] bytes = new byte[m_stringOffsets.get(code + 1) - from];
+			for (int i = 0; i < bytes.length; i++) {
+				bytes[i] = m_stringBytes.get(from + i);
+			}
+			// strings are immutable, so a string decoded twice by two
+			// threads does no harm
+			value = new String(bytes, UTF_8);
+			m_strings[code] = value;
+		}
+		return value;
+	}
+
+	/**
+	 * Returns true if the snapshot holds the map from gene name to OMIM
+	 * accession number.
+	 *
+	 * @return true if OMIM accession numbers can be looked up
+	 */
+	public boolean hasOmimAccessionNums() {
+		return m_genes != null;
+	}
+
+	/**
+	 * Returns the time of the map file from which the OMIM accession numbers
+	 * were copied into the snapshot.
+	 *
+	 * @return time in milliseconds, 0 if the snapshot holds no map
+	 */
+	public long getOmimSourceTime() {
+		return m_omimSourceTime;
+	}
+
+	/**
+	 * Returns the OMIM accession number of a gene.
+	 *
+	 * @param gene
+	 *            gene name, eg. BRCA2
+	 * @return accession number, or null if the gene has none
+	 */
+	public String getOmimAccessionNum(String gene) {
+		if (m_genes == null) {
+			return null;
+		}
+		int low = 0;
+		int high = m_genes.limit() - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int cmp = getString(m_genes.get(mid)).compareTo(gene);
+			if (cmp < 0) {
+				low = mid + 1;
+			} else if (cmp > 0) {
+				high = mid - 1;
+			} else {
+				return getString(m_accessionNums.get(mid));
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * The rows of one table, grouped by chromosome and sorted by start
+	 * coordinate. The row numbers used by the methods refer to this order,
+	 * not to the order of the dump.
+	 *
+	 * @author mkumar
+	 * @since v1.1
+	 */
+	public class Track {
+		private String name;
+		private long sourceTime;
+		private int size;
+		private IntBuffer starts;
+		private IntBuffer ends;
+		private IntBuffer endOrder;
+		private IntBuffer[] values;
+		private HashMap<String, Chr> chrs = new HashMap<String, Chr>();
+
+		private Track(String name, long sourceTime, IntBuffer ints) {
+			this.name = name;
+			this.sourceTime = sourceTime;
+			int nrOfValues = ints.get(0);
+			this.size = ints.get(1);
+			int nrOfChrs = ints.get(2);
+			int treeLength = ints.get(3);
+			int offset = 4 + 5 * nrOfChrs;
+			this.starts = slice(ints, offset, size);
+			this.ends = slice(ints, offset + size, size);
+			IntBuffer ordinals = slice(ints, offset + 2 * size, size);
+			this.endOrder = slice(ints, offset + 3 * size, size);
+			this.values = new IntBuffer[nrOfValues];
+			for (int k = 0; k < nrOfValues; k++) {
+				values[k] = slice(ints, offset + (4 + k) * size, size);
+			}
+			IntBuffer tree = slice(ints, offset + (4 + nrOfValues) * size,
+					treeLength);
+
+			for (int c = 0; c < nrOfChrs; c++) {
+				int entry = 4 + 5 * c;
+				Chr chr = new Chr();
+				chr.firstRow = ints.get(entry + 1);
+				chr.nrOfRows = ints.get(entry + 2);
+				int nrOfLeaves = ints.get(entry + 4);
+				chr.intervals = new IntervalIndex.Intervals(slice(starts,
+						chr.firstRow, chr.nrOfRows), slice(ends, chr.firstRow,
+						chr.nrOfRows), slice(ordinals, chr.firstRow,
+						chr.nrOfRows), slice(tree, ints.get(entry + 3),
+						nrOfLeaves), nrOfLeaves, chr.firstRow);
+				chrs.put(getString(ints.get(entry)), chr);
+			}
+		}
+
+		/**
+		 * Returns the name of the track.
+		 *
+		 * @return name, eg. refGene
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Returns the time of the dump the track was imported from.
+		 *
+		 * @return time in milliseconds
+		 */
+		public long getSourceTime() {
+			return sourceTime;
+		}
+
+		/**
+		 * Returns the number of rows.
+		 *
+		 * @return number of rows
+		 */
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * Returns the chromosomes of the track.
+		 *
+		 * @return chromosomes, eg. chr1
+		 */
+		public String[] getChrs() {
+			return chrs.keySet().toArray(new String[chrs.size()]);
+		}
+
+		/**
+		 * Returns the first row of a chromosome.
+		 *
+		 * @param chr
+		 *            chromosome, eg. chr1
+		 * @return first row, or 0 if the chromosome has no rows
+		 */
+		public int getFirstRow(String chr) {
+			Chr rows = chrs.get(chr);
+			return rows == null ? 0 : rows.firstRow;
+		}
+
+		/**
+		 * Returns the number of rows of a chromosome.
+		 *
+		 * @param chr
+		 *            chromosome, eg. chr1
+		 * @return number of rows
+		 */
+		public int getNrOfRows(String chr) {
+			Chr rows = chrs.get(chr);
+			return rows == null ? 0 : rows.nrOfRows;
+		}
+
+		/**
+		 * Returns the start coordinate of a row.
+		 *
+		 * @param row
+		 *            index of the row
+		 * @return start coordinate
+		 */
+		public int getStart(int row) {
+			return starts.get(row);
+		}
+
+		/**
+		 * Returns the end coordinate of a row.
+		 *
+		 * @param row
+		 *            index of the row
+		 * @return end coordinate
+		 */
+		public int getEnd(int row) {
+			return ends.get(row);
+		}
+
+		/**
+		 * Returns the code of a value of a row in the string table.
+		 *
+		 * @param row
+		 *            index of the row
+		 * @param k
+		 *            index of the value, eg. 0 for repName, 1 for repClass
+		 * @return code of the value
+		 */
+		public int getValueCode(int row, int k) {
+			return values[k].get(row);
+		}
+
+		/**
+		 * Returns a value of a row.
+		 *
+		 * @param row
+		 *            index of the row
+		 * @param k
+		 *            index of the value, eg. 0 for repName, 1 for repClass
+		 * @return value
+		 */
+		public String getValue(int row, int k) {
+			return getString(values[k].get(row));
+		}
+
+		/**
+		 * Returns the first row of the dump which strictly contains the given
+		 * locus, i.e. start &lt; startPos and end &gt; endPos, like the first
+		 * row of the per-locus query.
+		 *
+		 * @param chr
+		 *            chromosome of the locus, eg. chr1
+		 * @param startPos
+		 *            start coordinate of the locus
+		 * @param endPos
+		 *            end coordinate of the locus
+		 * @return index of the row, or -1 if no row contains the locus
+		 */
+		public int findFirstContaining(String chr, int startPos, int endPos) {
+			Chr rows = chrs.get(chr);
+			if (rows == null) {
+				return -1;
+			}
+			return rows.intervals.findFirstContaining(startPos, endPos);
+		}
+
+		/**
+		 * Returns the rows which start between two coordinates, sorted by
+		 * start coordinate, like "WHERE start BETWEEN from AND to ORDER BY
+		 * start LIMIT max".
+		 *
+		 * @param chr
+		 *            chromosome, eg. chr1
+		 * @param from
+		 *            smallest start coordinate
+		 * @param to
+		 *            largest start coordinate
+		 * @param max
+		 *            largest number of rows to return
+		 * @return indexes of the rows
+		 */
+		public int[] findStartingBetween(String chr, int from, int to, int max) {
+			Chr rows = chrs.get(chr);
+			if (rows == null) {
+				return new int[0];
+			}
+			int first = rows.intervals.lowerBound(from);
+			int n = 0;
+			while (n < max && first + n < rows.nrOfRows
+					&& starts.get(rows.firstRow + first + n) <= to) {
+				n++;
+			}
+			int[] result = new int[n];
+			for (int i = 0; i < n; i++) {
+				result[i] = rows.firstRow + first + i;
+			}
+			return result;
+		}
+
+		/**
+		 * Returns the rows which end between two coordinates, sorted by end
+		 * coordinate from the largest down, like "WHERE end BETWEEN from AND
+		 * to ORDER BY end DESC LIMIT max".
+		 *
+		 * @param chr
+		 *            chromosome, eg. chr1
+		 * @param from
+		 *            smallest end coordinate
+		 * @param to
+		 *            largest end coordinate
+		 * @param max
+		 *            largest number of rows to return
+		 * @return indexes of the rows
+		 */
+		public int[] findEndingBetween(String chr, int from, int to, int max) {
+			Chr rows = chrs.get(chr);
+			if (rows == null) {
+				return new int[0];
+			}
+			// number of rows which end at or before to
+			int low = 0;
+			int high = rows.nrOfRows;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (getEnd(getRowByEnd(rows, mid)) <= to) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			int n = 0;
+			while (n < max && low - 1 - n >= 0
+					&& getEnd(getRowByEnd(rows, low - 1 - n)) >= from) {
+				n++;
+			}
+			int[] result = new int[n];
+			for (int i = 0; i < n; i++) {
+				result[i] = getRowByEnd(rows, low - 1 - i);
+			}
+			return result;
+		}
+
+		private int getRowByEnd(Chr rows, int i) {
+			return rows.firstRow + endOrder.get(rows.firstRow + i);
+		}
+	}
+
+	/**
+	 * The rows of one chromosome of a track.
+	 */
+	private static class Chr {
+		private int firstRow;
+		private int nrOfRows;
+		private IntervalIndex.Intervals intervals;
+	}
+}
@@ -0,0 +1,201 @@
+package backend;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+import org.apache.log4j.Logger;
+
+/**
+ * This class allocates the memory for the columns of one dataset, i.e. the
+ * loci and the annotation columns shown in one tab of the results.
+ *
+ * Depending on GlobalParameters.STORE_RESULTS_OFF_HEAP, the columns are
+ * allocated either on the java heap, or outside of it in direct buffers. Off
+ * heap, the columns can additionally be backed by a temporary file
+ * (GlobalParameters.BACK_RESULTS_WITH_TEMP_FILE), so that the operating system
+ * can page them out instead of the whole application running out of memory.
+ * Columns outside of the heap are never scanned by the garbage collector, so
+ * GC pauses do not grow with the size of the datasets that are open.
+ *
+ * One ColumnStorage is created per dataset when its tab is opened, and is
+ * released when the tab is closed. The annotation tracks of a dataset are
+ * fetched at the same time, so columns can be allocated from several threads.
+ *
+ * @author mkumar
+ * @since v1.1
+ */
+public class ColumnStorage {
+	private static final Logger logger = Logger.getLogger(ColumnStorage.class);
+	private boolean m_isOffHeap;
+	private boolean m_isFileBacked;
+	private boolean m_isReleased = false;
+	private long m_bytesAllocated = 0;
+	private ArrayList<File> m_tempFiles = new ArrayList<File>();
+
+	/**
+	 * Constructor, takes the type of storage from the global parameters.
+	 */
+	public ColumnStorage() {
+		this(GlobalParameters.STORE_RESULTS_OFF_HEAP,
+				GlobalParameters.BACK_RESULTS_WITH_TEMP_FILE);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param isOffHeap
+	 *            true to allocate columns outside of the java heap
+	 * @param isFileBacked
+	 *            true to back columns outside of the heap with a temporary
+	 *            file
+	 */
+	public ColumnStorage(boolean isOffHeap, boolean isFileBacked) {
+		super();
+		this.m_isOffHeap = isOffHeap;
+		this.m_isFileBacked = isOffHeap && isFileBacked;
+	}
+
+	/**
+	 * Allocates a column of ints.
+	 *
+	 * @param size
+	 *            number of entries in the column
+	 * @return column of ints, all set to zero
+	 */
+	public synchronized IntBuffer allocateInts(int size) {
+		if (m_isReleased) {
+			throw new IllegalStateException("column storage already released");
+		}
+		if (!m_isOffHeap) {
+			m_bytesAllocated += size * 4L;
+			return IntBuffer.allocate(size);
+		}
+		return allocateBytes(size * 4L).asIntBuffer();
+	}
+
+	/**
+	 * Allocates a column of shorts.
+	 *
+	 * @param size
+	 *            number of entries in the column
+	 * @return column of shorts, all set to zero
+	 */
+	public synchronized ShortBuffer allocateShorts(int size) {
+		if (m_isReleased) {
+			throw new IllegalStateException("column storage already released");
+		}
+		if (!m_isOffHeap) {
+			m_bytesAllocated += size * 2L;
+			return ShortBuffer.allocate(size);
+		}
+		return allocateBytes(size * 2L).asShortBuffer();
+	}
+
+	/**
+	 * Allocates a column of bytes.
+	 *
+	 * @param size
+	 *            number of bytes in the column
+	 * @return column of bytes, all set to zero
+	 */
+	public synchronized ByteBuffer allocateBytes(long size) {
+		if (m_isReleased) {
+			throw new IllegalStateException("column storage already released");
+		}
+		if (size > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("column too large: " + size
+					+ " bytes");
+		}
+		m_bytesAllocated += size;
+
+		if (!m_isOffHeap) {
+			return ByteBuffer.allocate((int) size);
+		}
+		if (m_isFileBacked) {
+			try {
+				return mapTempFile((int) size);
+			} catch (IOException ioe) {
+				logger.debug("cannot map temporary file for column storage, "
+						+ "using a direct buffer instead");
+			}
+		}
+		return ByteBuffer.allocateDirect((int) size).order(
+				ByteOrder.nativeOrder());
+	}
+
+	/**
+	 * Creates a temporary file of the given size and maps it into memory.
+	 */
+	private ByteBuffer mapTempFile(int size) throws IOException {
+		File tempFile = File.createTempFile("locusvu", ".col");
+		tempFile.deleteOnExit();
+		m_tempFiles.add(tempFile);
+
+		RandomAccessFile file = new RandomAccessFile(tempFile, "rw");
+		try {
+			file.setLength(size);
+			// the mapping stays valid after the file is closed
+			return file.getChannel()
+					.map(FileChannel.MapMode.READ_WRITE, 0, size)
+					.order(ByteOrder.nativeOrder());
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Releases the storage when the tab of its dataset is closed. Temporary
+	 * files are deleted; the memory itself is returned as soon as the columns
+	 * are no longer referenced.
+	 */
+	public synchronized void release() {
+		if (m_isReleased) {
+			return;
+		}
+		m_isReleased = true;
+		for (File tempFile : m_tempFiles) {
+			if (!tempFile.delete()) {
+				logger.debug("cannot delete temporary file "
+						+ tempFile.getName());
+			}
+		}
+		m_tempFiles.clear();
+		logger.debug("released column storage of " + m_bytesAllocated
+				+ " bytes");
+	}
+
+	/**
+	 * Returns whether the storage was released, ie. the tab of its dataset
+	 * was closed. No columns can be allocated afterwards.
+	 *
+	 * @return true if released
+	 */
+	public synchronized boolean isReleased() {
+		return m_isReleased;
+	}
+
+	/**
+	 * Returns whether the columns are allocated outside of the java heap.
+	 *
+	 * @return true if off heap
+	 */
+	public boolean isOffHeap() {
+		return m_isOffHeap;
+	}
+
+	/**
+	 * Returns the number of bytes allocated so far.
+	 *
+	 * @return bytes allocated
+	 */
+	public synchronized long getBytesAllocated() {
+		return m_bytesAllocated;
+	}
+}
@@ -0,0 +1,310 @@
+package backend;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Limits the queries in flight to the remote database, adapting the limit to
+ * what the server sustains.
+ *
+ * The UCSC server is public and shared, so a fixed number of parallel queries
+ * either leaves it idle or gets the tool throttled and disconnected. Every
+ * statement taken with Database.createStatement() holds one permit of the
+ * limiter until it is released. The limit grows by one for every limit
+ * queries answered (additive increase), and is halved when a query or
+ * connection fails (multiplicative decrease, at most once per second, so that
+ * a burst of failures of the queries in flight counts once). Point queries
+ * (one locus) also measure the load of the server: if one takes more than
+ * LATENCY_TOLERANCE times the fastest round trip seen, the limit shrinks by a
+ * tenth.
+ *
+ * Independently of the limit, queries are started at most
+ * GlobalParameters.MAX_QUERIES_PER_SECOND times per second, as a courtesy to
+ * the other users of the server. After a failure, no query is started for a
+ * back-off time which doubles with each further failure in a row. The queries
+ * in flight when the server fails usually fail together, so failures during
+ * the back-off count as one. Callers wait out the back-off; only once the
+ * failures have lasted for GlobalParameters.SERVER_DOWN_SECONDS without any
+ * query answered is the server taken to be down, and callers then get an
+ * SQLException at once during the back-off instead of waiting, so that it
+ * does not hold up the tool. A query after each back-off still probes
+ * whether the server is back.
+ *
+ * The limiter uses a ReentrantLock instead of synchronized waits, so that
+ * virtual threads waiting for a permit do not pin their carrier thread.
+ *
+ * @author mkumar
+ * @since v1.1
+ */
+public class ConcurrencyLimiter {
+	private static final Logger logger = Logger
+			.getLogger(ConcurrencyLimiter.class);
+	// a point query slower than this times the fastest one means congestion
+	private static final double LATENCY_TOLERANCE = 2.0;
+	private static final double LATENCY_DECREASE = 0.9;
+	private static final double ERROR_DECREASE = 0.5;
+	private static final long DECREASE_INTERVAL_MILLIS = 1000;
+	private static final long MIN_BACK_OFF_MILLIS = 500;
+	private static final long MAX_BACK_OFF_MILLIS = 30000;
+	private static ConcurrencyLimiter instance = null;
+
+	private final ReentrantLock m_lock = new ReentrantLock();
+	private final Condition m_isPermitFree = m_lock.newCondition();
+	private double m_limit;
+	private int m_maxLimit;
+	private int m_inFlight = 0;
+	private long m_nanosPerQuery;
+	private long m_nextStartTime;
+	private double m_minLatencyMillis = Double.MAX_VALUE;
+	private long m_lastDecreaseTime = 0;
+	private int m_nrOfErrorsInRow = 0;
+	private long m_firstErrorTime = 0;
+	private long m_backOffUntil = 0;
+
+	/**
+	 * Constructor
+	 *
+	 * @param initialLimit
+	 *            queries in flight to start with
+	 * @param maxLimit
+	 *            largest number of queries in flight
+	 * @param maxQueriesPerSecond
+	 *            largest number of queries started per second, 0 for no
+	 *            ceiling
+	 */
+	public ConcurrencyLimiter(int initialLimit, int maxLimit,
+			int maxQueriesPerSecond) {
+		super();
+		this.m_maxLimit = Math.max(maxLimit, 1);
+		this.m_limit = Math.min(Math.max(initialLimit, 1), m_maxLimit);
+		this.m_nanosPerQuery = maxQueriesPerSecond > 0 ? 1000000000L
+				/ maxQueriesPerSecond : 0;
+		this.m_nextStartTime = System.nanoTime();
+	}
+
+	/**
+	 * Returns the limiter of the remote database.
+	 *
+	 * @return limiter
+	 */
+	public static synchronized ConcurrencyLimiter getInstance() {
+		if (instance == null) {
+			instance = new ConcurrencyLimiter(
+					GlobalParameters.INITIAL_QUERIES_IN_FLIGHT,
+					GlobalParameters.CONNECTION_POOL_SIZE,
+					GlobalParameters.MAX_QUERIES_PER_SECOND);
+		}
+		return instance;
+	}
+
+	/**
+	 * Waits until a query may be started, and takes a permit for it. The
+	 * permit must be given back with release().
+	 *
+	 * @throws SQLException
+	 *             if the limiter backs off because the server is down, or if
+	 *             the thread is interrupted
+	 */
+	public void acquire() throws SQLException {
+		m_lock.lock();
+		try {
+			while (true) {
+				long now = System.nanoTime();
+				long backOffNanos = TimeUnit.MILLISECONDS
+						.toNanos(m_backOffUntil - System.currentTimeMillis());
+				if (backOffNanos > 0 && isServerDown()) {
+					throw new SQLException("remote database down, failing since "
+							+ (System.currentTimeMillis() - m_firstErrorTime)
+							/ 1000 + " s");
+				}
+				long waitNanos = Math.max(backOffNanos, m_nextStartTime - now);
+				if (waitNanos <= 0 && m_inFlight < (int) m_limit) {
+					m_inFlight++;
+					m_nextStartTime = Math.max(now, m_nextStartTime)
+							+ m_nanosPerQuery;
+					return;
+				}
+				try {
+					if (waitNanos > 0) {
+						m_isPermitFree.awaitNanos(waitNanos);
+					} else {
+						m_isPermitFree.await();
+					}
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw new SQLException(
+							"interrupted while waiting for a query permit");
+				}
+			}
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 * Takes a permit only if a query may be started at once, for queries
+	 * which are not needed, like the copy of a hedged query. The permit must
+	 * be given back with release().
+	 *
+	 * @return true if a permit was taken
+	 */
+	public boolean tryAcquire() {
+		m_lock.lock();
+		try {
+			long now = System.nanoTime();
+			if (m_backOffUntil > System.currentTimeMillis()
+					|| m_nextStartTime > now || m_inFlight >= (int) m_limit) {
+				return false;
+			}
+			m_inFlight++;
+			m_nextStartTime = now + m_nanosPerQuery;
+			return true;
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 * Gives back a permit taken with acquire() or tryAcquire().
+	 */
+	public void release() {
+		m_lock.lock();
+		try {
+			m_inFlight--;
+			m_isPermitFree.signalAll();
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 * Records a query which was answered.
+	 *
+	 * @param latencyMillis
+	 *            time taken by a point query, or -1 if the query returned
+	 *            many rows and its time says nothing about the load of the
+	 *            server
+	 */
+	public void onSuccess(double latencyMillis) {
+		m_lock.lock();
+		try {
+			m_nrOfErrorsInRow = 0;
+			if (latencyMillis >= 0) {
+				if (latencyMillis < m_minLatencyMillis) {
+					m_minLatencyMillis = latencyMillis;
+				} else {
+					// the fastest round trip slowly forgets old routes
+					m_minLatencyMillis += 0.001 * (latencyMillis - m_minLatencyMillis);
+				}
+				if (latencyMillis > LATENCY_TOLERANCE * m_minLatencyMillis
+						&& decrease(LATENCY_DECREASE)) {
+					return;
+				}
+			}
+			int oldLimit = (int) m_limit;
+			m_limit = Math.min(m_maxLimit, m_limit + 1 / m_limit);
+			if ((int) m_limit > oldLimit) {
+				logger.debug("query limit raised to " + (int) m_limit);
+				m_isPermitFree.signalAll();
+			}
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 * Records a query or connection which failed, and backs off. Failures
+	 * during the back-off are queries which were in flight already, and do
+	 * not back off further.
+	 */
+	public void onError() {
+		m_lock.lock();
+		try {
+			long now = System.currentTimeMillis();
+			if (now < m_backOffUntil) {
+				return;
+			}
+			if (m_nrOfErrorsInRow == 0) {
+				m_firstErrorTime = now;
+			}
+			m_nrOfErrorsInRow++;
+			decrease(ERROR_DECREASE);
+			long backOff = Math.min(MAX_BACK_OFF_MILLIS, MIN_BACK_OFF_MILLIS
+					<< Math.min(m_nrOfErrorsInRow - 1, 16));
+			m_backOffUntil = now + backOff;
+			logger.info("remote database failed " + m_nrOfErrorsInRow
+					+ " times in a row, backing off for " + backOff
+					+ " ms with a limit of " + (int) m_limit + " queries");
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the current limit of queries in flight.
+	 *
+	 * @return limit
+	 */
+	public int getLimit() {
+		m_lock.lock();
+		try {
+			return (int) m_limit;
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of queries in flight.
+	 *
+	 * @return queries holding a permit
+	 */
+	public int getInFlight() {
+		m_lock.lock();
+		try {
+			return m_inFlight;
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the smallest time between the starts of two queries.
+	 *
+	 * @return milliseconds per query, 0 if there is no ceiling
+	 */
+	public double getMillisPerQuery() {
+		return m_nanosPerQuery / 1e6;
+	}
+
+	/**
+	 * Returns true if the queries have failed for longer than
+	 * GlobalParameters.SERVER_DOWN_SECONDS, without any answered in between.
+	 * Must be called while holding the lock.
+	 */
+	private boolean isServerDown() {
+		return m_nrOfErrorsInRow > 0
+				&& System.currentTimeMillis() - m_firstErrorTime >= GlobalParameters.SERVER_DOWN_SECONDS * 1000L;
+	}
+
+	/**
+	 * Shrinks the limit, unless it was shrunk less than a second ago. Must be
+	 * called while holding the lock.
+	 *
+	 * @return true if the limit was shrunk
+	 */
+	private boolean decrease(double factor) {
+		long now = System.currentTimeMillis();
+		if (now - m_lastDecreaseTime < DECREASE_INTERVAL_MILLIS) {
+			return false;
+		}
+		m_lastDecreaseTime = now;
+		m_limit = Math.max(1, m_limit * factor);
+		logger.debug("query limit lowered to " + (int) m_limit);
+		return true;
+	}
+}
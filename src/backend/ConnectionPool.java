@@ -0,0 +1,289 @@
+package backend;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A bounded pool of connections to the remote database.
+ *
+ * Every annotation track and every interactive request (eg. neighboring
+ * genes) takes its own connection from the pool and gives it back when it is
+ * done, so that a slow query of one track does not hold up the others. At most
+ * maxSize connections are open at any time; acquire() waits when all of them
+ * are in use. A connection which was idle for more than a second is validated
+ * before it is handed out, and connections that were idle for longer than the
+ * idle timeout are closed: by a daemon timer, which checks the pool every
+ * half of the idle timeout, so that connections are also closed when no
+ * queries are run anymore, and whenever a connection is taken or given back.
+ *
+ * The pool uses a ReentrantLock instead of synchronized waits, like the
+ * ConcurrencyLimiter, so that virtual threads waiting for a connection do not
+ * pin their carrier thread, whichever caller they come from.
+ *
+ * @author mkumar
+ * @since v1.1
+ */
+public class ConnectionPool {
+	private static final Logger logger = Logger.getLogger(ConnectionPool.class);
+	private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+	// connections returned only a moment ago are not validated again, which
+	// would cost a round trip for every query
+	private static final long VALIDATION_INTERVAL_MILLIS = 1000;
+	// the idle connections of all pools are checked by one daemon thread
+	private static final Timer evictionTimer = new Timer(
+			"connection-eviction", true);
+	private String m_url;
+	private int m_maxSize;
+	private long m_idleTimeoutMillis;
+	private ArrayList<Connection> m_idleConnections = new ArrayList<Connection>();
+	private ArrayList<Long> m_idleSince = new ArrayList<Long>();
+	private int m_nrOfOpenConnections = 0;
+	private boolean m_isClosed = false;
+	private final ReentrantLock m_lock = new ReentrantLock();
+	private final Condition m_isConnectionFree = m_lock.newCondition();
+	private TimerTask m_evictionTask;
+
+	/**
+	 * Constructor
+	 *
+	 * @param url
+	 *            jdbc url of the database
+	 * @param maxSize
+	 *            largest number of open connections
+	 * @param idleTimeoutMillis
+	 *            time after which an idle connection is closed
+	 */
+	public ConnectionPool(String url, int maxSize, long idleTimeoutMillis) {
+		super();
+		this.m_url = url;
+		this.m_maxSize = Math.max(maxSize, 1);
+		this.m_idleTimeoutMillis = idleTimeoutMillis;
+		m_evictionTask = new TimerTask() {
+			@Override
+			public void run() {
+				closeIdleConnections();
+			}
+		};
+		long period = Math.max(idleTimeoutMillis / 2,
+				VALIDATION_INTERVAL_MILLIS);
+		evictionTimer.schedule(m_evictionTask, period, period);
+	}
+
+	/**
+	 * Takes a connection from the pool, opening a new one if none is idle and
+	 * the pool is not full, and waiting otherwise. The connection must be
+	 * given back with release().
+	 *
+	 * @return connection to the database
+	 * @throws SQLException
+	 *             if no connection can be opened
+	 */
+	public Connection acquire() throws SQLException {
+		while (true) {
+			Connection con = null;
+			long idleSince = 0;
+			ArrayList<Connection> evictedConnections;
+			m_lock.lock();
+			try {
+				evictedConnections = evictIdleConnections();
+				while (m_idleConnections.isEmpty()
+						&& m_nrOfOpenConnections >= m_maxSize && !m_isClosed) {
+					try {
+						m_isConnectionFree.await();
+					} catch (InterruptedException ie) {
+						Thread.currentThread().interrupt();
+						throw new SQLException(
+								"interrupted while waiting for a connection");
+					}
+				}
+				if (m_isClosed) {
+					throw new SQLException("connection pool is closed");
+				}
+				if (!m_idleConnections.isEmpty()) {
+					int last = m_idleConnections.size() - 1;
+					con = m_idleConnections.remove(last);
+					idleSince = m_idleSince.remove(last);
+				} else {
+					// reserve the slot, the connection is opened outside of
+					// the lock
+					m_nrOfOpenConnections++;
+				}
+			} finally {
+				m_lock.unlock();
+			}
+			for (Connection evicted : evictedConnections) {
+				close(evicted);
+			}
+
+			if (con == null) {
+				try {
+					con = DriverManager.getConnection(m_url);
+					logger.debug("opened connection " + m_nrOfOpenConnections
+							+ " of " + m_maxSize);
+					return con;
+				} catch (SQLException ex) {
+					discard(null);
+					throw ex;
+				}
+			}
+			if (System.currentTimeMillis() - idleSince < VALIDATION_INTERVAL_MILLIS
+					|| isValid(con)) {
+				return con;
+			}
+			logger.debug("discarding invalid connection");
+			discard(con);
+		}
+	}
+
+	/**
+	 * Gives a connection back to the pool.
+	 *
+	 * @param con
+	 *            connection taken with acquire()
+	 */
+	public void release(Connection con) {
+		if (con == null) {
+			return;
+		}
+		ArrayList<Connection> evictedConnections;
+		m_lock.lock();
+		try {
+			if (m_isClosed) {
+				evictedConnections = null;
+			} else {
+				evictedConnections = evictIdleConnections();
+				m_idleConnections.add(con);
+				m_idleSince.add(System.currentTimeMillis());
+				m_isConnectionFree.signal();
+			}
+		} finally {
+			m_lock.unlock();
+		}
+		if (evictedConnections == null) {
+			discard(con);
+			return;
+		}
+		for (Connection evicted : evictedConnections) {
+			close(evicted);
+		}
+	}
+
+	/**
+	 * Closes a connection which is broken, and frees its slot in the pool.
+	 *
+	 * @param con
+	 *            connection taken with acquire(), or null to only free a slot
+	 */
+	public void discard(Connection con) {
+		close(con);
+		m_lock.lock();
+		try {
+			m_nrOfOpenConnections--;
+			m_isConnectionFree.signal();
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 * Closes all idle connections and the pool. Connections in use are closed
+	 * when they are released.
+	 */
+	public void close() {
+		m_evictionTask.cancel();
+		ArrayList<Connection> idleConnections;
+		m_lock.lock();
+		try {
+			m_isClosed = true;
+			idleConnections = new ArrayList<Connection>(m_idleConnections);
+			m_nrOfOpenConnections -= m_idleConnections.size();
+			m_idleConnections.clear();
+			m_idleSince.clear();
+			m_isConnectionFree.signalAll();
+		} finally {
+			m_lock.unlock();
+		}
+		for (Connection con : idleConnections) {
+			close(con);
+		}
+		logger.info("connection pool closed");
+	}
+
+	/**
+	 * Returns the largest number of open connections.
+	 *
+	 * @return size of the pool
+	 */
+	public int getMaxSize() {
+		return m_maxSize;
+	}
+
+	/**
+	 * Closes the connections which were idle for longer than the idle
+	 * timeout; run by the eviction timer.
+	 */
+	private void closeIdleConnections() {
+		ArrayList<Connection> evictedConnections;
+		m_lock.lock();
+		try {
+			evictedConnections = evictIdleConnections();
+		} finally {
+			m_lock.unlock();
+		}
+		for (Connection evicted : evictedConnections) {
+			close(evicted);
+		}
+	}
+
+	/**
+	 * Removes the connections which were idle for longer than the idle
+	 * timeout. Must be called while holding the lock; the connections are
+	 * closed by the caller after releasing it.
+	 *
+	 * @return connections to close
+	 */
+	private ArrayList<Connection> evictIdleConnections() {
+		ArrayList<Connection> evictedConnections = new ArrayList<Connection>();
+		long now = System.currentTimeMillis();
+		// the oldest idle connections are at the front of the list
+		while (!m_idleSince.isEmpty()
+				&& now - m_idleSince.get(0) > m_idleTimeoutMillis) {
+			evictedConnections.add(m_idleConnections.remove(0));
+			m_idleSince.remove(0);
+			m_nrOfOpenConnections--;
+			logger.debug("closing idle connection");
+		}
+		if (!evictedConnections.isEmpty()) {
+			// the slots are free for new connections
+			m_isConnectionFree.signalAll();
+		}
+		return evictedConnections;
+	}
+
+	private boolean isValid(Connection con) {
+		try {
+			return con.isValid(VALIDATION_TIMEOUT_SECONDS);
+		} catch (SQLException ex) {
+			return false;
+		}
+	}
+
+	private void close(Connection con) {
+		if (con == null) {
+			return;
+		}
+		try {
+			con.close();
+		} catch (SQLException ex) {
+			logger.debug("cannot close connection to database");
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package backend;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * In-memory copy of the cytoBand table of one assembly.
+ *
+ * The table has fewer than a thousand rows, so it is loaded once and kept as
+ * sorted boundary arrays per chromosome: the start and end coordinate and the
+ * name of each band, in order of the start coordinate. Cytogenetic bands do
+ * not overlap, so the only band which can contain a position is the last band
+ * starting before it, which is found with a binary search.
+ *
+ * @author mkumar
+ * @since v1.1
+ */
+public class CytoBandIndex {
+	private HashMap<String, Bands> m_bandsPerChr = new HashMap<String, Bands>();
+	private HashMap<String, ArrayList<long[]>> m_rowsPerChr = new HashMap<String, ArrayList<long[]>>();
+	private ArrayList<String> m_names = new ArrayList<String>();
+	private int m_size = 0;
+
+	/**
+	 * Adds a band to the index.
+	 *
+	 * @param chr
+	 *            chromosome of the band, eg. chr1
+	 * @param chromStart
+	 *            start coordinate of the band
+	 * @param chromEnd
+	 *            end coordinate of the band
+	 * @param name
+	 *            name of the band, eg. q21.3
+	 */
+	public void add(String chr, int chromStart, int chromEnd, String name) {
+		ArrayList<long[]> rows = m_rowsPerChr.get(chr);
+		if (rows == null) {
+			rows = new ArrayList<long[]>();
+			m_rowsPerChr.put(chr, rows);
+		}
+		rows.add(new long[] { chromStart, chromEnd, m_names.size() });
+		m_names.add(name);
+		m_size++;
+	}
+
+	/**
+	 * Sorts the bands of each chromosome into boundary arrays.
+	 */
+	public void build() {
+		for (String chr : m_rowsPerChr.keySet()) {
+			ArrayList<long[]> rows = m_rowsPerChr.get(chr);
+			long[] keys = new long[rows.size()];
+			for (int i = 0; i < keys.length; i++) {
+				keys[i] = (rows.get(i)[0] << 32) | i;
+			}
+			Arrays.sort(keys);
+
+			Bands bands = new Bands(keys.length);
+			for (int i = 0; i < keys.length; i++) {
+				long[] row = rows.get((int) keys[i]);
+				bands.starts[i] = (int) row[0];
+				bands.ends[i] = (int) row[1];
+				bands.names[i] = m_names.get((int) row[2]);
+			}
+			m_bandsPerChr.put(chr, bands);
+		}
+		m_rowsPerChr.clear();
+		m_names.clear();
+	}
+
+	/**
+	 * Returns the index of the band in which a region lies, following the
+	 * semantics of "WHERE chrom = chr AND chromStart &lt; from AND chromEnd
+	 * &gt; to".
+	 *
+	 * @param chr
+	 *            chromosome, eg. chr1
+	 * @param from
+	 *            the band must start before this coordinate
+	 * @param to
+	 *            the band must end after this coordinate
+	 * @return index of the band within its chromosome, or -1 if there is none
+	 */
+	public int findBand(String chr, int from, int to) {
+		Bands bands = m_bandsPerChr.get(chr);
+		if (bands == null) {
+			return -1;
+		}
+		// last band which starts before from
+		int low = 0;
+		int high = bands.starts.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (bands.starts[mid] < from) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		int band = low - 1;
+		if (band >= 0 && bands.ends[band] > to) {
+			return band;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the name of a band.
+	 *
+	 * @param chr
+	 *            chromosome, eg. chr1
+	 * @param band
+	 *            index of the band within its chromosome, as returned by
+	 *            findBand()
+	 * @return name of the band, eg. q21.3
+	 */
+	public String getName(String chr, int band) {
+		return m_bandsPerChr.get(chr).names[band];
+	}
+
+	/**
+	 * Returns the number of bands in the index.
+	 *
+	 * @return number of bands
+	 */
+	public int size() {
+		return m_size;
+	}
+
+	/**
+	 * Boundary arrays of the bands of one chromosome.
+	 */
+	private static class Bands {
+		private int[] starts;
+		private int[] ends;
+		private String[] names;
+
+		Bands(int size) {
+			starts = new int[size];
+			ends = new int[size];
+			names = new String[size];
+		}
+	}
+}
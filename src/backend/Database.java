@@ -3,10 +3,13 @@ package backend;
 import gui.GUI;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.swing.JOptionPane;
 
@@ -21,17 +24,42 @@ import org.apache.log4j.Logger;
 public class Database {
 	private static final Logger logger = Logger.getLogger(Database.class);
 
+	// one pool of connections per database (assembly)
+	private static final HashMap<String, ConnectionPool> connectionPools = new HashMap<String, ConnectionPool>();
+	// statements whose query was cancelled on purpose, eg. a hedged query
+	// which lost; their failure says nothing about the server
+	private static final Set<Statement> cancelledStatements = Collections
+			.newSetFromMap(new ConcurrentHashMap<Statement, Boolean>());
+
 	/**
-	 * Establishes connection with the database.
+	 * Returns the pool of connections to the database of the selected
+	 * assembly, creating it on first use. The pool is checked by opening one
+	 * connection; if that fails, the user is informed, and annotations which
+	 * are not available locally are left empty.
 	 * 
 	 * @param gui
 	 *            object of the class GUI.
-	 * @param con
-	 *            object of class Connection.
-	 * @return statement following successful connection with the database.
+	 * @return pool of connections to the database.
+	 */
+	public ConnectionPool getConnectionPool(final GUI gui) {
+		return getConnectionPool(gui, true);
+	}
+
+	/**
+	 * Returns the pool of connections to the database of the selected
+	 * assembly, creating it on first use.
+	 * 
+	 * @param gui
+	 *            object of the class GUI.
+	 * @param isConnectionRequired
+	 *            false if the annotations can be taken from a local snapshot
+	 *            or from the result cache;
+	 *            the pool is then not checked, and queries for tables missing
+	 *            in the snapshot fail quietly when offline.
+	 * @return pool of connections to the database.
 	 */
-	public Statement establishConnection(final GUI gui, Connection con) {
-		Statement st = null;
+	public ConnectionPool getConnectionPool(final GUI gui,
+			boolean isConnectionRequired) {
 		String hostname = "genome-mysql.cse.ucsc.edu";
 		String database = null;
 		String user = "genome";
@@ -44,24 +72,236 @@ public class Database {
 			database = "hg19";
 		}
 
+		// the socket timeout only catches a connection which hangs; queries
+		// which take too long are cancelled by their query timeout first
 		url = "jdbc:mysql://" + hostname + "/" + database + "?user=" + user
-				+ "&password=" + password;
+				+ "&password=" + password + "&connectTimeout="
+				+ GlobalParameters.CONNECT_TIMEOUT_MILLIS + "&socketTimeout="
+				+ (GlobalParameters.QUERY_TIMEOUT_SECONDS + 60) * 1000;
+
+		ConnectionPool pool;
+		synchronized (connectionPools) {
+			pool = connectionPools.get(database);
+			if (pool == null) {
+				pool = new ConnectionPool(url,
+						GlobalParameters.CONNECTION_POOL_SIZE,
+						GlobalParameters.CONNECTION_IDLE_TIMEOUT);
+				connectionPools.put(database, pool);
+			}
+		}
+
+		if (!isConnectionRequired) {
+			return pool;
+		}
+		// the limiter backs off between the attempts
+		for (int attempt = 1; attempt <= GlobalParameters.CONNECT_ATTEMPTS; attempt++) {
+			try {
+				releaseStatement(pool, createStatement(pool));
+				logger.info("Connection established to database " + database);
+				return pool;
+			} catch (final SQLException ex) {
+				logger.error("Cannot establish connection to database "
+						+ database + " (attempt " + attempt + " of "
+						+ GlobalParameters.CONNECT_ATTEMPTS + ")");
+			}
+		}
+		// the queries fail at once when the limiter takes the server to be
+		// down, so the results which are available locally are still shown
+		JOptionPane.showMessageDialog(gui,
+				"Unable to connect to remote database. Annotations which are "
+						+ "not available locally are marked as "
+						+ GlobalParameters.STR_FAILED_VALUE + ".", "Error",
+				JOptionPane.ERROR_MESSAGE);
+		return pool;
+	}
+
+	/**
+	 * Waits for a permit of the ConcurrencyLimiter, takes a connection from
+	 * the pool and creates a statement on it. The statement must be given
+	 * back with releaseStatement().
+	 * 
+	 * @param pool
+	 *            pool of connections to the database.
+	 * @return scroll insensitive, read only statement.
+	 * @throws SQLException
+	 *             if no connection can be opened, or if the limiter takes
+	 *             the server to be down.
+	 */
+	public static Statement createStatement(ConnectionPool pool)
+			throws SQLException {
+		ConcurrencyLimiter.getInstance().acquire();
+		return createStatementWithPermit(pool,
+				ResultSet.TYPE_SCROLL_INSENSITIVE);
+	}
+
+	/**
+	 * Waits for a permit of the ConcurrencyLimiter, and creates a streaming
+	 * statement, which hands out the rows of a large result one by one as
+	 * they arrive instead of holding all of them in memory. Its connection
+	 * cannot run another query until the result is read or closed. The
+	 * statement must be given back with releaseStatement().
+	 * 
+	 * @param pool
+	 *            pool of connections to the database.
+	 * @return forward only, read only statement.
+	 * @throws SQLException
+	 *             if no connection can be opened, or if the limiter takes
+	 *             the server to be down.
+	 */
+	public static Statement createStreamingStatement(ConnectionPool pool)
+			throws SQLException {
+		ConcurrencyLimiter.getInstance().acquire();
+		Statement st = createStatementWithPermit(pool,
+				ResultSet.TYPE_FORWARD_ONLY);
+		try {
+			// the mysql driver streams the rows for this fetch size only
+			st.setFetchSize(Integer.MIN_VALUE);
+		} catch (SQLException ex) {
+			releaseStatement(pool, st);
+			throw ex;
+		}
+		return st;
+	}
+
+	/**
+	 * Creates a statement like createStatement(), but only if the
+	 * ConcurrencyLimiter has a permit free at once; used for queries which
+	 * are not needed, like the copy of a hedged query.
+	 * 
+	 * @param pool
+	 *            pool of connections to the database.
+	 * @return statement, or null if no permit is free or no connection can
+	 *         be opened.
+	 */
+	public static Statement tryCreateStatement(ConnectionPool pool) {
+		if (!ConcurrencyLimiter.getInstance().tryAcquire()) {
+			return null;
+		}
+		try {
+			return createStatementWithPermit(pool,
+					ResultSet.TYPE_SCROLL_INSENSITIVE);
+		} catch (SQLException ex) {
+			logger.debug("Cannot create optional statement");
+			return null;
+		}
+	}
+
+	/**
+	 * Cancels the query running on a statement on purpose, so that its
+	 * failure is not counted as a failure of the server.
+	 * 
+	 * @param st
+	 *            statement created with createStatement().
+	 */
+	public static void cancelStatement(Statement st) {
+		cancelledStatements.add(st);
+		try {
+			st.cancel();
+		} catch (SQLException ex) {
+			logger.debug("Cannot cancel statement");
+		}
+	}
 
+	private static Statement createStatementWithPermit(ConnectionPool pool,
+			int resultSetType) throws SQLException {
+		ConcurrencyLimiter limiter = ConcurrencyLimiter.getInstance();
+		Connection con = null;
 		try {
-			con = DriverManager.getConnection(url);
-			logger.info("Connection established to database " + database);
-			st = con.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE,
+			con = pool.acquire();
+			return con.createStatement(resultSetType,
 					ResultSet.CONCUR_READ_ONLY);
+		} catch (SQLException ex) {
+			if (con != null) {
+				pool.discard(con);
+			}
+			limiter.onError();
+			limiter.release();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Runs a query which may return many rows, and tells the
+	 * ConcurrencyLimiter whether it was answered.
+	 * 
+	 * @param st
+	 *            statement created with createStatement().
+	 * @param query
+	 *            sql query.
+	 * @return result set of the query.
+	 * @throws SQLException
+	 *             if the query failed.
+	 */
+	public static ResultSet executeQuery(Statement st, String query)
+			throws SQLException {
+		return executeQuery(st, query, false);
+	}
 
-		} catch (final SQLException ex) {
-			logger.error("Cannot establish connection to database " + database);
-			JOptionPane.showMessageDialog(gui,
-					"Unable to connect to remote database", "Error",
-					JOptionPane.ERROR_MESSAGE);
-			// restart application
-			gui.restartApplication();
+	/**
+	 * Runs a query, and tells the ConcurrencyLimiter whether it was answered
+	 * and, for a point query, how long it took. The query is cancelled by the
+	 * server after GlobalParameters.POINT_QUERY_TIMEOUT_SECONDS for a point
+	 * query, or GlobalParameters.QUERY_TIMEOUT_SECONDS otherwise.
+	 * 
+	 * @param st
+	 *            statement created with createStatement().
+	 * @param query
+	 *            sql query.
+	 * @param isPointQuery
+	 *            true if the query returns at most a few rows, so that its
+	 *            time measures the load of the server.
+	 * @return result set of the query.
+	 * @throws SQLException
+	 *             if the query failed, timed out or was cancelled.
+	 */
+	public static ResultSet executeQuery(Statement st, String query,
+			boolean isPointQuery) throws SQLException {
+		ConcurrencyLimiter limiter = ConcurrencyLimiter.getInstance();
+		long startTime = System.nanoTime();
+		ResultSet rs;
+		try {
+			st.setQueryTimeout(isPointQuery ? GlobalParameters.POINT_QUERY_TIMEOUT_SECONDS
+					: GlobalParameters.QUERY_TIMEOUT_SECONDS);
+			rs = st.executeQuery(query);
+		} catch (SQLException ex) {
+			if (!cancelledStatements.remove(st)) {
+				limiter.onError();
+			}
+			throw ex;
 		}
-		return st;
+		if (cancelledStatements.remove(st)) {
+			// cancelled after it was answered, the time says nothing
+			limiter.onSuccess(-1);
+			return rs;
+		}
+		limiter.onSuccess(isPointQuery ? (System.nanoTime() - startTime) / 1e6
+				: -1);
+		return rs;
+	}
+
+	/**
+	 * Closes a statement created with createStatement(), gives its
+	 * connection back to the pool and its permit back to the limiter.
+	 * 
+	 * @param pool
+	 *            pool of connections to the database.
+	 * @param st
+	 *            statement object, may be null.
+	 */
+	public static void releaseStatement(ConnectionPool pool, Statement st) {
+		if (st == null) {
+			return;
+		}
+		cancelledStatements.remove(st);
+		Connection con = null;
+		try {
+			con = st.getConnection();
+			st.close();
+		} catch (SQLException ex) {
+			logger.debug("Cannot close statement");
+		}
+		pool.release(con);
+		ConcurrencyLimiter.getInstance().release();
 	}
 
 	/**
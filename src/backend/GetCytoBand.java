@@ -3,6 +3,8 @@ package backend;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.HashMap;
+import java.util.List;
 
 import org.apache.log4j.Logger;
 
@@ -10,112 +12,465 @@ import org.apache.log4j.Logger;
  * This  class contains methods to fetch cytoband data
  * from the database.
  * <p>All the variables that begin with an 'm_' denote class-specific variables.</p>
+ * <p>If GlobalParameters.USE_LOCAL_CYTOBAND_INDEX is set, the cytoBand table can
+ * be loaded once per assembly into a CytoBandIndex, and each locus is
+ * resolved locally with binary searches instead of with up to three queries,
+ * if the QueryPlanner finds this cheapest.
+ * If a local AnnotationSnapshot holds cytoBand, the index is built from it
+ * without any query. Otherwise, loci found in the AnnotationCache are not
+ * queried again.</p>
  * 
  * @author mkumar
  * @since v1.0
  */
 public class GetCytoBand {
 	private static final Logger logger = Logger.getLogger(GetCytoBand.class);
-	private Locus[] m_locusArray;
-	private Statement m_st;
-	private String[] m_cytoBandArray;
+	// cytoBand index of each assembly, loaded on first use
+	private static HashMap<String, CytoBandIndex> cytoBandIndexes = new HashMap<String, CytoBandIndex>();
+	private LocusStore m_locusStore;
+	private ConnectionPool m_connectionPool;
+	private AnnotationColumn m_cytoBandColumn;
+	// set if a query failed, so that the results are not cached
+	private volatile boolean m_hasFailedQueries = false;
 	private String dbTableName = "cytoBand";
 	private String target = "name";
-	private String entry1 = "";
-	private String entry2 = "";
 
 	/**
 	 * Constructor - assigns value to class-specific variables from global ones. 
-	 * @param locusArray array of loci, from input list.
-	 * @param st statement object, from database connection.
+	 * @param locusStore store of loci, from input list.
+	 * @param connectionPool pool of connections to the database.
 	 */
-	public GetCytoBand(Locus[] locusArray, Statement st) {
-		this.m_locusArray = locusArray;
-		this.m_st = st;
+	public GetCytoBand(LocusStore locusStore, ConnectionPool connectionPool) {
+		this.m_locusStore = locusStore;
+		this.m_connectionPool = connectionPool;
 	}
 
 	/**
 	 * Method to fetch cytoband data from database.
 	 * 
-	 * @return cytoBandArray array of cytoband data
+	 * @return cytoBandColumn column of cytoband data
 	 */
-	public String[] fetchCytoBand() {
+	public AnnotationColumn fetchCytoBand() {
 		logger.debug("inside fetch cytoband");
-		m_cytoBandArray = new String[m_locusArray.length];
-		ResultSet rs = null;
+		m_cytoBandColumn = new AnnotationColumn(m_locusStore);
 
-		String chr;
-		int startPos;
-		int endPos;
+		// with a local snapshot, the index is built from it without any query
+		AnnotationSnapshot snapshot = AnnotationSnapshot.getInstance();
+		if (snapshot != null
+				&& snapshot.getTrack(AnnotationSnapshot.TRACK_CYTOBAND) != null) {
+			CytoBandIndex cytoBandIndex = getCytoBandIndex();
+			if (cytoBandIndex != null) {
+				fetchCytoBandFromIndex(cytoBandIndex, m_locusStore.getIndexes());
+				return m_cytoBandColumn;
+			}
+		}
 
-		for (int i = 0; i < m_locusArray.length; i++) {
-			chr = m_locusArray[i].getChr();
-			startPos = m_locusArray[i].getStartPos();
-			endPos = m_locusArray[i].getEndPos();
+		// loci annotated for another dataset or in an earlier run are taken
+		// from the annotation cache
+		AnnotationCache cache = AnnotationCache.getInstance();
+		int[] loci = m_locusStore.getIndexes();
+		if (cache != null) {
+			loci = cache.lookup(ResultCache.TRACK_CYTOBAND, m_locusStore, loci,
+					m_cytoBandColumn);
+			if (loci.length == 0) {
+				return m_cytoBandColumn;
+			}
+		}
+		fetchCytoBandFromDatabase(loci);
+		// the loci of a failed query are marked as failed, which must not be
+		// cached
+		if (cache != null && !m_hasFailedQueries) {
+			cache.store(ResultCache.TRACK_CYTOBAND, m_locusStore, loci,
+					m_cytoBandColumn);
+		}
+		return m_cytoBandColumn;
+	}
 
-			// sql query
-			String queryCytoBand = "SELECT " + target + " FROM " + dbTableName
-					+ " WHERE chrom = \'" + chr + "\' AND chromStart < "
-					+ startPos + " AND chromEnd > " + endPos;
+	/**
+	 * Fetches the cytobands of some loci from the database, with the local
+	 * index or with batched or per-locus queries, whichever the QueryPlanner
+	 * finds cheapest.
+	 * 
+	 * @param lociToFetch indexes of the loci
+	 */
+	private void fetchCytoBandFromDatabase(int[] lociToFetch) {
+		int strategies = QueryPlanner.PER_LOCUS;
+		if (GlobalParameters.USE_LOCAL_CYTOBAND_INDEX) {
+			strategies |= QueryPlanner.FULL_TABLE;
+		}
+		if (GlobalParameters.FETCH_IN_BATCHES) {
+			strategies |= QueryPlanner.BATCHED;
+		}
+		QueryPlanner.Plan plan = QueryPlanner.plan(dbTableName, m_locusStore,
+				lociToFetch, strategies, isCytoBandIndexLoaded());
+		logger.info(dbTableName + ": " + plan);
 
-			try {
-				// submit query to the database
-				rs = m_st.executeQuery(queryCytoBand);
-				// if results exist
-				if (rs.next()) {
-					m_cytoBandArray[i] = chr.substring(3).concat(
-							rs.getString(1)); // remove 'chr' from chr name
-												// (only chr number remains then)
-												// and concatenate to resultset
+		int strategy = plan.getStrategy();
+		if (strategy == QueryPlanner.FULL_TABLE) {
+			CytoBandIndex cytoBandIndex = getCytoBandIndex();
+			if (cytoBandIndex != null) {
+				fetchCytoBandFromIndex(cytoBandIndex, plan.getLoci());
+			} else {
+				strategy = plan.dropStrategy();
+			}
+		}
+		if (strategy == QueryPlanner.BATCHED) {
+			fetchCytoBandInBatches(plan.getChunks());
+		} else if (strategy == QueryPlanner.PER_LOCUS) {
+			fetchCytoBandPerLocus(plan.getLoci());
+		}
+		plan.copyDuplicates(m_cytoBandColumn);
+	}
 
-				} else {
-					// also look separately for start and end positions.
-					// for use cases where locus spans more than one cytobands.
-					String startPosSeparateQueryCytoBand = "SELECT " + target
-							+ " FROM " + dbTableName + " WHERE chrom = \'"
-							+ chr + "\' AND chromStart < " + startPos
-							+ " AND chromEnd > " + Integer.toString(startPos + 1);
-
-					String endPosSeparateQueryCytoBand = "SELECT " + target
-							+ " FROM " + dbTableName + " WHERE chrom = \'"
-							+ chr + "\' AND chromStart < " + Integer.toString(endPos - 1)
-							+ " AND chromEnd > " + endPos;
-					
-					try {
-						rs = m_st.executeQuery(startPosSeparateQueryCytoBand);
-						if (rs.next()) {
-							entry1 = rs.getString(1);
-						} else
-							entry1 = "";
-						rs = m_st.executeQuery(endPosSeparateQueryCytoBand);
-						if (rs.next()) {
-							entry2 = rs.getString(1);
-						} else
-							entry2 = "";
-					} catch (final SQLException ex) {
-						System.out
-								.println("cannot execute ELSE query for cytoband Name");
-					}
-					if (entry1.equals(entry2)) {
-						m_cytoBandArray[i] = entry1;
-					} else {
-						m_cytoBandArray[i] = entry1 + "," + entry2;
+	/**
+	 * Fetches the cytobands of some loci with up to three queries per locus.
+	 * 
+	 * @param loci indexes of the loci, sorted by position
+	 */
+	private void fetchCytoBandPerLocus(final int[] loci) {
+		// the loci are queried in parallel, each query writes only its own
+		// locus
+		ParallelQueries queries = new ParallelQueries(m_connectionPool,
+				GlobalParameters.USE_VIRTUAL_THREADS);
+		int nrOfFailedQueries = queries.run(loci.length,
+				new ParallelQueries.Task() {
+					@Override
+					public void run(int l, Statement st) {
+						fetchCytoBandOfLocus(loci[l], st);
 					}
+				});
+		if (nrOfFailedQueries > 0) {
+			m_hasFailedQueries = true;
+			for (int l = 0; l < loci.length; l++) {
+				if (queries.isFailed(l)) {
+					m_cytoBandColumn.setCode(loci[l],
+							AnnotationDictionary.FAILED_CODE);
 				}
-			} catch (final SQLException ex) {
-				logger.debug("cannot execute cytoband query");
+			}
+		}
+		logger.info("cytoBand queries successfully submitted and data retrieved");
+	}
+
+	/**
+	 * Fetches the cytoband of one locus with sql queries.
+	 * 
+	 * @param i index of the locus
+	 * @param st statement for these queries
+	 */
+	private void fetchCytoBandOfLocus(int i, Statement st) {
+		String chr = m_locusStore.getChr(i);
+		int startPos = m_locusStore.getStartPos(i);
+		int endPos = m_locusStore.getEndPos(i);
+
+		// sql query
+		String queryCytoBand = "SELECT " + target + " FROM " + dbTableName
+				+ " WHERE chrom = \'" + chr + "\' AND chromStart < "
+				+ startPos + " AND chromEnd > " + endPos;
+
+		try {
+			// submit query to the database; the same query of another
+			// dataset in flight is shared
+			List<String[]> rows = SharedQueries.executeQuery(
+					m_connectionPool, st, queryCytoBand, 1, 1);
+			// if results exist
+			if (!rows.isEmpty()) {
+				m_cytoBandColumn.set(i, chr.substring(3).concat(
+						rows.get(0)[0])); // remove 'chr' from chr name
+											// (only chr number remains then)
+											// and concatenate to resultset
+
+			} else {
+				// also look separately for start and end positions.
+				// for use cases where locus spans more than one cytobands.
+				String startPosSeparateQueryCytoBand = "SELECT " + target
+						+ " FROM " + dbTableName + " WHERE chrom = \'"
+						+ chr + "\' AND chromStart < " + startPos
+						+ " AND chromEnd > " + Integer.toString(startPos + 1);
 
-			} finally {
+				String endPosSeparateQueryCytoBand = "SELECT " + target
+						+ " FROM " + dbTableName + " WHERE chrom = \'"
+						+ chr + "\' AND chromStart < " + Integer.toString(endPos - 1)
+						+ " AND chromEnd > " + endPos;
+
+				String entry1 = "";
+				String entry2 = "";
+				boolean hasFailed = false;
 				try {
-					if (rs != null) {
-						rs.close();
+					rows = SharedQueries.executeQuery(m_connectionPool, st,
+							startPosSeparateQueryCytoBand, 1, 1);
+					if (!rows.isEmpty()) {
+						entry1 = rows.get(0)[0];
+					} else
+						entry1 = "";
+					rows = SharedQueries.executeQuery(m_connectionPool, st,
+							endPosSeparateQueryCytoBand, 1, 1);
+					if (!rows.isEmpty()) {
+						entry2 = rows.get(0)[0];
+					} else
+						entry2 = "";
+				} catch (final SQLException ex) {
+					System.out
+							.println("cannot execute ELSE query for cytoband Name");
+					hasFailed = true;
+					m_hasFailedQueries = true;
+				}
+				if (hasFailed) {
+					m_cytoBandColumn.setCode(i, AnnotationDictionary.FAILED_CODE);
+				} else {
+					m_cytoBandColumn.set(i, getBandRange(entry1, entry2));
+				}
+			}
+		} catch (final SQLException ex) {
+			logger.debug("cannot execute cytoband query");
+			m_cytoBandColumn.setCode(i, AnnotationDictionary.FAILED_CODE);
+			m_hasFailedQueries = true;
+		}
+	}
+
+	/**
+	 * Resolves the cytoband of each locus with the local cytoBand index. The
+	 * result is the same as that of the sql queries.
+	 * 
+	 * @param cytoBandIndex cytoBand index of the current assembly
+	 * @param loci indexes of the loci
+	 */
+	private void fetchCytoBandFromIndex(CytoBandIndex cytoBandIndex,
+			int[] loci) {
+		for (int locus : loci) {
+			resolveCytoBand(cytoBandIndex, locus);
+		}
+		logger.info("cytoBand data retrieved from local index");
+	}
+
+	/**
+	 * Fetches cytoband data with one range query per chunk of loci, instead
+	 * of up to three queries per locus. The bands returned for a chunk are
+	 * put into a small cytoBand index, from which its loci are resolved.
+	 * 
+	 * @param chunks chunks of the loci
+	 */
+	private void fetchCytoBandInBatches(final LocusChunks chunks) {
+		// the chunks are queried in parallel, each one writes only its own
+		// loci
+		ParallelQueries queries = new ParallelQueries(m_connectionPool);
+		int nrOfFailedQueries = queries.run(chunks.size(),
+				new ParallelQueries.Task() {
+					@Override
+					public void run(int c, Statement st) {
+						fetchCytoBandOfChunk(chunks, c, st);
 					}
-				} catch (SQLException ex) {
-					logger.debug("cannot close resultset for cytoband query");
+				});
+		if (nrOfFailedQueries > 0) {
+			m_hasFailedQueries = true;
+			for (int c = 0; c < chunks.size(); c++) {
+				if (queries.isFailed(c)) {
+					setChunkFailed(chunks, c);
 				}
 			}
 		}
-		logger.info("cytoBand queries successfully submitted and data retrieved");
-		return m_cytoBandArray;
+		logger.info(chunks.size() + " batched cytoBand queries successfully "
+				+ "submitted and data retrieved");
+	}
+
+	/**
+	 * Fetches the bands of one chunk of loci with a range query, and resolves
+	 * the loci of the chunk from them.
+	 * 
+	 * @param chunks chunks of loci
+	 * @param c index of the chunk
+	 * @param st statement for this query
+	 */
+	private void fetchCytoBandOfChunk(LocusChunks chunks, int c, Statement st) {
+		String chr = chunks.getChr(c);
+		ResultSet rs = null;
+		// all bands which overlap one of the loci of the chunk
+		String queryCytoBand = "SELECT chromStart, chromEnd, " + target
+				+ " FROM " + dbTableName + " WHERE chrom = \'" + chr
+				+ "\' AND chromStart < " + chunks.getMaxEnd(c)
+				+ " AND chromEnd > " + chunks.getMinStart(c);
+
+		CytoBandIndex cytoBandIndex = new CytoBandIndex();
+		long startTime = System.nanoTime();
+		try {
+			rs = Database.executeQuery(st, queryCytoBand);
+			while (rs.next()) {
+				cytoBandIndex.add(chr, rs.getInt(1), rs.getInt(2),
+						rs.getString(3));
+			}
+			QueryPlanner.recordQuery(startTime, cytoBandIndex.size());
+		} catch (final SQLException ex) {
+			logger.debug("cannot execute batched cytoband query");
+			setChunkFailed(chunks, c);
+			m_hasFailedQueries = true;
+			return;
+		} finally {
+			try {
+				if (rs != null) {
+					rs.close();
+				}
+			} catch (SQLException ex) {
+				logger.debug("cannot close resultset for cytoband query");
+			}
+		}
+		cytoBandIndex.build();
+
+		for (int i = 0; i < chunks.getNrOfLoci(c); i++) {
+			resolveCytoBand(cytoBandIndex, chunks.getLocus(c, i));
+		}
+	}
+
+	/**
+	 * Marks the loci of a chunk whose query failed.
+	 * 
+	 * @param chunks chunks of loci
+	 * @param c index of the chunk
+	 */
+	private void setChunkFailed(LocusChunks chunks, int c) {
+		for (int i = 0; i < chunks.getNrOfLoci(c); i++) {
+			m_cytoBandColumn.setCode(chunks.getLocus(c, i),
+					AnnotationDictionary.FAILED_CODE);
+		}
+	}
+
+	/**
+	 * Resolves the cytoband of one locus with a cytoBand index.
+	 * 
+	 * @param cytoBandIndex index holding at least the bands around the locus
+	 * @param locus index of the locus
+	 */
+	private void resolveCytoBand(CytoBandIndex cytoBandIndex, int locus) {
+		String chr = m_locusStore.getChr(locus);
+		int startPos = m_locusStore.getStartPos(locus);
+		int endPos = m_locusStore.getEndPos(locus);
+
+		int band = cytoBandIndex.findBand(chr, startPos, endPos);
+		if (band != -1) {
+			m_cytoBandColumn.set(locus,
+					chr.substring(3).concat(cytoBandIndex.getName(chr, band)));
+		} else {
+			// locus spans more than one cytoband
+			int firstBand = cytoBandIndex.findBand(chr, startPos, startPos + 1);
+			int lastBand = cytoBandIndex.findBand(chr, endPos - 1, endPos);
+			String first = firstBand == -1 ? "" : cytoBandIndex.getName(chr,
+					firstBand);
+			String last = lastBand == -1 ? "" : cytoBandIndex.getName(chr,
+					lastBand);
+			m_cytoBandColumn.set(locus, getBandRange(first, last));
+		}
+	}
+
+	/**
+	 * Returns the range of cytobands spanned by a locus, eg. q21.3-q22.1
+	 * 
+	 * @param first band in which the locus starts, or "" if not known
+	 * @param last band in which the locus ends, or "" if not known
+	 * @return range of bands
+	 */
+	private String getBandRange(String first, String last) {
+		if (first.equals(last) || last.length() == 0) {
+			return first;
+		} else if (first.length() == 0) {
+			return last;
+		}
+		return first + "-" + last;
+	}
+
+	/**
+	 * Drops the cytoBand index of an assembly, whose dictionary was dropped.
+	 * 
+	 * @param assembly
+	 *            assembly, eg. hg19
+	 */
+	public static void dropIndex(String assembly) {
+		synchronized (cytoBandIndexes) {
+			cytoBandIndexes.remove(assembly);
+		}
+	}
+
+	/**
+	 * Returns true if the cytoBand index of the current assembly was loaded.
+	 * 
+	 * @return true if the index is loaded
+	 */
+	private boolean isCytoBandIndexLoaded() {
+		String assembly = AnnotationDictionary.getInstance().getAssembly();
+		synchronized (cytoBandIndexes) {
+			return cytoBandIndexes.containsKey(assembly);
+		}
+	}
+
+	/**
+	 * Returns the cytoBand index of the current assembly, loading the cytoBand
+	 * table from the database if this is the first time it is needed.
+	 * 
+	 * @return cytoBandIndex index of cytoBand, or null if it cannot be loaded
+	 */
+	private CytoBandIndex getCytoBandIndex() {
+		String assembly = AnnotationDictionary.getInstance().getAssembly();
+		synchronized (cytoBandIndexes) {
+			CytoBandIndex cytoBandIndex = cytoBandIndexes.get(assembly);
+			if (cytoBandIndex == null) {
+				cytoBandIndex = loadCytoBandIndex();
+				if (cytoBandIndex != null) {
+					cytoBandIndexes.put(assembly, cytoBandIndex);
+				}
+			}
+			return cytoBandIndex;
+		}
+	}
+
+	/**
+	 * Loads the whole cytoBand table into a cytoBand index.
+	 * 
+	 * @return cytoBandIndex index of cytoBand, or null if it cannot be loaded
+	 */
+	private CytoBandIndex loadCytoBandIndex() {
+		logger.debug("loading cytoBand into local index");
+		CytoBandIndex cytoBandIndex = new CytoBandIndex();
+
+		AnnotationSnapshot snapshot = AnnotationSnapshot.getInstance();
+		AnnotationSnapshot.Track track = snapshot == null ? null : snapshot
+				.getTrack(AnnotationSnapshot.TRACK_CYTOBAND);
+		if (track != null) {
+			// the bands are read from the mapped snapshot
+			for (String chr : track.getChrs()) {
+				int firstRow = track.getFirstRow(chr);
+				for (int row = firstRow; row < firstRow
+						+ track.getNrOfRows(chr); row++) {
+					cytoBandIndex.add(chr, track.getStart(row), track
+							.getEnd(row), track.getValue(row, 0));
+				}
+			}
+			cytoBandIndex.build();
+			logger.info("loaded " + cytoBandIndex.size()
+					+ " cytoBand rows from snapshot");
+			return cytoBandIndex;
+		}
+
+		TableReader reader = new TableReader(dbTableName, new String[] {
+				"chrom", "chromStart", "chromEnd", target }, new int[] {
+				TableReader.CODE, TableReader.INT, TableReader.INT,
+				TableReader.CODE });
+		try {
+			reader.read(m_connectionPool);
+		} catch (final SQLException ex) {
+			logger.debug("cannot load cytoBand into local index, "
+					+ "using per-locus queries instead");
+			return null;
+		}
+		AnnotationDictionary dictionary = AnnotationDictionary.getInstance();
+		int[] chrs = reader.getColumn(0);
+		int[] starts = reader.getColumn(1);
+		int[] ends = reader.getColumn(2);
+		int[] names = reader.getColumn(3);
+		for (int row = 0; row < reader.size(); row++) {
+			cytoBandIndex.add(dictionary.decode(chrs[row]), starts[row],
+					ends[row], dictionary.decode(names[row]));
+		}
+		QueryPlanner.recordTableRows(dbTableName, cytoBandIndex.size());
+		cytoBandIndex.build();
+		logger.info("loaded " + cytoBandIndex.size()
+				+ " cytoBand rows into local index");
+		return cytoBandIndex;
 	}
 }
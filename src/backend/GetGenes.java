@@ -3,6 +3,9 @@ package backend;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 
 import org.apache.log4j.Logger;
 
@@ -11,22 +14,37 @@ import org.apache.log4j.Logger;
  * gene information for each locus. The table in the UCSC database that is queried
  * is 'refGene'. The 'name2' field in the 'refGene' table contains the information
  * that we need.
+ * <p>If GlobalParameters.USE_LOCAL_GENE_INDEX is set, the refGene table can
+ * be loaded once per assembly into an IntervalIndex, and the loci are
+ * annotated locally instead of with one query per locus; the QueryPlanner
+ * decides whether this is cheaper than batched or per-locus queries. If a local
+ * AnnotationSnapshot holds refGene, the loci are looked up in the mapped
+ * snapshot without any query. Otherwise, loci found in the AnnotationCache
+ * are not queried again.</p>
  * @author mkumar
  *@since v1.0
  */
 public class GetGenes {
 	private static final Logger logger = Logger.getLogger(GetGenes.class);
-	private Locus[] m_locusArray;
-	private Statement m_statement;
-	private String[] m_geneArray;
+	// refGene index of each assembly, loaded on first use
+	private static HashMap<String, IntervalIndex> geneIndexes = new HashMap<String, IntervalIndex>();
+	private LocusStore m_locusStore;
+	private ConnectionPool m_connectionPool;
+	private AnnotationColumn m_geneColumn;
+	// set if a query failed, so that the results are not cached
+	private volatile boolean m_hasFailedQueries = false;
 	// don't forget to initialize arrays and maps!
 	private String dbTableName = "refGene";
 	private String m_strName2 = "name2";
+	// explicit order of the genes, so that every strategy reports the same
+	// gene for a locus which lies in overlapping genes, eg. antisense pairs
+	private String m_strOrderBy = " ORDER BY txStart, txEnd, BINARY "
+			+ m_strName2;
 
-	public GetGenes(Locus[] locusArray, Statement st) {
+	public GetGenes(LocusStore locusStore, ConnectionPool connectionPool) {
 		super();
-		this.m_locusArray = locusArray;
-		this.m_statement = st;
+		this.m_locusStore = locusStore;
+		this.m_connectionPool = connectionPool;
 
 		this.fetchGenes();
 	}
@@ -38,42 +56,113 @@ public class GetGenes {
 	public void fetchGenes() {
 		// initialize arrays
 		logger.debug("inside fetch refGene");
-		m_geneArray = new String[m_locusArray.length];
-		ResultSet rs = null;
+		m_geneColumn = new AnnotationColumn(m_locusStore);
 
-		String chr;
-		int startPos;
-		int endPos;
+		AnnotationSnapshot snapshot = AnnotationSnapshot.getInstance();
+		AnnotationSnapshot.Track track = snapshot == null ? null : snapshot
+				.getTrack(AnnotationSnapshot.TRACK_REFGENE);
+		if (track != null) {
+			fetchGenesFromSnapshot(snapshot, track);
+			return;
+		}
 
-		for (int i = 0; i < m_locusArray.length; i++) {
-			// make sure initial value is zero
-			chr = m_locusArray[i].getChr();
-			startPos = m_locusArray[i].getStartPos();
-			endPos = m_locusArray[i].getEndPos();
+		// loci annotated for another dataset or in an earlier run are taken
+		// from the annotation cache
+		AnnotationCache cache = AnnotationCache.getInstance();
+		int[] loci = m_locusStore.getIndexes();
+		if (cache != null) {
+			loci = cache.lookup(ResultCache.TRACK_GENES, m_locusStore, loci,
+					m_geneColumn);
+			if (loci.length == 0) {
+				return;
+			}
+		}
+		fetchGenesFromDatabase(loci);
+		// the loci of a failed query are marked as failed, which must not be
+		// cached
+		if (cache != null && !m_hasFailedQueries) {
+			cache.store(ResultCache.TRACK_GENES, m_locusStore, loci,
+					m_geneColumn);
+		}
+	}
 
-			// sql query
-			String queryRefGene = "SELECT " + m_strName2 + " FROM "
-					+ dbTableName + " WHERE chrom = \'" + chr
-					+ "\' AND txStart < " + startPos + " AND txEnd > " + endPos;
+	/**
+	 * Fetches the genes of some loci from the database, with the local index
+	 * or with batched or per-locus queries, whichever the QueryPlanner finds
+	 * cheapest. Loci which the LocusPrefilter rules out are left empty.
+	 * 
+	 * @param lociToFetch
+	 *            indexes of the loci
+	 */
+	private void fetchGenesFromDatabase(int[] lociToFetch) {
+		// loci between genes are answered without a query, unless the whole
+		// table is local already
+		if (!isGeneIndexLoaded()
+				&& LocusPrefilter.isWorthwhile(lociToFetch.length, dbTableName,
+						QueryPlanner.getEstimatedRows(dbTableName))) {
+			LocusPrefilter prefilter = LocusPrefilter.getInstance(
+					m_connectionPool, dbTableName, null, "txStart", "txEnd",
+					null);
+			if (prefilter != null) {
+				int nrOfLoci = lociToFetch.length;
+				lociToFetch = prefilter.filter(m_locusStore, lociToFetch,
+						m_geneColumn);
+				logger.info(dbTableName + ": " + (nrOfLoci - lociToFetch.length)
+						+ " of " + nrOfLoci + " loci lie in no gene");
+			}
+		}
+		int strategies = QueryPlanner.PER_LOCUS;
+		if (GlobalParameters.USE_LOCAL_GENE_INDEX) {
+			strategies |= QueryPlanner.FULL_TABLE;
+		}
+		if (GlobalParameters.FETCH_IN_BATCHES) {
+			strategies |= QueryPlanner.BATCHED;
+		}
+		QueryPlanner.Plan plan = QueryPlanner.plan(dbTableName, m_locusStore,
+				lociToFetch, strategies, isGeneIndexLoaded());
+		logger.info(dbTableName + ": " + plan);
 
-			try {
-				// if locus lies in some known gene
-				rs = m_statement.executeQuery(queryRefGene);
-				// if some result exists
-				if (rs.next()) {
-					m_geneArray[i] = rs.getString(1);
-				} else {
-					m_geneArray[i] = GlobalParameters.STR_EMPTY_VALUE;
-				}
-			} catch (final SQLException ex) {
-				logger.debug("cannot execute refGene query");
-			} finally {
-				try {
-					if (rs != null) {
-						rs.close();
+		int strategy = plan.getStrategy();
+		if (strategy == QueryPlanner.FULL_TABLE) {
+			IntervalIndex geneIndex = getGeneIndex();
+			if (geneIndex != null) {
+				fetchGenesFromIndex(geneIndex, plan.getLoci());
+			} else {
+				strategy = plan.dropStrategy();
+			}
+		}
+		if (strategy == QueryPlanner.BATCHED) {
+			fetchGenesInBatches(plan.getChunks());
+		} else if (strategy == QueryPlanner.PER_LOCUS) {
+			fetchGenesPerLocus(plan.getLoci());
+		}
+		plan.copyDuplicates(m_geneColumn);
+	}
+
+	/**
+	 * Fetches the genes of some loci with one query per locus.
+	 * 
+	 * @param loci
+	 *            indexes of the loci, sorted by position
+	 */
+	private void fetchGenesPerLocus(final int[] loci) {
+		// the loci are queried in parallel, each query writes only its own
+		// locus
+		ParallelQueries queries = new ParallelQueries(m_connectionPool,
+				GlobalParameters.USE_VIRTUAL_THREADS);
+		int nrOfFailedQueries = queries.run(loci.length,
+				new ParallelQueries.Task() {
+					@Override
+					public void run(int l, Statement st) {
+						fetchGene(loci[l], st);
 					}
-				} catch (SQLException ex) {
-					logger.debug("cannot close resultset for refGene query");
+				});
+		if (nrOfFailedQueries > 0) {
+			m_hasFailedQueries = true;
+			for (int l = 0; l < loci.length; l++) {
+				if (queries.isFailed(l)) {
+					m_geneColumn.setCode(loci[l],
+							AnnotationDictionary.FAILED_CODE);
 				}
 			}
 		}
@@ -83,10 +172,289 @@ public class GetGenes {
 	}
 
 	/**
-	 * Returns the gene array after fetching all information from the database.
-	 * @return geneArray array containing gene data
+	 * Fetches the gene of one locus with a sql query.
+	 * 
+	 * @param i
+	 *            index of the locus
+	 * @param st
+	 *            statement for this query
+	 */
+	private void fetchGene(int i, Statement st) {
+		String chr = m_locusStore.getChr(i);
+		int startPos = m_locusStore.getStartPos(i);
+		int endPos = m_locusStore.getEndPos(i);
+
+		// sql query
+		String queryRefGene = "SELECT " + m_strName2 + " FROM " + dbTableName
+				+ " WHERE chrom = \'" + chr + "\' AND txStart < " + startPos
+				+ " AND txEnd > " + endPos
+				+ UcscBins.getBinCondition(startPos, endPos + 1)
+				+ m_strOrderBy;
+
+		try {
+			// if locus lies in some known gene; the same query of another
+			// dataset in flight is shared
+			List<String[]> rows = SharedQueries.executeQuery(
+					m_connectionPool, st, queryRefGene, 1, 1);
+			// if some result exists
+			if (!rows.isEmpty()) {
+				m_geneColumn.set(i, rows.get(0)[0]);
+			} else {
+				m_geneColumn.setCode(i, AnnotationDictionary.EMPTY_CODE);
+			}
+		} catch (final SQLException ex) {
+			logger.debug("cannot execute refGene query");
+			m_geneColumn.setCode(i, AnnotationDictionary.FAILED_CODE);
+			m_hasFailedQueries = true;
+		}
+	}
+
+	/**
+	 * This method annotates each locus with the local refGene index. The
+	 * result is the same as that of the per-locus sql query.
+	 * 
+	 * @param geneIndex
+	 *            refGene index of the current assembly
+	 * @param loci
+	 *            indexes of the loci
+	 */
+	private void fetchGenesFromIndex(IntervalIndex geneIndex, int[] loci) {
+		for (int locus : loci) {
+			int code = geneIndex.findFirstContaining(m_locusStore
+					.getChr(locus), m_locusStore.getStartPos(locus),
+					m_locusStore.getEndPos(locus));
+			m_geneColumn.setCode(locus,
+					code == -1 ? AnnotationDictionary.EMPTY_CODE : code);
+		}
+		logger.info("refGene data retrieved from local index");
+	}
+
+	/**
+	 * This method annotates each locus with the refGene track of the local
+	 * snapshot, directly on the mapped file. The result is the same as that
+	 * of the per-locus sql query.
+	 * 
+	 * @param snapshot
+	 *            snapshot of the current assembly
+	 * @param track
+	 *            refGene track of the snapshot
+	 */
+	private void fetchGenesFromSnapshot(AnnotationSnapshot snapshot,
+			AnnotationSnapshot.Track track) {
+		AnnotationDictionary dictionary = m_geneColumn.getDictionary();
+		// each gene of the snapshot is encoded only once
+		int[] codes = new int[snapshot.getNrOfStrings()];
+		Arrays.fill(codes, -1);
+		LocusStore.Cursor cursor = m_locusStore.cursor();
+		while (cursor.next()) {
+			int row = track.findFirstContaining(cursor.getChr(), cursor
+					.getStartPos(), cursor.getEndPos());
+			if (row == -1) {
+				m_geneColumn.setCode(cursor.getIndex(),
+						AnnotationDictionary.EMPTY_CODE);
+				continue;
+			}
+			int code = track.getValueCode(row, 0);
+			if (codes[code] == -1) {
+				codes[code] = dictionary.encode(snapshot.getString(code));
+			}
+			m_geneColumn.setCode(cursor.getIndex(), codes[code]);
+		}
+		logger.info("refGene data retrieved from local snapshot");
+	}
+
+	/**
+	 * This method fetches gene data with one range query per chunk of loci,
+	 * instead of one query per locus, and joins the returned genes to the
+	 * loci of the chunk.
+	 * 
+	 * @param chunks
+	 *            chunks of the loci
+	 */
+	private void fetchGenesInBatches(final LocusChunks chunks) {
+		// the chunks are queried in parallel, each one writes only its own
+		// loci
+		ParallelQueries queries = new ParallelQueries(m_connectionPool);
+		int nrOfFailedQueries = queries.run(chunks.size(),
+				new ParallelQueries.Task() {
+					@Override
+					public void run(int c, Statement st) {
+						fetchGenesOfChunk(chunks, c, st);
+					}
+				});
+		if (nrOfFailedQueries > 0) {
+			m_hasFailedQueries = true;
+			for (int c = 0; c < chunks.size(); c++) {
+				if (queries.isFailed(c)) {
+					setChunkFailed(chunks, c);
+				}
+			}
+		}
+		logger.info(chunks.size() + " batched refGene queries successfully "
+				+ "submitted and data retrieved");
+	}
+
+	/**
+	 * Fetches the genes of one chunk of loci with a range query.
+	 * 
+	 * @param chunks
+	 *            chunks of loci
+	 * @param c
+	 *            index of the chunk
+	 * @param st
+	 *            statement for this query
+	 */
+	private void fetchGenesOfChunk(LocusChunks chunks, int c, Statement st) {
+		AnnotationDictionary dictionary = m_geneColumn.getDictionary();
+		LocusChunks.Rows rows = new LocusChunks.Rows(1);
+		ResultSet rs = null;
+
+		// all genes which can contain one of the loci of the chunk
+		String queryRefGene = "SELECT txStart, txEnd, " + m_strName2
+				+ " FROM " + dbTableName + " WHERE chrom = \'"
+				+ chunks.getChr(c) + "\' AND txStart < "
+				+ chunks.getMaxStart(c) + " AND txEnd > "
+				+ chunks.getMinEnd(c)
+				+ UcscBins.getBinCondition(chunks.getMinStart(c),
+						chunks.getMaxEnd(c) + 1) + m_strOrderBy;
+
+		long startTime = System.nanoTime();
+		try {
+			rs = Database.executeQuery(st, queryRefGene);
+			while (rs.next()) {
+				rows.add(rs.getInt(1), rs.getInt(2),
+						dictionary.encode(rs.getString(3)));
+			}
+			QueryPlanner.recordQuery(startTime, rows.size());
+		} catch (final SQLException ex) {
+			logger.debug("cannot execute batched refGene query");
+			setChunkFailed(chunks, c);
+			m_hasFailedQueries = true;
+			return;
+		} finally {
+			try {
+				if (rs != null) {
+					rs.close();
+				}
+			} catch (SQLException ex) {
+				logger.debug("cannot close resultset for refGene query");
+			}
+		}
+
+		int[] firstRows = chunks.findFirstContaining(c, rows);
+		for (int i = 0; i < firstRows.length; i++) {
+			m_geneColumn.setCode(chunks.getLocus(c, i),
+					firstRows[i] == -1 ? AnnotationDictionary.EMPTY_CODE
+							: rows.getCode(firstRows[i], 0));
+		}
+	}
+
+	/**
+	 * Marks the loci of a chunk whose query failed.
+	 * 
+	 * @param chunks
+	 *            chunks of loci
+	 * @param c
+	 *            index of the chunk
+	 */
+	private void setChunkFailed(LocusChunks chunks, int c) {
+		for (int i = 0; i < chunks.getNrOfLoci(c); i++) {
+			m_geneColumn.setCode(chunks.getLocus(c, i),
+					AnnotationDictionary.FAILED_CODE);
+		}
+	}
+
+	/**
+	 * Drops the refGene index of an assembly, whose dictionary was dropped.
+	 * 
+	 * @param assembly
+	 *            assembly, eg. hg19
+	 */
+	public static void dropIndex(String assembly) {
+		synchronized (geneIndexes) {
+			geneIndexes.remove(assembly);
+		}
+	}
+
+	/**
+	 * Returns true if the refGene index of the current assembly was loaded.
+	 * 
+	 * @return true if the index is loaded
+	 */
+	private boolean isGeneIndexLoaded() {
+		String assembly = AnnotationDictionary.getInstance().getAssembly();
+		synchronized (geneIndexes) {
+			return geneIndexes.containsKey(assembly);
+		}
+	}
+
+	/**
+	 * Returns the refGene index of the current assembly, loading the refGene
+	 * table from the database if this is the first time it is needed.
+	 * 
+	 * @return geneIndex index of refGene, or null if it cannot be loaded
+	 */
+	private IntervalIndex getGeneIndex() {
+		AnnotationDictionary dictionary = AnnotationDictionary.getInstance();
+		synchronized (geneIndexes) {
+			IntervalIndex geneIndex = geneIndexes.get(dictionary.getAssembly());
+			if (geneIndex == null) {
+				geneIndex = loadGeneIndex(dictionary);
+				if (geneIndex != null) {
+					geneIndexes.put(dictionary.getAssembly(), geneIndex);
+				}
+			}
+			return geneIndex;
+		}
+	}
+
+	/**
+	 * Loads the whole refGene table into an interval index. Rows are added in
+	 * the explicit order of the genes (txStart, txEnd, name2), so that the
+	 * index returns the same first match as the per-locus query.
+	 * 
+	 * @param dictionary
+	 *            dictionary of the current assembly
+	 * @return geneIndex index of refGene, or null if it cannot be loaded
+	 */
+	private IntervalIndex loadGeneIndex(AnnotationDictionary dictionary) {
+		logger.debug("loading refGene into local index");
+		long startTime = System.nanoTime();
+		IntervalIndex geneIndex = new IntervalIndex();
+
+		// streamed into arrays, the rows are added in the order of the query
+		TableReader reader = new TableReader(dbTableName, new String[] {
+				"chrom", "txStart", "txEnd", m_strName2 }, new int[] {
+				TableReader.CODE, TableReader.INT, TableReader.INT,
+				TableReader.CODE }, m_strOrderBy);
+		try {
+			reader.read(m_connectionPool);
+		} catch (final SQLException ex) {
+			logger.debug("cannot load refGene into local index, "
+					+ "using per-locus queries instead");
+			return null;
+		}
+		int[] chrs = reader.getColumn(0);
+		int[] starts = reader.getColumn(1);
+		int[] ends = reader.getColumn(2);
+		int[] names = reader.getColumn(3);
+		for (int row = 0; row < reader.size(); row++) {
+			geneIndex.add(dictionary.decode(chrs[row]), starts[row],
+					ends[row], names[row]);
+		}
+		QueryPlanner.recordTableRows(dbTableName, geneIndex.size());
+		geneIndex.build();
+		logger.info("loaded " + geneIndex.size()
+				+ " refGene rows into local index in "
+				+ (System.nanoTime() - startTime) / 1000000 + " ms");
+		return geneIndex;
+	}
+
+	/**
+	 * Returns the gene column after fetching all information from the database.
+	 * @return geneColumn column containing gene data
 	 */
-	public String[] getGeneArray() {
-		return m_geneArray;
+	public AnnotationColumn getGeneColumn() {
+		return m_geneColumn;
 	}
 }
@@ -1,16 +1,18 @@
 package backend;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.HashMap;
 
 import org.apache.log4j.Logger;
 
 /**
- * This class fetches OMIM data and creates an array (omimArray) to be later
+ * This class fetches OMIM data and creates a column (omimColumn) to be later
  * displayed in the results table. Each entry is an OMIM accession number, which
  * is related to the gene (and thus the locus). The accession numbers are
  * obtained by querying the locus against serialized objects, themselves
@@ -18,7 +20,9 @@ import org.apache.log4j.Logger;
  * <p>
  * omimAccessionNumMap is a hashmap which contains mapping from gene name : omim
  * accession number. This map is generated from ftp downloaded files from omim,
- * and regularly updated.
+ * and regularly updated. If the local AnnotationSnapshot holds a copy of the
+ * map, the genes are looked up in the snapshot instead, unless the map was
+ * updated in the settings after it was copied.
  * </p>
  * 
  * @author mkumar
@@ -28,26 +32,39 @@ import org.apache.log4j.Logger;
 public class GetOmim implements Serializable {
 	private static final long serialVersionUID = 1L;
 	private static final Logger logger = Logger.getLogger(GetOmim.class);
-	private String[] m_geneArray;
-	private String[] m_omimArray;
+	private AnnotationColumn m_geneColumn;
+	private AnnotationColumn m_omimColumn;
 	private HashMap<String, String> m_omimAccessionNumMap = new HashMap<String, String>();
+	// snapshot holding the accession numbers, or null to use the map
+	private transient AnnotationSnapshot m_snapshot = null;
 
 	/**
-	 * Constructor, takes geneArray as input
+	 * Constructor, takes geneColumn and the store of loci as input
 	 * 
-	 * @param geneArray
+	 * @param geneColumn
+	 * @param locusStore
 	 */
-	public GetOmim(String[] geneArray) {
+	public GetOmim(AnnotationColumn geneColumn, LocusStore locusStore) {
 		super();
-		this.m_geneArray = geneArray;
-		try {
-			this.m_omimArray = new String[m_geneArray.length];
-		} catch (NullPointerException npe) {
+		this.m_geneColumn = geneColumn;
+		this.m_omimColumn = new AnnotationColumn(locusStore);
+		if (m_geneColumn == null) {
 			logger.info("could not fetch omim data. It depends on gene names." +
 					" Please make sure you fetched Genes info before fetching OMIM data");
+			return;
 		}
 
-		this.m_omimAccessionNumMap = getAccessionNumMap();
+		AnnotationSnapshot snapshot = AnnotationSnapshot.getInstance();
+		// the map is newer than the snapshot after an update of OMIM
+		long mapTime = new File(GlobalParameters.PATH_OMIM_ACC_NR_MAP)
+				.lastModified();
+		if (snapshot != null && snapshot.hasOmimAccessionNums()
+				&& mapTime <= snapshot.getOmimSourceTime()) {
+			// looked up in the mapped snapshot, without reading the whole map
+			this.m_snapshot = snapshot;
+		} else {
+			this.m_omimAccessionNumMap = getAccessionNumMap();
+		}
 		this.findOmimAccNums();
 	}
 
@@ -93,23 +110,48 @@ public class GetOmim implements Serializable {
 	public void findOmimAccNums() {
 
 		// check whether gene name is contained in map or not
-		// if yes, add to omimArray; else, not
-		for (int i = 0; i < m_geneArray.length; i++) {
-			if (m_omimAccessionNumMap.containsKey(m_geneArray[i])) {
-				m_omimArray[i] = m_omimAccessionNumMap.get(m_geneArray[i]);
-			} else {
-				m_omimArray[i] = GlobalParameters.STR_EMPTY_VALUE;
+		// if yes, add to omimColumn; else, not.
+		// each distinct gene is looked up only once, by its code
+		AnnotationDictionary dictionary = m_geneColumn.getDictionary();
+		int[] omimCodeOfGene = new int[dictionary.size()];
+		Arrays.fill(omimCodeOfGene, -1);
+		// the omim number of a locus whose gene could not be fetched is not
+		// known either
+		omimCodeOfGene[AnnotationDictionary.FAILED_CODE] = AnnotationDictionary.FAILED_CODE;
+		for (int i = 0; i < m_geneColumn.size(); i++) {
+			int geneCode = m_geneColumn.getCode(i);
+			if (omimCodeOfGene[geneCode] == -1) {
+				String accessionNum = findAccessionNum(dictionary
+						.decode(geneCode));
+				if (accessionNum != null) {
+					omimCodeOfGene[geneCode] = m_omimColumn.getDictionary()
+							.encode(accessionNum);
+				} else {
+					omimCodeOfGene[geneCode] = AnnotationDictionary.EMPTY_CODE;
+				}
 			}
+			m_omimColumn.setCode(i, omimCodeOfGene[geneCode]);
+		}
+	}
+
+	/**
+	 * Returns the accession number of a gene, from the snapshot if there is
+	 * one, else from the map.
+	 */
+	private String findAccessionNum(String gene) {
+		if (m_snapshot != null) {
+			return m_snapshot.getOmimAccessionNum(gene);
 		}
+		return m_omimAccessionNumMap.get(gene);
 	}
 
 	/**
-	 * Get omimArray, an array of omim accession numbers
+	 * Get omimColumn, a column of omim accession numbers
 	 * 
-	 * @return omimArray an array of omim accession numbers, for respective
+	 * @return omimColumn a column of omim accession numbers, for respective
 	 *         gene/loci
 	 */
-	public String[] getOmimArray() {
-		return m_omimArray;
+	public AnnotationColumn getOmimColumn() {
+		return m_omimColumn;
 	}
 }
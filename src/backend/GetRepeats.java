@@ -3,6 +3,10 @@ package backend;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 
 import org.apache.log4j.Logger;
 
@@ -14,31 +18,47 @@ import org.apache.log4j.Logger;
  * source is the RepeatMasker program developed by Arian Smit. We fetch here
  * three different attributes from the track: repeats name, repeats class
  * and repeats family.
+ * 
+ * If GlobalParameters.USE_LOCAL_REPEATS_INDEX is set, the rmsk table of each
+ * chromosome is loaded once into a RepeatIndex instead, and every locus is
+ * annotated with all overlapping repeat elements and the fraction covered by
+ * each repeat class and family.
+ * 
+ * If a local AnnotationSnapshot holds rmsk, the loci are annotated from it
+ * without any query, with the same first match as the per-locus query (or
+ * into a RepeatIndex, if USE_LOCAL_REPEATS_INDEX is set). Otherwise, loci
+ * found in the AnnotationCache are not queried again for the first match.
  * @author mkumar
  * @since v1.0
  */
 public class GetRepeats {
 	private static final Logger logger = Logger.getLogger(GetRepeats.class);
-	private Locus[] m_locusArray;
-	private Statement m_st;
-	private String[] m_repMaskNameArray;
-	private String[] m_repMaskClassArray;
-	private String[] m_repMaskFamilyArray;
+	// repeat index of each chromosome and assembly, loaded on first use
+	private static HashMap<String, RepeatIndex> repeatIndexes = new HashMap<String, RepeatIndex>();
+	// attempts to load the rmsk table of a chromosome into its index
+	private static final int INDEX_LOAD_ATTEMPTS = 3;
+	private LocusStore m_locusStore;
+	private ConnectionPool m_connectionPool;
+	private AnnotationColumn m_repMaskNameColumn;
+	private AnnotationColumn m_repMaskClassColumn;
+	private AnnotationColumn m_repMaskFamilyColumn;
+	// set if a query failed, so that the results are not cached
+	private volatile boolean m_hasFailedQueries = false;
 	// don't forget to initialize arrays!
 	private String dbTableName = "rmsk";
-
-	private String chr;
-	private int startPos;
-	private int endPos;
+	// explicit order of the elements, so that the queries and the snapshot
+	// report the same element for a locus which lies in several
+	private String m_strOrderBy = " ORDER BY genoStart, genoEnd, BINARY repName,"
+			+ " BINARY repClass, BINARY repFamily";
 
 	/**
 	 * Constructor for class which gets repeats information from database
-	 * @param locusArray
-	 * @param st
+	 * @param locusStore
+	 * @param connectionPool
 	 */
-	public GetRepeats(Locus[] locusArray, Statement st) {
-		this.m_locusArray = locusArray;
-		this.m_st = st;
+	public GetRepeats(LocusStore locusStore, ConnectionPool connectionPool) {
+		this.m_locusStore = locusStore;
+		this.m_connectionPool = connectionPool;
 		submitRepQuery();
 	}
 
@@ -51,73 +71,538 @@ public class GetRepeats {
 	 */
 	public void submitRepQuery() {
 		logger.debug("submitting query to fetch repMasker information from the database");
-		ResultSet rs = null;
-		m_repMaskNameArray = new String[m_locusArray.length];
-		m_repMaskClassArray = new String[m_locusArray.length];
-		m_repMaskFamilyArray = new String[m_locusArray.length];
+		if (GlobalParameters.USE_LOCAL_REPEATS_INDEX) {
+			fetchRepeatsFromIndex();
+			return;
+		}
+		m_repMaskNameColumn = new AnnotationColumn(m_locusStore);
+		m_repMaskClassColumn = new AnnotationColumn(m_locusStore);
+		m_repMaskFamilyColumn = new AnnotationColumn(m_locusStore);
+
+		AnnotationSnapshot snapshot = AnnotationSnapshot.getInstance();
+		AnnotationSnapshot.Track track = snapshot == null ? null : snapshot
+				.getTrack(AnnotationSnapshot.TRACK_RMSK);
+		if (track != null) {
+			fetchRepeatsFromSnapshot(snapshot, track);
+			return;
+		}
+
+		// loci annotated for another dataset or in an earlier run are taken
+		// from the annotation cache
+		AnnotationCache cache = AnnotationCache.getInstance();
+		int[] loci = m_locusStore.getIndexes();
+		if (cache != null) {
+			loci = cache.lookup(ResultCache.TRACK_REPEATS, m_locusStore, loci,
+					m_repMaskNameColumn, m_repMaskClassColumn,
+					m_repMaskFamilyColumn);
+			if (loci.length == 0) {
+				return;
+			}
+		}
+		fetchRepeatsFromDatabase(loci);
+		// the loci of a failed query are marked as failed, which must not be
+		// cached
+		if (cache != null && !m_hasFailedQueries) {
+			cache.store(ResultCache.TRACK_REPEATS, m_locusStore, loci,
+					m_repMaskNameColumn, m_repMaskClassColumn,
+					m_repMaskFamilyColumn);
+		}
+	}
+
+	/**
+	 * Fetches the repeats of some loci from the database, with batched or
+	 * per-locus queries, whichever the QueryPlanner finds cheaper.
+	 * 
+	 * @param lociToFetch indexes of the loci
+	 */
+	private void fetchRepeatsFromDatabase(int[] lociToFetch) {
+		int strategies = QueryPlanner.PER_LOCUS;
+		if (GlobalParameters.FETCH_IN_BATCHES) {
+			strategies |= QueryPlanner.BATCHED;
+		}
+		QueryPlanner.Plan plan = QueryPlanner.plan(dbTableName, m_locusStore,
+				filterLoci(lociToFetch), strategies, false);
+		logger.info(dbTableName + ": " + plan);
+
+		// loci left to the per-locus queries: all of them, or those of the
+		// failed chunks
+		final int[] loci;
+		if (plan.getStrategy() == QueryPlanner.BATCHED) {
+			loci = fetchRepeatsInBatches(plan.getChunks());
+		} else {
+			loci = plan.getLoci();
+		}
+
+		// the loci are queried in parallel, each query writes only its own
+		// locus
+		ParallelQueries queries = new ParallelQueries(m_connectionPool,
+				GlobalParameters.USE_VIRTUAL_THREADS);
+		int nrOfFailedQueries = queries.run(loci.length,
+				new ParallelQueries.Task() {
+					@Override
+					public void run(int l, Statement st) {
+						fetchRepeatsOfLocus(loci[l], st);
+					}
+				});
+		if (nrOfFailedQueries > 0) {
+			m_hasFailedQueries = true;
+			for (int l = 0; l < loci.length; l++) {
+				if (queries.isFailed(l)) {
+					setFailed(loci[l]);
+				}
+			}
+		}
+		plan.copyDuplicates(m_repMaskNameColumn, m_repMaskClassColumn,
+				m_repMaskFamilyColumn);
+		logger.info("repeats query successfully submitted and data retrieved");
+	}
+
+	/**
+	 * Answers the loci which lie in no repeat element with the empty value,
+	 * with the LocusPrefilter of the rmsk table of their chromosome. The
+	 * prefilters which pay off for the loci of their chromosome are loaded
+	 * in parallel.
+	 * 
+	 * @param loci indexes of the loci
+	 * @return indexes of the loci which have to be queried
+	 */
+	private int[] filterLoci(int[] loci) {
+		if (!GlobalParameters.USE_LOCUS_PREFILTER) {
+			return loci;
+		}
+		final int[][] lociPerChr = groupLociByChr(loci);
+		long nrOfRows = QueryPlanner.getEstimatedRowsOfChr(dbTableName);
+		final int[] chrs = new int[lociPerChr.length];
+		int nrOfChrs = 0;
+		for (int c = 0; c < lociPerChr.length; c++) {
+			if (lociPerChr[c].length > 0
+					&& LocusPrefilter.isWorthwhile(lociPerChr[c].length,
+							m_locusStore.getChrName(c) + "_" + dbTableName,
+							nrOfRows)) {
+				chrs[nrOfChrs++] = c;
+			}
+		}
+
+		// the prefilters are loaded in parallel, each one into its own slot
+		final LocusPrefilter[] prefilters = new LocusPrefilter[lociPerChr.length];
+		ParallelQueries queries = new ParallelQueries(m_connectionPool);
+		queries.run(nrOfChrs, new ParallelQueries.Task() {
+			@Override
+			public void run(int k, Statement st) {
+				String chrName = m_locusStore.getChrName(chrs[k]);
+				prefilters[chrs[k]] = LocusPrefilter.getInstance(
+						m_connectionPool, chrName + "_" + dbTableName, chrName,
+						"genoStart", "genoEnd", st);
+			}
+		});
+
+		int[] lociLeft = new int[loci.length];
+		int nrOfLoci = 0;
+		for (int c = 0; c < lociPerChr.length; c++) {
+			int[] lociOfChr = lociPerChr[c];
+			if (prefilters[c] != null) {
+				lociOfChr = prefilters[c].filter(m_locusStore, lociOfChr,
+						m_repMaskNameColumn, m_repMaskClassColumn,
+						m_repMaskFamilyColumn);
+			}
+			System.arraycopy(lociOfChr, 0, lociLeft, nrOfLoci,
+					lociOfChr.length);
+			nrOfLoci += lociOfChr.length;
+		}
+		logger.info(dbTableName + ": " + (loci.length - nrOfLoci) + " of "
+				+ loci.length + " loci lie in no repeat element");
+		return Arrays.copyOf(lociLeft, nrOfLoci);
+	}
+
+	/**
+	 * Fetches the repeats of one locus with a sql query.
+	 * 
+	 * @param i index of the locus
+	 * @param st statement for this query
+	 */
+	private void fetchRepeatsOfLocus(int i, Statement st) {
+		String chr = m_locusStore.getChr(i);
+		int startPos = m_locusStore.getStartPos(i);
+		int endPos = m_locusStore.getEndPos(i);
+
+		// sql query
+		String queryRepMask = "SELECT repName, repClass, repFamily FROM " + chr
+				+ "_" + dbTableName + " WHERE " + startPos + " > genoStart"
+				+ " AND " + endPos + " < genoEnd"
+				+ UcscBins.getBinCondition(startPos, endPos + 1)
+				+ m_strOrderBy;
+
+		try {
+			// submit query to the database; the same query of another
+			// dataset in flight is shared
+			List<String[]> rows = SharedQueries.executeQuery(
+					m_connectionPool, st, queryRepMask, 3, 1);
+			// if some result exists
+			if (!rows.isEmpty()) {
+				m_repMaskNameColumn.set(i, rows.get(0)[0]);
+				m_repMaskClassColumn.set(i, rows.get(0)[1]);
+				m_repMaskFamilyColumn.set(i, rows.get(0)[2]);
+			}
+			else{
+				m_repMaskNameColumn.setCode(i, AnnotationDictionary.EMPTY_CODE);
+				m_repMaskClassColumn.setCode(i, AnnotationDictionary.EMPTY_CODE);
+				m_repMaskFamilyColumn.setCode(i, AnnotationDictionary.EMPTY_CODE);
+			}
+		} catch (final SQLException ex) {
+			logger.debug("cannot execute repeats query");
+			setFailed(i);
+			m_hasFailedQueries = true;
+		}
+	}
+
+	/**
+	 * Marks a locus whose repeats could not be fetched.
+	 * 
+	 * @param i index of the locus
+	 */
+	private void setFailed(int i) {
+		m_repMaskNameColumn.setCode(i, AnnotationDictionary.FAILED_CODE);
+		m_repMaskClassColumn.setCode(i, AnnotationDictionary.FAILED_CODE);
+		m_repMaskFamilyColumn.setCode(i, AnnotationDictionary.FAILED_CODE);
+	}
+
+	/**
+	 * Annotates all loci with the local repeat index of their chromosome.
+	 * 
+	 * The lists of elements and the coverage are mostly unique to their
+	 * locus, so the columns get a private dictionary of the dataset, which is
+	 * freed with its tab; for the same reason they are not cached, the index
+	 * of each chromosome is kept instead. If the rmsk table of a chromosome
+	 * cannot be loaded after INDEX_LOAD_ATTEMPTS attempts, its loci get the
+	 * failed value; they are not queried for the first match instead, which
+	 * would mix two kinds of values in one column.
+	 */
+	private void fetchRepeatsFromIndex() {
+		AnnotationDictionary dictionary = AnnotationDictionary
+				.createPrivate(AnnotationDictionary.getInstance().getAssembly());
+		int size = m_locusStore.size();
+		ColumnStorage columnStorage = m_locusStore.getColumnStorage();
+		m_repMaskNameColumn = new AnnotationColumn(size, columnStorage,
+				dictionary);
+		m_repMaskClassColumn = new AnnotationColumn(size, columnStorage,
+				dictionary);
+		m_repMaskFamilyColumn = new AnnotationColumn(size, columnStorage,
+				dictionary);
+
+		int[][] lociPerChr = groupLociByChr(m_locusStore.getIndexes());
+		for (int c = 0; c < lociPerChr.length; c++) {
+			if (lociPerChr[c].length == 0) {
+				continue;
+			}
+			String chrName = m_locusStore.getChrName(c);
+			RepeatIndex repeatIndex = null;
+			for (int attempt = 1; repeatIndex == null
+					&& attempt <= INDEX_LOAD_ATTEMPTS; attempt++) {
+				// the ConcurrencyLimiter backs off between the attempts
+				repeatIndex = getRepeatIndex(chrName);
+			}
+			if (repeatIndex != null) {
+				repeatIndex.annotate(m_locusStore, lociPerChr[c],
+						lociPerChr[c].length, m_repMaskNameColumn,
+						m_repMaskClassColumn, m_repMaskFamilyColumn);
+				continue;
+			}
+			logger.error("cannot load " + chrName + "_" + dbTableName
+					+ ", repeats of " + lociPerChr[c].length
+					+ " loci marked as failed");
+			m_hasFailedQueries = true;
+			for (int locus : lociPerChr[c]) {
+				setFailed(locus);
+			}
+		}
+		logger.info("repeats data retrieved from local index");
+	}
 
-		for (int i = 0; i < m_locusArray.length; i++) {
-			chr = m_locusArray[i].getChr();
-			startPos = m_locusArray[i].getStartPos();
-			endPos = m_locusArray[i].getEndPos();
+	/**
+	 * Annotates the loci with the rmsk track of the local snapshot, directly
+	 * on the mapped file. For each locus, the first element which strictly
+	 * contains it is taken, in the order of the per-locus query (genoStart,
+	 * genoEnd, repName, repClass, repFamily), into which the importer sorted
+	 * the dump.
+	 * 
+	 * @param snapshot snapshot of the current assembly
+	 * @param track rmsk track of the snapshot
+	 */
+	private void fetchRepeatsFromSnapshot(AnnotationSnapshot snapshot,
+			AnnotationSnapshot.Track track) {
+		AnnotationDictionary dictionary = m_repMaskNameColumn.getDictionary();
+		// each name, class and family of the snapshot is encoded only once
+		int[] codes = new int[snapshot.getNrOfStrings()];
+		Arrays.fill(codes, -1);
+		AnnotationColumn[] columns = { m_repMaskNameColumn,
+				m_repMaskClassColumn, m_repMaskFamilyColumn };
+		LocusStore.Cursor cursor = m_locusStore.cursor();
+		while (cursor.next()) {
+			int row = track.findFirstContaining(cursor.getChr(), cursor
+					.getStartPos(), cursor.getEndPos());
+			if (row == -1) {
+				continue;
+			}
+			for (int k = 0; k < columns.length; k++) {
+				int code = track.getValueCode(row, k);
+				if (codes[code] == -1) {
+					codes[code] = dictionary.encode(snapshot.getString(code));
+				}
+				columns[k].setCode(cursor.getIndex(), codes[code]);
+			}
+		}
+		logger.info("repeats data retrieved from local snapshot");
+	}
 
-			// sql query
-			String queryRepMask = "SELECT repName, repClass, repFamily FROM " + chr
-					+ "_" + dbTableName + " WHERE " + startPos + " > genoStart"
-					+ " AND " + endPos + " < genoEnd";
+	/**
+	 * Returns the indexes of the loci of each chromosome id.
+	 * 
+	 * @param loci indexes of the loci
+	 * @return loci per chromosome id
+	 */
+	private int[][] groupLociByChr(int[] loci) {
+		int nrOfChrs = m_locusStore.getNrOfChrs();
+		int[] nrOfLociPerChr = new int[nrOfChrs];
+		for (int locus : loci) {
+			nrOfLociPerChr[m_locusStore.getChrId(locus)]++;
+		}
+		int[][] lociPerChr = new int[nrOfChrs][];
+		for (int c = 0; c < nrOfChrs; c++) {
+			lociPerChr[c] = new int[nrOfLociPerChr[c]];
+			nrOfLociPerChr[c] = 0;
+		}
+		for (int locus : loci) {
+			int c = m_locusStore.getChrId(locus);
+			lociPerChr[c][nrOfLociPerChr[c]++] = locus;
+		}
+		return lociPerChr;
+	}
 
+	/**
+	 * Fetches repeats data with one range query per chunk of loci, instead of
+	 * one query per locus, and joins the returned elements to the loci of the
+	 * chunk.
+	 * 
+	 * @param chunks chunks of the loci
+	 * @return indexes of the loci of the failed chunks, which are left to
+	 * the per-locus queries
+	 */
+	private int[] fetchRepeatsInBatches(final LocusChunks chunks) {
+		final boolean[] hasFailed = new boolean[chunks.size()];
+
+		// the chunks are queried in parallel, each one writes only its own
+		// loci
+		ParallelQueries queries = new ParallelQueries(m_connectionPool);
+		queries.run(chunks.size(), new ParallelQueries.Task() {
+			@Override
+			public void run(int c, Statement st) {
+				if (!fetchRepeatsOfChunk(chunks, c, st)) {
+					hasFailed[c] = true;
+				}
+			}
+		});
+
+		// chunks which got no statement are failed as well
+		int nrOfLoci = 0;
+		for (int c = 0; c < chunks.size(); c++) {
+			if (queries.isFailed(c)) {
+				hasFailed[c] = true;
+			}
+			if (hasFailed[c]) {
+				nrOfLoci += chunks.getNrOfLoci(c);
+			}
+		}
+		int[] lociLeft = new int[nrOfLoci];
+		nrOfLoci = 0;
+		for (int c = 0; c < chunks.size(); c++) {
+			if (hasFailed[c]) {
+				for (int i = 0; i < chunks.getNrOfLoci(c); i++) {
+					lociLeft[nrOfLoci++] = chunks.getLocus(c, i);
+				}
+			}
+		}
+		logger.info(chunks.size() + " batched repeats queries submitted, "
+				+ lociLeft.length + " loci of failed chunks left");
+		return lociLeft;
+	}
+
+	/**
+	 * Fetches the repeats of one chunk of loci with a range query.
+	 * 
+	 * @param chunks chunks of loci
+	 * @param c index of the chunk
+	 * @param st statement for this query
+	 * @return false if the query failed
+	 */
+	private boolean fetchRepeatsOfChunk(LocusChunks chunks, int c,
+			Statement st) {
+		AnnotationDictionary dictionary = m_repMaskNameColumn.getDictionary();
+		LocusChunks.Rows rows = new LocusChunks.Rows(3);
+		ResultSet rs = null;
+
+		// all elements which can contain one of the loci of the chunk
+		String queryRepMask = "SELECT genoStart, genoEnd, repName, repClass, repFamily FROM "
+				+ chunks.getChr(c) + "_" + dbTableName + " WHERE genoStart < "
+				+ chunks.getMaxStart(c) + " AND genoEnd > "
+				+ chunks.getMinEnd(c)
+				+ UcscBins.getBinCondition(chunks.getMinStart(c),
+						chunks.getMaxEnd(c) + 1) + m_strOrderBy;
+
+		long startTime = System.nanoTime();
+		try {
+			rs = Database.executeQuery(st, queryRepMask);
+			while (rs.next()) {
+				rows.add(rs.getInt(1), rs.getInt(2),
+						dictionary.encode(rs.getString(3)),
+						dictionary.encode(rs.getString(4)),
+						dictionary.encode(rs.getString(5)));
+			}
+			QueryPlanner.recordQuery(startTime, rows.size());
+		} catch (final SQLException ex) {
+			logger.debug("cannot execute batched repeats query");
+			return false;
+		} finally {
 			try {
-				// submit query to the database
-				rs = m_st.executeQuery(queryRepMask);
-				// if some result exists
-				if (rs.next()) {
-					m_repMaskNameArray[i] = rs.getString(1);
-					m_repMaskClassArray[i] = rs.getString(2);
-					m_repMaskFamilyArray[i] = rs.getString(3);
+				if (rs != null) {
+					rs.close();
 				}
-				else{
-					m_repMaskNameArray[i] = GlobalParameters.STR_EMPTY_VALUE;
-					m_repMaskClassArray[i] = GlobalParameters.STR_EMPTY_VALUE;
-					m_repMaskFamilyArray[i] = GlobalParameters.STR_EMPTY_VALUE;
+			} catch (SQLException ex) {
+				logger.debug("cannot close resultset for repeats query");
+			}
+		}
+
+		int[] firstRows = chunks.findFirstContaining(c, rows);
+		for (int i = 0; i < firstRows.length; i++) {
+			if (firstRows[i] != -1) {
+				int locus = chunks.getLocus(c, i);
+				m_repMaskNameColumn.setCode(locus, rows.getCode(firstRows[i], 0));
+				m_repMaskClassColumn.setCode(locus, rows.getCode(firstRows[i], 1));
+				m_repMaskFamilyColumn.setCode(locus, rows.getCode(firstRows[i], 2));
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Drops the repeat indexes of all chromosomes of an assembly, whose
+	 * dictionary was dropped.
+	 * 
+	 * @param assembly assembly, eg. hg19
+	 */
+	public static void dropIndexes(String assembly) {
+		synchronized (repeatIndexes) {
+			Iterator<String> it = repeatIndexes.keySet().iterator();
+			while (it.hasNext()) {
+				if (it.next().startsWith(assembly + "/")) {
+					it.remove();
 				}
-			} catch (final SQLException ex) {
-				logger.debug("cannot execute repeats query");
+			}
+		}
+	}
 
-			} finally {
-				try {
-					if (rs != null) {
-						rs.close();
-					}
-				} catch (SQLException ex) {
-					logger.debug("cannot close resultset for repeats query");
+	/**
+	 * Returns the repeat index of a chromosome of the current assembly,
+	 * loading its rmsk table from the database if this is the first time it
+	 * is needed.
+	 * 
+	 * @param chrName chromosome, eg. chr1
+	 * @return repeatIndex index of the rmsk table, or null if it cannot be loaded
+	 */
+	private RepeatIndex getRepeatIndex(String chrName) {
+		AnnotationDictionary dictionary = AnnotationDictionary.getInstance();
+		String key = dictionary.getAssembly() + "/" + chrName;
+		synchronized (repeatIndexes) {
+			RepeatIndex repeatIndex = repeatIndexes.get(key);
+			if (repeatIndex == null) {
+				repeatIndex = loadRepeatIndex(chrName, dictionary);
+				if (repeatIndex != null) {
+					repeatIndexes.put(key, repeatIndex);
 				}
 			}
+			return repeatIndex;
+		}
+	}
+
+	/**
+	 * Loads the rmsk table of one chromosome into a repeat index.
+	 * 
+	 * @param chrName chromosome, eg. chr1
+	 * @param dictionary dictionary of the current assembly
+	 * @return repeatIndex index of the rmsk table, or null if it cannot be loaded
+	 */
+	private RepeatIndex loadRepeatIndex(String chrName,
+			AnnotationDictionary dictionary) {
+		logger.debug("loading " + chrName + "_" + dbTableName
+				+ " into local index");
+		long startTime = System.currentTimeMillis();
+		RepeatIndex repeatIndex = new RepeatIndex(dictionary);
+
+		AnnotationSnapshot snapshot = AnnotationSnapshot.getInstance();
+		AnnotationSnapshot.Track track = snapshot == null ? null : snapshot
+				.getTrack(AnnotationSnapshot.TRACK_RMSK);
+		if (track != null) {
+			int firstRow = track.getFirstRow(chrName);
+			for (int row = firstRow; row < firstRow
+					+ track.getNrOfRows(chrName); row++) {
+				repeatIndex.add(track.getStart(row), track.getEnd(row), track
+						.getValue(row, 0), track.getValue(row, 1), track
+						.getValue(row, 2));
+			}
+			repeatIndex.build();
+			logger.info("loaded " + repeatIndex.size() + " rows of " + chrName
+					+ "_" + dbTableName + " from snapshot");
+			return repeatIndex;
+		}
 
+		TableReader reader = new TableReader(chrName + "_" + dbTableName,
+				new String[] { "genoStart", "genoEnd", "repName", "repClass",
+						"repFamily" }, new int[] { TableReader.INT,
+						TableReader.INT, TableReader.CODE, TableReader.CODE,
+						TableReader.CODE });
+		try {
+			reader.read(m_connectionPool);
+		} catch (final SQLException ex) {
+			logger.debug("cannot load " + chrName + "_" + dbTableName
+					+ " into local index, using per-locus queries instead");
+			return null;
 		}
-		logger.info("repeats query successfully submitted and data retrieved");
+		int[] starts = reader.getColumn(0);
+		int[] ends = reader.getColumn(1);
+		int[] names = reader.getColumn(2);
+		int[] classes = reader.getColumn(3);
+		int[] families = reader.getColumn(4);
+		for (int row = 0; row < reader.size(); row++) {
+			repeatIndex.addCodes(starts[row], ends[row], names[row],
+					classes[row], families[row]);
+		}
+		repeatIndex.build();
+		logger.info("loaded " + repeatIndex.size() + " rows of " + chrName
+				+ "_" + dbTableName + " into local index in "
+				+ (System.currentTimeMillis() - startTime) + " ms");
+		return repeatIndex;
 	}
 	
 	/**
-	 * This method returns the repeats name data array
-	 * @return repeats name array
+	 * This method returns the repeats name data column
+	 * @return repeats name column
 	 */
-	public String[] getRepNameArray(){
-		return m_repMaskNameArray;
+	public AnnotationColumn getRepNameColumn(){
+		return m_repMaskNameColumn;
 	}
 	
 	/**
-	 * This method returns the repeats class data array
-	 * @return repeats class array
+	 * This method returns the repeats class data column
+	 * @return repeats class column
 	 */
-	public String[] getRepClassArray(){
-		return m_repMaskClassArray;
+	public AnnotationColumn getRepClassColumn(){
+		return m_repMaskClassColumn;
 	}
 	
 	/**
-	 * This method returns the repeats family data array
-	 * @return repeats family array
+	 * This method returns the repeats family data column
+	 * @return repeats family column
 	 */
-	public String[] getRepFamilyArray(){
-		return m_repMaskFamilyArray;
+	public AnnotationColumn getRepFamilyColumn(){
+		return m_repMaskFamilyColumn;
 	}
 }
\ No newline at end of file
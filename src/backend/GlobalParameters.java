@@ -77,6 +77,77 @@ public class GlobalParameters {
 	// overlap threshold for merging overlapping loci, compare datasets
 	public static int THRESHOLD_MERGE_OVERLAPPING_LOCI = 250;
 	
+	// reading of very large input files with several threads
+	public static boolean LOAD_INPUT_IN_PARALLEL = true;
+	final public static long MIN_FILE_SIZE_FOR_PARALLEL_LOADING = 64L * 1024 * 1024;
+
+	// storage of the loci and annotations of the datasets shown in the tabs
+	public static boolean STORE_RESULTS_OFF_HEAP = true;
+	public static boolean BACK_RESULTS_WITH_TEMP_FILE = false;
+
+	// annotate genes from a local index of refGene, loaded once per assembly,
+	// if the query planner finds it cheaper than querying the loci
+	public static boolean USE_LOCAL_GENE_INDEX = true;
+	// resolve cytobands from a local copy of the cytoBand table, if the query
+	// planner finds it cheaper than querying the loci
+	public static boolean USE_LOCAL_CYTOBAND_INDEX = true;
+	// annotate repeats from local rmsk tables, with coverage per class/family
+	public static boolean USE_LOCAL_REPEATS_INDEX = false;
+	// fetch annotations with one range query per chunk of loci
+	public static boolean FETCH_IN_BATCHES = true;
+	public static int MAX_LOCI_PER_BATCH = 1000;
+	public static int MAX_BASE_PAIRS_PER_BATCH = 10000000;
+	// choose the cheapest of the allowed fetch strategies per track; if off,
+	// a local index is preferred to batches, and batches to per-locus queries
+	public static boolean USE_QUERY_PLANNER = true;
+	// answer loci which lie in no occupied UCSC bin of refGene or rmsk
+	// without querying them
+	public static boolean USE_LOCUS_PREFILTER = true;
+	// connections to the remote database, shared by all tracks and requests
+	public static int CONNECTION_POOL_SIZE = 16;
+	public static long CONNECTION_IDLE_TIMEOUT = 60000;
+	// annotation tracks fetched at the same time
+	public static int MAX_CONCURRENT_TRACKS = 3;
+	// queries of one track sent to the database at the same time
+	public static int MAX_QUERIES_IN_FLIGHT = 16;
+	// queries of all tracks in flight at first; the ConcurrencyLimiter adapts
+	// this up to CONNECTION_POOL_SIZE to what the server sustains
+	public static int INITIAL_QUERIES_IN_FLIGHT = 4;
+	// courtesy ceiling for the public UCSC server, 0 for none
+	public static int MAX_QUERIES_PER_SECOND = 50;
+	// attempts to reach the database before annotating without it
+	public static int CONNECT_ATTEMPTS = 3;
+	// milliseconds to wait for a connection to the database to open
+	public static int CONNECT_TIMEOUT_MILLIS = 10000;
+	// seconds after which the server cancels a query of one locus
+	public static int POINT_QUERY_TIMEOUT_SECONDS = 20;
+	// seconds after which the server cancels a query of many rows
+	public static int QUERY_TIMEOUT_SECONDS = 300;
+	// seconds of failures in a row, without any query answered, after which
+	// the remote database is taken to be down and its queries fail at once
+	public static int SERVER_DOWN_SECONDS = 120;
+	// send a point query again on another connection if it is slower than
+	// 95% of the recent ones, and take the first answer
+	public static boolean HEDGE_SLOW_QUERIES = true;
+	// run per-locus queries on one virtual thread each (Java 21 and later)
+	public static boolean USE_VIRTUAL_THREADS = false;
+
+	// annotate from a local snapshot of the UCSC tables, if one was imported
+	public static boolean USE_OFFLINE_SNAPSHOT = true;
+	final public static String PATH_SNAPSHOT_DIR = ".//etc//";
+	// compare the checksum of a snapshot when opening it (reads the whole file)
+	public static boolean VERIFY_SNAPSHOT_CHECKSUM = true;
+	// keep the results of remote queries on disk, to skip them in later runs
+	public static boolean USE_RESULT_CACHE = true;
+	public static long RESULT_CACHE_MAX_BYTES = 64 * 1024 * 1024;
+	final public static String PATH_RESULT_CACHE = ".//etc//resultCache.journal";
+	// keep the annotations of loci in memory, shared by all opened datasets
+	public static boolean USE_ANNOTATION_CACHE = true;
+	public static long ANNOTATION_CACHE_MAX_BYTES = 128 * 1024 * 1024;
+
 	// string to denote empty value
 	final public static String STR_EMPTY_VALUE = "--";
+
+	// string to denote a value which could not be fetched
+	final public static String STR_FAILED_VALUE = "(failed)";
 }
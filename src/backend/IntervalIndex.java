@@ -0,0 +1,335 @@
+package backend;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Set;
+
+/**
+ * In-memory index of the intervals of an annotation track, eg. the genes in
+ * refGene, used to annotate loci locally instead of sending one SQL query per
+ * locus to the database.
+ *
+ * Intervals are added in the explicit order of their track (for refGene,
+ * "ORDER BY txStart, txEnd, BINARY name2"), and each interval carries an int
+ * value (usually a code in the AnnotationDictionary). Once all intervals are
+ * added, build() sorts them by start coordinate, separately for each
+ * chromosome, and builds a tree over the sorted intervals which holds the
+ * largest end coordinate of every subtree. A containment lookup then only
+ * descends into subtrees which can hold a matching interval.
+ *
+ * findFirstContaining() follows the semantics of the SQL query
+ * "WHERE chrom = chr AND start &lt; startPos AND end &gt; endPos" with the
+ * same order clause: among all intervals which contain the locus, it returns
+ * the one that was added first, i.e. the first row of the query result. The
+ * rows of a query without an order clause come in whatever order the server
+ * reads them, so the queries of the track must name the order as well.
+ *
+ * @author mkumar
+ * @since v1.1
+ */
+public class IntervalIndex {
+	private static final int INITIAL_CAPACITY = 1024;
+	private HashMap<String, Intervals> m_intervalsPerChr = new HashMap<String, Intervals>();
+	private int m_size = 0;
+	private boolean m_isBuilt = false;
+
+	/**
+	 * Adds an interval to the index.
+	 *
+	 * @param chr
+	 *            chromosome of the interval, eg. chr1
+	 * @param start
+	 *            start coordinate of the interval
+	 * @param end
+	 *            end coordinate of the interval
+	 * @param value
+	 *            value of the interval
+	 */
+	public void add(String chr, int start, int end, int value) {
+		if (m_isBuilt) {
+			throw new IllegalStateException("interval index already built");
+		}
+		Intervals intervals = m_intervalsPerChr.get(chr);
+		if (intervals == null) {
+			intervals = new Intervals();
+			m_intervalsPerChr.put(chr, intervals);
+		}
+		intervals.add(start, end, value, m_size++);
+	}
+
+	/**
+	 * Sorts the intervals and builds the lookup tree. No intervals can be
+	 * added afterwards.
+	 */
+	public void build() {
+		for (Intervals intervals : m_intervalsPerChr.values()) {
+			intervals.build();
+		}
+		m_isBuilt = true;
+	}
+
+	/**
+	 * Returns the value of the first interval which strictly contains the
+	 * given locus, i.e. start &lt; startPos and end &gt; endPos.
+	 *
+	 * @param chr
+	 *            chromosome of the locus, eg. chr1
+	 * @param startPos
+	 *            start coordinate of the locus
+	 * @param endPos
+	 *            end coordinate of the locus
+	 * @return value of the interval, or -1 if no interval contains the locus
+	 */
+	public int findFirstContaining(String chr, int startPos, int endPos) {
+		Intervals intervals = m_intervalsPerChr.get(chr);
+		if (intervals == null) {
+			return -1;
+		}
+		return intervals.findFirstContaining(startPos, endPos);
+	}
+
+	/**
+	 * Returns the number of intervals in the index.
+	 *
+	 * @return number of intervals
+	 */
+	public int size() {
+		return m_size;
+	}
+
+	/**
+	 * Returns the chromosomes of the index.
+	 *
+	 * @return chromosomes, eg. chr1
+	 */
+	Set<String> getChrs() {
+		return m_intervalsPerChr.keySet();
+	}
+
+	/**
+	 * Returns the intervals of one chromosome, eg. to write them into an
+	 * AnnotationSnapshot. The index must be built.
+	 *
+	 * @param chr
+	 *            chromosome, eg. chr1
+	 * @return intervals, or null if there are none on the chromosome
+	 */
+	Intervals getIntervals(String chr) {
+		return m_intervalsPerChr.get(chr);
+	}
+
+	/**
+	 * Intervals of one chromosome. They are added to parallel primitive
+	 * arrays; once built, the sorted intervals and the tree are read through
+	 * IntBuffers, so that an AnnotationSnapshot can run the same lookup on
+	 * the buffers it maps from its file.
+	 */
+	static class Intervals {
+		private int[] addedStarts = new int[INITIAL_CAPACITY];
+		private int[] addedEnds = new int[INITIAL_CAPACITY];
+		private int[] addedValues = new int[INITIAL_CAPACITY];
+		private int[] addedOrdinals = new int[INITIAL_CAPACITY];
+		private int size = 0;
+		// the intervals, sorted by start coordinate and by ordinal for equal
+		// starts. if values is null, the value of interval i is firstValue + i
+		private IntBuffer starts;
+		private IntBuffer ends;
+		private IntBuffer values;
+		private IntBuffer ordinals;
+		private int firstValue = 0;
+		// maxEnds[node] is the largest end coordinate below an inner node of
+		// the tree. the root is node 1, the children of node n are 2n and
+		// 2n+1, and the leaves, from node nrOfLeaves on, are the sorted
+		// intervals
+		private IntBuffer maxEnds;
+		private int nrOfLeaves;
+
+		Intervals() {
+			super();
+		}
+
+		/**
+		 * Intervals which are already sorted, with the inner nodes of their
+		 * tree, eg. as mapped from an AnnotationSnapshot.
+		 */
+		Intervals(IntBuffer starts, IntBuffer ends, IntBuffer ordinals,
+				IntBuffer maxEnds, int nrOfLeaves, int firstValue) {
+			super();
+			this.size = starts.limit();
+			this.starts = starts;
+			this.ends = ends;
+			this.ordinals = ordinals;
+			this.maxEnds = maxEnds;
+			this.nrOfLeaves = nrOfLeaves;
+			this.firstValue = firstValue;
+			this.addedStarts = null;
+			this.addedEnds = null;
+			this.addedValues = null;
+			this.addedOrdinals = null;
+		}
+
+		void add(int start, int end, int value, int ordinal) {
+			if (size == addedStarts.length) {
+				int capacity = size * 2;
+				addedStarts = Arrays.copyOf(addedStarts, capacity);
+				addedEnds = Arrays.copyOf(addedEnds, capacity);
+				addedValues = Arrays.copyOf(addedValues, capacity);
+				addedOrdinals = Arrays.copyOf(addedOrdinals, capacity);
+			}
+			addedStarts[size] = start;
+			addedEnds[size] = end;
+			addedValues[size] = value;
+			addedOrdinals[size] = ordinal;
+			size++;
+		}
+
+		void build() {
+			sortByStart();
+
+			nrOfLeaves = 1;
+			while (nrOfLeaves < size) {
+				nrOfLeaves *= 2;
+			}
+			int[] tree = new int[nrOfLeaves];
+			for (int node = nrOfLeaves - 1; node > 0; node--) {
+				tree[node] = Math.max(getMaxEnd(tree, 2 * node), getMaxEnd(
+						tree, 2 * node + 1));
+			}
+			maxEnds = IntBuffer.wrap(tree);
+		}
+
+		private int getMaxEnd(int[] tree, int node) {
+			if (node < nrOfLeaves) {
+				return tree[node];
+			}
+			return getMaxEnd(node);
+		}
+
+		/**
+		 * Returns the largest end coordinate below a node of the tree.
+		 */
+		int getMaxEnd(int node) {
+			if (node < nrOfLeaves) {
+				return maxEnds.get(node);
+			}
+			int i = node - nrOfLeaves;
+			return i < size ? ends.get(i) : Integer.MIN_VALUE;
+		}
+
+		/**
+		 * Sorts the intervals by start coordinate, and by ordinal for equal
+		 * starts.
+		 */
+		private void sortByStart() {
+			// intervals were added in the order of their ordinals, so the
+			// index of an interval breaks ties between equal starts
+			long[] keys = new long[size];
+			for (int i = 0; i < size; i++) {
+				keys[i] = ((long) addedStarts[i] << 32) | i;
+			}
+			Arrays.sort(keys);
+
+			int[] sortedStarts = new int[size];
+			int[] sortedEnds = new int[size];
+			int[] sortedValues = new int[size];
+			int[] sortedOrdinals = new int[size];
+			for (int i = 0; i < size; i++) {
+				int from = (int) keys[i];
+				sortedStarts[i] = addedStarts[from];
+				sortedEnds[i] = addedEnds[from];
+				sortedValues[i] = addedValues[from];
+				sortedOrdinals[i] = addedOrdinals[from];
+			}
+			starts = IntBuffer.wrap(sortedStarts);
+			ends = IntBuffer.wrap(sortedEnds);
+			values = IntBuffer.wrap(sortedValues);
+			ordinals = IntBuffer.wrap(sortedOrdinals);
+			addedStarts = null;
+			addedEnds = null;
+			addedValues = null;
+			addedOrdinals = null;
+		}
+
+		int size() {
+			return size;
+		}
+
+		int getStart(int i) {
+			return starts.get(i);
+		}
+
+		int getEnd(int i) {
+			return ends.get(i);
+		}
+
+		int getValue(int i) {
+			return values == null ? firstValue + i : values.get(i);
+		}
+
+		int getOrdinal(int i) {
+			return ordinals.get(i);
+		}
+
+		int getNrOfLeaves() {
+			return nrOfLeaves;
+		}
+
+		int findFirstContaining(int startPos, int endPos) {
+			// only the intervals [0, limit) start before startPos
+			int limit = lowerBound(startPos);
+			if (limit == 0) {
+				return -1;
+			}
+
+			int bestOrdinal = Integer.MAX_VALUE;
+			int bestIndex = -1;
+			int[] stack = new int[64];
+			int top = 0;
+			stack[top++] = 1;
+			while (top > 0) {
+				int node = stack[--top];
+				if (getMaxEnd(node) <= endPos) {
+					continue;
+				}
+				// leftmost leaf below the node
+				int first = node;
+				while (first < nrOfLeaves) {
+					first *= 2;
+				}
+				if (first - nrOfLeaves >= limit) {
+					continue;
+				}
+				if (node >= nrOfLeaves) {
+					int i = node - nrOfLeaves;
+					if (ordinals.get(i) < bestOrdinal) {
+						bestOrdinal = ordinals.get(i);
+						bestIndex = i;
+					}
+					continue;
+				}
+				stack[top++] = 2 * node + 1;
+				stack[top++] = 2 * node;
+			}
+			return bestIndex == -1 ? -1 : getValue(bestIndex);
+		}
+
+		/**
+		 * Returns the number of intervals which start before the given
+		 * coordinate.
+		 */
+		int lowerBound(int startPos) {
+			int low = 0;
+			int high = size;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (starts.get(mid) < startPos) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+	}
+}
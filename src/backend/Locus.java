@@ -4,6 +4,8 @@ package backend;
  * This is a generic Locus class, designed to hold and operate
  * on the information specific to a locus. It also implements
  * comparable, to compare two loci.
+ * <p>The loci of a dataset are held in a LocusStore; a Locus is only
+ * created where a single locus is handled on its own.</p>
  * @author mkumar
  * @since v1.0
  */
@@ -0,0 +1,203 @@
+package backend;
+
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * A growable, primitive buffer of loci.
+ *
+ * Loci parsed from the input file are appended to this buffer as three
+ * parallel primitive arrays (chromosome id, start coordinate, end coordinate)
+ * instead of one Locus object per row, and are handed on as a LocusStore.
+ * Chromosome names are interned in a small dictionary, so that each distinct
+ * chromosome is held as a String only once, however many rows refer to it.
+ *
+ * @author mkumar
+ * @since v1.1
+ */
+public class LocusBuffer {
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private short[] m_chrIds;
+	private int[] m_starts;
+	private int[] m_ends;
+	private int m_size = 0;
+
+	// chromosome dictionary, an open addressing hash table over the raw bytes
+	// of the chromosome names. slots hold (id + 1), 0 marks an empty slot
+	private byte[][] m_chrBytes = new byte[16][];
+	private String[] m_chrNames = new String[16];
+	private int m_nrOfChrs = 0;
+	private int[] m_slots = new int[64];
+
+	public LocusBuffer() {
+		this(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Constructor, takes the expected number of loci as input
+	 * @param initialCapacity expected number of loci
+	 */
+	public LocusBuffer(int initialCapacity) {
+		super();
+		int capacity = Math.max(initialCapacity, 16);
+		m_chrIds = new short[capacity];
+		m_starts = new int[capacity];
+		m_ends = new int[capacity];
+	}
+
+	/**
+	 * Appends a locus to the buffer.
+	 * @param chrId id of the chromosome, as returned by chrId()
+	 * @param startPos start coordinate of the locus
+	 * @param endPos end coordinate of the locus
+	 */
+	public void add(int chrId, int startPos, int endPos) {
+		if (m_size == m_starts.length) {
+			int capacity = m_size + (m_size >> 1);
+			m_chrIds = Arrays.copyOf(m_chrIds, capacity);
+			m_starts = Arrays.copyOf(m_starts, capacity);
+			m_ends = Arrays.copyOf(m_ends, capacity);
+		}
+		m_chrIds[m_size] = (short) chrId;
+		m_starts[m_size] = startPos;
+		m_ends[m_size] = endPos;
+		m_size++;
+	}
+
+	/**
+	 * Appends all loci of another buffer to this one, keeping their order.
+	 * Chromosome ids of the other buffer are translated to ids of this buffer.
+	 * @param other buffer whose loci are appended
+	 */
+	public void addAll(LocusBuffer other) {
+		short[] idMap = new short[other.m_nrOfChrs];
+		for (int c = 0; c < other.m_nrOfChrs; c++) {
+			byte[] name = other.m_chrBytes[c];
+			idMap[c] = (short) chrId(name, 0, name.length);
+		}
+		for (int i = 0; i < other.m_size; i++) {
+			add(idMap[other.m_chrIds[i]], other.m_starts[i], other.m_ends[i]);
+		}
+	}
+
+	/**
+	 * Returns the id of a chromosome, given its name as raw bytes. The name is
+	 * added to the dictionary if it was not seen before.
+	 * @param src array holding the name of the chromosome
+	 * @param from index of the first byte of the name
+	 * @param len length of the name
+	 * @return id of the chromosome
+	 */
+	public int chrId(byte[] src, int from, int len) {
+		int mask = m_slots.length - 1;
+		int slot = hash(src, from, len) & mask;
+		while (m_slots[slot] != 0) {
+			byte[] name = m_chrBytes[m_slots[slot] - 1];
+			if (name.length == len && regionEquals(name, src, from, len)) {
+				return m_slots[slot] - 1;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return addChr(Arrays.copyOfRange(src, from, from + len), slot);
+	}
+
+	/**
+	 * Returns the id of a chromosome, given its name, adding the name to the
+	 * dictionary if it was not seen before.
+	 * @param chr chromosome name, eg. chr1
+	 * @return id of the chromosome
+	 */
+	public int chrId(String chr) {
+		byte[] name = chr.getBytes(ASCII);
+		return chrId(name, 0, name.length);
+	}
+
+	private int addChr(byte[] name, int slot) {
+		if (m_nrOfChrs > Short.MAX_VALUE) {
+			throw new IllegalStateException("too many distinct chromosomes in input");
+		}
+		if (m_nrOfChrs == m_chrNames.length) {
+			m_chrBytes = Arrays.copyOf(m_chrBytes, m_nrOfChrs * 2);
+			m_chrNames = Arrays.copyOf(m_chrNames, m_nrOfChrs * 2);
+		}
+		int id = m_nrOfChrs++;
+		m_chrBytes[id] = name;
+		m_chrNames[id] = new String(name, ASCII).intern();
+		m_slots[slot] = id + 1;
+		// keep the table at most half full
+		if (m_nrOfChrs * 2 > m_slots.length) {
+			rehash();
+		}
+		return id;
+	}
+
+	private void rehash() {
+		m_slots = new int[m_slots.length * 2];
+		int mask = m_slots.length - 1;
+		for (int id = 0; id < m_nrOfChrs; id++) {
+			byte[] name = m_chrBytes[id];
+			int slot = hash(name, 0, name.length) & mask;
+			while (m_slots[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			m_slots[slot] = id + 1;
+		}
+	}
+
+	private static int hash(byte[] src, int from, int len) {
+		int hash = 1;
+		for (int i = from; i < from + len; i++) {
+			hash = 31 * hash + src[i];
+		}
+		return hash ^ (hash >>> 16);
+	}
+
+	private static boolean regionEquals(byte[] name, byte[] src, int from,
+			int len) {
+		for (int i = 0; i < len; i++) {
+			if (name[i] != src[from + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the number of loci in the buffer
+	 * @return size number of loci
+	 */
+	public int size() {
+		return m_size;
+	}
+
+	/**
+	 * Returns the name of a chromosome, given its id
+	 * @param chrId id of the chromosome
+	 * @return chromosome name, eg. chr1
+	 */
+	public String getChrName(int chrId) {
+		return m_chrNames[chrId];
+	}
+
+	/**
+	 * Creates a LocusStore holding all loci in the buffer. The columns of the
+	 * store are allocated from the given storage, so the buffer itself can be
+	 * dropped afterwards.
+	 * @param columnStorage storage of the dataset
+	 * @return locusStore columnar store of all loci
+	 */
+	public LocusStore toLocusStore(ColumnStorage columnStorage) {
+		ShortBuffer chrIds = columnStorage.allocateShorts(m_size);
+		IntBuffer starts = columnStorage.allocateInts(m_size);
+		IntBuffer ends = columnStorage.allocateInts(m_size);
+		chrIds.put(m_chrIds, 0, m_size);
+		starts.put(m_starts, 0, m_size);
+		ends.put(m_ends, 0, m_size);
+		return new LocusStore(Arrays.copyOf(m_chrNames, m_nrOfChrs), chrIds,
+				starts, ends, m_size, columnStorage);
+	}
+}
@@ -0,0 +1,382 @@
+package backend;
+
+import java.util.Arrays;
+
+/**
+ * Groups the loci of a dataset into chunks for batched database queries.
+ *
+ * The loci are sorted by chromosome and start coordinate, and each chromosome
+ * is cut into chunks of neighbouring loci. A chunk holds at most a given
+ * number of loci, and covers at most a given number of base pairs, so that a
+ * single range query per chunk returns all annotations for its loci without
+ * fetching too many rows that no locus needs. The rows returned for a chunk
+ * are joined to its loci with findFirstContaining(), a merge sweep over the
+ * loci and rows sorted by start coordinate.
+ *
+ * @author mkumar
+ * @since v1.1
+ */
+public class LocusChunks {
+	private LocusStore m_locusStore;
+	// indexes of the loci, sorted by chromosome and start coordinate
+	private int[] m_sortedLoci;
+	// chunk c holds the loci m_sortedLoci[m_chunkFrom[c] .. m_chunkFrom[c+1])
+	private int[] m_chunkFrom;
+	private int m_nrOfChunks = 0;
+
+	/**
+	 * Constructor
+	 *
+	 * @param locusStore
+	 *            store of loci
+	 * @param maxLociPerChunk
+	 *            largest number of loci in one chunk
+	 * @param maxChunkSpan
+	 *            largest number of base pairs covered by one chunk
+	 */
+	public LocusChunks(LocusStore locusStore, int maxLociPerChunk,
+			int maxChunkSpan) {
+		this(locusStore, null, maxLociPerChunk, maxChunkSpan);
+	}
+
+	/**
+	 * Constructor for some of the loci of a store, eg. those which are not
+	 * in the ResultCache.
+	 *
+	 * @param locusStore
+	 *            store of loci
+	 * @param loci
+	 *            indexes of the loci to group, or null for all loci
+	 * @param maxLociPerChunk
+	 *            largest number of loci in one chunk
+	 * @param maxChunkSpan
+	 *            largest number of base pairs covered by one chunk
+	 */
+	public LocusChunks(LocusStore locusStore, int[] loci, int maxLociPerChunk,
+			int maxChunkSpan) {
+		super();
+		this.m_locusStore = locusStore;
+		sortLoci(loci);
+		cutIntoChunks(Math.max(maxLociPerChunk, 1), maxChunkSpan);
+	}
+
+	/**
+	 * Sorts the loci by chromosome id, and by start coordinate within each
+	 * chromosome.
+	 */
+	private void sortLoci(int[] loci) {
+		int size = loci == null ? m_locusStore.size() : loci.length;
+		int nrOfChrs = m_locusStore.getNrOfChrs();
+
+		// bucket the loci by chromosome
+		int[] chrFrom = new int[nrOfChrs + 1];
+		for (int i = 0; i < size; i++) {
+			int locus = loci == null ? i : loci[i];
+			chrFrom[m_locusStore.getChrId(locus) + 1]++;
+		}
+		for (int c = 0; c < nrOfChrs; c++) {
+			chrFrom[c + 1] += chrFrom[c];
+		}
+		long[] keys = new long[size];
+		int[] next = Arrays.copyOf(chrFrom, nrOfChrs);
+		for (int i = 0; i < size; i++) {
+			int locus = loci == null ? i : loci[i];
+			keys[next[m_locusStore.getChrId(locus)]++] = ((long) m_locusStore
+					.getStartPos(locus) << 32)
+					| locus;
+		}
+
+		// and sort each bucket by start coordinate
+		m_sortedLoci = new int[size];
+		for (int c = 0; c < nrOfChrs; c++) {
+			Arrays.sort(keys, chrFrom[c], chrFrom[c + 1]);
+		}
+		for (int i = 0; i < size; i++) {
+			m_sortedLoci[i] = (int) keys[i];
+		}
+	}
+
+	/**
+	 * Cuts the sorted loci into chunks.
+	 */
+	private void cutIntoChunks(int maxLociPerChunk, int maxChunkSpan) {
+		int size = m_sortedLoci.length;
+		m_chunkFrom = new int[16];
+		int from = 0;
+		while (from < size) {
+			int first = m_sortedLoci[from];
+			int chrId = m_locusStore.getChrId(first);
+			long chunkStart = m_locusStore.getStartPos(first);
+			int to = from + 1;
+			while (to < size && to - from < maxLociPerChunk) {
+				int locus = m_sortedLoci[to];
+				if (m_locusStore.getChrId(locus) != chrId
+						|| m_locusStore.getEndPos(locus) - chunkStart
+								> maxChunkSpan) {
+					break;
+				}
+				to++;
+			}
+			if (m_nrOfChunks + 1 >= m_chunkFrom.length) {
+				m_chunkFrom = Arrays.copyOf(m_chunkFrom,
+						m_chunkFrom.length * 2);
+			}
+			m_chunkFrom[m_nrOfChunks++] = from;
+			from = to;
+		}
+		m_chunkFrom[m_nrOfChunks] = size;
+	}
+
+	/**
+	 * Returns the number of chunks.
+	 *
+	 * @return number of chunks
+	 */
+	public int size() {
+		return m_nrOfChunks;
+	}
+
+	/**
+	 * Returns the number of loci in a chunk.
+	 *
+	 * @param chunk
+	 *            index of the chunk
+	 * @return number of loci
+	 */
+	public int getNrOfLoci(int chunk) {
+		return m_chunkFrom[chunk + 1] - m_chunkFrom[chunk];
+	}
+
+	/**
+	 * Returns a locus of a chunk. The loci of a chunk are sorted by start
+	 * coordinate.
+	 *
+	 * @param chunk
+	 *            index of the chunk
+	 * @param i
+	 *            index of the locus within the chunk
+	 * @return index of the locus in the locus store
+	 */
+	public int getLocus(int chunk, int i) {
+		return m_sortedLoci[m_chunkFrom[chunk] + i];
+	}
+
+	/**
+	 * Returns the chromosome of a chunk.
+	 *
+	 * @param chunk
+	 *            index of the chunk
+	 * @return chr chromosome, eg. chr1
+	 */
+	public String getChr(int chunk) {
+		return m_locusStore.getChr(getLocus(chunk, 0));
+	}
+
+	/**
+	 * Returns the chromosome id of a chunk.
+	 *
+	 * @param chunk
+	 *            index of the chunk
+	 * @return id of the chromosome in the locus store
+	 */
+	public int getChrId(int chunk) {
+		return m_locusStore.getChrId(getLocus(chunk, 0));
+	}
+
+	/**
+	 * Returns the smallest start coordinate of the loci in a chunk.
+	 *
+	 * @param chunk
+	 *            index of the chunk
+	 * @return smallest start coordinate
+	 */
+	public int getMinStart(int chunk) {
+		return m_locusStore.getStartPos(getLocus(chunk, 0));
+	}
+
+	/**
+	 * Returns the largest start coordinate of the loci in a chunk.
+	 *
+	 * @param chunk
+	 *            index of the chunk
+	 * @return largest start coordinate
+	 */
+	public int getMaxStart(int chunk) {
+		return m_locusStore.getStartPos(getLocus(chunk,
+				getNrOfLoci(chunk) - 1));
+	}
+
+	/**
+	 * Returns the smallest end coordinate of the loci in a chunk.
+	 *
+	 * @param chunk
+	 *            index of the chunk
+	 * @return smallest end coordinate
+	 */
+	public int getMinEnd(int chunk) {
+		int minEnd = Integer.MAX_VALUE;
+		for (int i = 0; i < getNrOfLoci(chunk); i++) {
+			minEnd = Math.min(minEnd, m_locusStore.getEndPos(getLocus(chunk, i)));
+		}
+		return minEnd;
+	}
+
+	/**
+	 * Returns the largest end coordinate of the loci in a chunk.
+	 *
+	 * @param chunk
+	 *            index of the chunk
+	 * @return largest end coordinate
+	 */
+	public int getMaxEnd(int chunk) {
+		int maxEnd = Integer.MIN_VALUE;
+		for (int i = 0; i < getNrOfLoci(chunk); i++) {
+			maxEnd = Math.max(maxEnd, m_locusStore.getEndPos(getLocus(chunk, i)));
+		}
+		return maxEnd;
+	}
+
+	/**
+	 * Joins the rows returned by the range query of a chunk to the loci of
+	 * the chunk, following the semantics of the per-locus query "WHERE start
+	 * &lt; startPos AND end &gt; endPos": for each locus, the first row which
+	 * strictly contains it is found.
+	 *
+	 * Rows and loci are both walked in order of their start coordinate. Rows
+	 * which start before the current locus are kept in an active list, from
+	 * which rows that end before the locus starts are dropped for good, since
+	 * later loci do not start before the current one.
+	 *
+	 * @param chunk
+	 *            index of the chunk
+	 * @param rows
+	 *            rows returned for the chunk, in the order of the query
+	 *            result, which must have the explicit order of the per-locus
+	 *            query so that both find the same first row
+	 * @return for each locus of the chunk, the index of the first row which
+	 *         contains it, or -1
+	 */
+	public int[] findFirstContaining(int chunk, Rows rows) {
+		int nrOfLoci = getNrOfLoci(chunk);
+		int[] firstRows = new int[nrOfLoci];
+
+		long[] keys = new long[rows.size];
+		for (int r = 0; r < rows.size; r++) {
+			keys[r] = ((long) rows.starts[r] << 32) | r;
+		}
+		Arrays.sort(keys);
+
+		int[] active = new int[16];
+		int nrOfActive = 0;
+		int next = 0;
+		for (int i = 0; i < nrOfLoci; i++) {
+			int locus = getLocus(chunk, i);
+			int startPos = m_locusStore.getStartPos(locus);
+			int endPos = m_locusStore.getEndPos(locus);
+
+			while (next < keys.length && (keys[next] >> 32) < startPos) {
+				if (nrOfActive == active.length) {
+					active = Arrays.copyOf(active, nrOfActive * 2);
+				}
+				active[nrOfActive++] = (int) keys[next++];
+			}
+
+			int firstRow = -1;
+			int kept = 0;
+			for (int a = 0; a < nrOfActive; a++) {
+				int row = active[a];
+				if (rows.ends[row] <= startPos) {
+					continue;
+				}
+				active[kept++] = row;
+				if (rows.ends[row] > endPos && (firstRow == -1 || row < firstRow)) {
+					firstRow = row;
+				}
+			}
+			nrOfActive = kept;
+			firstRows[i] = firstRow;
+		}
+		return firstRows;
+	}
+
+	/**
+	 * Rows returned by the range query of a chunk: the start and end
+	 * coordinate of each row, and a fixed number of int codes per row, eg.
+	 * codes of the annotation values in the AnnotationDictionary.
+	 *
+	 * @author mkumar
+	 * @since v1.1
+	 */
+	public static class Rows {
+		private int[] starts = new int[256];
+		private int[] ends = new int[256];
+		private int[][] codes;
+		private int size = 0;
+
+		/**
+		 * Constructor
+		 *
+		 * @param nrOfCodes
+		 *            number of codes per row
+		 */
+		public Rows(int nrOfCodes) {
+			super();
+			codes = new int[nrOfCodes][256];
+		}
+
+		/**
+		 * Removes all rows, so that the object can be used for the next chunk.
+		 */
+		public void clear() {
+			size = 0;
+		}
+
+		/**
+		 * Appends a row.
+		 *
+		 * @param start
+		 *            start coordinate of the row
+		 * @param end
+		 *            end coordinate of the row
+		 * @param rowCodes
+		 *            codes of the row
+		 */
+		public void add(int start, int end, int... rowCodes) {
+			if (size == starts.length) {
+				starts = Arrays.copyOf(starts, size * 2);
+				ends = Arrays.copyOf(ends, size * 2);
+				for (int k = 0; k < codes.length; k++) {
+					codes[k] = Arrays.copyOf(codes[k], size * 2);
+				}
+			}
+			starts[size] = start;
+			ends[size] = end;
+			for (int k = 0; k < codes.length; k++) {
+				codes[k][size] = rowCodes[k];
+			}
+			size++;
+		}
+
+		/**
+		 * Returns a code of a row.
+		 *
+		 * @param row
+		 *            index of the row
+		 * @param k
+		 *            index of the code
+		 * @return code
+		 */
+		public int getCode(int row, int k) {
+			return codes[k][row];
+		}
+
+		/**
+		 * Returns the number of rows.
+		 *
+		 * @return number of rows
+		 */
+		public int size() {
+			return size;
+		}
+	}
+}
@@ -0,0 +1,222 @@
+package backend;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Parser for the rows of the input file.
+ *
+ * The parser scans the raw bytes of the input file and extracts the genomic
+ * locus (of the format chr3:5000-45000) from the locus column of each row. It
+ * does not use regular expressions and does not create intermediate Strings;
+ * the chromosome name is looked up in the dictionary of the LocusBuffer and the
+ * coordinates are parsed digit by digit. Whitespaces inside the locus column
+ * are ignored, as in the original tool.
+ *
+ * @author mkumar
+ * @since v1.1
+ */
+public class LocusParser {
+	private int m_colIndex;
+	private LocusBuffer m_locusBuffer;
+	private byte[] m_chrScratch = new byte[32];
+	private int m_nrOfMalformedRows = 0;
+
+	/**
+	 * Constructor
+	 *
+	 * @param colIndex
+	 *            index of the column which contains the locus
+	 * @param locusBuffer
+	 *            buffer to which all parsed loci are appended
+	 */
+	public LocusParser(int colIndex, LocusBuffer locusBuffer) {
+		super();
+		this.m_colIndex = colIndex;
+		this.m_locusBuffer = locusBuffer;
+	}
+
+	/**
+	 * Parses all rows in the region [from, to) of the given buffer. The region
+	 * must begin at the start of a row, and must end directly after a newline
+	 * or at the end of the file. Blank rows are skipped.
+	 *
+	 * @param src
+	 *            buffer holding the raw bytes of the input file
+	 * @param from
+	 *            index of the first byte of the region
+	 * @param to
+	 *            index after the last byte of the region
+	 */
+	public void parseRows(ByteBuffer src, int from, int to) {
+		int pos = from;
+		while (pos < to) {
+			pos = parseRow(src, pos, to);
+		}
+	}
+
+	/**
+	 * Parses one row, beginning at index pos, and appends its locus to the
+	 * buffer.
+	 *
+	 * @return index of the first byte after the row
+	 */
+	private int parseRow(ByteBuffer src, int pos, int to) {
+		int rowStart = pos;
+
+		// skip to the column which contains the locus
+		int col = 0;
+		while (col < m_colIndex && pos < to) {
+			byte b = src.get(pos);
+			if (b == '\n') {
+				break;
+			}
+			if (b == '\t') {
+				col++;
+			}
+			pos++;
+		}
+
+		// parse the locus --> chr3:5000-45000
+		int part = 0; // 0 = chromosome, 1 = start, 2 = end, 3 = ignored rest
+		int chrLen = 0;
+		long startPos = 0;
+		long endPos = 0;
+		int startDigits = 0;
+		int endDigits = 0;
+		boolean isMalformed = col < m_colIndex;
+
+		while (pos < to) {
+			byte b = src.get(pos);
+			if (b == '\t' || b == '\n' || b == '\r') {
+				break;
+			}
+			pos++;
+			if (b == ' ') {
+				continue;
+			}
+			if (part == 0) {
+				if (b == ':') {
+					part = 1;
+				} else {
+					if (chrLen == m_chrScratch.length) {
+						m_chrScratch = Arrays.copyOf(m_chrScratch, chrLen * 2);
+					}
+					m_chrScratch[chrLen++] = b;
+				}
+			} else if (part == 1) {
+				if (b == '-') {
+					part = 2;
+				} else if (b >= '0' && b <= '9' && startDigits < 10) {
+					startPos = startPos * 10 + (b - '0');
+					startDigits++;
+				} else {
+					isMalformed = true;
+				}
+			} else if (part == 2) {
+				if (b == '-') {
+					part = 3;
+				} else if (b >= '0' && b <= '9' && endDigits < 10) {
+					endPos = endPos * 10 + (b - '0');
+					endDigits++;
+				} else {
+					isMalformed = true;
+				}
+			}
+		}
+
+		// skip the rest of the row
+		while (pos < to && src.get(pos) != '\n') {
+			pos++;
+		}
+		pos++;
+
+		if (part == 0 && chrLen == 0 && isBlank(src, rowStart, pos, to)) {
+			return pos;
+		}
+		if (isMalformed || part < 2 || chrLen == 0 || startDigits == 0
+				|| endDigits == 0 || startPos > Integer.MAX_VALUE
+				|| endPos > Integer.MAX_VALUE) {
+			m_nrOfMalformedRows++;
+			return pos;
+		}
+
+		int chrId = m_locusBuffer.chrId(m_chrScratch, 0, chrLen);
+		m_locusBuffer.add(chrId, (int) startPos, (int) endPos);
+		return pos;
+	}
+
+	/**
+	 * Checks whether a row contains only whitespaces.
+	 */
+	private boolean isBlank(ByteBuffer src, int from, int rowEnd, int to) {
+		int end = Math.min(rowEnd, to);
+		for (int i = from; i < end; i++) {
+			byte b = src.get(i);
+			if (b != ' ' && b != '\t' && b != '\r' && b != '\n') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the buffer to which the parsed loci are appended.
+	 *
+	 * @return locusBuffer buffer of parsed loci
+	 */
+	public LocusBuffer getLocusBuffer() {
+		return m_locusBuffer;
+	}
+
+	/**
+	 * Returns the number of rows that contained no valid locus.
+	 *
+	 * @return number of malformed rows
+	 */
+	public int getNrOfMalformedRows() {
+		return m_nrOfMalformedRows;
+	}
+
+	/**
+	 * Returns the index of the last newline in the region [from, to) of the
+	 * buffer, or -1 if the region has no newline.
+	 *
+	 * @param src
+	 *            buffer holding the raw bytes of the input file
+	 * @param from
+	 *            index of the first byte of the region
+	 * @param to
+	 *            index after the last byte of the region
+	 * @return index of the last newline
+	 */
+	public static int lastIndexOfNewline(ByteBuffer src, int from, int to) {
+		for (int i = to - 1; i >= from; i--) {
+			if (src.get(i) == '\n') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the index of the first newline in the region [from, to) of the
+	 * buffer, or -1 if the region has no newline.
+	 *
+	 * @param src
+	 *            buffer holding the raw bytes of the input file
+	 * @param from
+	 *            index of the first byte of the region
+	 * @param to
+	 *            index after the last byte of the region
+	 * @return index of the first newline
+	 */
+	public static int indexOfNewline(ByteBuffer src, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (src.get(i) == '\n') {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
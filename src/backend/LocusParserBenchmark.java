@@ -0,0 +1,176 @@
+package backend;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.LineNumberReader;
+import java.util.Random;
+
+/**
+ * Benchmark of the loading of an input file: the former createLocusArray()
+ * path (a LineNumberReader pass to count the rows, then a BufferedReader
+ * pass which splits every row) against ReadInputFile with the LocusParser.
+ *
+ * A tab separated file with a header and the given number of rows is
+ * generated in the temporary directory, loaded with both paths, and the loci
+ * of both are compared row by row. Each path is timed several times, and the
+ * best time is reported, so that the first run warms up the JIT and the page
+ * cache. Run it with
+ * <pre>
+ * java backend.LocusParserBenchmark [rows] [rounds]
+ * </pre>
+ * The file is deleted afterwards.
+ *
+ * @author mkumar
+ * @since v1.1
+ */
+public class LocusParserBenchmark {
+	private static final int DEFAULT_NR_OF_ROWS = 1000000;
+	private static final int DEFAULT_NR_OF_ROUNDS = 3;
+	private static final String[] CHRS = { "chr1", "chr2", "chr3", "chr4",
+			"chr5", "chr6", "chr7", "chr8", "chr9", "chr10", "chr11", "chr12",
+			"chr13", "chr14", "chr15", "chr16", "chr17", "chr18", "chr19",
+			"chr20", "chr21", "chr22", "chrX", "chrY" };
+
+	public static void main(String[] args) throws IOException {
+		int nrOfRows = args.length > 0 ? Integer.parseInt(args[0])
+				: DEFAULT_NR_OF_ROWS;
+		int nrOfRounds = args.length > 1 ? Integer.parseInt(args[1])
+				: DEFAULT_NR_OF_ROUNDS;
+
+		File file = File.createTempFile("locusParserBenchmark", ".txt");
+		try {
+			writeInputFile(file, nrOfRows);
+			System.out.println("input file: " + nrOfRows + " rows, "
+					+ file.length() / (1024 * 1024) + " MB");
+
+			long bestOld = Long.MAX_VALUE;
+			long bestNew = Long.MAX_VALUE;
+			Locus[] oldLoci = null;
+			LocusStore newLoci = null;
+			for (int round = 1; round <= nrOfRounds; round++) {
+				long startTime = System.nanoTime();
+				oldLoci = createLocusArray(file.getPath());
+				long oldNanos = System.nanoTime() - startTime;
+				bestOld = Math.min(bestOld, oldNanos);
+
+				startTime = System.nanoTime();
+				newLoci = new ReadInputFile(file.getPath(), new ColumnStorage(
+						false, false)).getLocusStore();
+				long newNanos = System.nanoTime() - startTime;
+				bestNew = Math.min(bestNew, newNanos);
+
+				System.out.println("round " + round + ": createLocusArray "
+						+ oldNanos / 1000000 + " ms, LocusParser "
+						+ newNanos / 1000000 + " ms");
+			}
+
+			System.out.println("best of " + nrOfRounds
+					+ ": createLocusArray " + bestOld / 1000000
+					+ " ms, LocusParser " + bestNew / 1000000 + " ms ("
+					+ String.format("%.1f", (double) bestOld / bestNew)
+					+ "x)");
+			System.out.println(compare(oldLoci, newLoci));
+		} finally {
+			if (!file.delete()) {
+				file.deleteOnExit();
+			}
+		}
+	}
+
+	/**
+	 * Writes a file like the exports the tool is used with: a header, and
+	 * rows with an id, the locus and a few other columns.
+	 */
+	private static void writeInputFile(File file, int nrOfRows)
+			throws IOException {
+		Random random = new Random(42);
+		BufferedWriter out = new BufferedWriter(new FileWriter(file), 1 << 16);
+		try {
+			out.write("Id\tLocus\tScore\tComment\n");
+			for (int i = 0; i < nrOfRows; i++) {
+				int startPos = random.nextInt(200000000);
+				int endPos = startPos + 1 + random.nextInt(100000);
+				out.write("probe" + i + "\t" + CHRS[random.nextInt(CHRS.length)]
+						+ ":" + startPos + "-" + endPos + "\t"
+						+ random.nextInt(1000) + "\tcopy number variation\n");
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * The former loading of an input file, as it was before the LocusParser:
+	 * findLocusInInputFile() and createLocusArray().
+	 */
+	private static Locus[] createLocusArray(String inputFileName)
+			throws IOException {
+		// count nr of rows
+		LineNumberReader lnr = new LineNumberReader(new FileReader(
+				inputFileName));
+		lnr.skip(Long.MAX_VALUE);
+		int nrOfRows = lnr.getLineNumber() - 1;
+		lnr.close();
+
+		// get the index of the column which contains the locus information
+		BufferedReader br = new BufferedReader(new FileReader(inputFileName));
+		br.readLine();
+		String[] column = br.readLine().split("\t");
+		br.close();
+		int colIndex = -1;
+		for (int i = 0; i < column.length; i++) {
+			column[i] = column[i].replaceAll(" ", "");
+			if (column[i].matches("chr[0-9XY][0-9]?:[0-9]+-[0-9]+")) {
+				colIndex = i;
+				break;
+			}
+		}
+
+		Locus[] locusArray = new Locus[nrOfRows];
+		br = new BufferedReader(new FileReader(inputFileName));
+		try {
+			String line = null;
+			int j = 0;
+			br.readLine(); // first line is headers --ignore
+			while ((line = br.readLine()) != null) {
+				column = line.split("\t");
+				String locus = column[colIndex];
+				locus = locus.replaceAll(" ", "");
+				String chrNr = locus.split(":")[0];
+				int startPos = Integer
+						.parseInt(locus.split(":")[1].split("-")[0]);
+				int endPos = Integer
+						.parseInt(locus.split(":")[1].split("-")[1]);
+				locusArray[j++] = new Locus(chrNr, startPos, endPos);
+			}
+		} finally {
+			br.close();
+		}
+		return locusArray;
+	}
+
+	/**
+	 * Compares the loci of both paths row by row.
+	 */
+	private static String compare(Locus[] oldLoci, LocusStore newLoci) {
+		if (oldLoci.length != newLoci.size()) {
+			return "MISMATCH: " + oldLoci.length + " rows against "
+					+ newLoci.size();
+		}
+		for (int i = 0; i < oldLoci.length; i++) {
+			if (!oldLoci[i].getChr().equals(newLoci.getChr(i))
+					|| oldLoci[i].getStartPos() != newLoci.getStartPos(i)
+					|| oldLoci[i].getEndPos() != newLoci.getEndPos(i)) {
+				return "MISMATCH in row " + (i + 1) + ": " + oldLoci[i].getChr()
+						+ ":" + oldLoci[i].getStartPos() + "-"
+						+ oldLoci[i].getEndPos() + " against "
+						+ newLoci.getLocusString(i);
+			}
+		}
+		return "loci identical in all " + oldLoci.length + " rows";
+	}
+}
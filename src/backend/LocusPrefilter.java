@@ -0,0 +1,391 @@
+package backend;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Coarse index of an annotation table, which tells without a query that a
+ * locus cannot lie within any feature of the table, eg. a locus between
+ * genes.
+ *
+ * The per-locus and batched queries of refGene and rmsk only return features
+ * which strictly contain a locus (start &lt; startPos and end &gt; endPos),
+ * restricted to the UCSC bins which overlap the locus. A feature lies in the
+ * smallest bin that holds it, so a feature containing the locus lies in one
+ * of these bins. The prefilter keeps, per chromosome, a bitset of the bins
+ * which hold any feature, with the smallest start and largest end of the
+ * features of each bin, and the bounds of all features of the chromosome. It
+ * is loaded with one aggregate query ("GROUP BY chrom, bin"), which returns at
+ * most a few thousand rows however large the table is.
+ *
+ * A locus passes if one of its bins is occupied by features whose bounds can
+ * contain it; every locus which the query would annotate passes (there are
+ * no false negatives), and the loci which do not pass are answered with the
+ * empty value locally. The bins of a chromosome form a small dense range of
+ * numbers, so the bitset is exact where a Bloom filter would only be
+ * probable.
+ *
+ * Prefilters are kept per assembly and table, and cleared when the assembly
+ * is switched. Each prefilter is loaded once, outside of any lock, like the
+ * queries of SharedQueries: the first caller runs the load, and callers for
+ * the same table wait for its result, while the prefilters of other tables
+ * are loaded at the same time. A prefilter which cannot be loaded is not
+ * tried again until the annotation ends (see clearFailures()), so that the
+ * tracks and chromosomes of a run do not each wait for the failing query.
+ *
+ * @author mkumar
+ * @since v1.1
+ */
+public class LocusPrefilter {
+	private static final Logger logger = Logger.getLogger(LocusPrefilter.class);
+	// loads of the prefilters by assembly and table; a load which is done
+	// with null has failed
+	private static final ConcurrentHashMap<String, FutureTask<LocusPrefilter>> prefilters = new ConcurrentHashMap<String, FutureTask<LocusPrefilter>>();
+
+	private HashMap<String, Bins> m_binsPerChr = new HashMap<String, Bins>();
+
+	/**
+	 * Returns the prefilter of a table of the current assembly, loading it
+	 * from the database if this is the first time it is needed.
+	 *
+	 * @param connectionPool
+	 *            pool of connections to the database
+	 * @param table
+	 *            table, eg. refGene or chr1_rmsk
+	 * @param chr
+	 *            chromosome of a table of one chromosome, or null if the
+	 *            table has a chrom column
+	 * @param startColumn
+	 *            column of the start coordinate, eg. txStart
+	 * @param endColumn
+	 *            column of the end coordinate, eg. txEnd
+	 * @param st
+	 *            statement to load the prefilter with, eg. of a task of
+	 *            ParallelQueries, or null to take one from the pool
+	 * @return prefilter, or null if it cannot be loaded
+	 */
+	public static LocusPrefilter getInstance(
+			final ConnectionPool connectionPool, final String table,
+			final String chr, final String startColumn,
+			final String endColumn, final Statement st) {
+		String key = AnnotationDictionary.getInstance().getAssembly() + "/"
+				+ table;
+		FutureTask<LocusPrefilter> task = prefilters.get(key);
+		if (task == null) {
+			FutureTask<LocusPrefilter> newTask = new FutureTask<LocusPrefilter>(
+					new Callable<LocusPrefilter>() {
+						@Override
+						public LocusPrefilter call() {
+							return load(connectionPool, table, chr,
+									startColumn, endColumn, st);
+						}
+					});
+			task = prefilters.putIfAbsent(key, newTask);
+			if (task == null) {
+				task = newTask;
+				task.run();
+			}
+		}
+
+		try {
+			return task.get();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			logger.debug("interrupted while waiting for prefilter of " + table);
+			return null;
+		} catch (ExecutionException ee) {
+			throw new IllegalStateException("cannot load prefilter of "
+					+ table, ee.getCause());
+		}
+	}
+
+	/**
+	 * Removes the prefilters of all tables; called when the assembly is
+	 * switched.
+	 */
+	public static void clearAll() {
+		prefilters.clear();
+	}
+
+	/**
+	 * Forgets the prefilters which could not be loaded, so that they are
+	 * tried again; called when an annotation ends.
+	 */
+	public static void clearFailures() {
+		for (Map.Entry<String, FutureTask<LocusPrefilter>> entry : prefilters
+				.entrySet()) {
+			if (entry.getValue().isDone()
+					&& getIfLoaded(entry.getValue()) == null) {
+				prefilters.remove(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Returns true if there are enough loci to query for a table, so that
+	 * loading its prefilter pays off by the cost model of the QueryPlanner,
+	 * or if it is loaded already. Returns false if it could not be loaded in
+	 * this annotation.
+	 *
+	 * @param nrOfLoci
+	 *            number of loci to query
+	 * @param table
+	 *            table, eg. refGene
+	 * @param nrOfRows
+	 *            estimated number of rows of the table
+	 * @return true if the prefilter should be used
+	 */
+	public static boolean isWorthwhile(int nrOfLoci, String table,
+			long nrOfRows) {
+		if (!GlobalParameters.USE_LOCUS_PREFILTER) {
+			return false;
+		}
+		String key = AnnotationDictionary.getInstance().getAssembly() + "/"
+				+ table;
+		FutureTask<LocusPrefilter> task = prefilters.get(key);
+		if (task != null && task.isDone()) {
+			return getIfLoaded(task) != null;
+		}
+		return QueryPlanner.isPrefilterWorthwhile(nrOfLoci, nrOfRows);
+	}
+
+	/**
+	 * Returns the prefilter of a load which is done, or null if the load
+	 * failed or is still running.
+	 */
+	private static LocusPrefilter getIfLoaded(FutureTask<LocusPrefilter> task) {
+		if (!task.isDone()) {
+			return null;
+		}
+		try {
+			return task.get();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException ee) {
+			return null;
+		}
+	}
+
+	/**
+	 * Adds the features of one bin to the prefilter.
+	 *
+	 * @param chr
+	 *            chromosome of the bin, eg. chr1
+	 * @param bin
+	 *            UCSC bin
+	 * @param minStart
+	 *            smallest start coordinate of the features in the bin
+	 * @param maxEnd
+	 *            largest end coordinate of the features in the bin
+	 */
+	public void add(String chr, int bin, int minStart, int maxEnd) {
+		Bins bins = m_binsPerChr.get(chr.toLowerCase());
+		if (bins == null) {
+			bins = new Bins();
+			m_binsPerChr.put(chr.toLowerCase(), bins);
+		}
+		bins.add(bin, minStart, maxEnd);
+	}
+
+	/**
+	 * Sorts the bins of each chromosome. No bins can be added afterwards.
+	 */
+	public void build() {
+		for (Bins bins : m_binsPerChr.values()) {
+			bins.build();
+		}
+	}
+
+	/**
+	 * Returns false if no feature of the table can strictly contain the locus,
+	 * i.e. start &lt; startPos and end &gt; endPos.
+	 *
+	 * @param chr
+	 *            chromosome of the locus, eg. chr1
+	 * @param startPos
+	 *            start coordinate of the locus
+	 * @param endPos
+	 *            end coordinate of the locus
+	 * @return true if the locus has to be queried
+	 */
+	public boolean mayContain(String chr, int startPos, int endPos) {
+		// the database compares chromosome names regardless of case
+		Bins bins = m_binsPerChr.get(chr.toLowerCase());
+		return bins != null && bins.mayContain(startPos, endPos);
+	}
+
+	/**
+	 * Answers the loci which cannot lie within any feature of the table with
+	 * the empty value.
+	 *
+	 * @param locusStore
+	 *            store of loci
+	 * @param loci
+	 *            indexes of the loci
+	 * @param columns
+	 *            columns of the track, which receive the empty value
+	 * @return indexes of the loci which have to be queried, in the same order
+	 */
+	public int[] filter(LocusStore locusStore, int[] loci,
+			AnnotationColumn... columns) {
+		int[] lociLeft = new int[loci.length];
+		int nrOfLoci = 0;
+		for (int locus : loci) {
+			if (mayContain(locusStore.getChr(locus), locusStore
+					.getStartPos(locus), locusStore.getEndPos(locus))) {
+				lociLeft[nrOfLoci++] = locus;
+			} else {
+				for (AnnotationColumn column : columns) {
+					column.setCode(locus, AnnotationDictionary.EMPTY_CODE);
+				}
+			}
+		}
+		return Arrays.copyOf(lociLeft, nrOfLoci);
+	}
+
+	/**
+	 * Loads the bins of a table with one aggregate query.
+	 */
+	private static LocusPrefilter load(ConnectionPool connectionPool,
+			String table, String chr, String startColumn, String endColumn,
+			Statement statement) {
+		LocusPrefilter prefilter = new LocusPrefilter();
+		String chrColumn = chr == null ? "chrom, " : "";
+		String query = "SELECT " + chrColumn + "bin, MIN(" + startColumn
+				+ "), MAX(" + endColumn + ") FROM " + table + " GROUP BY "
+				+ chrColumn + "bin";
+		long startTime = System.nanoTime();
+		int nrOfRows = 0;
+		Statement st = statement;
+		ResultSet rs = null;
+		try {
+			if (st == null) {
+				st = Database.createStatement(connectionPool);
+			}
+			rs = Database.executeQuery(st, query);
+			while (rs.next()) {
+				if (chr == null) {
+					prefilter.add(rs.getString(1), rs.getInt(2), rs.getInt(3),
+							rs.getInt(4));
+				} else {
+					prefilter.add(chr, rs.getInt(1), rs.getInt(2), rs
+							.getInt(3));
+				}
+				nrOfRows++;
+			}
+		} catch (final SQLException ex) {
+			logger.debug("cannot load prefilter of " + table
+					+ ", querying all loci");
+			return null;
+		} finally {
+			try {
+				if (rs != null) {
+					rs.close();
+				}
+			} catch (SQLException ex) {
+				logger.debug("cannot close resultset for prefilter query");
+			}
+			if (statement == null) {
+				Database.releaseStatement(connectionPool, st);
+			}
+		}
+		prefilter.build();
+		logger.info("loaded prefilter of " + table + " with " + nrOfRows
+				+ " bins in " + (System.nanoTime() - startTime) / 1000000
+				+ " ms");
+		return prefilter;
+	}
+
+	/**
+	 * Occupied bins of one chromosome, sorted by bin number.
+	 */
+	private static class Bins {
+		private BitSet m_isOccupied = new BitSet();
+		private int[] m_bins = new int[64];
+		private int[] m_minStarts = new int[64];
+		private int[] m_maxEnds = new int[64];
+		private int m_size = 0;
+		private int m_minStart = Integer.MAX_VALUE;
+		private int m_maxEnd = Integer.MIN_VALUE;
+
+		void add(int bin, int minStart, int maxEnd) {
+			if (m_size == m_bins.length) {
+				m_bins = Arrays.copyOf(m_bins, m_size * 2);
+				m_minStarts = Arrays.copyOf(m_minStarts, m_size * 2);
+				m_maxEnds = Arrays.copyOf(m_maxEnds, m_size * 2);
+			}
+			m_bins[m_size] = bin;
+			m_minStarts[m_size] = minStart;
+			m_maxEnds[m_size] = maxEnd;
+			m_size++;
+			m_isOccupied.set(bin);
+			m_minStart = Math.min(m_minStart, minStart);
+			m_maxEnd = Math.max(m_maxEnd, maxEnd);
+		}
+
+		void build() {
+			long[] keys = new long[m_size];
+			for (int i = 0; i < m_size; i++) {
+				keys[i] = ((long) m_bins[i] << 32) | i;
+			}
+			Arrays.sort(keys);
+			int[] bins = new int[m_size];
+			int[] minStarts = new int[m_size];
+			int[] maxEnds = new int[m_size];
+			int size = 0;
+			for (long key : keys) {
+				int i = (int) key;
+				if (size > 0 && bins[size - 1] == m_bins[i]) {
+					// the same bin twice, eg. of chromosome names differing
+					// in case; its bounds are merged
+					minStarts[size - 1] = Math.min(minStarts[size - 1],
+							m_minStarts[i]);
+					maxEnds[size - 1] = Math.max(maxEnds[size - 1],
+							m_maxEnds[i]);
+					continue;
+				}
+				bins[size] = m_bins[i];
+				minStarts[size] = m_minStarts[i];
+				maxEnds[size] = m_maxEnds[i];
+				size++;
+			}
+			m_bins = Arrays.copyOf(bins, size);
+			m_minStarts = Arrays.copyOf(minStarts, size);
+			m_maxEnds = Arrays.copyOf(maxEnds, size);
+			m_size = size;
+		}
+
+		boolean mayContain(int startPos, int endPos) {
+			if (m_minStart >= startPos || m_maxEnd <= endPos) {
+				return false;
+			}
+			// the same bins as the condition of the query
+			int[] bins = UcscBins.getBins(startPos, endPos + 1);
+			if (bins == null) {
+				return true;
+			}
+			for (int bin : bins) {
+				if (!m_isOccupied.get(bin)) {
+					continue;
+				}
+				int i = Arrays.binarySearch(m_bins, 0, m_size, bin);
+				if (m_minStarts[i] < startPos && m_maxEnds[i] > endPos) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,255 @@
+package backend;
+
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Columnar store for the loci of one dataset.
+ *
+ * Instead of one Locus object per row, the loci are held in three primitive
+ * columns: a chromosome id, a start coordinate and an end coordinate. The
+ * chromosome ids point into a small dictionary of interned chromosome names, so
+ * each chromosome name is held only once per dataset. Loci are read either by
+ * index, or with a Cursor which walks over all rows without allocating any
+ * objects. A Locus object can still be obtained for a single row with get().
+ * The columns are allocated from the ColumnStorage of the dataset, and so may
+ * live outside of the java heap.
+ *
+ * @author mkumar
+ * @since v1.1
+ */
+public class LocusStore {
+	private String[] m_chrNames;
+	private ShortBuffer m_chrIds;
+	private IntBuffer m_starts;
+	private IntBuffer m_ends;
+	private int m_size;
+	private ColumnStorage m_columnStorage;
+
+	/**
+	 * Constructor. The columns are taken over by the store and must not be
+	 * changed afterwards.
+	 *
+	 * @param chrNames
+	 *            dictionary of chromosome names, indexed by chromosome id
+	 * @param chrIds
+	 *            chromosome id of each locus
+	 * @param starts
+	 *            start coordinate of each locus
+	 * @param ends
+	 *            end coordinate of each locus
+	 * @param size
+	 *            number of loci
+	 * @param columnStorage
+	 *            storage from which the columns were allocated
+	 */
+	LocusStore(String[] chrNames, ShortBuffer chrIds, IntBuffer starts,
+			IntBuffer ends, int size, ColumnStorage columnStorage) {
+		this.m_chrNames = chrNames;
+		this.m_chrIds = chrIds;
+		this.m_starts = starts;
+		this.m_ends = ends;
+		this.m_size = size;
+		this.m_columnStorage = columnStorage;
+	}
+
+	/**
+	 * Returns the number of loci in the store.
+	 *
+	 * @return size number of loci
+	 */
+	public int size() {
+		return m_size;
+	}
+
+	/**
+	 * Returns the indexes of all loci, 0 .. size-1.
+	 *
+	 * @return indexes of the loci
+	 */
+	public int[] getIndexes() {
+		int[] indexes = new int[m_size];
+		for (int i = 0; i < m_size; i++) {
+			indexes[i] = i;
+		}
+		return indexes;
+	}
+
+	/**
+	 * Returns the chromosome number for a locus.
+	 *
+	 * @param index
+	 *            index of the locus
+	 * @return chr chromosome number, eg. chr1
+	 */
+	public String getChr(int index) {
+		return m_chrNames[m_chrIds.get(index)];
+	}
+
+	/**
+	 * Returns the chromosome id for a locus.
+	 *
+	 * @param index
+	 *            index of the locus
+	 * @return id of the chromosome in the dictionary
+	 */
+	public int getChrId(int index) {
+		return m_chrIds.get(index);
+	}
+
+	/**
+	 * Returns the start coordinate for a locus.
+	 *
+	 * @param index
+	 *            index of the locus
+	 * @return startPos start coordinate
+	 */
+	public int getStartPos(int index) {
+		return m_starts.get(index);
+	}
+
+	/**
+	 * Returns the end coordinate for a locus.
+	 *
+	 * @param index
+	 *            index of the locus
+	 * @return endPos end coordinate
+	 */
+	public int getEndPos(int index) {
+		return m_ends.get(index);
+	}
+
+	/**
+	 * Returns size of the locus. Since the start coordinate from UCSC is
+	 * 0-based, 1 is added to the size.
+	 *
+	 * @param index
+	 *            index of the locus
+	 * @return size size of the locus
+	 */
+	public int getLocusSize(int index) {
+		return m_ends.get(index) - m_starts.get(index) + 1;
+	}
+
+	/**
+	 * Converts a locus to string, in standard format "chrNr:startPos-endPos"
+	 *
+	 * @param index
+	 *            index of the locus
+	 * @return string in standard UCSC format
+	 */
+	public String getLocusString(int index) {
+		return getChr(index) + ":" + m_starts.get(index) + "-"
+				+ m_ends.get(index);
+	}
+
+	/**
+	 * Returns a Locus object for a single locus.
+	 *
+	 * @param index
+	 *            index of the locus
+	 * @return locus
+	 */
+	public Locus get(int index) {
+		return new Locus(getChr(index), m_starts.get(index),
+				m_ends.get(index));
+	}
+
+	/**
+	 * Returns the storage from which the columns of this store were
+	 * allocated. It is released when the tab of the dataset is closed.
+	 *
+	 * @return columnStorage storage of the dataset
+	 */
+	public ColumnStorage getColumnStorage() {
+		return m_columnStorage;
+	}
+
+	/**
+	 * Returns the number of distinct chromosomes in the store.
+	 *
+	 * @return number of chromosomes in the dictionary
+	 */
+	public int getNrOfChrs() {
+		return m_chrNames.length;
+	}
+
+	/**
+	 * Returns the name of a chromosome, given its id.
+	 *
+	 * @param chrId
+	 *            id of the chromosome
+	 * @return chromosome name, eg. chr1
+	 */
+	public String getChrName(int chrId) {
+		return m_chrNames[chrId];
+	}
+
+	/**
+	 * Returns a new cursor, positioned before the first locus.
+	 *
+	 * @return cursor over all loci in the store
+	 */
+	public Cursor cursor() {
+		return new Cursor();
+	}
+
+	/**
+	 * Cursor over the loci in the store. The cursor is positioned before the
+	 * first locus, and next() moves it on to the next one:
+	 *
+	 * <pre>
+	 * LocusStore.Cursor cursor = locusStore.cursor();
+	 * while (cursor.next()) {
+	 * 	int start = cursor.getStartPos();
+	 * }
+	 * </pre>
+	 *
+	 * @author mkumar
+	 * @since v1.1
+	 */
+	public class Cursor {
+		private int m_index = -1;
+
+		/**
+		 * Moves the cursor to the next locus.
+		 *
+		 * @return false if there are no more loci
+		 */
+		public boolean next() {
+			m_index++;
+			return m_index < m_size;
+		}
+
+		/**
+		 * Moves the cursor back to before the first locus.
+		 */
+		public void reset() {
+			m_index = -1;
+		}
+
+		public int getIndex() {
+			return m_index;
+		}
+
+		public String getChr() {
+			return m_chrNames[m_chrIds.get(m_index)];
+		}
+
+		public int getChrId() {
+			return m_chrIds.get(m_index);
+		}
+
+		public int getStartPos() {
+			return m_starts.get(m_index);
+		}
+
+		public int getEndPos() {
+			return m_ends.get(m_index);
+		}
+
+		public int getLocusSize() {
+			return m_ends.get(m_index) - m_starts.get(m_index) + 1;
+		}
+	}
+}
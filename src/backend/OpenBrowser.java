@@ -12,20 +12,20 @@ import org.apache.log4j.Logger;
  */
 public class OpenBrowser {
 	private static final Logger logger = Logger.getLogger(OpenBrowser.class);
-	private Locus[] m_locusArray;
+	private LocusStore m_locusStore;
 	private int m_selectedRowIndex;
 	private String m_chr;
 	private int m_startPos;
 	private int m_endPos;
 
-	public OpenBrowser(Locus[] locusArray, int selectedRowIndex) {
+	public OpenBrowser(LocusStore locusStore, int selectedRowIndex) {
 		super();
-		m_locusArray = locusArray;
+		m_locusStore = locusStore;
 		m_selectedRowIndex = selectedRowIndex;
 
-		m_chr = m_locusArray[m_selectedRowIndex].getChr();
-		m_startPos = m_locusArray[m_selectedRowIndex].getStartPos();
-		m_endPos = m_locusArray[m_selectedRowIndex].getEndPos();
+		m_chr = m_locusStore.getChr(m_selectedRowIndex);
+		m_startPos = m_locusStore.getStartPos(m_selectedRowIndex);
+		m_endPos = m_locusStore.getEndPos(m_selectedRowIndex);
 	}
 
 	/**
@@ -67,9 +67,9 @@ public class OpenBrowser {
 	
 	/**
 	 * method to open the selected gene in the Genecards.org resource online.
-	 * @param geneArray array of gene name entries
+	 * @param geneColumn column of gene name entries
 	 */
-	public void goToGenecards(String[] geneArray) {
+	public void goToGenecards(AnnotationColumn geneColumn) {
 
 		if (!java.awt.Desktop.isDesktopSupported()) {
 			logger.fatal("Desktop is not supported (fatal)");
@@ -87,7 +87,7 @@ public class OpenBrowser {
 		}
 
 		try {
-			desktop.browse(new java.net.URI("http://genecards.org/cgi-bin/carddisp.pl?gene="+geneArray[m_selectedRowIndex]));
+			desktop.browse(new java.net.URI("http://genecards.org/cgi-bin/carddisp.pl?gene="+geneColumn.get(m_selectedRowIndex)));
 		} catch (Exception e) {
 			logger.debug(e.getMessage());
 			System.err.println(e.getMessage());
@@ -96,9 +96,9 @@ public class OpenBrowser {
 
 	/**
 	 * method to open the selected omim accession number in the OMIM database window.
-	 * @param omimArray an array of omim accession numbers, respective for each loci.
+	 * @param omimColumn a column of omim accession numbers, respective for each loci.
 	 */
-	public void goToOMIM(String[] omimArray) {
+	public void goToOMIM(AnnotationColumn omimColumn) {
 		if (!java.awt.Desktop.isDesktopSupported()) {
 			logger.fatal("Desktop is not supported (fatal)");
 			System.err.println("Desktop is not supported (fatal)");
@@ -115,10 +115,9 @@ public class OpenBrowser {
 		}
 
 		try {
+			String omim = omimColumn.get(m_selectedRowIndex);
 			desktop.browse(new java.net.URI("http://omim.org/entry/"
-					+ omimArray[m_selectedRowIndex] + "?search="
-					+ omimArray[m_selectedRowIndex] + "&highlight="
-					+ omimArray[m_selectedRowIndex]));
+					+ omim + "?search=" + omim + "&highlight=" + omim));
 		} catch (Exception e) {
 			logger.debug(e.getMessage());
 			System.err.println(e.getMessage());
@@ -0,0 +1,312 @@
+package backend;
+
+import java.lang.reflect.Method;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs the queries of a fetcher in parallel across pooled connections.
+ *
+ * Fetching annotations is bound by the round trip to the remote database, not
+ * by the work done locally, so the queries of a track (one per locus, or one
+ * per chunk of loci) are spread over several threads. Each thread takes the
+ * next task, a statement from the connection pool, runs the task and gives
+ * the statement back. At most maxQueriesInFlight tasks of one track run at the
+ * same time; the connection pool bounds the queries of all tracks together.
+ *
+ * If GlobalParameters.USE_VIRTUAL_THREADS is set, the per-locus queries can
+ * instead be run on one virtual thread per task (Java 21 and later). Virtual
+ * threads are cheap, so the number of queries in flight is then limited only
+ * by the ConcurrencyLimiter and the connection pool, which both wait on
+ * ReentrantLocks and so do not pin the carrier threads; at most as many
+ * threads as the pool has connections are started ahead. On older Java
+ * versions, the tasks are run by the pool of platform threads instead.
+ *
+ * Tasks must write their results to disjoint slots, eg. the loci of their own
+ * chunk in an AnnotationColumn, so that no locking is needed. All writes are
+ * visible to the caller once run() returns. Tasks which could not be run
+ * because no statement could be created are listed by isFailed(), so that
+ * the caller can mark their loci as failed; so are the tasks which had not
+ * ended when the caller was interrupted.
+ *
+ * @author mkumar
+ * @since v1.1
+ */
+public class ParallelQueries {
+	private static final Logger logger = Logger.getLogger(ParallelQueries.class);
+	private ConnectionPool m_connectionPool;
+	private int m_maxQueriesInFlight;
+	private boolean m_isOneThreadPerTask = false;
+	// true for each task of the last run which got no statement, or did not
+	// end before the run was interrupted
+	private boolean[] m_isTaskFailed = new boolean[0];
+	// 1 for each task of the last run which has ended
+	private AtomicIntegerArray m_isTaskDone = new AtomicIntegerArray(0);
+
+	/**
+	 * Constructor, takes the number of queries in flight from the global
+	 * parameters.
+	 *
+	 * @param connectionPool
+	 *            pool of connections to the database
+	 */
+	public ParallelQueries(ConnectionPool connectionPool) {
+		this(connectionPool, GlobalParameters.MAX_QUERIES_IN_FLIGHT);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param connectionPool
+	 *            pool of connections to the database
+	 * @param maxQueriesInFlight
+	 *            largest number of tasks running at the same time
+	 */
+	public ParallelQueries(ConnectionPool connectionPool, int maxQueriesInFlight) {
+		super();
+		this.m_connectionPool = connectionPool;
+		this.m_maxQueriesInFlight = Math.max(maxQueriesInFlight, 1);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param connectionPool
+	 *            pool of connections to the database
+	 * @param isOneThreadPerTask
+	 *            true to run each task on a virtual thread of its own, if the
+	 *            Java version has virtual threads
+	 */
+	public ParallelQueries(ConnectionPool connectionPool,
+			boolean isOneThreadPerTask) {
+		this(connectionPool, GlobalParameters.MAX_QUERIES_IN_FLIGHT);
+		this.m_isOneThreadPerTask = isOneThreadPerTask;
+	}
+
+	/**
+	 * Runs the tasks 0 .. nrOfTasks-1 and returns when all of them are done.
+	 *
+	 * @param nrOfTasks
+	 *            number of tasks
+	 * @param task
+	 *            task which is run once for each index
+	 * @return number of tasks which could not be run because no connection
+	 *         to the database could be opened
+	 */
+	public int run(int nrOfTasks, final Task task) {
+		m_isTaskFailed = new boolean[nrOfTasks];
+		m_isTaskDone = new AtomicIntegerArray(nrOfTasks);
+		if (nrOfTasks == 0) {
+			return 0;
+		}
+		if (m_isOneThreadPerTask) {
+			return runOneThreadPerTask(nrOfTasks, task);
+		}
+		final int size = nrOfTasks;
+		final AtomicInteger next = new AtomicInteger(0);
+		final AtomicInteger nrOfFailedTasks = new AtomicInteger(0);
+		int nrOfThreads = Math.min(m_maxQueriesInFlight, nrOfTasks);
+
+		List<Callable<Void>> workers = new ArrayList<Callable<Void>>();
+		for (int w = 0; w < nrOfThreads; w++) {
+			workers.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					int index;
+					while (!Thread.currentThread().isInterrupted()
+							&& (index = next.getAndIncrement()) < size) {
+						Statement st = null;
+						try {
+							st = Database.createStatement(m_connectionPool);
+							task.run(index, st);
+						} catch (SQLException ex) {
+							m_isTaskFailed[index] = true;
+							nrOfFailedTasks.incrementAndGet();
+						} finally {
+							Database.releaseStatement(m_connectionPool, st);
+							m_isTaskDone.set(index, 1);
+						}
+					}
+					return null;
+				}
+			});
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(nrOfThreads);
+		try {
+			// invokeAll waits for all workers, and makes their writes visible
+			for (Future<Void> future : executor.invokeAll(workers)) {
+				future.get();
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			logger.debug("interrupted while waiting for queries");
+			nrOfFailedTasks.addAndGet(setUnfinishedTasksFailed());
+		} catch (ExecutionException ee) {
+			throw new IllegalStateException("query task failed", ee.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+
+		if (nrOfFailedTasks.get() > 0) {
+			logger.error(nrOfFailedTasks.get() + " of " + nrOfTasks
+					+ " queries not run, no connection to database or interrupted");
+		}
+		return nrOfFailedTasks.get();
+	}
+
+	/**
+	 * Marks the tasks of the last run which have not ended as failed, when
+	 * the run is interrupted; their loci would be left unannotated otherwise.
+	 *
+	 * @return number of tasks marked
+	 */
+	private int setUnfinishedTasksFailed() {
+		int nrOfTasks = 0;
+		for (int i = 0; i < m_isTaskFailed.length; i++) {
+			if (m_isTaskDone.get(i) == 0 && !m_isTaskFailed[i]) {
+				m_isTaskFailed[i] = true;
+				nrOfTasks++;
+			}
+		}
+		return nrOfTasks;
+	}
+
+	/**
+	 * Returns true if a task of the last run could not be run because no
+	 * statement could be created, or had not ended when the run was
+	 * interrupted.
+	 *
+	 * @param index
+	 *            index of the task
+	 * @return true if the task was not run
+	 */
+	public boolean isFailed(int index) {
+		return m_isTaskFailed[index];
+	}
+
+	/**
+	 * Runs each task on a virtual thread of its own. A thread is started only
+	 * when one of the threads started before has ended, if as many threads as
+	 * the pool has connections are running, so that the threads of a large
+	 * dataset are not all created at once. A task which throws fails the run
+	 * as it does on the platform threads, once all tasks have ended.
+	 */
+	private int runOneThreadPerTask(int nrOfTasks, final Task task) {
+		ExecutorService executor = newVirtualThreadPerTaskExecutor();
+		if (executor == null) {
+			m_isOneThreadPerTask = false;
+			return run(nrOfTasks, task);
+		}
+		final Semaphore permits = new Semaphore(m_connectionPool.getMaxSize());
+		final CountDownLatch isDone = new CountDownLatch(nrOfTasks);
+		final AtomicInteger nrOfFailedTasks = new AtomicInteger(0);
+		final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+		try {
+			for (int i = 0; i < nrOfTasks; i++) {
+				permits.acquire();
+				final int index = i;
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						Statement st = null;
+						try {
+							st = Database.createStatement(m_connectionPool);
+							task.run(index, st);
+						} catch (SQLException ex) {
+							m_isTaskFailed[index] = true;
+							nrOfFailedTasks.incrementAndGet();
+						} catch (RuntimeException ex) {
+							failure.compareAndSet(null, ex);
+						} finally {
+							Database.releaseStatement(m_connectionPool, st);
+							m_isTaskDone.set(index, 1);
+							permits.release();
+							isDone.countDown();
+						}
+					}
+				});
+			}
+			// the latch waits for all tasks, and makes their writes visible
+			isDone.await();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			logger.debug("interrupted while waiting for queries");
+			nrOfFailedTasks.addAndGet(setUnfinishedTasksFailed());
+		} finally {
+			executor.shutdownNow();
+		}
+		if (failure.get() != null) {
+			throw new IllegalStateException("query task failed", failure.get());
+		}
+
+		if (nrOfFailedTasks.get() > 0) {
+			logger.error(nrOfFailedTasks.get() + " of " + nrOfTasks
+					+ " queries not run, no connection to database or interrupted");
+		}
+		return nrOfFailedTasks.get();
+	}
+
+	/**
+	 * Returns true if the running Java version has virtual threads, ie. if
+	 * the queries can be run one thread per task.
+	 */
+	public static boolean isVirtualThreadAvailable() {
+		try {
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return true;
+		} catch (NoSuchMethodException ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns an executor which starts a virtual thread for each task, or null
+	 * if the running Java version has no virtual threads. The method is looked
+	 * up at runtime, so that the tool still builds and runs on older Java
+	 * versions.
+	 */
+	private static ExecutorService newVirtualThreadPerTaskExecutor() {
+		try {
+			Method factory = Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (Exception ex) {
+			logger.debug("virtual threads not available, "
+					+ "using platform threads instead");
+			return null;
+		}
+	}
+
+	/**
+	 * One query task, eg. the query of one locus or of one chunk of loci.
+	 *
+	 * @author mkumar
+	 * @since v1.1
+	 */
+	public interface Task {
+		/**
+		 * Runs the task with the given index.
+		 *
+		 * @param index
+		 *            index of the task
+		 * @param st
+		 *            statement on a connection of its own, for this task only
+		 */
+		void run(int index, Statement st);
+	}
+}
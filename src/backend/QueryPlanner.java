@@ -0,0 +1,474 @@
+package backend;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Chooses how the loci of a track are fetched from the remote database: with
+ * one query per locus, with one range query per chunk of loci, or by loading
+ * the whole table into a local index once.
+ *
+ * Each strategy which the fetcher allows is given an estimated cost. Per-locus
+ * queries cost one round trip per locus. Batched queries cost one round trip
+ * per chunk, plus the rows returned for the base pairs the chunks cover; loci
+ * spread over many chromosomes or far apart give more chunks. The full table
+ * costs one round trip plus all its rows, and nothing if it was loaded before.
+ * Round trips run as many at a time as the ConcurrencyLimiter allows, and no
+ * faster than its ceiling of queries per second; the full table is read in a
+ * single stream. The round trip and the time per row are moving averages
+ * of the queries run so far (see recordQuery()), and the number of rows of a
+ * table is an estimate until it was loaded once. So a short list of loci is
+ * queried locus by locus, a few thousand loci in batches, and millions of loci
+ * from the full table.
+ *
+ * The planner also tells whether the LocusPrefilter of a table pays off: its
+ * aggregate query costs one round trip plus the rows it reads on the server,
+ * which are not sent and so are cheaper than the rows of a query, and it
+ * saves the queries of the loci it answers.
+ *
+ * Before the queries are sent, loci with the same chromosome and coordinates
+ * are merged, and the loci are sorted by position, so that neighbouring
+ * queries hit the same pages of the server. The fetcher copies the results to
+ * the merged loci with Plan.copyDuplicates().
+ *
+ * @author mkumar
+ * @since v1.1
+ */
+public class QueryPlanner {
+	private static final Logger logger = Logger.getLogger(QueryPlanner.class);
+	// strategies, which can be or-ed to allow several of them
+	public static final int PER_LOCUS = 1;
+	public static final int BATCHED = 2;
+	public static final int FULL_TABLE = 4;
+	// strategies in the order in which they are preferred at the same cost,
+	// or if the planner is switched off
+	private static final int[] STRATEGIES = { FULL_TABLE, BATCHED, PER_LOCUS };
+	// number of base pairs of the genome, to estimate the rows in a range
+	private static final double GENOME_SIZE = 3.1e9;
+	// assumed until queries were observed
+	private static final double DEFAULT_LATENCY_MILLIS = 50;
+	private static final double DEFAULT_MILLIS_PER_ROW = 0.005;
+	// weight of a new observation in the moving averages
+	private static final double SMOOTHING = 0.2;
+	// queries returning fewer rows measure the round trip only
+	private static final int MIN_ROWS_FOR_ROW_TIME = 100;
+	// chromosomes of the genome, to estimate the rows of the table of one
+	// chromosome
+	private static final int NR_OF_CHRS = 24;
+	// a row which the server only reads takes this share of the time of a
+	// row which is sent
+	private static final double SCANNED_ROW_SHARE = 0.1;
+	// share of the loci which a prefilter is assumed to answer
+	private static final double PREFILTERED_SHARE = 0.5;
+
+	private static double latencyMillis = DEFAULT_LATENCY_MILLIS;
+	private static double millisPerRow = DEFAULT_MILLIS_PER_ROW;
+	// estimated rows of the tables of all chromosomes, until loaded once
+	private static HashMap<String, Long> tableRows = new HashMap<String, Long>();
+	static {
+		tableRows.put("refGene", 60000L);
+		tableRows.put("cytoBand", 900L);
+		tableRows.put("rmsk", 5600000L);
+	}
+
+	private QueryPlanner() {
+	}
+
+	/**
+	 * Plans the queries of a track for some loci.
+	 *
+	 * @param table
+	 *            table of the track, eg. refGene, or rmsk for the rmsk tables
+	 *            of all chromosomes
+	 * @param locusStore
+	 *            store of loci
+	 * @param loci
+	 *            indexes of the loci to fetch
+	 * @param strategies
+	 *            strategies allowed by the fetcher, eg. PER_LOCUS | BATCHED;
+	 *            PER_LOCUS should always be allowed
+	 * @param isTableLoaded
+	 *            true if the full table is already held in a local index
+	 * @return plan
+	 */
+	public static Plan plan(String table, LocusStore locusStore, int[] loci,
+			int strategies, boolean isTableLoaded) {
+		Plan plan = new Plan(table, locusStore, loci, strategies);
+		double latency;
+		double rowTime;
+		long rows;
+		synchronized (QueryPlanner.class) {
+			latency = latencyMillis;
+			rowTime = millisPerRow;
+			rows = getTableRows(table);
+		}
+		ConcurrencyLimiter limiter = ConcurrencyLimiter.getInstance();
+		int parallelism = Math.max(1, Math.min(
+				GlobalParameters.MAX_QUERIES_IN_FLIGHT, limiter.getLimit()));
+		double millisPerQuery = limiter.getMillisPerQuery();
+		int nrOfLoci = plan.getLoci().length;
+
+		if ((strategies & PER_LOCUS) != 0) {
+			plan.setCost(PER_LOCUS, getRoundTrips(nrOfLoci, latency,
+					parallelism, millisPerQuery)
+					+ nrOfLoci * rowTime);
+		}
+		if ((strategies & BATCHED) != 0) {
+			LocusChunks chunks = plan.getChunks();
+			long span = 0;
+			for (int c = 0; c < chunks.size(); c++) {
+				span += chunks.getMaxEnd(c) - chunks.getMinStart(c);
+			}
+			double rowsInChunks = chunks.size() + rows * (span / GENOME_SIZE);
+			plan.setCost(BATCHED, getRoundTrips(chunks.size(), latency,
+					parallelism, millisPerQuery)
+					+ rowsInChunks * rowTime);
+		}
+		if ((strategies & FULL_TABLE) != 0) {
+			plan.setCost(FULL_TABLE, isTableLoaded ? 0 : latency + rows
+					* rowTime);
+		}
+		plan.choose(GlobalParameters.USE_QUERY_PLANNER);
+		return plan;
+	}
+
+	/**
+	 * Returns true if loading the LocusPrefilter of a table is estimated to
+	 * take less time than the queries it saves.
+	 *
+	 * @param nrOfLoci
+	 *            number of loci to query
+	 * @param nrOfRows
+	 *            estimated number of rows which the aggregate query of the
+	 *            prefilter reads
+	 * @return true if the prefilter pays off
+	 */
+	public static boolean isPrefilterWorthwhile(int nrOfLoci, long nrOfRows) {
+		double latency;
+		double rowTime;
+		synchronized (QueryPlanner.class) {
+			latency = latencyMillis;
+			rowTime = millisPerRow;
+		}
+		ConcurrencyLimiter limiter = ConcurrencyLimiter.getInstance();
+		int parallelism = Math.max(1, Math.min(
+				GlobalParameters.MAX_QUERIES_IN_FLIGHT, limiter.getLimit()));
+		double cost = latency + nrOfRows * rowTime * SCANNED_ROW_SHARE;
+		double saving = PREFILTERED_SHARE
+				* getRoundTrips(nrOfLoci, latency, parallelism, limiter
+						.getMillisPerQuery());
+		return saving > cost;
+	}
+
+	/**
+	 * Returns the estimated number of rows of a table.
+	 *
+	 * @param table
+	 *            table, eg. refGene, or rmsk for the rmsk tables of all
+	 *            chromosomes
+	 * @return number of rows
+	 */
+	public static synchronized long getEstimatedRows(String table) {
+		return getTableRows(table);
+	}
+
+	/**
+	 * Returns the estimated number of rows of the table of one chromosome,
+	 * eg. chr1_rmsk.
+	 *
+	 * @param table
+	 *            table of all chromosomes, eg. rmsk
+	 * @return number of rows
+	 */
+	public static long getEstimatedRowsOfChr(String table) {
+		return getEstimatedRows(table) / NR_OF_CHRS;
+	}
+
+	/**
+	 * Records a query which was answered, to update the estimated round trip
+	 * or the estimated time per row.
+	 *
+	 * @param startTime
+	 *            System.nanoTime() when the query was sent
+	 * @param nrOfRows
+	 *            number of rows read
+	 */
+	public static synchronized void recordQuery(long startTime, long nrOfRows) {
+		double millis = (System.nanoTime() - startTime) / 1e6;
+		if (nrOfRows < MIN_ROWS_FOR_ROW_TIME) {
+			latencyMillis += SMOOTHING * (millis - latencyMillis);
+		} else {
+			double rowTime = Math.max(0, millis - latencyMillis) / nrOfRows;
+			millisPerRow += SMOOTHING * (rowTime - millisPerRow);
+		}
+	}
+
+	/**
+	 * Records the number of rows of a table, once it was loaded.
+	 *
+	 * @param table
+	 *            table, eg. refGene
+	 * @param nrOfRows
+	 *            number of rows
+	 */
+	public static synchronized void recordTableRows(String table, long nrOfRows) {
+		tableRows.put(table, nrOfRows);
+	}
+
+	/**
+	 * Returns the time taken by some queries run in parallel, which are
+	 * started no faster than the courtesy ceiling of the ConcurrencyLimiter.
+	 */
+	private static double getRoundTrips(int nrOfQueries, double latency,
+			int parallelism, double millisPerQuery) {
+		return Math.max(nrOfQueries * latency
+				/ Math.max(1, Math.min(parallelism, nrOfQueries)), nrOfQueries
+				* millisPerQuery);
+	}
+
+	private static long getTableRows(String table) {
+		Long rows = tableRows.get(table);
+		return rows == null ? 1000000L : rows;
+	}
+
+	/**
+	 * Returns the name of a strategy, for logging.
+	 *
+	 * @param strategy
+	 *            strategy, eg. BATCHED
+	 * @return name
+	 */
+	public static String getName(int strategy) {
+		switch (strategy) {
+		case PER_LOCUS:
+			return "per-locus";
+		case BATCHED:
+			return "batched";
+		case FULL_TABLE:
+			return "full table";
+		default:
+			return "none";
+		}
+	}
+
+	/**
+	 * Queries planned for the loci of one track.
+	 *
+	 * @author mkumar
+	 * @since v1.1
+	 */
+	public static class Plan {
+		private String m_table;
+		private LocusStore m_locusStore;
+		private int m_strategies;
+		private int m_strategy = PER_LOCUS;
+		// distinct loci, sorted by chromosome, start and end coordinate
+		private int[] m_loci;
+		// locus m_duplicates[i] has the coordinates of m_originals[i]
+		private int[] m_duplicates;
+		private int[] m_originals;
+		private LocusChunks m_chunks = null;
+		private double[] m_costs = new double[FULL_TABLE + 1];
+
+		private Plan(String table, LocusStore locusStore, int[] loci,
+				int strategies) {
+			super();
+			this.m_table = table;
+			this.m_locusStore = locusStore;
+			this.m_strategies = strategies | PER_LOCUS;
+			sortAndMerge(loci);
+		}
+
+		/**
+		 * Returns the chosen strategy.
+		 *
+		 * @return strategy, eg. QueryPlanner.BATCHED
+		 */
+		public int getStrategy() {
+			return m_strategy;
+		}
+
+		/**
+		 * Chooses the next cheapest strategy, eg. because the full table
+		 * could not be loaded.
+		 *
+		 * @return strategy chosen instead of the current one
+		 */
+		public int dropStrategy() {
+			m_strategies &= ~m_strategy;
+			choose(GlobalParameters.USE_QUERY_PLANNER);
+			logger.info(m_table + ": falling back to " + getName(m_strategy)
+					+ " queries");
+			return m_strategy;
+		}
+
+		/**
+		 * Returns the distinct loci to fetch, sorted by position.
+		 *
+		 * @return indexes of the loci
+		 */
+		public int[] getLoci() {
+			return m_loci;
+		}
+
+		/**
+		 * Returns the distinct loci grouped into chunks for batched queries.
+		 *
+		 * @return chunks of loci
+		 */
+		public LocusChunks getChunks() {
+			if (m_chunks == null) {
+				m_chunks = new LocusChunks(m_locusStore, m_loci,
+						GlobalParameters.MAX_LOCI_PER_BATCH,
+						GlobalParameters.MAX_BASE_PAIRS_PER_BATCH);
+			}
+			return m_chunks;
+		}
+
+		/**
+		 * Returns the number of loci which were merged into another locus
+		 * with the same coordinates.
+		 *
+		 * @return number of merged loci
+		 */
+		public int getNrOfDuplicates() {
+			return m_duplicates.length;
+		}
+
+		/**
+		 * Copies the values fetched for the distinct loci to the loci which
+		 * were merged into them.
+		 *
+		 * @param columns
+		 *            columns of the track
+		 */
+		public void copyDuplicates(AnnotationColumn... columns) {
+			for (int i = 0; i < m_duplicates.length; i++) {
+				for (AnnotationColumn column : columns) {
+					column.setCode(m_duplicates[i], column
+							.getCode(m_originals[i]));
+				}
+			}
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(getName(m_strategy)).append(" queries for ").append(
+					m_loci.length).append(" loci");
+			if (m_duplicates.length > 0) {
+				sb.append(" (").append(m_duplicates.length).append(
+						" duplicates merged)");
+			}
+			if (m_chunks != null) {
+				sb.append(", ").append(m_chunks.size()).append(" chunks");
+			}
+			sb.append(", estimated");
+			for (int strategy : STRATEGIES) {
+				if ((m_strategies & strategy) != 0) {
+					sb.append(' ').append(getName(strategy)).append(' ')
+							.append(Math.round(m_costs[strategy])).append(
+									" ms");
+				}
+			}
+			return sb.toString();
+		}
+
+		private void setCost(int strategy, double cost) {
+			m_costs[strategy] = cost;
+		}
+
+		/**
+		 * Chooses the cheapest allowed strategy, or the first allowed one in
+		 * the order of preference if the costs are not to be compared.
+		 */
+		private void choose(boolean isCostCompared) {
+			m_strategy = PER_LOCUS;
+			double bestCost = Double.MAX_VALUE;
+			for (int strategy : STRATEGIES) {
+				if ((m_strategies & strategy) == 0) {
+					continue;
+				}
+				if (!isCostCompared) {
+					m_strategy = strategy;
+					return;
+				}
+				if (m_costs[strategy] < bestCost) {
+					bestCost = m_costs[strategy];
+					m_strategy = strategy;
+				}
+			}
+		}
+
+		/**
+		 * Sorts the loci by chromosome id, start and end coordinate, and
+		 * merges loci with the same coordinates.
+		 */
+		private void sortAndMerge(int[] loci) {
+			int nrOfChrs = m_locusStore.getNrOfChrs();
+			int[] chrFrom = new int[nrOfChrs + 1];
+			for (int locus : loci) {
+				chrFrom[m_locusStore.getChrId(locus) + 1]++;
+			}
+			for (int c = 0; c < nrOfChrs; c++) {
+				chrFrom[c + 1] += chrFrom[c];
+			}
+			long[] keys = new long[loci.length];
+			int[] next = Arrays.copyOf(chrFrom, nrOfChrs);
+			for (int locus : loci) {
+				keys[next[m_locusStore.getChrId(locus)]++] = ((long) m_locusStore
+						.getStartPos(locus) << 32)
+						| locus;
+			}
+			for (int c = 0; c < nrOfChrs; c++) {
+				Arrays.sort(keys, chrFrom[c], chrFrom[c + 1]);
+			}
+			// loci with the same start are sorted by end coordinate
+			for (int from = 0; from < keys.length;) {
+				int to = from + 1;
+				while (to < keys.length && keys[to] >>> 32 == keys[from] >>> 32
+						&& m_locusStore.getChrId((int) keys[to]) == m_locusStore
+								.getChrId((int) keys[from])) {
+					to++;
+				}
+				if (to - from > 1) {
+					for (int i = from; i < to; i++) {
+						int locus = (int) keys[i];
+						keys[i] = ((long) m_locusStore.getEndPos(locus) << 32)
+								| locus;
+					}
+					Arrays.sort(keys, from, to);
+				}
+				from = to;
+			}
+
+			m_loci = new int[loci.length];
+			m_duplicates = new int[loci.length];
+			m_originals = new int[loci.length];
+			int nrOfLoci = 0;
+			int nrOfDuplicates = 0;
+			for (long key : keys) {
+				int locus = (int) key;
+				if (nrOfLoci > 0) {
+					int previous = m_loci[nrOfLoci - 1];
+					if (m_locusStore.getChrId(locus) == m_locusStore
+							.getChrId(previous)
+							&& m_locusStore.getStartPos(locus) == m_locusStore
+									.getStartPos(previous)
+							&& m_locusStore.getEndPos(locus) == m_locusStore
+									.getEndPos(previous)) {
+						m_duplicates[nrOfDuplicates] = locus;
+						m_originals[nrOfDuplicates++] = previous;
+						continue;
+					}
+				}
+				m_loci[nrOfLoci++] = locus;
+			}
+			m_loci = Arrays.copyOf(m_loci, nrOfLoci);
+			m_duplicates = Arrays.copyOf(m_duplicates, nrOfDuplicates);
+			m_originals = Arrays.copyOf(m_originals, nrOfDuplicates);
+		}
+	}
+}
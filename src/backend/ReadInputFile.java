@@ -1,61 +1,82 @@
 package backend;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.LineNumberReader;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import org.apache.log4j.Logger;
 
 /**
- * Class to read the input file and generate the locusArray.
+ * Class to read the input file and generate the locusStore.
  * 
  * This class contains methods which read the input file. For files
  * with many columns, it performs regular expression matching
  * on the row to automatically determine the column number
  * containing the genomic loci.
- * In the end a locusArray is generated which is used in the rest of the
+ * In the end a locusStore is generated which is used in the rest of the
  * tool to fetch results from the database and such.
  * @author mkumar
  * @since v1.0
  */
 public class ReadInputFile {
 	private static final Logger logger = Logger.getLogger(ReadInputFile.class);
-	private static Locus[] locusArray;
+	private static final int READ_BUFFER_SIZE = 1 << 20;
+	private static final long MIN_CHUNK_SIZE = 4L << 20;
+	private static final long MAX_CHUNK_SIZE = 256L << 20;
+	private LocusStore m_locusStore;
+	private ColumnStorage m_columnStorage;
 	private String m_inputFileName;
 	int nrOfCols = -1;
 	int nrOfRows = -1;
 	int colIndex = -1;
-	LineNumberReader lnr;
 
 	/**
 	 * Constructor, takes inputFileName as input
 	 * @param inputFileName filename of the user specified input file
 	 */
 	public ReadInputFile(String inputFileName) {
+		this(inputFileName, new ColumnStorage());
+	}
+
+	/**
+	 * Constructor, takes inputFileName and the storage for the loci as input
+	 * @param inputFileName filename of the user specified input file
+	 * @param columnStorage storage of the dataset, from which the columns of
+	 * the locusStore are allocated
+	 */
+	public ReadInputFile(String inputFileName, ColumnStorage columnStorage) {
 		super();
 		this.m_inputFileName = inputFileName;
+		this.m_columnStorage = columnStorage;
 
 		findLocusInInputFile();
-		createLocusArray();
+		createLocusStore();
 	}
 
 	/**
 	 * This method locates the column number in which the genomic locus lies.
 	 * 
-	 * It counts the number of rows, and columns in the input file, and
-	 * passes these arguments to other methods. The method also contains
-	 * instructions to locate and save the column number of the column which contains
-	 * the locus. It does this with a regular expression matching.
+	 * It counts the number of columns in the input file, and locates and saves
+	 * the column number of the column which contains the locus. It does this
+	 * with a regular expression matching on the first row after the headers.
+	 * Only the first two lines of the file are read here; the rows are counted
+	 * while the loci are parsed.
 	 */
 	public void findLocusInInputFile() {
 		try {
-			// Count nr of rows
-			lnr = new LineNumberReader(new FileReader(m_inputFileName));
-			lnr.skip(Long.MAX_VALUE);
-			nrOfRows = lnr.getLineNumber();
-			nrOfRows = nrOfRows - 1; // ignoring the first line (headers)
-
 			// Count nr of columns
 			BufferedReader br = new BufferedReader(new FileReader(
 					m_inputFileName));
@@ -81,51 +102,245 @@ public class ReadInputFile {
 				}
 			}
 
-			lnr.close();
 			br.close();
 		} catch (final Exception ioexcep) {
 			logger
-					.debug("unable to read input file - (Counting the nr of rows and columns)");
+					.debug("unable to read input file - (Counting the nr of columns)");
 		}
 	}
 
 	/**
-	 * This method gets parameters like number of rows, number of columns in the
-	 * input file, and the index of the column which contains the locus, and
-	 * then creates an array containing Locus entries for the input file.
+	 * This method gets the index of the column which contains the locus, and
+	 * then creates a LocusStore containing the loci of the input file.
+	 * 
+	 * The file is read only once, in large blocks of raw bytes, and each block
+	 * of complete rows is handed to the LocusParser. Rows that span two blocks
+	 * are carried over to the next block.
+	 * 
+	 * @see backend.LocusParser
 	 */
-	public void createLocusArray() {
+	public void createLocusStore() {
 		// locus is of the format --> chr3:5000-45000
-		Locus chrLocus;
-		locusArray = new Locus[nrOfRows];
-	
+		LocusBuffer locusBuffer = new LocusBuffer();
+		LocusParser parser = new LocusParser(colIndex, locusBuffer);
+
+		int nrOfMalformedRows = 0;
+
+		if (colIndex < 0) {
+			logger.debug("no locus column in input file - (createLocusStore)");
+		} else if (GlobalParameters.LOAD_INPUT_IN_PARALLEL
+				&& new File(m_inputFileName).length() >= GlobalParameters.MIN_FILE_SIZE_FOR_PARALLEL_LOADING) {
+			nrOfMalformedRows = readRowsInParallel(locusBuffer);
+		} else {
+			try {
+				FileInputStream in = new FileInputStream(m_inputFileName);
+				try {
+					readRows(in, parser);
+				} finally {
+					in.close();
+				}
+			} catch (final IOException ioexcep) {
+				logger
+						.debug("unable to read from input file - (createLocusStore)");
+				ioexcep.printStackTrace();
+			}
+			nrOfMalformedRows = parser.getNrOfMalformedRows();
+		}
+
+		if (nrOfMalformedRows > 0) {
+			logger.debug(nrOfMalformedRows
+					+ " rows without a valid locus were ignored");
+		}
+		nrOfRows = locusBuffer.size();
+		m_locusStore = locusBuffer.toLocusStore(m_columnStorage);
+	}
+
+	/**
+	 * Reads the input file with several threads, for very large files.
+	 * 
+	 * The file is split into chunks that begin and end on a row boundary. Each
+	 * chunk is memory-mapped and parsed into its own LocusBuffer on a fork-join
+	 * pool, and the buffers are concatenated in file order, so the order of the
+	 * loci is the same as with the single-threaded read. If anything goes
+	 * wrong, the file is read again with the single-threaded reader.
+	 * 
+	 * @param locusBuffer
+	 *            buffer to which all loci are appended, in file order
+	 * @return number of rows without a valid locus
+	 */
+	private int readRowsInParallel(LocusBuffer locusBuffer) {
+		ForkJoinPool pool = new ForkJoinPool();
 		try {
-			String line = null;
-			BufferedReader br = new BufferedReader(new FileReader(
-					m_inputFileName));
-			int j = 0;
-			br.readLine(); // first line is headers --ignore
-	
-			while ((line = br.readLine()) != null) {
-				String[] column = line.split("\t");
-				String locus = column[colIndex];
-				locus = locus.replaceAll(" ", ""); // remove extra white spaces
-				String chrNr = locus.split(":")[0];
-				int startPos = Integer
-						.parseInt(locus.split(":")[1].split("-")[0]);
-				int endPos = Integer
-						.parseInt(locus.split(":")[1].split("-")[1]);
-
-				chrLocus = new Locus(chrNr, startPos, endPos);
-				locusArray[j] = chrLocus;
-				j++;
+			RandomAccessFile file = new RandomAccessFile(m_inputFileName, "r");
+			try {
+				FileChannel channel = file.getChannel();
+				long[] boundaries = getChunkBoundaries(channel,
+						pool.getParallelism());
+				logger.debug("reading input file in "
+						+ (boundaries.length - 1) + " chunks with "
+						+ pool.getParallelism() + " threads");
+
+				List<Callable<LocusParser>> tasks = new ArrayList<Callable<LocusParser>>();
+				for (int i = 0; i < boundaries.length - 1; i++) {
+					tasks.add(new ParseChunkTask(channel, boundaries[i],
+							boundaries[i + 1], colIndex));
+				}
+
+				// invokeAll keeps the order of the tasks
+				int nrOfMalformedRows = 0;
+				List<LocusParser> chunkParsers = new ArrayList<LocusParser>();
+				for (Future<LocusParser> future : pool.invokeAll(tasks)) {
+					chunkParsers.add(future.get());
+				}
+				for (LocusParser chunkParser : chunkParsers) {
+					locusBuffer.addAll(chunkParser.getLocusBuffer());
+					nrOfMalformedRows += chunkParser.getNrOfMalformedRows();
+				}
+				return nrOfMalformedRows;
+			} finally {
+				file.close();
+			}
+		} catch (final Exception excep) {
+			logger.debug("unable to read input file in parallel, "
+					+ "falling back to single-threaded read - (readRowsInParallel)");
+			excep.printStackTrace();
+		} finally {
+			pool.shutdown();
+		}
+
+		LocusBuffer retryBuffer = new LocusBuffer();
+		LocusParser parser = new LocusParser(colIndex, retryBuffer);
+		try {
+			FileInputStream in = new FileInputStream(m_inputFileName);
+			try {
+				readRows(in, parser);
+			} finally {
+				in.close();
 			}
-			br.close();
 		} catch (final IOException ioexcep) {
-			logger
-					.debug("unable to read from input file - (inputFileTo2DArray)");
+			logger.debug("unable to read from input file - (readRowsInParallel)");
 			ioexcep.printStackTrace();
 		}
+		locusBuffer.addAll(retryBuffer);
+		return parser.getNrOfMalformedRows();
+	}
+
+	/**
+	 * Splits the input file, without the first line (headers), into chunks
+	 * that begin directly after a newline.
+	 * 
+	 * @param channel
+	 *            channel of the input file
+	 * @param parallelism
+	 *            number of threads that parse the chunks
+	 * @return offsets of the chunk boundaries; chunk i is [b[i], b[i+1])
+	 * @throws IOException
+	 */
+	private long[] getChunkBoundaries(FileChannel channel, int parallelism)
+			throws IOException {
+		long size = channel.size();
+		long dataStart = Math.min(findNextRowStart(channel, 0), size);
+
+		// a few chunks per thread to balance the load, but never more than a
+		// single mapping can hold
+		long chunkSize = (size - dataStart) / (parallelism * 4L) + 1;
+		chunkSize = Math.max(chunkSize, MIN_CHUNK_SIZE);
+		chunkSize = Math.min(chunkSize, MAX_CHUNK_SIZE);
+
+		List<Long> boundaries = new ArrayList<Long>();
+		boundaries.add(dataStart);
+		long position = dataStart;
+		while (position < size) {
+			long next = position + chunkSize;
+			next = next >= size ? size : Math.min(
+					findNextRowStart(channel, next), size);
+			boundaries.add(next);
+			position = next;
+		}
+
+		long[] result = new long[boundaries.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = boundaries.get(i);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the offset of the first byte after the first newline at or after
+	 * the given offset, or the size of the file if there is no such newline.
+	 */
+	private long findNextRowStart(FileChannel channel, long offset)
+			throws IOException {
+		ByteBuffer window = ByteBuffer.allocate(64 * 1024);
+		long position = offset;
+		while (true) {
+			window.clear();
+			int n = channel.read(window, position);
+			if (n <= 0) {
+				return channel.size();
+			}
+			int newline = LocusParser.indexOfNewline(window, 0, n);
+			if (newline >= 0) {
+				return position + newline + 1;
+			}
+			position = position + n;
+		}
+	}
+
+	/**
+	 * Reads all rows of the input file, except the first line (headers), and
+	 * passes them to the parser.
+	 * 
+	 * @param in
+	 *            stream of the input file
+	 * @param parser
+	 *            parser which receives blocks of complete rows
+	 * @throws IOException
+	 */
+	private void readRows(InputStream in, LocusParser parser)
+			throws IOException {
+		byte[] block = new byte[READ_BUFFER_SIZE];
+		ByteBuffer view = ByteBuffer.wrap(block);
+		int start = 0; // first byte not yet parsed
+		int end = 0; // end of the bytes read so far
+		boolean isHeader = true;
+		boolean isEndOfFile = false;
+
+		while (!isEndOfFile) {
+			// move the incomplete last row to the front of the block
+			if (start > 0) {
+				System.arraycopy(block, start, block, 0, end - start);
+				end = end - start;
+				start = 0;
+			}
+			// a single row longer than the block, make room for it
+			if (end == block.length) {
+				block = Arrays.copyOf(block, block.length * 2);
+				view = ByteBuffer.wrap(block);
+			}
+
+			int n = in.read(block, end, block.length - end);
+			if (n < 0) {
+				isEndOfFile = true;
+			} else {
+				end = end + n;
+			}
+
+			// parse only up to the last complete row, unless at the end
+			int limit = isEndOfFile ? end : LocusParser.lastIndexOfNewline(
+					view, start, end) + 1;
+
+			if (isHeader && limit > start) {
+				// first line is headers --ignore
+				int newline = LocusParser.indexOfNewline(view, start, limit);
+				start = newline < 0 ? limit : newline + 1;
+				isHeader = false;
+			}
+			if (limit > start) {
+				parser.parseRows(view, start, limit);
+				start = limit;
+			}
+		}
 	}
 
 	/**
@@ -153,10 +368,42 @@ public class ReadInputFile {
 	}
 
 	/**
-	 * Returns the array of locus entries.
-	 * @return locusArray array of locus entries.
+	 * Returns the store of locus entries.
+	 * @return locusStore columnar store of locus entries.
 	 */
-	public Locus[] getLocusArray() {
-		return locusArray;
+	public LocusStore getLocusStore() {
+		return m_locusStore;
+	}
+
+	/**
+	 * Task which memory-maps one chunk of the input file and parses its rows
+	 * into a LocusBuffer of its own.
+	 * 
+	 * @author mkumar
+	 * @since v1.1
+	 */
+	static class ParseChunkTask implements Callable<LocusParser> {
+		private FileChannel m_channel;
+		private long m_from;
+		private long m_to;
+		private int m_colIndex;
+
+		ParseChunkTask(FileChannel channel, long from, long to, int colIndex) {
+			this.m_channel = channel;
+			this.m_from = from;
+			this.m_to = to;
+			this.m_colIndex = colIndex;
+		}
+
+		@Override
+		public LocusParser call() throws IOException {
+			int length = (int) (m_to - m_from);
+			MappedByteBuffer chunk = m_channel.map(
+					FileChannel.MapMode.READ_ONLY, m_from, length);
+			LocusParser parser = new LocusParser(m_colIndex, new LocusBuffer(
+					length / 32));
+			parser.parseRows(chunk, 0, length);
+			return parser;
+		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,334 @@
+package backend;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * In-memory index of the RepeatMasker elements of one chromosome (the
+ * chrN_rmsk table).
+ *
+ * A chromosome can have hundreds of thousands of repeat elements, so they are
+ * held in parallel primitive arrays, sorted by start coordinate: start, end,
+ * and the codes of name, class and family in the AnnotationDictionary.
+ *
+ * annotate() joins the elements to the loci of the same chromosome in a
+ * single sorted sweep. For each locus it collects all overlapping elements,
+ * and the fraction of the locus (in base pairs) covered by each repeat class
+ * and family. Overlapping elements of the same class or family are counted
+ * only once. These lists are mostly unique to their locus, so the columns
+ * given to annotate() should have a private dictionary of their dataset
+ * (AnnotationDictionary.createPrivate()), not the dictionary of the assembly.
+ *
+ * @author mkumar
+ * @since v1.1
+ */
+public class RepeatIndex {
+	private static final int INITIAL_CAPACITY = 4096;
+	private int[] m_starts = new int[INITIAL_CAPACITY];
+	private int[] m_ends = new int[INITIAL_CAPACITY];
+	private int[] m_nameCodes = new int[INITIAL_CAPACITY];
+	private int[] m_classCodes = new int[INITIAL_CAPACITY];
+	private int[] m_familyCodes = new int[INITIAL_CAPACITY];
+	private int m_size = 0;
+	private AnnotationDictionary m_dictionary;
+
+	/**
+	 * Constructor
+	 *
+	 * @param dictionary
+	 *            dictionary of the assembly, which holds the names, classes
+	 *            and families of the elements
+	 */
+	public RepeatIndex(AnnotationDictionary dictionary) {
+		super();
+		this.m_dictionary = dictionary;
+	}
+
+	/**
+	 * Adds a repeat element to the index.
+	 *
+	 * @param genoStart
+	 *            start coordinate of the element
+	 * @param genoEnd
+	 *            end coordinate of the element
+	 * @param repName
+	 *            name of the element
+	 * @param repClass
+	 *            class of the element
+	 * @param repFamily
+	 *            family of the element
+	 */
+	public void add(int genoStart, int genoEnd, String repName,
+			String repClass, String repFamily) {
+		addCodes(genoStart, genoEnd, m_dictionary.encode(repName),
+				m_dictionary.encode(repClass), m_dictionary.encode(repFamily));
+	}
+
+	/**
+	 * Adds a repeat element whose name, class and family are already codes
+	 * in the dictionary of the index.
+	 *
+	 * @param genoStart
+	 *            start coordinate of the element
+	 * @param genoEnd
+	 *            end coordinate of the element
+	 * @param nameCode
+	 *            code of the name of the element
+	 * @param classCode
+	 *            code of the class of the element
+	 * @param familyCode
+	 *            code of the family of the element
+	 */
+	public void addCodes(int genoStart, int genoEnd, int nameCode,
+			int classCode, int familyCode) {
+		if (m_size == m_starts.length) {
+			int capacity = m_size * 2;
+			m_starts = Arrays.copyOf(m_starts, capacity);
+			m_ends = Arrays.copyOf(m_ends, capacity);
+			m_nameCodes = Arrays.copyOf(m_nameCodes, capacity);
+			m_classCodes = Arrays.copyOf(m_classCodes, capacity);
+			m_familyCodes = Arrays.copyOf(m_familyCodes, capacity);
+		}
+		m_starts[m_size] = genoStart;
+		m_ends[m_size] = genoEnd;
+		m_nameCodes[m_size] = nameCode;
+		m_classCodes[m_size] = classCode;
+		m_familyCodes[m_size] = familyCode;
+		m_size++;
+	}
+
+	/**
+	 * Sorts the elements by start coordinate and trims the arrays.
+	 */
+	public void build() {
+		int[] order = sortedOrder(m_starts, m_size);
+		m_starts = permute(m_starts, order);
+		m_ends = permute(m_ends, order);
+		m_nameCodes = permute(m_nameCodes, order);
+		m_classCodes = permute(m_classCodes, order);
+		m_familyCodes = permute(m_familyCodes, order);
+	}
+
+	/**
+	 * Annotates the loci of this chromosome with the repeat elements that
+	 * overlap them. A locus covers the bases startPos to endPos, both
+	 * included, like its size in LocusStore.getLocusSize(), ie. the range
+	 * [startPos, endPos + 1) in the half-open coordinates of the elements in
+	 * the table.
+	 *
+	 * For each locus, the name column gets the names of all overlapping
+	 * elements, and the class and family columns get each overlapping class or
+	 * family with the percentage of the locus it covers, largest first, eg.
+	 * "SINE 45%, LINE 12%". Loci without any overlapping element keep the
+	 * empty value.
+	 *
+	 * @param locusStore
+	 *            store of loci
+	 * @param loci
+	 *            indexes of the loci of this chromosome in the store
+	 * @param nrOfLoci
+	 *            number of entries in loci
+	 * @param nameColumn
+	 *            column for the names of the elements, usually with a private
+	 *            dictionary like the other two columns
+	 * @param classColumn
+	 *            column for the coverage per repeat class
+	 * @param familyColumn
+	 *            column for the coverage per repeat family
+	 */
+	public void annotate(LocusStore locusStore, int[] loci, int nrOfLoci,
+			AnnotationColumn nameColumn, AnnotationColumn classColumn,
+			AnnotationColumn familyColumn) {
+		int[] lociStarts = new int[nrOfLoci];
+		for (int i = 0; i < nrOfLoci; i++) {
+			lociStarts[i] = locusStore.getStartPos(loci[i]);
+		}
+		int[] lociOrder = sortedOrder(lociStarts, nrOfLoci);
+
+		// elements which start before the end of the current locus, and end
+		// after the start of the current locus, in order of start coordinate
+		int[] active = new int[64];
+		int nrOfActive = 0;
+		int next = 0;
+
+		// codes of the names of the elements of the current locus, each once
+		int[] nameCodes = new int[16];
+		int nrOfNames = 0;
+		BitSet isNameListed = new BitSet();
+		Coverage classCoverage = new Coverage();
+		Coverage familyCoverage = new Coverage();
+
+		for (int l = 0; l < nrOfLoci; l++) {
+			int locus = loci[lociOrder[l]];
+			int startPos = locusStore.getStartPos(locus);
+			// end of the locus in half-open coordinates
+			int endPos = locusStore.getEndPos(locus) + 1;
+
+			// later loci do not start before this one, so elements that end
+			// before this locus starts can be dropped for good
+			int kept = 0;
+			for (int a = 0; a < nrOfActive; a++) {
+				if (m_ends[active[a]] > startPos) {
+					active[kept++] = active[a];
+				}
+			}
+			nrOfActive = kept;
+			// elements that start before this locus ends
+			while (next < m_size && m_starts[next] < endPos) {
+				if (m_ends[next] > startPos) {
+					if (nrOfActive == active.length) {
+						active = Arrays.copyOf(active, nrOfActive * 2);
+					}
+					active[nrOfActive++] = next;
+				}
+				next++;
+			}
+
+			for (int n = 0; n < nrOfNames; n++) {
+				isNameListed.clear(nameCodes[n]);
+			}
+			nrOfNames = 0;
+			classCoverage.clear();
+			familyCoverage.clear();
+			for (int a = 0; a < nrOfActive; a++) {
+				int element = active[a];
+				int from = Math.max(startPos, m_starts[element]);
+				int to = Math.min(endPos, m_ends[element]);
+				if (from >= to) {
+					// a previous, longer locus pulled this element in
+					continue;
+				}
+				int nameCode = m_nameCodes[element];
+				if (!isNameListed.get(nameCode)) {
+					isNameListed.set(nameCode);
+					if (nrOfNames == nameCodes.length) {
+						nameCodes = Arrays.copyOf(nameCodes, nrOfNames * 2);
+					}
+					nameCodes[nrOfNames++] = nameCode;
+				}
+				classCoverage.add(m_classCodes[element], from, to);
+				familyCoverage.add(m_familyCodes[element], from, to);
+			}
+			if (nrOfNames == 0) {
+				continue;
+			}
+
+			int locusLength = Math.max(locusStore.getLocusSize(locus), 1);
+			StringBuilder nameList = new StringBuilder();
+			for (int n = 0; n < nrOfNames; n++) {
+				if (n > 0) {
+					nameList.append(", ");
+				}
+				nameList.append(m_dictionary.decode(nameCodes[n]));
+			}
+			nameColumn.set(locus, nameList.toString());
+			classColumn.set(locus, classCoverage.toString(locusLength));
+			familyColumn.set(locus, familyCoverage.toString(locusLength));
+		}
+	}
+
+	/**
+	 * Returns the number of elements in the index.
+	 *
+	 * @return number of elements
+	 */
+	public int size() {
+		return m_size;
+	}
+
+	/**
+	 * Returns the order in which the first size entries of keys are sorted,
+	 * keeping the original order for equal keys.
+	 */
+	private static int[] sortedOrder(int[] keys, int size) {
+		long[] sortKeys = new long[size];
+		for (int i = 0; i < size; i++) {
+			sortKeys[i] = ((long) keys[i] << 32) | i;
+		}
+		Arrays.sort(sortKeys);
+		int[] order = new int[size];
+		for (int i = 0; i < size; i++) {
+			order[i] = (int) sortKeys[i];
+		}
+		return order;
+	}
+
+	private static int[] permute(int[] values, int[] order) {
+		int[] permuted = new int[order.length];
+		for (int i = 0; i < order.length; i++) {
+			permuted[i] = values[order[i]];
+		}
+		return permuted;
+	}
+
+	/**
+	 * Base pairs of one locus covered by each repeat class (or family). The
+	 * covered regions must be added in order of their start coordinate, so
+	 * that overlapping regions of the same class are merged on the fly.
+	 */
+	private class Coverage {
+		private int[] codes = new int[8];
+		private int[] coveredUntil = new int[8];
+		private int[] coveredBases = new int[8];
+		private int size = 0;
+
+		void clear() {
+			size = 0;
+		}
+
+		void add(int code, int from, int to) {
+			int i = 0;
+			while (i < size && codes[i] != code) {
+				i++;
+			}
+			if (i == size) {
+				if (size == codes.length) {
+					codes = Arrays.copyOf(codes, size * 2);
+					coveredUntil = Arrays.copyOf(coveredUntil, size * 2);
+					coveredBases = Arrays.copyOf(coveredBases, size * 2);
+				}
+				codes[i] = code;
+				coveredUntil[i] = from;
+				coveredBases[i] = 0;
+				size++;
+			}
+			if (to > coveredUntil[i]) {
+				coveredBases[i] += to - Math.max(from, coveredUntil[i]);
+				coveredUntil[i] = to;
+			}
+		}
+
+		/**
+		 * Lists the classes with the percentage of the locus they cover,
+		 * largest first.
+		 */
+		String toString(int locusLength) {
+			int[] order = new int[size];
+			for (int i = 0; i < size; i++) {
+				order[i] = i;
+			}
+			// few classes per locus, so a simple insertion sort will do
+			for (int i = 1; i < size; i++) {
+				int current = order[i];
+				int j = i - 1;
+				while (j >= 0 && coveredBases[order[j]] < coveredBases[current]) {
+					order[j + 1] = order[j];
+					j--;
+				}
+				order[j + 1] = current;
+			}
+
+			StringBuilder list = new StringBuilder();
+			for (int i = 0; i < size; i++) {
+				if (list.length() > 0) {
+					list.append(", ");
+				}
+				int percentage = (int) Math.round(100.0
+						* coveredBases[order[i]] / locusLength);
+				list.append(m_dictionary.decode(codes[order[i]])).append(' ')
+						.append(percentage).append('%');
+			}
+			return list.toString();
+		}
+	}
+}
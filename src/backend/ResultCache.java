@@ -0,0 +1,460 @@
+package backend;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Persistent cache of the annotations fetched from the remote database, so
+ * that loci which were annotated before, in an earlier run or by another
+ * dataset, are not queried again.
+ *
+ * An entry is keyed by assembly, track, chromosome, start and end coordinate
+ * of a locus, and holds the values of the track for the locus (eg. name,
+ * class and family for rmsk). The entries are held in memory in the order of
+ * their last use; once they take more than the size limit, the least recently
+ * used ones are evicted.
+ *
+ * On disk the cache is a journal: every stored entry, and every use of an
+ * entry, is appended as a record with its length and CRC32 checksum. When the
+ * cache is opened, the journal is replayed; a record which is incomplete or
+ * damaged, eg. because the tool was killed while writing it, ends the replay,
+ * and the journal is cut off there. Once the journal grows much larger than
+ * the cache, it is compacted into a temporary file holding only the live
+ * entries, which then replaces it.
+ *
+ * @author mkumar
+ * @since v1.1
+ */
+public class ResultCache {
+	private static final Logger logger = Logger.getLogger(ResultCache.class);
+	// tracks of the cache
+	public static final String TRACK_GENES = "refGene";
+	public static final String TRACK_CYTOBAND = "cytoBand";
+	public static final String TRACK_REPEATS = "rmsk";
+	// types of the records in the journal
+	private static final byte RECORD_PUT = 1;
+	private static final byte RECORD_TOUCH = 2;
+	// estimated bytes of memory taken by an entry, besides its strings
+	private static final int ENTRY_OVERHEAD = 96;
+	private static ResultCache instance = null;
+
+	private File m_file;
+	private long m_maxBytes;
+	private LinkedHashMap<String, String[]> m_entries = new LinkedHashMap<String, String[]>(
+			1024, 0.75f, true);
+	private long m_bytes = 0;
+	private FileOutputStream m_journalFile = null;
+	private DataOutputStream m_journal = null;
+	private long m_journalLength = 0;
+
+	/**
+	 * Constructor, opens the cache file and replays it.
+	 *
+	 * @param file
+	 *            journal of the cache
+	 * @param maxBytes
+	 *            largest number of bytes taken by the entries
+	 */
+	public ResultCache(File file, long maxBytes) {
+		super();
+		this.m_file = file;
+		this.m_maxBytes = maxBytes;
+		long startTime = System.currentTimeMillis();
+		replay();
+		logger.info("opened result cache with " + m_entries.size()
+				+ " entries in " + (System.currentTimeMillis() - startTime)
+				+ " ms");
+	}
+
+	/**
+	 * Returns the result cache.
+	 *
+	 * @return cache, or null if the cache is switched off
+	 */
+	public static synchronized ResultCache getInstance() {
+		if (!GlobalParameters.USE_RESULT_CACHE) {
+			return null;
+		}
+		if (instance == null) {
+			instance = new ResultCache(new File(
+					GlobalParameters.PATH_RESULT_CACHE),
+					GlobalParameters.RESULT_CACHE_MAX_BYTES);
+		}
+		return instance;
+	}
+
+	/**
+	 * Sets the cached values of a track for all loci which are in the cache.
+	 *
+	 * @param track
+	 *            track, eg. ResultCache.TRACK_GENES
+	 * @param locusStore
+	 *            store of loci
+	 * @param loci
+	 *            indexes of the loci to look up
+	 * @param columns
+	 *            columns of the track, which receive the cached values
+	 * @return indexes of the loci which are not in the cache
+	 */
+	public synchronized int[] lookup(String track, LocusStore locusStore,
+			int[] loci, AnnotationColumn... columns) {
+		String assembly = AnnotationDictionary.getInstance().getAssembly();
+		int[] misses = new int[loci.length];
+		int nrOfMisses = 0;
+		ArrayList<String> hits = new ArrayList<String>();
+		for (int locus : loci) {
+			String key = getKey(assembly, track, locusStore, locus);
+			String[] values = m_entries.get(key);
+			if (values == null || values.length != columns.length) {
+				misses[nrOfMisses++] = locus;
+				continue;
+			}
+			for (int k = 0; k < columns.length; k++) {
+				if (values[k].length() == 0) {
+					columns[k].setCode(locus, AnnotationDictionary.EMPTY_CODE);
+				} else {
+					columns[k].set(locus, values[k]);
+				}
+			}
+			hits.add(key);
+		}
+
+		// the order of use survives a restart; losing it in a crash does no
+		// harm, so the journal is not synced
+		try {
+			for (String key : hits) {
+				appendRecord(RECORD_TOUCH, key, null);
+			}
+			flush(false);
+			compactIfLarge();
+		} catch (IOException ioe) {
+			closeJournal("cannot write result cache");
+		}
+		logger.debug(track + ": " + hits.size() + " of " + loci.length
+				+ " loci found in result cache");
+		if (nrOfMisses == misses.length) {
+			return misses;
+		}
+		int[] result = new int[nrOfMisses];
+		System.arraycopy(misses, 0, result, 0, nrOfMisses);
+		return result;
+	}
+
+	/**
+	 * Returns true if the cache holds a track for all loci of a store.
+	 *
+	 * @param tracks
+	 *            tracks, eg. ResultCache.TRACK_GENES
+	 * @param locusStore
+	 *            store of loci
+	 * @return true if no locus has to be queried for any of the tracks
+	 */
+	public synchronized boolean containsAll(Iterable<String> tracks,
+			LocusStore locusStore) {
+		for (String track : tracks) {
+			if (!containsAll(track, locusStore, locusStore.getIndexes())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true if the cache holds a track for some loci of a store.
+	 *
+	 * @param track
+	 *            track, eg. ResultCache.TRACK_GENES
+	 * @param locusStore
+	 *            store of loci
+	 * @param loci
+	 *            indexes of the loci
+	 * @return true if none of the loci has to be queried for the track
+	 */
+	public synchronized boolean containsAll(String track,
+			LocusStore locusStore, int[] loci) {
+		String assembly = AnnotationDictionary.getInstance().getAssembly();
+		for (int locus : loci) {
+			// containsKey does not count as a use of the entry
+			if (!m_entries.containsKey(getKey(assembly, track, locusStore,
+					locus))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Stores the values of a track for some loci, and writes them to the
+	 * journal before returning.
+	 *
+	 * @param track
+	 *            track, eg. ResultCache.TRACK_GENES
+	 * @param locusStore
+	 *            store of loci
+	 * @param loci
+	 *            indexes of the loci to store
+	 * @param columns
+	 *            columns of the track, holding the fetched values
+	 */
+	public synchronized void store(String track, LocusStore locusStore,
+			int[] loci, AnnotationColumn... columns) {
+		if (loci.length == 0) {
+			return;
+		}
+		String assembly = AnnotationDictionary.getInstance().getAssembly();
+		try {
+			for (int locus : loci) {
+				String key = getKey(assembly, track, locusStore, locus);
+				String[] values = new String[columns.length];
+				for (int k = 0; k < columns.length; k++) {
+					values[k] = columns[k].isEmpty(locus) ? "" : columns[k]
+							.get(locus);
+				}
+				put(key, values);
+				appendRecord(RECORD_PUT, key, values);
+			}
+			flush(true);
+			compactIfLarge();
+		} catch (IOException ioe) {
+			closeJournal("cannot write result cache");
+		}
+		logger.debug(track + ": stored " + loci.length
+				+ " loci in result cache");
+	}
+
+	/**
+	 * Returns the number of entries.
+	 *
+	 * @return number of entries
+	 */
+	public synchronized int size() {
+		return m_entries.size();
+	}
+
+	private static String getKey(String assembly, String track,
+			LocusStore locusStore, int locus) {
+		return assembly + '\t' + track + '\t' + locusStore.getChr(locus)
+				+ '\t' + locusStore.getStartPos(locus) + '\t'
+				+ locusStore.getEndPos(locus);
+	}
+
+	/**
+	 * Adds an entry in memory, and evicts the least recently used entries if
+	 * the cache is full.
+	 */
+	private void put(String key, String[] values) {
+		String[] old = m_entries.put(key, values);
+		if (old != null) {
+			m_bytes -= getEntryBytes(key, old);
+		}
+		m_bytes += getEntryBytes(key, values);
+		Iterator<Map.Entry<String, String[]>> eldest = m_entries.entrySet()
+				.iterator();
+		while (m_bytes > m_maxBytes && eldest.hasNext()) {
+			Map.Entry<String, String[]> entry = eldest.next();
+			m_bytes -= getEntryBytes(entry.getKey(), entry.getValue());
+			eldest.remove();
+		}
+	}
+
+	private static long getEntryBytes(String key, String[] values) {
+		long bytes = ENTRY_OVERHEAD + 2 * key.length();
+		for (String value : values) {
+			bytes += 40 + 2 * value.length();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Replays the journal, cuts off a damaged tail, and opens the journal for
+	 * appending.
+	 */
+	private void replay() {
+		long validLength = 0;
+		File tempFile = new File(m_file.getPath() + ".tmp");
+		if (!m_file.exists() && tempFile.isFile()) {
+			// a crash between removing the old journal and renaming the
+			// compacted one
+			tempFile.renameTo(m_file);
+		}
+		if (m_file.isFile()) {
+			try {
+				DataInputStream in = new DataInputStream(
+						new BufferedInputStream(new FileInputStream(m_file),
+								1 << 16));
+				try {
+					while (true) {
+						int length = in.readInt();
+						long checksum = in.readLong();
+						if (length < 0 || length > 1 << 20) {
+							break;
+						}
+						byte[] record = new byte[length];
+						in.readFully(record);
+						CRC32 crc = new CRC32();
+						crc.update(record);
+						if (crc.getValue() != checksum) {
+							break;
+						}
+						applyRecord(record);
+						validLength += 12 + length;
+					}
+				} catch (EOFException eofe) {
+					// end of the journal, or a record cut off by a crash
+				} finally {
+					in.close();
+				}
+				if (validLength < m_file.length()) {
+					logger.info("result cache: dropping "
+							+ (m_file.length() - validLength)
+							+ " bytes of incomplete records");
+					RandomAccessFile raf = new RandomAccessFile(m_file, "rw");
+					try {
+						raf.setLength(validLength);
+					} finally {
+						raf.close();
+					}
+				}
+			} catch (IOException ioe) {
+				logger.error("cannot read result cache " + m_file.getPath());
+				m_entries.clear();
+				m_bytes = 0;
+				validLength = 0;
+				if (!m_file.delete()) {
+					return;
+				}
+			}
+		}
+		openJournal(validLength);
+	}
+
+	private void applyRecord(byte[] record) throws IOException {
+		DataInputStream in = new DataInputStream(
+				new ByteArrayInputStream(record));
+		byte type = in.readByte();
+		String key = in.readUTF();
+		if (type == RECORD_PUT) {
+			String[] values = new String[in.readUnsignedByte()];
+			for (int k = 0; k < values.length; k++) {
+				values[k] = in.readUTF();
+			}
+			put(key, values);
+		} else if (type == RECORD_TOUCH) {
+			m_entries.get(key);
+		}
+	}
+
+	private void appendRecord(byte type, String key, String[] values)
+			throws IOException {
+		if (m_journal == null) {
+			return;
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream record = new DataOutputStream(bytes);
+		record.writeByte(type);
+		record.writeUTF(key);
+		if (values != null) {
+			record.writeByte(values.length);
+			for (String value : values) {
+				record.writeUTF(value);
+			}
+		}
+		record.close();
+		CRC32 crc = new CRC32();
+		crc.update(bytes.toByteArray());
+		m_journal.writeInt(bytes.size());
+		m_journal.writeLong(crc.getValue());
+		bytes.writeTo(m_journal);
+		m_journalLength += 12 + bytes.size();
+	}
+
+	private void flush(boolean isSynced) throws IOException {
+		if (m_journal == null) {
+			return;
+		}
+		m_journal.flush();
+		if (isSynced) {
+			m_journalFile.getFD().sync();
+		}
+	}
+
+	private void openJournal(long length) {
+		try {
+			File dir = m_file.getAbsoluteFile().getParentFile();
+			if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+				throw new IOException("cannot create " + dir.getPath());
+			}
+			m_journalFile = new FileOutputStream(m_file, true);
+			m_journal = new DataOutputStream(new BufferedOutputStream(
+					m_journalFile, 1 << 16));
+			m_journalLength = length;
+		} catch (IOException ioe) {
+			closeJournal("cannot open result cache " + m_file.getPath()
+					+ ", results are cached in memory only");
+		}
+	}
+
+	private void closeJournal(String message) {
+		logger.error(message);
+		if (m_journal != null) {
+			try {
+				m_journal.close();
+			} catch (IOException ioe) {
+				logger.debug("cannot close result cache");
+			}
+		}
+		m_journal = null;
+		m_journalFile = null;
+	}
+
+	private void compactIfLarge() throws IOException {
+		if (m_journal != null && m_journalLength > 2 * m_maxBytes) {
+			compact();
+		}
+	}
+
+	/**
+	 * Rewrites the journal with the live entries only, oldest first, so that
+	 * a replay restores the same order of use.
+	 */
+	private void compact() throws IOException {
+		File tempFile = new File(m_file.getPath() + ".tmp");
+		m_journal.close();
+		m_journalFile = new FileOutputStream(tempFile);
+		m_journal = new DataOutputStream(new BufferedOutputStream(
+				m_journalFile, 1 << 16));
+		m_journalLength = 0;
+		for (Map.Entry<String, String[]> entry : m_entries.entrySet()) {
+			appendRecord(RECORD_PUT, entry.getKey(), entry.getValue());
+		}
+		flush(true);
+		m_journal.close();
+		if (m_file.exists() && !m_file.delete()) {
+			throw new IOException("cannot replace " + m_file.getPath());
+		}
+		if (!tempFile.renameTo(m_file)) {
+			throw new IOException("cannot rename " + tempFile.getPath());
+		}
+		long length = m_journalLength;
+		openJournal(length);
+		logger.debug("compacted result cache to " + m_entries.size()
+				+ " entries");
+	}
+}
@@ -6,8 +6,8 @@ import java.util.ArrayList;
 import javax.swing.JLabel;
 import javax.swing.JTable;
 import javax.swing.SwingConstants;
+import javax.swing.table.AbstractTableModel;
 import javax.swing.table.DefaultTableCellRenderer;
-import javax.swing.table.DefaultTableModel;
 import javax.swing.table.TableCellRenderer;
 import javax.swing.table.TableColumn;
 import javax.swing.table.TableColumnModel;
@@ -24,6 +24,7 @@ import org.apache.log4j.Logger;
  */
 public class ResultsTable {
 	private static final Logger logger = Logger.getLogger(ResultsTable.class);
+	private static final int MAX_NR_OF_ROWS_FOR_COLUMN_WIDTHS = 1000;
 
 	public ResultsTable() {
 		super();
@@ -34,82 +35,79 @@ public class ResultsTable {
 	 * Sets the table -- invokes the method to populate the table and makes it
 	 * look good / presentable.
 	 * 
-	 * @param locusArray
-	 *            array of loci
-	 * @param cytoBandArray
-	 *            array of cytoband data
-	 * @param geneArray
-	 *            array of gene data
-	 * @param repeatsNameArray
-	 *            array of repeats name data
-	 * @param repeatsClassArray
-	 *            array of repeats class data
-	 * @param repeatsFamilyArray
-	 *            array of repeats family data
-	 * @param omimArray
-	 *            array of omim data
-	 * @see backend.ResultsTable#populateTable(Locus[], String[], String[],
-	 *      String[], String[], String[], String[])
+	 * @param locusStore
+	 *            store of loci
+	 * @param cytoBandColumn
+	 *            column of cytoband data
+	 * @param geneColumn
+	 *            column of gene data
+	 * @param repeatsNameColumn
+	 *            column of repeats name data
+	 * @param repeatsClassColumn
+	 *            column of repeats class data
+	 * @param repeatsFamilyColumn
+	 *            column of repeats family data
+	 * @param omimColumn
+	 *            column of omim data
+	 * @see backend.ResultsTable#populateTable(LocusStore, AnnotationColumn,
+	 *      AnnotationColumn, AnnotationColumn, AnnotationColumn,
+	 *      AnnotationColumn, AnnotationColumn)
 	 */
-	public void setTable(Locus[] locusArray, String[] cytoBandArray,
-			String[] geneArray, String[] repeatsNameArray,
-			String[] repeatsClassArray, String[] repeatsFamilyArray,
-			String[] omimArray) {
+	public void setTable(LocusStore locusStore,
+			AnnotationColumn cytoBandColumn, AnnotationColumn geneColumn,
+			AnnotationColumn repeatsNameColumn,
+			AnnotationColumn repeatsClassColumn,
+			AnnotationColumn repeatsFamilyColumn, AnnotationColumn omimColumn) {
 
-		m_table = populateTable(locusArray, cytoBandArray, geneArray,
-				repeatsNameArray, repeatsClassArray, repeatsFamilyArray,
-				omimArray);
+		m_table = populateTable(locusStore, cytoBandColumn, geneColumn,
+				repeatsNameColumn, repeatsClassColumn, repeatsFamilyColumn,
+				omimColumn);
 
 		makeTablePresentable(m_table);
 
 	}
 
 	/**
-	 * Populates the table, i.e. fills all cells with contents from various
-	 * arrays.
+	 * Populates the table. The cells are not filled up front; the table model
+	 * reads the contents of a cell from the columns of the dataset only when
+	 * the cell is displayed.
 	 * 
-	 * @param locusArray
-	 *            array of loci
-	 * @param cytoBandArray
-	 *            array of cytoband data
-	 * @param geneArray
-	 *            array of gene data
-	 * @param repeatsNameArray
-	 *            array of repeats name data
-	 * @param repeatsClassArray
-	 *            array of repeats class data
-	 * @param repeatsFamilyArray
-	 *            array of repeats family data
-	 * @param omimArray
-	 *            array of omim data
+	 * @param locusStore
+	 *            store of loci
+	 * @param cytoBandColumn
+	 *            column of cytoband data
+	 * @param geneColumn
+	 *            column of gene data
+	 * @param repeatsNameColumn
+	 *            column of repeats name data
+	 * @param repeatsClassColumn
+	 *            column of repeats class data
+	 * @param repeatsFamilyColumn
+	 *            column of repeats family data
+	 * @param omimColumn
+	 *            column of omim data
 	 * @return table
 	 */
-	private JTable populateTable(Locus[] locusArray, String[] cytoBandArray,
-			String[] geneArray, String[] repeatsNameArray,
-			String[] repeatsClassArray, String[] repeatsFamilyArray,
-			String[] omimArray) {
+	private JTable populateTable(LocusStore locusStore,
+			AnnotationColumn cytoBandColumn, AnnotationColumn geneColumn,
+			AnnotationColumn repeatsNameColumn,
+			AnnotationColumn repeatsClassColumn,
+			AnnotationColumn repeatsFamilyColumn, AnnotationColumn omimColumn) {
 
 		JTable table = new JTable();
 
-		int numOfRecords = locusArray.length;
-
 		String[] headers = getHeaders();
-		int numOfColumns = headers.length;
-
-		String[][] tableContents = getTableContents(locusArray, cytoBandArray,
-				geneArray, repeatsNameArray, repeatsClassArray,
-				repeatsFamilyArray, omimArray, numOfRecords, numOfColumns);
 
-		table.setModel(new DefaultTableModel(tableContents, headers) {
-			private static final long serialVersionUID = 1L;
+		AnnotationColumn[] columns = getTableColumns(cytoBandColumn,
+				geneColumn, repeatsNameColumn, repeatsClassColumn,
+				repeatsFamilyColumn, omimColumn);
 
-			@Override
-			public boolean isCellEditable(int row, int col) {
-				return false;
-			}
-		});
+		ResultsTableModel model = new ResultsTableModel(locusStore, columns,
+				headers);
+		table.setModel(model);
 
 		listOfUneditedTables.add(table);
+		listOfTableModels.add(model);
 
 		return table;
 	}
@@ -120,12 +118,7 @@ public class ResultsTable {
 	 * @return headers of the table
 	 */
 	private String[] getHeaders() {
-		String[] headers = new String[] { GlobalParameters.STR_SR_NR,
-				GlobalParameters.STR_LOCUS, GlobalParameters.STR_SIZE,
-				GlobalParameters.STR_CYTOBAND, GlobalParameters.STR_GENE,
-				GlobalParameters.STR_REPEATS_NAME,
-				GlobalParameters.STR_REPEATS_CLASS,
-				GlobalParameters.STR_REPEATS_FAMILY, GlobalParameters.STR_OMIM };
+		String[] headers = getAllHeaders();
 
 		if (!GlobalParameters.FIND_CYTOBAND)
 			headers = ArrayUtils.removeElement(headers,
@@ -150,75 +143,58 @@ public class ResultsTable {
 	}
 
 	/**
-	 * This method gets the contents of the table, i.e. contents of each cell in
-	 * the table from the different arrays.
+	 * Returns the headers of all tracks, in the order in which they are shown.
+	 * 
+	 * @return headers
+	 */
+	private static String[] getAllHeaders() {
+		return new String[] { GlobalParameters.STR_SR_NR,
+				GlobalParameters.STR_LOCUS, GlobalParameters.STR_SIZE,
+				GlobalParameters.STR_CYTOBAND, GlobalParameters.STR_GENE,
+				GlobalParameters.STR_REPEATS_NAME,
+				GlobalParameters.STR_REPEATS_CLASS,
+				GlobalParameters.STR_REPEATS_FAMILY, GlobalParameters.STR_OMIM };
+	}
+
+	/**
+	 * This method picks the annotation columns which are shown in the table,
+	 * in the order of the headers.
 	 * 
-	 * @param locusArray
-	 *            array of loci
-	 * @param cytoBandArray
-	 *            array of cytoband data
-	 * @param geneArray
-	 *            array of gene data
-	 * @param repeatsNameArray
-	 *            array of repeats name data
-	 * @param repeatsClassArray
-	 *            array of repeats class data
-	 * @param repeatsFamilyArray
-	 *            array of repeats family data
-	 * @param omimArray
-	 *            array of omim data
-	 * @param numOfRows
-	 *            number of rows in the table
-	 * @param numOfColumns
-	 *            number of columns in the table
-	 * @return tableContents
+	 * @param cytoBandColumn
+	 *            column of cytoband data
+	 * @param geneColumn
+	 *            column of gene data
+	 * @param repeatsNameColumn
+	 *            column of repeats name data
+	 * @param repeatsClassColumn
+	 *            column of repeats class data
+	 * @param repeatsFamilyColumn
+	 *            column of repeats family data
+	 * @param omimColumn
+	 *            column of omim data
+	 * @return columns shown after sr nr, locus name, and size
 	 */
-	private String[][] getTableContents(Locus[] locusArray,
-			String[] cytoBandArray, String[] geneArray,
-			String[] repeatsNameArray, String[] repeatsClassArray,
-			String[] repeatsFamilyArray, String[] omimArray, int numOfRows,
-			int numOfColumns) {
+	private AnnotationColumn[] getTableColumns(
+			AnnotationColumn cytoBandColumn, AnnotationColumn geneColumn,
+			AnnotationColumn repeatsNameColumn,
+			AnnotationColumn repeatsClassColumn,
+			AnnotationColumn repeatsFamilyColumn, AnnotationColumn omimColumn) {
 
-		String[][] tableContents = new String[numOfRows][numOfColumns];
-		ArrayList<Integer> tempArrayList = new ArrayList<Integer>();
+		ArrayList<AnnotationColumn> columns = new ArrayList<AnnotationColumn>();
 
 		if (GlobalParameters.FIND_CYTOBAND)
-			tempArrayList.add(GlobalParameters.CYTOBAND_INDEX);
+			columns.add(cytoBandColumn);
 		if (GlobalParameters.FIND_GENE)
-			tempArrayList.add(GlobalParameters.GENE_INDEX);
+			columns.add(geneColumn);
 		if (GlobalParameters.FIND_REPEATS) {
-			tempArrayList.add(GlobalParameters.REPEATS_NAME_INDEX);
-			tempArrayList.add(GlobalParameters.REPEATS_CLASS_INDEX);
-			tempArrayList.add(GlobalParameters.REPEATS_FAMILY_INDEX);
+			columns.add(repeatsNameColumn);
+			columns.add(repeatsClassColumn);
+			columns.add(repeatsFamilyColumn);
 		}
 		if (GlobalParameters.FIND_OMIM)
-			tempArrayList.add(GlobalParameters.OMIM_INDEX);
-
-		Integer[] tempArray = tempArrayList.toArray(new Integer[tempArrayList
-				.size()]);
-		// ignore 3 columns, for sr nr, locus name, and size
-		String[][] data = new String[GlobalParameters.MAX_NR_OF_COLUMNS
-				- GlobalParameters.NR_OF_COLUMNS_TO_IGNORE][numOfRows];
-		data[GlobalParameters.CYTOBAND_INDEX] = cytoBandArray;
-		data[GlobalParameters.GENE_INDEX] = geneArray;
-		data[GlobalParameters.REPEATS_NAME_INDEX] = repeatsNameArray;
-		data[GlobalParameters.REPEATS_CLASS_INDEX] = repeatsClassArray;
-		data[GlobalParameters.REPEATS_FAMILY_INDEX] = repeatsFamilyArray;
-		data[GlobalParameters.OMIM_INDEX] = omimArray;
-
-		// fill the table contents from all arrays
-		for (int i = 0; i < numOfRows; i++) {
-			tableContents[i][0] = Integer.toString(i + 1);
-			tableContents[i][1] = locusArray[i].toString();
-			tableContents[i][2] = Integer.toString(locusArray[i].size());
-			for (int j = GlobalParameters.NR_OF_COLUMNS_TO_IGNORE; j < numOfColumns; j++) {
-				tableContents[i][j] = data[tempArray[j
-						- GlobalParameters.NR_OF_COLUMNS_TO_IGNORE]][i];
-			}
-		}
+			columns.add(omimColumn);
 
-		listOfTableContents.add(tableContents);
-		return tableContents;
+		return columns.toArray(new AnnotationColumn[columns.size()]);
 	}
 
 	/**
@@ -267,9 +243,13 @@ public class ResultsTable {
 	private void adjustColumnWidths(JTable table) {
 
 		TableColumnModel columnModel = table.getColumnModel();
+		// only look at the first rows, so that the contents of very large
+		// datasets are not read in full just to size the columns
+		int numOfRows = Math.min(table.getRowCount(),
+				MAX_NR_OF_ROWS_FOR_COLUMN_WIDTHS);
 		for (int col = 0; col < table.getColumnCount(); col++) {
 			int maxwidth = 0;
-			for (int row = 0; row < table.getRowCount(); row++) {
+			for (int row = 0; row < numOfRows; row++) {
 				TableCellRenderer rend = table.getCellRenderer(row, col);
 				Object value = table.getValueAt(row, col);
 				Component comp = rend.getTableCellRendererComponent(table,
@@ -300,53 +280,96 @@ public class ResultsTable {
 		int numOfTables = listOfUneditedTables.size();
 
 		for (int i = 0; i < numOfTables; i++) {
-			JTable table = listOfUneditedTables.get(i);
-			table.setModel(new DefaultTableModel(listOfTableContents.get(i),
-					listOfHeaders.get(i)));
-
-			if (!GlobalParameters.SHOW_SIZE) {
-				table.removeColumn(table.getColumnModel().getColumn(
-						table.getColumnModel().getColumnIndex(
-								GlobalParameters.STR_SIZE)));
-			}
-			if (GlobalParameters.FIND_CYTOBAND
-					&& !GlobalParameters.SHOW_CYTOBAND) {
-				table.removeColumn(table.getColumnModel().getColumn(
-						table.getColumnModel().getColumnIndex(
-								GlobalParameters.STR_CYTOBAND)));
-			}
-			if (GlobalParameters.FIND_GENE && !GlobalParameters.SHOW_GENE) {
-				table.removeColumn(table.getColumnModel().getColumn(
-						table.getColumnModel().getColumnIndex(
-								GlobalParameters.STR_GENE)));
-			}
-			if (GlobalParameters.FIND_REPEATS
-					&& !GlobalParameters.SHOW_REPEATS_NAME) {
-				table.removeColumn(table.getColumnModel().getColumn(
-						table.getColumnModel().getColumnIndex(
-								GlobalParameters.STR_REPEATS_NAME)));
-			}
-			if (GlobalParameters.FIND_REPEATS
-					&& !GlobalParameters.SHOW_REPEATS_CLASS) {
-				table.removeColumn(table.getColumnModel().getColumn(
-						table.getColumnModel().getColumnIndex(
-								GlobalParameters.STR_REPEATS_CLASS)));
-			}
-			if (GlobalParameters.FIND_REPEATS
-					&& !GlobalParameters.SHOW_REPEATS_FAMILY) {
-				table.removeColumn(table.getColumnModel().getColumn(
-						table.getColumnModel().getColumnIndex(
-								GlobalParameters.STR_REPEATS_FAMILY)));
-			}
-			if (GlobalParameters.FIND_OMIM && !GlobalParameters.SHOW_OMIM) {
-				table.removeColumn(table.getColumnModel().getColumn(
-						table.getColumnModel().getColumnIndex(
-								GlobalParameters.STR_OMIM)));
-			}
+			updateTableForViewMenu(i);
+		}
+	}
+
+	/**
+	 * Adds the columns of tracks fetched later to the table of a dataset. The
+	 * table model is extended in place, so the columns which the table
+	 * already shows are neither fetched nor copied again.
+	 * 
+	 * @param index
+	 *            index of the tab
+	 * @param headers
+	 *            headers of the new columns
+	 * @param columns
+	 *            new columns, in the order of the headers
+	 */
+	public void addColumns(int index, String[] headers,
+			AnnotationColumn[] columns) {
+		ResultsTableModel model = listOfTableModels.get(index);
+		model.addColumns(headers, columns);
+		listOfHeaders.set(index, model.headers);
+		updateTableForViewMenu(index);
+	}
+
+	/**
+	 * Restores the columns of one table, and hides those de-selected in the
+	 * View menu. A table only has the columns of the tracks fetched for its
+	 * dataset, which need not be the tracks selected now.
+	 * 
+	 * @param index
+	 *            index of the tab
+	 */
+	private void updateTableForViewMenu(int index) {
+		JTable table = listOfUneditedTables.get(index);
+		ResultsTableModel model = listOfTableModels.get(index);
+		// the model stays the same, only the columns are restored
+		table.setModel(model);
+		table.createDefaultColumnsFromModel();
+
+		removeHiddenColumn(table, model, GlobalParameters.STR_SIZE,
+				GlobalParameters.SHOW_SIZE);
+		removeHiddenColumn(table, model, GlobalParameters.STR_CYTOBAND,
+				GlobalParameters.SHOW_CYTOBAND);
+		removeHiddenColumn(table, model, GlobalParameters.STR_GENE,
+				GlobalParameters.SHOW_GENE);
+		removeHiddenColumn(table, model, GlobalParameters.STR_REPEATS_NAME,
+				GlobalParameters.SHOW_REPEATS_NAME);
+		removeHiddenColumn(table, model, GlobalParameters.STR_REPEATS_CLASS,
+				GlobalParameters.SHOW_REPEATS_CLASS);
+		removeHiddenColumn(table, model,
+				GlobalParameters.STR_REPEATS_FAMILY,
+				GlobalParameters.SHOW_REPEATS_FAMILY);
+		removeHiddenColumn(table, model, GlobalParameters.STR_OMIM,
+				GlobalParameters.SHOW_OMIM);
+
+		makeTablePresentable(table);
+		table.revalidate();
+	}
 
-			makeTablePresentable(table);
-			table.revalidate();
+	/**
+	 * Removes a column from the view of a table, if the table has it and it
+	 * is de-selected in the View menu.
+	 * 
+	 * @param table
+	 * @param model
+	 *            model of the table
+	 * @param header
+	 *            header of the column
+	 * @param isShown
+	 *            true if the column is selected in the View menu
+	 */
+	private void removeHiddenColumn(JTable table, ResultsTableModel model,
+			String header, boolean isShown) {
+		if (isShown || !model.hasColumn(header)) {
+			return;
 		}
+		table.removeColumn(table.getColumnModel().getColumn(
+				table.getColumnModel().getColumnIndex(header)));
+	}
+
+	/**
+	 * Removes a table when the tab of its dataset is closed.
+	 * 
+	 * @param index
+	 *            index of the tab
+	 */
+	public void removeTable(int index) {
+		listOfUneditedTables.remove(index);
+		listOfHeaders.remove(index);
+		listOfTableModels.remove(index);
 	}
 
 	/**
@@ -364,6 +387,111 @@ public class ResultsTable {
 	private JTable m_table = new JTable();
 	private ArrayList<JTable> listOfUneditedTables = new ArrayList<JTable>();
 	private ArrayList<String[]> listOfHeaders = new ArrayList<String[]>();
-	private ArrayList<String[][]> listOfTableContents = new ArrayList<String[][]>();
+	private ArrayList<ResultsTableModel> listOfTableModels = new ArrayList<ResultsTableModel>();
 	// end of variable declaration
+
+	/**
+	 * inner class: Table Model for the results table.
+	 * 
+	 * The model holds no cell contents of its own. The contents of a cell are
+	 * read from the locus store and the annotation columns of the dataset, so
+	 * that a table of any size takes up no memory on the java heap.
+	 * 
+	 * @author mkumar
+	 * @since v1.1
+	 */
+	class ResultsTableModel extends AbstractTableModel {
+
+		private static final long serialVersionUID = 1L;
+		private LocusStore locusStore;
+		private AnnotationColumn[] columns;
+		private String[] headers;
+
+		public ResultsTableModel(LocusStore locusStore,
+				AnnotationColumn[] columns, String[] headers) {
+			super();
+			this.locusStore = locusStore;
+			this.columns = columns;
+			this.headers = headers;
+		}
+
+		/**
+		 * Returns the number of columns in the table
+		 */
+		@Override
+		public int getColumnCount() {
+			return headers.length;
+		}
+
+		/**
+		 * Returns the number of rows in the table
+		 */
+		@Override
+		public int getRowCount() {
+			return locusStore.size();
+		}
+
+		/**
+		 * Returns the contents of a cell, as a String.
+		 */
+		@Override
+		public Object getValueAt(int row, int col) {
+			switch (col) {
+			case 0:
+				return Integer.toString(row + 1);
+			case 1:
+				return locusStore.getLocusString(row);
+			case 2:
+				return Integer.toString(locusStore.getLocusSize(row));
+			default:
+				return columns[col - GlobalParameters.NR_OF_COLUMNS_TO_IGNORE]
+						.get(row);
+			}
+		}
+
+		/**
+		 * Returns true if the table has a column with the given header.
+		 */
+		public boolean hasColumn(String header) {
+			return ArrayUtils.contains(headers, header);
+		}
+
+		/**
+		 * Adds columns, keeping the order of the headers of all tracks, and
+		 * tells the table that its structure changed.
+		 */
+		public void addColumns(String[] newHeaders,
+				AnnotationColumn[] newColumns) {
+			ArrayList<String> mergedHeaders = new ArrayList<String>();
+			ArrayList<AnnotationColumn> mergedColumns = new ArrayList<AnnotationColumn>();
+			for (String header : getAllHeaders()) {
+				int i = ArrayUtils.indexOf(headers, header);
+				int j = ArrayUtils.indexOf(newHeaders, header);
+				if (i != -1) {
+					mergedHeaders.add(header);
+					if (i >= GlobalParameters.NR_OF_COLUMNS_TO_IGNORE) {
+						mergedColumns.add(columns[i
+								- GlobalParameters.NR_OF_COLUMNS_TO_IGNORE]);
+					}
+				} else if (j != -1) {
+					mergedHeaders.add(header);
+					mergedColumns.add(newColumns[j]);
+				}
+			}
+			headers = mergedHeaders.toArray(new String[mergedHeaders.size()]);
+			columns = mergedColumns
+					.toArray(new AnnotationColumn[mergedColumns.size()]);
+			fireTableStructureChanged();
+		}
+
+		@Override
+		public boolean isCellEditable(int row, int col) {
+			return false;
+		}
+
+		@Override
+		public String getColumnName(int i) {
+			return headers[i];
+		}
+	}
 }
@@ -0,0 +1,412 @@
+package backend;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs sql queries so that identical queries which are in flight at the same
+ * time are sent to the database only once, and hedges point queries which
+ * take unusually long.
+ *
+ * Datasets opened in several tabs, or NeighboringGenes windows, often ask
+ * for the same locus while the first answer is still on its way. The first
+ * caller of a query runs it on its own statement, and reads the rows into
+ * memory; callers of the same query (on the same assembly) which arrive
+ * before it is answered wait for the same future and get the same rows, or
+ * the same SQLException. Once the query is answered, it is forgotten: later
+ * callers run it again, keeping results is left to the AnnotationCache.
+ *
+ * A point query (one locus, one row) which is not answered within the 95th
+ * percentile of the recent point queries is sent a second time, on another
+ * connection of the pool, if the ConcurrencyLimiter has a permit to spare.
+ * The lookups only read, so whichever copy answers first is taken, and the
+ * other one is cancelled. A copy is only cancelled while it still runs on its
+ * statement, so that the cancel never hits a later query on the same
+ * connection.
+ *
+ * @author mkumar
+ * @since v1.1
+ */
+public class SharedQueries {
+	private static final Logger logger = Logger.getLogger(SharedQueries.class);
+	// point queries observed before any query is hedged
+	private static final int MIN_LATENCIES_FOR_HEDGING = 20;
+	private static final long MIN_HEDGE_DELAY_MILLIS = 20;
+	// queries in flight, by assembly, row limit and sql
+	private static final ConcurrentHashMap<String, FutureTask<List<String[]>>> inFlight = new ConcurrentHashMap<String, FutureTask<List<String[]>>>();
+	private static final AtomicLong nrOfSharedQueries = new AtomicLong();
+	private static final AtomicLong nrOfHedgedQueries = new AtomicLong();
+	private static final AtomicLong nrOfHedgesWon = new AtomicLong();
+	private static final Latencies pointLatencies = new Latencies(256);
+	private static ScheduledExecutorService hedgeTimer = null;
+	private static ExecutorService hedgeExecutor = null;
+
+	private SharedQueries() {
+	}
+
+	/**
+	 * Runs a query, or waits for the same query if it is already in flight,
+	 * and returns its rows. The rows are shared by all callers of the query
+	 * and must not be changed.
+	 *
+	 * @param connectionPool
+	 *            pool on which a slow point query is hedged, or null for no
+	 *            hedging
+	 * @param st
+	 *            statement on which the query is run if it is not in flight
+	 * @param query
+	 *            sql query, which must only read
+	 * @param nrOfColumns
+	 *            number of columns to read, as Strings
+	 * @param maxRows
+	 *            largest number of rows to read, 0 for all rows; a query of
+	 *            one row is a point query
+	 * @return rows of the query
+	 * @throws SQLException
+	 *             if the query failed or timed out
+	 */
+	public static List<String[]> executeQuery(
+			final ConnectionPool connectionPool, final Statement st,
+			final String query, final int nrOfColumns, final int maxRows)
+			throws SQLException {
+		String key = AnnotationDictionary.getInstance().getAssembly() + '\t'
+				+ maxRows + '\t' + query;
+		FutureTask<List<String[]>> task = new FutureTask<List<String[]>>(
+				new Callable<List<String[]>>() {
+					@Override
+					public List<String[]> call() throws SQLException {
+						if (maxRows == 1 && connectionPool != null
+								&& GlobalParameters.HEDGE_SLOW_QUERIES) {
+							return readRowsHedged(connectionPool, st, query,
+									nrOfColumns);
+						}
+						return readRows(st, query, nrOfColumns, maxRows);
+					}
+				});
+		FutureTask<List<String[]>> sharedTask = inFlight.putIfAbsent(key, task);
+		if (sharedTask == null) {
+			try {
+				task.run();
+			} finally {
+				inFlight.remove(key, task);
+			}
+			sharedTask = task;
+		} else {
+			nrOfSharedQueries.incrementAndGet();
+		}
+
+		try {
+			return sharedTask.get();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("interrupted while waiting for query");
+		} catch (ExecutionException ee) {
+			if (ee.getCause() instanceof SQLException) {
+				throw (SQLException) ee.getCause();
+			}
+			throw new IllegalStateException("query failed", ee.getCause());
+		}
+	}
+
+	/**
+	 * Returns the number of queries which were not sent, because the same
+	 * query was in flight.
+	 *
+	 * @return number of shared queries
+	 */
+	public static long getNrOfSharedQueries() {
+		return nrOfSharedQueries.get();
+	}
+
+	/**
+	 * Returns the number of point queries which were sent a second time.
+	 *
+	 * @return number of hedged queries
+	 */
+	public static long getNrOfHedgedQueries() {
+		return nrOfHedgedQueries.get();
+	}
+
+	/**
+	 * Returns the number of hedged queries whose copy answered first.
+	 *
+	 * @return number of hedges which won
+	 */
+	public static long getNrOfHedgesWon() {
+		return nrOfHedgesWon.get();
+	}
+
+	private static List<String[]> readRows(Statement st, String query,
+			int nrOfColumns, int maxRows) throws SQLException {
+		List<String[]> rows = new ArrayList<String[]>();
+		ResultSet rs = null;
+		long startTime = System.nanoTime();
+		try {
+			rs = Database.executeQuery(st, query, maxRows == 1);
+			while ((maxRows == 0 || rows.size() < maxRows) && rs.next()) {
+				String[] row = new String[nrOfColumns];
+				for (int k = 0; k < nrOfColumns; k++) {
+					row[k] = rs.getString(k + 1);
+				}
+				rows.add(row);
+			}
+			QueryPlanner.recordQuery(startTime, rows.size());
+			if (maxRows == 1) {
+				pointLatencies.add(System.nanoTime() - startTime);
+			}
+		} finally {
+			try {
+				if (rs != null) {
+					rs.close();
+				}
+			} catch (SQLException ex) {
+				logger.debug("cannot close resultset of shared query");
+			}
+		}
+		return Collections.unmodifiableList(rows);
+	}
+
+	/**
+	 * Runs a point query on the statement of the caller, and a copy of it on
+	 * another connection if it takes longer than the 95th percentile.
+	 */
+	private static List<String[]> readRowsHedged(
+			final ConnectionPool connectionPool, Statement st,
+			final String query, final int nrOfColumns) throws SQLException {
+		long delay = pointLatencies.getPercentile(95,
+				MIN_LATENCIES_FOR_HEDGING);
+		if (delay < 0) {
+			return readRows(st, query, nrOfColumns, 1);
+		}
+		final Race race = new Race(st);
+		ScheduledFuture<?> timer = getHedgeTimer().schedule(new Runnable() {
+			@Override
+			public void run() {
+				getHedgeExecutor().execute(new Runnable() {
+					@Override
+					public void run() {
+						runHedge(connectionPool, race, query, nrOfColumns);
+					}
+				});
+			}
+		}, Math.max(TimeUnit.NANOSECONDS.toMillis(delay),
+				MIN_HEDGE_DELAY_MILLIS), TimeUnit.MILLISECONDS);
+
+		List<String[]> rows = null;
+		SQLException failure = null;
+		try {
+			rows = readRows(st, query, nrOfColumns, 1);
+		} catch (SQLException ex) {
+			failure = ex;
+		}
+		race.primary.finish();
+		timer.cancel(false);
+		if (race.claim(Race.PRIMARY)) {
+			// the copy, if it was sent, is not needed any more
+			race.hedge.cancel();
+			if (failure != null) {
+				throw failure;
+			}
+			return rows;
+		}
+		// the copy answered first, and cancelled the query of the caller;
+		// wait until the cancel is done, before the statement is released
+		race.awaitHedge();
+		nrOfHedgesWon.incrementAndGet();
+		return race.hedgeRows;
+	}
+
+	/**
+	 * Runs the copy of a point query on a connection of its own, unless the
+	 * query was answered in the meantime or no permit is to spare.
+	 */
+	private static void runHedge(ConnectionPool connectionPool, Race race,
+			String query, int nrOfColumns) {
+		if (race.isClaimed()) {
+			return;
+		}
+		Statement st = Database.tryCreateStatement(connectionPool);
+		if (st == null) {
+			return;
+		}
+		try {
+			if (!race.hedge.start(st)) {
+				return;
+			}
+			nrOfHedgedQueries.incrementAndGet();
+			List<String[]> rows = null;
+			try {
+				rows = readRows(st, query, nrOfColumns, 1);
+			} catch (SQLException ex) {
+				logger.debug("hedged query failed");
+			}
+			race.hedge.finish();
+			if (rows != null && race.claim(Race.HEDGE)) {
+				race.hedgeRows = rows;
+				race.primary.cancel();
+				race.hedgeDone.countDown();
+			}
+		} finally {
+			Database.releaseStatement(connectionPool, st);
+		}
+	}
+
+	private static synchronized ScheduledExecutorService getHedgeTimer() {
+		if (hedgeTimer == null) {
+			hedgeTimer = Executors
+					.newSingleThreadScheduledExecutor(new DaemonThreadFactory(
+							"hedge-timer"));
+		}
+		return hedgeTimer;
+	}
+
+	private static synchronized ExecutorService getHedgeExecutor() {
+		if (hedgeExecutor == null) {
+			hedgeExecutor = Executors
+					.newCachedThreadPool(new DaemonThreadFactory("hedged-query"));
+		}
+		return hedgeExecutor;
+	}
+
+	/**
+	 * A point query and its copy, of which the first to answer claims the
+	 * result.
+	 */
+	private static class Race {
+		static final int PRIMARY = 0;
+		static final int HEDGE = 1;
+		final Attempt primary = new Attempt();
+		final Attempt hedge = new Attempt();
+		final CountDownLatch hedgeDone = new CountDownLatch(1);
+		volatile List<String[]> hedgeRows;
+		private final AtomicInteger m_winner = new AtomicInteger(-1);
+
+		Race(Statement st) {
+			primary.start(st);
+		}
+
+		boolean claim(int attempt) {
+			return m_winner.compareAndSet(-1, attempt);
+		}
+
+		boolean isClaimed() {
+			return m_winner.get() != -1;
+		}
+
+		void awaitHedge() throws SQLException {
+			try {
+				hedgeDone.await();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("interrupted while waiting for query");
+			}
+		}
+	}
+
+	/**
+	 * A query running on a statement, which can be cancelled while it runs.
+	 */
+	private static class Attempt {
+		private Statement m_statement = null;
+		private boolean m_isFinished = false;
+
+		/**
+		 * Starts the attempt on a statement, unless it was cancelled before.
+		 */
+		synchronized boolean start(Statement st) {
+			if (m_isFinished) {
+				return false;
+			}
+			m_statement = st;
+			return true;
+		}
+
+		synchronized void finish() {
+			m_isFinished = true;
+		}
+
+		/**
+		 * Cancels the query if it still runs; an attempt which was not
+		 * started yet will not start.
+		 */
+		synchronized void cancel() {
+			if (!m_isFinished && m_statement != null) {
+				Database.cancelStatement(m_statement);
+			}
+			m_isFinished = true;
+		}
+	}
+
+	/**
+	 * Latencies of the most recent point queries.
+	 */
+	private static class Latencies {
+		private final long[] m_nanos;
+		private int m_next = 0;
+		private int m_size = 0;
+
+		Latencies(int capacity) {
+			this.m_nanos = new long[capacity];
+		}
+
+		synchronized void add(long nanos) {
+			m_nanos[m_next] = nanos;
+			m_next = (m_next + 1) % m_nanos.length;
+			m_size = Math.min(m_size + 1, m_nanos.length);
+		}
+
+		/**
+		 * Returns a percentile of the latencies in nanoseconds, or -1 if
+		 * fewer than minSize latencies were observed.
+		 */
+		synchronized long getPercentile(int percentile, int minSize) {
+			if (m_size < minSize) {
+				return -1;
+			}
+			long[] sorted = Arrays.copyOf(m_nanos, m_size);
+			Arrays.sort(sorted);
+			return sorted[Math.min(m_size - 1, m_size * percentile / 100)];
+		}
+	}
+
+	/**
+	 * Creates daemon threads, so that hedged queries do not keep the tool
+	 * from exiting.
+	 */
+	private static class DaemonThreadFactory implements ThreadFactory {
+		private final String m_name;
+		private final AtomicInteger m_nrOfThreads = new AtomicInteger();
+
+		DaemonThreadFactory(String name) {
+			this.m_name = name;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, m_name + "-"
+					+ m_nrOfThreads.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
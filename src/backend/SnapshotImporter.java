@@ -0,0 +1,610 @@
+package backend;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Builds the AnnotationSnapshot of an assembly from the UCSC table dumps in a
+ * local directory, eg. as downloaded from
+ * hgdownload.cse.ucsc.edu/goldenPath/hg19/database/.
+ *
+ * The directory must hold refGene.txt.gz, cytoBand.txt.gz, and either
+ * rmsk.txt.gz (hg19) or one chrN_rmsk.txt.gz per chromosome (hg18). Missing
+ * tables are left out of the snapshot, and are then fetched from the remote
+ * database as before. The map of OMIM accession numbers, if one was created
+ * in the settings, is copied into the snapshot as well.
+ *
+ * The dumps are decompressed and parsed in a pipeline: each file is read by a
+ * thread of its own, which cuts the decompressed text into large blocks of
+ * whole lines; the blocks are parsed by a pool with one thread per processor,
+ * and their rows are appended to the track in the order of the file.
+ *
+ * The row of an interval is its ordinal in the snapshot, which decides the
+ * first match of a locus in several intervals. The order of a dump is not the
+ * order in which the server returns the rows, so the rows of each track are
+ * sorted into the explicit order of its queries (start, end, and the values,
+ * eg. txStart, txEnd, name2 for refGene) before the snapshot is written.
+ *
+ * @author mkumar
+ * @since v1.1
+ */
+public class SnapshotImporter {
+	private static final Logger logger = Logger
+			.getLogger(SnapshotImporter.class);
+	// size of the blocks of decompressed text handed to the parsers
+	private static final int BLOCK_SIZE = 4 * 1024 * 1024;
+	// files read at the same time
+	private static final int MAX_FILES_IN_PARALLEL = 4;
+	// blocks of one file waiting to be parsed and appended
+	private static final int MAX_BLOCKS_IN_FLIGHT = 2 * Runtime.getRuntime()
+			.availableProcessors() + 1;
+	private static final Charset LATIN_1 = Charset.forName("ISO-8859-1");
+
+	// columns of the dumps: chrom, start, end, and the values to keep
+	private static final int[] REFGENE_COLUMNS = { 2, 4, 5, 12 };
+	private static final int[] CYTOBAND_COLUMNS = { 0, 1, 2, 3 };
+	private static final int[] RMSK_COLUMNS = { 5, 6, 7, 10, 11, 12 };
+
+	private File m_dumpDir;
+	private String m_assembly;
+	// string table of the snapshot
+	private HashMap<String, Integer> m_stringCodes = new HashMap<String, Integer>();
+	private ArrayList<String> m_strings = new ArrayList<String>();
+
+	/**
+	 * Constructor
+	 *
+	 * @param dumpDir
+	 *            directory holding the table dumps
+	 * @param assembly
+	 *            assembly of the dumps, eg. hg19
+	 */
+	public SnapshotImporter(File dumpDir, String assembly) {
+		super();
+		this.m_dumpDir = dumpDir;
+		this.m_assembly = assembly;
+	}
+
+	/**
+	 * Imports all table dumps and writes the snapshot of the assembly. The
+	 * snapshot is written to a temporary file first, and replaces the old one
+	 * only once it is complete.
+	 *
+	 * @return the snapshot file
+	 * @throws IOException
+	 *             if no dump can be found, or a dump cannot be read
+	 */
+	public File importDumps() throws IOException {
+		long startTime = System.currentTimeMillis();
+		ArrayList<TrackBuilder> tracks = new ArrayList<TrackBuilder>();
+		ArrayList<TrackBuilder> fileTracks = new ArrayList<TrackBuilder>();
+		ArrayList<File> files = new ArrayList<File>();
+
+		File refGene = new File(m_dumpDir, "refGene.txt.gz");
+		if (refGene.isFile()) {
+			TrackBuilder track = new TrackBuilder(
+					AnnotationSnapshot.TRACK_REFGENE, REFGENE_COLUMNS);
+			tracks.add(track);
+			fileTracks.add(track);
+			files.add(refGene);
+		}
+		File cytoBand = new File(m_dumpDir, "cytoBand.txt.gz");
+		if (cytoBand.isFile()) {
+			TrackBuilder track = new TrackBuilder(
+					AnnotationSnapshot.TRACK_CYTOBAND, CYTOBAND_COLUMNS);
+			tracks.add(track);
+			fileTracks.add(track);
+			files.add(cytoBand);
+		}
+		// the rmsk tables of all chromosomes are joined into one track
+		ArrayList<TrackBuilder> rmskParts = new ArrayList<TrackBuilder>();
+		for (File rmsk : findRmskFiles()) {
+			TrackBuilder part = new TrackBuilder(AnnotationSnapshot.TRACK_RMSK,
+					RMSK_COLUMNS);
+			rmskParts.add(part);
+			fileTracks.add(part);
+			files.add(rmsk);
+		}
+		if (files.isEmpty()) {
+			throw new IOException("no UCSC table dumps found in "
+					+ m_dumpDir.getPath());
+		}
+
+		ExecutorService readers = Executors.newFixedThreadPool(Math.min(
+				MAX_FILES_IN_PARALLEL, files.size()));
+		ExecutorService parsers = Executors.newFixedThreadPool(Runtime
+				.getRuntime().availableProcessors());
+		try {
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			for (int f = 0; f < files.size(); f++) {
+				futures.add(readers.submit(new ReadFileTask(files.get(f),
+						fileTracks.get(f), parsers)));
+			}
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new IOException("import interrupted");
+		} catch (ExecutionException ee) {
+			if (ee.getCause() instanceof IOException) {
+				throw (IOException) ee.getCause();
+			}
+			throw new IOException("cannot import table dumps: "
+					+ ee.getCause());
+		} finally {
+			readers.shutdownNow();
+			parsers.shutdownNow();
+		}
+		if (!rmskParts.isEmpty()) {
+			tracks.add(new TrackBuilder(rmskParts));
+		}
+		for (TrackBuilder track : tracks) {
+			track.sortRows();
+		}
+
+		File snapshotFile = AnnotationSnapshot.getFile(m_assembly);
+		writeSnapshot(snapshotFile, tracks);
+		AnnotationSnapshot.reset(m_assembly);
+
+		long rows = 0;
+		for (TrackBuilder track : tracks) {
+			rows += track.size;
+		}
+		logger.info("imported " + rows + " rows of " + files.size()
+				+ " table dumps into " + snapshotFile.getName() + " in "
+				+ (System.currentTimeMillis() - startTime) + " ms");
+		return snapshotFile;
+	}
+
+	/**
+	 * Returns the rmsk dumps: rmsk.txt.gz if it exists, the chrN_rmsk.txt.gz
+	 * files otherwise, sorted by name.
+	 */
+	private File[] findRmskFiles() {
+		File rmsk = new File(m_dumpDir, "rmsk.txt.gz");
+		if (rmsk.isFile()) {
+			return new File[] { rmsk };
+		}
+		File[] files = m_dumpDir.listFiles();
+		if (files == null) {
+			return new File[0];
+		}
+		ArrayList<File> rmskFiles = new ArrayList<File>();
+		for (File file : files) {
+			if (file.getName().startsWith("chr")
+					&& file.getName().endsWith("_rmsk.txt.gz")) {
+				rmskFiles.add(file);
+			}
+		}
+		File[] sorted = rmskFiles.toArray(new File[rmskFiles.size()]);
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	/**
+	 * Returns the code of a string in the string table of the snapshot. Only
+	 * called by the reading threads while appending parsed blocks.
+	 */
+	private synchronized int encode(String value) {
+		Integer code = m_stringCodes.get(value);
+		if (code == null) {
+			code = m_strings.size();
+			m_stringCodes.put(value, code);
+			m_strings.add(value);
+		}
+		return code;
+	}
+
+	/**
+	 * Writes the snapshot file. See AnnotationSnapshot for the format.
+	 */
+	private void writeSnapshot(File snapshotFile, List<TrackBuilder> tracks)
+			throws IOException {
+		// the map of the OMIM accession numbers is taken over as well
+		HashMap<String, String> omimAccessionNums = readOmimAccessionNums();
+		int[] genes = new int[omimAccessionNums.size()];
+		int[] accessionNums = new int[omimAccessionNums.size()];
+		int nrOfGenes = 0;
+		for (String gene : omimAccessionNums.keySet()) {
+			genes[nrOfGenes] = encode(gene);
+			accessionNums[nrOfGenes] = encode(omimAccessionNums.get(gene));
+			nrOfGenes++;
+		}
+
+		SnapshotWriter writer = new SnapshotWriter(m_assembly, m_strings);
+		for (TrackBuilder track : tracks) {
+			writer.addIntervalTrack(track.name, track.sourceTime, track.chrs,
+					track.starts, track.ends, track.values, track.size);
+		}
+		if (nrOfGenes > 0) {
+			writer.addGeneMap(new File(GlobalParameters.PATH_OMIM_ACC_NR_MAP)
+					.lastModified(), genes, accessionNums, nrOfGenes);
+		}
+		writer.write(snapshotFile);
+	}
+
+	/**
+	 * Reads the serialized map of OMIM accession numbers, as written from
+	 * mim2gene.txt in the settings.
+	 *
+	 * @return map from gene name to accession number, empty if there is none
+	 */
+	@SuppressWarnings("unchecked")
+	private HashMap<String, String> readOmimAccessionNums() {
+		File file = new File(GlobalParameters.PATH_OMIM_ACC_NR_MAP);
+		if (!file.isFile()) {
+			return new HashMap<String, String>();
+		}
+		try {
+			ObjectInputStream in = new ObjectInputStream(new FileInputStream(
+					file));
+			try {
+				Object obj = in.readObject();
+				if (obj instanceof HashMap<?, ?>) {
+					return (HashMap<String, String>) obj;
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException ioe) {
+			logger.debug("cannot read serialized omim accession numbers object");
+		} catch (ClassNotFoundException cnfe) {
+			logger.debug("cannot read serialized omim accession numbers object");
+		}
+		return new HashMap<String, String>();
+	}
+
+	/**
+	 * Reads one dump, and hands blocks of whole lines to the parsers.
+	 */
+	private class ReadFileTask implements Callable<Void> {
+		private File file;
+		private TrackBuilder track;
+		private ExecutorService parsers;
+
+		ReadFileTask(File file, TrackBuilder track, ExecutorService parsers) {
+			this.file = file;
+			this.track = track;
+			this.parsers = parsers;
+		}
+
+		@Override
+		public Void call() throws Exception {
+			logger.debug("importing " + file.getName());
+			track.sourceTime = file.lastModified();
+			List<Future<ParsedBlock>> blocks = new ArrayList<Future<ParsedBlock>>();
+			InputStream in = new GZIPInputStream(new FileInputStream(file),
+					1 << 16);
+			try {
+				byte[] buffer = new byte[BLOCK_SIZE];
+				int length = 0;
+				int read;
+				while ((read = in.read(buffer, length, buffer.length - length)) != -1) {
+					length += read;
+					if (length < buffer.length) {
+						continue;
+					}
+					// hand over the whole lines, keep the rest for the next
+					// block
+					int end = length;
+					while (end > 0 && buffer[end - 1] != '\n') {
+						end--;
+					}
+					if (end == 0) {
+						// a single line longer than a block
+						buffer = Arrays.copyOf(buffer, buffer.length * 2);
+						continue;
+					}
+					blocks.add(parsers.submit(new ParseBlockTask(buffer, end,
+							track.columns)));
+					// do not read further ahead than the parsers can follow
+					while (blocks.size() > MAX_BLOCKS_IN_FLIGHT) {
+						track.append(blocks.remove(0).get());
+					}
+					byte[] next = new byte[Math.max(BLOCK_SIZE, length - end)];
+					System.arraycopy(buffer, end, next, 0, length - end);
+					buffer = next;
+					length -= end;
+				}
+				if (length > 0) {
+					blocks.add(parsers.submit(new ParseBlockTask(buffer,
+							length, track.columns)));
+				}
+			} finally {
+				in.close();
+			}
+
+			// append the remaining blocks in the order of the file
+			for (Future<ParsedBlock> block : blocks) {
+				track.append(block.get());
+			}
+			logger.debug("imported " + track.size + " rows of "
+					+ file.getName());
+			return null;
+		}
+	}
+
+	/**
+	 * Parses one block of lines into rows.
+	 */
+	private static class ParseBlockTask implements Callable<ParsedBlock> {
+		private byte[] buffer;
+		private int length;
+		private int[] columns;
+
+		ParseBlockTask(byte[] buffer, int length, int[] columns) {
+			this.buffer = buffer;
+			this.length = length;
+			this.columns = columns;
+		}
+
+		@Override
+		public ParsedBlock call() {
+			ParsedBlock block = new ParsedBlock(columns.length);
+			int maxColumn = 0;
+			for (int column : columns) {
+				maxColumn = Math.max(maxColumn, column);
+			}
+			int[] fieldStarts = new int[maxColumn + 2];
+			int pos = 0;
+			while (pos < length) {
+				// find the fields of the line
+				int nrOfFields = 0;
+				fieldStarts[nrOfFields++] = pos;
+				while (pos < length && buffer[pos] != '\n') {
+					if (buffer[pos] == '\t' && nrOfFields <= maxColumn) {
+						fieldStarts[nrOfFields++] = pos + 1;
+					}
+					pos++;
+				}
+				int lineEnd = pos;
+				pos++;
+				if (nrOfFields <= maxColumn) {
+					// blank or truncated line
+					continue;
+				}
+				block.addRow(buffer, fieldStarts, lineEnd, columns);
+			}
+			return block;
+		}
+	}
+
+	/**
+	 * Rows of one parsed block, with the strings coded in a dictionary of the
+	 * block, so that the parsers do not have to share one.
+	 */
+	private static class ParsedBlock {
+		private HashMap<String, Integer> codes = new HashMap<String, Integer>();
+		private ArrayList<String> strings = new ArrayList<String>();
+		private int[] starts = new int[4096];
+		private int[] ends = new int[4096];
+		// chromosome and values, as codes of the block
+		private int[][] codedFields;
+		private int size = 0;
+
+		ParsedBlock(int nrOfColumns) {
+			codedFields = new int[nrOfColumns - 2][4096];
+		}
+
+		void addRow(byte[] buffer, int[] fieldStarts, int lineEnd,
+				int[] columns) {
+			if (size == starts.length) {
+				starts = Arrays.copyOf(starts, size * 2);
+				ends = Arrays.copyOf(ends, size * 2);
+				for (int k = 0; k < codedFields.length; k++) {
+					codedFields[k] = Arrays.copyOf(codedFields[k], size * 2);
+				}
+			}
+			starts[size] = parseInt(buffer, fieldStarts[columns[1]]);
+			ends[size] = parseInt(buffer, fieldStarts[columns[2]]);
+			codedFields[0][size] = encode(field(buffer, fieldStarts,
+					columns[0], lineEnd));
+			for (int k = 3; k < columns.length; k++) {
+				codedFields[k - 2][size] = encode(field(buffer, fieldStarts,
+						columns[k], lineEnd));
+			}
+			size++;
+		}
+
+		private int encode(String value) {
+			Integer code = codes.get(value);
+			if (code == null) {
+				code = strings.size();
+				codes.put(value, code);
+				strings.add(value);
+			}
+			return code;
+		}
+
+		private static String field(byte[] buffer, int[] fieldStarts,
+				int column, int lineEnd) {
+			int from = fieldStarts[column];
+			int to = from;
+			while (to < lineEnd && buffer[to] != '\t' && buffer[to] != '\r') {
+				to++;
+			}
+			return new String(buffer, from, to - from, LATIN_1);
+		}
+
+		private static int parseInt(byte[] buffer, int pos) {
+			int value = 0;
+			boolean isNegative = buffer[pos] == '-';
+			if (isNegative) {
+				pos++;
+			}
+			while (buffer[pos] >= '0' && buffer[pos] <= '9') {
+				value = value * 10 + (buffer[pos++] - '0');
+			}
+			return isNegative ? -value : value;
+		}
+	}
+
+	/**
+	 * Rows of one track, with the strings coded in the string table of the
+	 * snapshot.
+	 */
+	private class TrackBuilder {
+		private String name;
+		private int[] columns;
+		private int[] chrs = new int[4096];
+		private int[] starts = new int[4096];
+		private int[] ends = new int[4096];
+		private int[][] values;
+		private int size = 0;
+		// time of the newest dump of the track
+		private long sourceTime = 0;
+
+		TrackBuilder(String name, int[] columns) {
+			this.name = name;
+			this.columns = columns;
+			this.values = new int[columns.length - 3][4096];
+		}
+
+		/**
+		 * Joins the tracks read from several files, in the given order.
+		 */
+		TrackBuilder(List<TrackBuilder> parts) {
+			this(parts.get(0).name, parts.get(0).columns);
+			for (TrackBuilder part : parts) {
+				size += part.size;
+				sourceTime = Math.max(sourceTime, part.sourceTime);
+			}
+			chrs = new int[size];
+			starts = new int[size];
+			ends = new int[size];
+			for (int k = 0; k < values.length; k++) {
+				values[k] = new int[size];
+			}
+			int offset = 0;
+			for (TrackBuilder part : parts) {
+				System.arraycopy(part.chrs, 0, chrs, offset, part.size);
+				System.arraycopy(part.starts, 0, starts, offset, part.size);
+				System.arraycopy(part.ends, 0, ends, offset, part.size);
+				for (int k = 0; k < values.length; k++) {
+					System.arraycopy(part.values[k], 0, values[k], offset,
+							part.size);
+				}
+				offset += part.size;
+			}
+		}
+
+		/**
+		 * Sorts the rows by start and end coordinate, and by their values
+		 * for equal coordinates, like "ORDER BY start, end, BINARY value"
+		 * on the server: the values are latin-1, whose bytes compare like
+		 * the chars of the strings.
+		 */
+		void sortRows() {
+			long[] keys = new long[size];
+			for (int row = 0; row < size; row++) {
+				keys[row] = ((long) starts[row] << 32) | row;
+			}
+			Arrays.sort(keys);
+			int[] order = new int[size];
+			for (int i = 0; i < size; i++) {
+				order[i] = (int) keys[i];
+			}
+			keys = null;
+			// the rows of one start are few, they are ordered further there
+			Comparator<Integer> byEndAndValues = new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					if (ends[a] != ends[b]) {
+						return ends[a] < ends[b] ? -1 : 1;
+					}
+					for (int k = 0; k < values.length; k++) {
+						int cmp = m_strings.get(values[k][a]).compareTo(
+								m_strings.get(values[k][b]));
+						if (cmp != 0) {
+							return cmp;
+						}
+					}
+					return a.compareTo(b);
+				}
+			};
+			int from = 0;
+			while (from < size) {
+				int to = from + 1;
+				while (to < size && starts[order[to]] == starts[order[from]]) {
+					to++;
+				}
+				if (to - from > 1) {
+					Integer[] group = new Integer[to - from];
+					for (int i = from; i < to; i++) {
+						group[i - from] = order[i];
+					}
+					Arrays.sort(group, byEndAndValues);
+					for (int i = from; i < to; i++) {
+						order[i] = group[i - from];
+					}
+				}
+				from = to;
+			}
+
+			int[] sortedChrs = new int[size];
+			int[] sortedStarts = new int[size];
+			int[] sortedEnds = new int[size];
+			for (int i = 0; i < size; i++) {
+				sortedChrs[i] = chrs[order[i]];
+				sortedStarts[i] = starts[order[i]];
+				sortedEnds[i] = ends[order[i]];
+			}
+			for (int k = 0; k < values.length; k++) {
+				int[] sortedValues = new int[size];
+				for (int i = 0; i < size; i++) {
+					sortedValues[i] = values[k][order[i]];
+				}
+				values[k] = sortedValues;
+			}
+			chrs = sortedChrs;
+			starts = sortedStarts;
+			ends = sortedEnds;
+		}
+
+		void append(ParsedBlock block) {
+			int[] blockCodes = new int[block.strings.size()];
+			for (int s = 0; s < blockCodes.length; s++) {
+				blockCodes[s] = encode(block.strings.get(s));
+			}
+			int capacity = starts.length;
+			while (capacity < size + block.size) {
+				capacity *= 2;
+			}
+			if (capacity > starts.length) {
+				chrs = Arrays.copyOf(chrs, capacity);
+				starts = Arrays.copyOf(starts, capacity);
+				ends = Arrays.copyOf(ends, capacity);
+				for (int k = 0; k < values.length; k++) {
+					values[k] = Arrays.copyOf(values[k], capacity);
+				}
+			}
+			System.arraycopy(block.starts, 0, starts, size, block.size);
+			System.arraycopy(block.ends, 0, ends, size, block.size);
+			for (int i = 0; i < block.size; i++) {
+				chrs[size + i] = blockCodes[block.codedFields[0][i]];
+				for (int k = 0; k < values.length; k++) {
+					values[k][size + i] = blockCodes[block.codedFields[k + 1][i]];
+				}
+			}
+			size += block.size;
+		}
+	}
+}
@@ -0,0 +1,434 @@
+package backend;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Writes the file of an AnnotationSnapshot. See AnnotationSnapshot for the
+ * format.
+ *
+ * The tracks are handed over as parallel int arrays in the order of the dump,
+ * with the strings as codes in the string table of the snapshot. The writer
+ * sorts the rows of each chromosome and builds the lookup tree, so that the
+ * reader can use the mapped file as it is.
+ *
+ * @author mkumar
+ * @since v1.1
+ */
+public class SnapshotWriter {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private String m_assembly;
+	private List<String> m_strings;
+	private ArrayList<Section> m_sections = new ArrayList<Section>();
+
+	/**
+	 * Constructor
+	 *
+	 * @param assembly
+	 *            assembly of the snapshot, eg. hg19
+	 * @param strings
+	 *            string table of the snapshot; the codes of the tracks are
+	 *            indexes into it
+	 */
+	public SnapshotWriter(String assembly, List<String> strings) {
+		super();
+		this.m_assembly = assembly;
+		this.m_strings = strings;
+		m_sections.add(new StringsSection());
+	}
+
+	/**
+	 * Adds a track of intervals, eg. refGene.
+	 *
+	 * @param name
+	 *            name of the track, eg. AnnotationSnapshot.TRACK_REFGENE
+	 * @param sourceTime
+	 *            time of the dump the track was read from, in milliseconds
+	 * @param chrs
+	 *            chromosome of each row, as code
+	 * @param starts
+	 *            start coordinate of each row
+	 * @param ends
+	 *            end coordinate of each row
+	 * @param values
+	 *            values of each row, as codes, eg. values[0] holds name2
+	 * @param size
+	 *            number of rows
+	 */
+	public void addIntervalTrack(String name, long sourceTime, int[] chrs,
+			int[] starts, int[] ends, int[][] values, int size) {
+		m_sections.add(new IntervalSection(name, sourceTime, chrs, starts,
+				ends, values, size));
+	}
+
+	/**
+	 * Adds a map from gene name to OMIM accession number.
+	 *
+	 * @param sourceTime
+	 *            time of the file the map was read from, in milliseconds
+	 * @param genes
+	 *            gene names, as codes
+	 * @param accessionNums
+	 *            accession number of each gene, as codes
+	 * @param size
+	 *            number of genes
+	 */
+	public void addGeneMap(long sourceTime, int[] genes, int[] accessionNums,
+			int size) {
+		m_sections.add(new GeneMapSection(sourceTime, genes, accessionNums,
+				size));
+	}
+
+	/**
+	 * Writes the snapshot to a temporary file first, and replaces the given
+	 * file only once the temporary one is complete and flushed to disk, so
+	 * that a crash never leaves a truncated snapshot behind.
+	 *
+	 * @param file
+	 *            snapshot file
+	 * @throws IOException
+	 *             if the file cannot be written
+	 */
+	public void write(File file) throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("cannot create directory " + dir.getPath());
+		}
+		File tempFile = new File(file.getPath() + ".tmp");
+		RandomAccessFile raf = new RandomAccessFile(tempFile, "rw");
+		try {
+			raf.setLength(0);
+			FileChannel channel = raf.getChannel();
+			int headerLength = getHeaderLength();
+			channel.position(headerLength);
+
+			Output out = new Output(channel, headerLength);
+			long[] offsets = new long[m_sections.size()];
+			long[] lengths = new long[m_sections.size()];
+			for (int s = 0; s < m_sections.size(); s++) {
+				out.align();
+				offsets[s] = out.position;
+				m_sections.get(s).write(out);
+				lengths[s] = out.position - offsets[s];
+			}
+			out.align();
+			out.flush();
+
+			ByteBuffer header = ByteBuffer.allocate(headerLength).order(
+					ByteOrder.LITTLE_ENDIAN);
+			header.put(AnnotationSnapshot.MAGIC.getBytes(UTF_8));
+			header.putInt(AnnotationSnapshot.FORMAT_VERSION);
+			header.putInt(headerLength);
+			header.putLong(out.position - headerLength);
+			header.putLong(out.crc.getValue());
+			header.putLong(System.currentTimeMillis());
+			putString(header, m_assembly);
+			header.putInt(m_sections.size());
+			for (int s = 0; s < m_sections.size(); s++) {
+				Section section = m_sections.get(s);
+				putString(header, section.name);
+				header.putInt(section.version);
+				header.putLong(section.sourceTime);
+				header.putLong(offsets[s]);
+				header.putLong(lengths[s]);
+			}
+			header.rewind();
+			long position = 0;
+			while (header.hasRemaining()) {
+				position += channel.write(header, position);
+			}
+			channel.force(true);
+		} finally {
+			raf.close();
+		}
+
+		// an open snapshot of the assembly maps the old file
+		AnnotationSnapshot.reset(m_assembly);
+		if (file.exists() && !file.delete()) {
+			throw new IOException("cannot replace " + file.getPath());
+		}
+		if (!tempFile.renameTo(file)) {
+			throw new IOException("cannot rename " + tempFile.getPath());
+		}
+	}
+
+	private int getHeaderLength() {
+		int length = AnnotationSnapshot.MAGIC.length() + 4 + 4 + 8 + 8 + 8
+				+ getStringLength(m_assembly) + 4;
+		for (Section section : m_sections) {
+			length += getStringLength(section.name) + 4 + 8 + 8 + 8;
+		}
+		return (length + 7) & ~7;
+	}
+
+	private static int getStringLength(String value) {
+		return 2 + value.getBytes(UTF_8).length;
+	}
+
+	private static void putString(ByteBuffer buffer, String value) {
+		byte[] bytes = value.getBytes(UTF_8);
+		buffer.putShort((short) bytes.length);
+		buffer.put(bytes);
+	}
+
+	/**
+	 * Buffered output to the file channel, which keeps the checksum of all
+	 * bytes written.
+	 */
+	private static class Output {
+		private FileChannel channel;
+		private ByteBuffer buffer = ByteBuffer.allocate(1 << 20).order(
+				ByteOrder.LITTLE_ENDIAN);
+		private CRC32 crc = new CRC32();
+		private long position;
+
+		Output(FileChannel channel, long position) {
+			this.channel = channel;
+			this.position = position;
+		}
+
+		void writeInt(int value) throws IOException {
+			if (buffer.remaining() < 4) {
+				flush();
+			}
+			buffer.putInt(value);
+			position += 4;
+		}
+
+		void writeByte(byte value) throws IOException {
+			if (!buffer.hasRemaining()) {
+				flush();
+			}
+			buffer.put(value);
+			position++;
+		}
+
+		/**
+		 * Pads the output to the next multiple of 8 bytes, so that each
+		 * section can be read as an IntBuffer.
+		 */
+		void align() throws IOException {
+			while (position % 8 != 0) {
+				writeByte((byte) 0);
+			}
+		}
+
+		void flush() throws IOException {
+			buffer.flip();
+			crc.update(buffer.array(), 0, buffer.limit());
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear();
+		}
+	}
+
+	/**
+	 * One section of the snapshot file.
+	 */
+	private abstract static class Section {
+		private String name;
+		private int version;
+		private long sourceTime;
+
+		Section(String name, int version, long sourceTime) {
+			this.name = name;
+			this.version = version;
+			this.sourceTime = sourceTime;
+		}
+
+		abstract void write(Output out) throws IOException;
+	}
+
+	/**
+	 * The string table: the number of strings, the offset of each string and
+	 * the end of the last one, and the UTF-8 bytes of all strings.
+	 */
+	private class StringsSection extends Section {
+		StringsSection() {
+			super(AnnotationSnapshot.SECTION_STRINGS,
+					AnnotationSnapshot.STRINGS_VERSION, 0);
+		}
+
+		@Override
+		void write(Output out) throws IOException {
+			byte[][] bytes = new byte[m_strings.size()][];
+			out.writeInt(bytes.length);
+			int offset = 0;
+			for (int s = 0; s < bytes.length; s++) {
+				bytes[s] = m_strings.get(s).getBytes(UTF_8);
+				out.writeInt(offset);
+				offset += bytes[s].length;
+			}
+			out.writeInt(offset);
+			for (byte[] value : bytes) {
+				for (byte b : value) {
+					out.writeByte(b);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A track of intervals, with the rows grouped by chromosome and sorted as
+	 * in an IntervalIndex.
+	 */
+	private class IntervalSection extends Section {
+		private int[] chrs;
+		private int[] starts;
+		private int[] ends;
+		private int[][] values;
+		private int size;
+
+		IntervalSection(String name, long sourceTime, int[] chrs,
+				int[] starts, int[] ends, int[][] values, int size) {
+			super(name, AnnotationSnapshot.INTERVAL_TRACK_VERSION, sourceTime);
+			this.chrs = chrs;
+			this.starts = starts;
+			this.ends = ends;
+			this.values = values;
+			this.size = size;
+		}
+
+		@Override
+		void write(Output out) throws IOException {
+			// the value of each interval is its row in the dump, which is
+			// also its ordinal
+			IntervalIndex index = new IntervalIndex();
+			HashMap<String, Integer> chrCodes = new HashMap<String, Integer>();
+			for (int row = 0; row < size; row++) {
+				String chr = m_strings.get(chrs[row]);
+				chrCodes.put(chr, chrs[row]);
+				index.add(chr, starts[row], ends[row], row);
+			}
+			index.build();
+			ArrayList<String> chrNames = new ArrayList<String>(index.getChrs());
+			Collections.sort(chrNames);
+			ArrayList<IntervalIndex.Intervals> intervalsPerChr = new ArrayList<IntervalIndex.Intervals>();
+			int treeLength = 0;
+			for (String chr : chrNames) {
+				intervalsPerChr.add(index.getIntervals(chr));
+				treeLength += index.getIntervals(chr).getNrOfLeaves();
+			}
+
+			out.writeInt(values.length);
+			out.writeInt(size);
+			out.writeInt(chrNames.size());
+			out.writeInt(treeLength);
+			int firstRow = 0;
+			int treeOffset = 0;
+			for (int c = 0; c < chrNames.size(); c++) {
+				IntervalIndex.Intervals intervals = intervalsPerChr.get(c);
+				out.writeInt(chrCodes.get(chrNames.get(c)));
+				out.writeInt(firstRow);
+				out.writeInt(intervals.size());
+				out.writeInt(treeOffset);
+				out.writeInt(intervals.getNrOfLeaves());
+				firstRow += intervals.size();
+				treeOffset += intervals.getNrOfLeaves();
+			}
+			for (IntervalIndex.Intervals intervals : intervalsPerChr) {
+				for (int i = 0; i < intervals.size(); i++) {
+					out.writeInt(intervals.getStart(i));
+				}
+			}
+			for (IntervalIndex.Intervals intervals : intervalsPerChr) {
+				for (int i = 0; i < intervals.size(); i++) {
+					out.writeInt(intervals.getEnd(i));
+				}
+			}
+			for (IntervalIndex.Intervals intervals : intervalsPerChr) {
+				for (int i = 0; i < intervals.size(); i++) {
+					out.writeInt(intervals.getOrdinal(i));
+				}
+			}
+			for (IntervalIndex.Intervals intervals : intervalsPerChr) {
+				for (int i : sortByEnd(intervals)) {
+					out.writeInt(i);
+				}
+			}
+			for (int k = 0; k < values.length; k++) {
+				for (IntervalIndex.Intervals intervals : intervalsPerChr) {
+					for (int i = 0; i < intervals.size(); i++) {
+						out.writeInt(values[k][intervals.getValue(i)]);
+					}
+				}
+			}
+			for (IntervalIndex.Intervals intervals : intervalsPerChr) {
+				for (int node = 0; node < intervals.getNrOfLeaves(); node++) {
+					out.writeInt(intervals.getMaxEnd(node));
+				}
+			}
+		}
+
+		/**
+		 * Returns the indexes of the intervals sorted by end coordinate, and
+		 * by start order for equal ends.
+		 */
+		private int[] sortByEnd(IntervalIndex.Intervals intervals) {
+			long[] keys = new long[intervals.size()];
+			for (int i = 0; i < keys.length; i++) {
+				keys[i] = ((long) intervals.getEnd(i) << 32) | i;
+			}
+			Arrays.sort(keys);
+			int[] order = new int[keys.length];
+			for (int i = 0; i < keys.length; i++) {
+				order[i] = (int) keys[i];
+			}
+			return order;
+		}
+	}
+
+	/**
+	 * The map from gene name to OMIM accession number: the number of genes,
+	 * the genes sorted by name, and the accession number of each.
+	 */
+	private class GeneMapSection extends Section {
+		private int[] genes;
+		private int[] accessionNums;
+		private int size;
+
+		GeneMapSection(long sourceTime, int[] genes, int[] accessionNums,
+				int size) {
+			super(AnnotationSnapshot.TRACK_OMIM,
+					AnnotationSnapshot.GENE_MAP_VERSION, sourceTime);
+			this.genes = genes;
+			this.accessionNums = accessionNums;
+			this.size = size;
+		}
+
+		@Override
+		void write(Output out) throws IOException {
+			Integer[] order = new Integer[size];
+			for (int i = 0; i < size; i++) {
+				order[i] = i;
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					return m_strings.get(genes[a]).compareTo(
+							m_strings.get(genes[b]));
+				}
+			});
+			out.writeInt(size);
+			for (int i : order) {
+				out.writeInt(genes[i]);
+			}
+			for (int i : order) {
+				out.writeInt(accessionNums[i]);
+			}
+		}
+	}
+}
@@ -0,0 +1,287 @@
+package backend;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs the stages of a task, eg. the annotation tracks of a dataset, in a
+ * bounded pool of threads.
+ *
+ * Each stage names the stages it depends on. A stage is started as soon as
+ * all of its dependencies are complete, so that independent stages run at the
+ * same time and the task takes about as long as its longest chain of stages.
+ * The stages are started and their completion is noted in the thread that
+ * calls run(); a Listener is informed each time a stage completes.
+ *
+ * A stage which fails with an exception is logged, and the stages which
+ * depend on it, directly or through other stages, are skipped; the other
+ * stages still run. The failed and the skipped stages count as complete for
+ * the Listener, and are listed by getFailedStages() once run() returns.
+ *
+ * @author mkumar
+ * @since v1.1
+ */
+public class StageScheduler {
+	private static final Logger logger = Logger.getLogger(StageScheduler.class);
+	private LinkedHashMap<String, Stage> m_stages = new LinkedHashMap<String, Stage>();
+	private Listener m_listener = null;
+	// failed and skipped stages with their cause, in the order they ended
+	private LinkedHashMap<String, Throwable> m_failedStages = new LinkedHashMap<String, Throwable>();
+
+	/**
+	 * Adds a stage.
+	 *
+	 * @param name
+	 *            unique name of the stage, eg. genes
+	 * @param task
+	 *            work of the stage
+	 * @param dependencies
+	 *            names of the stages that must be complete before this one
+	 *            starts
+	 */
+	public void addStage(String name, Runnable task, String... dependencies) {
+		if (m_stages.containsKey(name)) {
+			throw new IllegalArgumentException("duplicate stage " + name);
+		}
+		m_stages.put(name, new Stage(name, task, dependencies));
+	}
+
+	/**
+	 * Sets the listener which is informed about completed stages.
+	 *
+	 * @param listener
+	 *            listener, or null
+	 */
+	public void setListener(Listener listener) {
+		this.m_listener = listener;
+	}
+
+	/**
+	 * Returns the number of stages.
+	 *
+	 * @return number of stages
+	 */
+	public int size() {
+		return m_stages.size();
+	}
+
+	/**
+	 * Runs all stages and returns when they are complete.
+	 *
+	 * @param maxConcurrentStages
+	 *            largest number of stages running at the same time
+	 * @throws InterruptedException
+	 *             if the calling thread is interrupted; running stages are
+	 *             interrupted as well
+	 */
+	public void run(int maxConcurrentStages) throws InterruptedException {
+		int nrOfStages = m_stages.size();
+		if (nrOfStages == 0) {
+			return;
+		}
+		resolveDependencies();
+
+		m_failedStages.clear();
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(
+				Math.max(maxConcurrentStages, 1), nrOfStages));
+		CompletionService<Stage> completionService = new ExecutorCompletionService<Stage>(
+				executor);
+		HashMap<Future<Stage>, Stage> running = new HashMap<Future<Stage>, Stage>();
+		try {
+			for (Stage stage : m_stages.values()) {
+				if (stage.nrOfOpenDependencies == 0) {
+					running.put(submit(completionService, stage), stage);
+				}
+			}
+
+			int nrOfCompletedStages = 0;
+			while (nrOfCompletedStages < nrOfStages) {
+				Future<Stage> future = completionService.take();
+				Stage stage = running.remove(future);
+				try {
+					future.get();
+				} catch (ExecutionException ee) {
+					logger.error("stage " + stage.name + " failed", ee.getCause());
+					m_failedStages.put(stage.name, ee.getCause());
+					// the stages depending on it are not started
+					for (Stage skipped : skipDependents(stage)) {
+						m_failedStages.put(skipped.name, ee.getCause());
+						nrOfCompletedStages++;
+						notifyListener(skipped, nrOfCompletedStages, nrOfStages);
+					}
+					nrOfCompletedStages++;
+					notifyListener(stage, nrOfCompletedStages, nrOfStages);
+					continue;
+				}
+				nrOfCompletedStages++;
+				logger.debug("stage " + stage.name + " complete after "
+						+ (System.currentTimeMillis() - stage.startTime) + " ms");
+
+				for (Stage dependent : stage.dependents) {
+					dependent.nrOfOpenDependencies--;
+					if (dependent.nrOfOpenDependencies == 0
+							&& !m_failedStages.containsKey(dependent.name)) {
+						running.put(submit(completionService, dependent),
+								dependent);
+					}
+				}
+				notifyListener(stage, nrOfCompletedStages, nrOfStages);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Returns the stages which failed in the last run, and the stages which
+	 * were skipped because they depend on a failed one.
+	 *
+	 * @return cause of the failure by name of the stage, empty if all stages
+	 *         completed
+	 */
+	public Map<String, Throwable> getFailedStages() {
+		return m_failedStages;
+	}
+
+	/**
+	 * Returns the stages which depend on a failed stage, directly or through
+	 * other stages, and were not skipped yet.
+	 */
+	private ArrayList<Stage> skipDependents(Stage failedStage) {
+		ArrayList<Stage> skipped = new ArrayList<Stage>();
+		ArrayList<Stage> open = new ArrayList<Stage>(failedStage.dependents);
+		while (!open.isEmpty()) {
+			Stage stage = open.remove(open.size() - 1);
+			if (m_failedStages.containsKey(stage.name)
+					|| skipped.contains(stage)) {
+				continue;
+			}
+			logger.info("stage " + stage.name + " skipped, it depends on "
+					+ failedStage.name);
+			skipped.add(stage);
+			open.addAll(stage.dependents);
+		}
+		return skipped;
+	}
+
+	private void notifyListener(Stage stage, int nrOfCompletedStages,
+			int nrOfStages) {
+		if (m_listener != null) {
+			m_listener.stageCompleted(stage.name, nrOfCompletedStages,
+					nrOfStages);
+		}
+	}
+
+	/**
+	 * Links each stage to the stages depending on it, and checks that the
+	 * dependencies exist and do not form a cycle.
+	 */
+	private void resolveDependencies() {
+		for (Stage stage : m_stages.values()) {
+			stage.dependents.clear();
+		}
+		for (Stage stage : m_stages.values()) {
+			stage.nrOfOpenDependencies = stage.dependencies.length;
+			for (String dependency : stage.dependencies) {
+				Stage required = m_stages.get(dependency);
+				if (required == null) {
+					throw new IllegalArgumentException("stage " + stage.name
+							+ " depends on unknown stage " + dependency);
+				}
+				required.dependents.add(stage);
+			}
+		}
+
+		// every stage must be reachable from the stages without dependencies
+		LinkedHashMap<Stage, Integer> open = new LinkedHashMap<Stage, Integer>();
+		ArrayList<Stage> ready = new ArrayList<Stage>();
+		for (Stage stage : m_stages.values()) {
+			open.put(stage, stage.nrOfOpenDependencies);
+			if (stage.nrOfOpenDependencies == 0) {
+				ready.add(stage);
+			}
+		}
+		int nrOfReachedStages = 0;
+		while (!ready.isEmpty()) {
+			Stage stage = ready.remove(ready.size() - 1);
+			nrOfReachedStages++;
+			for (Stage dependent : stage.dependents) {
+				int nrOfOpen = open.get(dependent) - 1;
+				open.put(dependent, nrOfOpen);
+				if (nrOfOpen == 0) {
+					ready.add(dependent);
+				}
+			}
+		}
+		if (nrOfReachedStages < m_stages.size()) {
+			throw new IllegalArgumentException(
+					"dependencies of the stages form a cycle");
+		}
+	}
+
+	private Future<Stage> submit(CompletionService<Stage> completionService,
+			final Stage stage) {
+		logger.debug("starting stage " + stage.name);
+		stage.startTime = System.currentTimeMillis();
+		// an exception of the task reaches run() through the future
+		return completionService.submit(new Callable<Stage>() {
+			@Override
+			public Stage call() {
+				stage.task.run();
+				return stage;
+			}
+		});
+	}
+
+	/**
+	 * Listener which is informed each time a stage completes. It is called
+	 * in the thread that runs the scheduler.
+	 *
+	 * @author mkumar
+	 * @since v1.1
+	 */
+	public interface Listener {
+		/**
+		 * Called after a stage is complete.
+		 *
+		 * @param name
+		 *            name of the stage
+		 * @param nrOfCompletedStages
+		 *            number of stages complete so far
+		 * @param nrOfStages
+		 *            number of all stages
+		 */
+		void stageCompleted(String name, int nrOfCompletedStages,
+				int nrOfStages);
+	}
+
+	/**
+	 * One stage, with its position in the graph of dependencies.
+	 */
+	private static class Stage {
+		private String name;
+		private Runnable task;
+		private String[] dependencies;
+		private ArrayList<Stage> dependents = new ArrayList<Stage>();
+		private int nrOfOpenDependencies;
+		private long startTime;
+
+		Stage(String name, Runnable task, String[] dependencies) {
+			this.name = name;
+			this.task = task;
+			this.dependencies = dependencies;
+		}
+	}
+}
@@ -33,14 +33,14 @@ public class Statistics {
 	/**
 	 * Creates an array containing sizes of loci.
 	 * 
-	 * @param locusArray
-	 *            array of loci.
+	 * @param locusStore
+	 *            store of loci.
 	 * @return sizeArray array containing sizes of loci.
 	 */
-	public double[] getSizeDist(Locus[] locusArray) {
-		double[] sizeArray = new double[locusArray.length];
-		for (int j = 0; j < locusArray.length; j++) {
-			sizeArray[j] = locusArray[j].size();
+	public double[] getSizeDist(LocusStore locusStore) {
+		double[] sizeArray = new double[locusStore.size()];
+		for (int j = 0; j < locusStore.size(); j++) {
+			sizeArray[j] = locusStore.getLocusSize(j);
 		}
 
 		return sizeArray;
@@ -54,11 +54,11 @@ public class Statistics {
 	 * single digit so that a sorted map is generated. The map it generates
 	 * contains a mapping of chrNr : frequency-of-occurrence
 	 * 
-	 * @param locusArray
-	 *            array of loci.
+	 * @param locusStore
+	 *            store of loci.
 	 * @return map a sorted map with mapping chrNr : frequency
 	 */
-	public Map<String, Integer> getChrDistForBarChart(Locus[] locusArray) {
+	public Map<String, Integer> getChrDistForBarChart(LocusStore locusStore) {
 		chrMapForBarChart = new HashMap<String, Integer>();
 		// create a map, and create 25 keys all with zero values
 		for (int i = 1; i < 23; i++) {
@@ -76,10 +76,11 @@ public class Statistics {
 		 * now count how many times each chr appears in the dataset and update
 		 * its value in the map
 		 */
-		// for each locus
-		for (Locus locus : locusArray) {
+		// for each chromosome in the dataset
+		int[] countPerChr = countLociPerChr(locusStore);
+		for (int chrId = 0; chrId < countPerChr.length; chrId++) {
 			// remove the letters "chr" from in front of the chromosome
-			String chrNr = locus.getChr().substring(3);
+			String chrNr = locusStore.getChrName(chrId).substring(3);
 			// if its X or Y chromosome
 			if(chrNr.matches("X|Y")){
 				// do nothing, ignore (dont delete this case!)
@@ -100,7 +101,7 @@ public class Statistics {
 			// add to map
 			if (chrMapForBarChart.containsKey(chrNr)) {
 				int freq = chrMapForBarChart.get(chrNr);
-				freq = freq + 1;
+				freq = freq + countPerChr[chrId];
 				chrMapForBarChart.put(chrNr, freq);
 			}
 		}
@@ -111,53 +112,56 @@ public class Statistics {
 	 * This method counts the number of times each chromosome occurs in the
 	 * given dataset, for a pie chart distribution.
 	 * 
-	 * @param locusArray
-	 *            array of loci.
+	 * @param locusStore
+	 *            store of loci.
 	 * @return map with mapping chromosomeNr : frequency-of-occurrence.
 	 */
-	public Map<String, Integer> getChrDistForPieChart(Locus[] locusArray) {
+	public Map<String, Integer> getChrDistForPieChart(LocusStore locusStore) {
 		chrMapForPieChart = new HashMap<String, Integer>();
 
-		for (Locus locus : locusArray) {
-			String chr = locus.getChr();
-			//String chrNr = locus.getChr().substring(3);
-			if (chrMapForPieChart.containsKey(chr)) {
-				int freq = chrMapForPieChart.get(chr);
-				freq = freq + 1;
-				chrMapForPieChart.put(chr, freq);
-			} else {
-				chrMapForPieChart.put(chr, 1);
+		int[] countPerChr = countLociPerChr(locusStore);
+		for (int chrId = 0; chrId < countPerChr.length; chrId++) {
+			if (countPerChr[chrId] > 0) {
+				chrMapForPieChart.put(locusStore.getChrName(chrId),
+						countPerChr[chrId]);
 			}
 		}
 
 		return chrMapForPieChart;
 	}
 
+	/**
+	 * Counts the number of loci on each chromosome, in a single pass over the
+	 * chromosome ids of the store.
+	 * 
+	 * @param locusStore
+	 *            store of loci.
+	 * @return number of loci, indexed by chromosome id
+	 */
+	private int[] countLociPerChr(LocusStore locusStore) {
+		int[] countPerChr = new int[locusStore.getNrOfChrs()];
+		LocusStore.Cursor cursor = locusStore.cursor();
+		while (cursor.next()) {
+			countPerChr[cursor.getChrId()]++;
+		}
+		return countPerChr;
+	}
+
 	/**
 	 * This method counts how many loci lie within a known gene, and how many do
 	 * not.
 	 * 
-	 * @param geneArray
-	 *            array of gene data.
+	 * @param geneColumn
+	 *            column of gene data.
 	 * @return geneMap mapping for gene distribution. ((yes/no : frequency))
 	 */
-	public Map<String, Integer> getGeneDist(String[] geneArray) {
+	public Map<String, Integer> getGeneDist(AnnotationColumn geneColumn) {
 		Map<String, Integer> geneMap = new HashMap<String, Integer>();
 		String m_within = "Within Gene";
 		String m_outside = "Outside Gene";
-		geneMap.put(m_within, 0);
-		geneMap.put(m_outside, 0);
-		for (String gene_entry : geneArray) {
-			if (gene_entry != GlobalParameters.STR_EMPTY_VALUE) {
-				int freq = geneMap.get(m_within);
-				freq = freq + 1;
-				geneMap.put(m_within, freq);
-			} else {
-				int notFreq = geneMap.get(m_outside);
-				notFreq = notFreq + 1;
-				geneMap.put(m_outside, notFreq);
-			}
-		}
+		int notFreq = countEmptyValues(geneColumn);
+		geneMap.put(m_within, geneColumn.size() - notFreq);
+		geneMap.put(m_outside, notFreq);
 		return geneMap;
 	}
 
@@ -165,28 +169,36 @@ public class Statistics {
 	 * This method counts how many loci have an omim accession number related to
 	 * them, i.e. for how many loci do we know some disease information already.
 	 * 
-	 * @param omimArray
-	 *            array of omim data.
+	 * @param omimColumn
+	 *            column of omim data.
 	 * @return omimMap mapping of omim distribution (yes/no : frequency)
 	 */
-	public Map<String, Integer> getOmimDist(String[] omimArray) {
+	public Map<String, Integer> getOmimDist(AnnotationColumn omimColumn) {
 		Map<String, Integer> omimMap = new HashMap<String, Integer>();
 		String m_yes = "Are";
 		String m_no = "Are-not";
-		omimMap.put(m_yes, 0);
-		omimMap.put(m_no, 0);
-		for (String omim_entry : omimArray) {
-			if (omim_entry != GlobalParameters.STR_EMPTY_VALUE) {
-				int freq = omimMap.get(m_yes);
-				freq = freq + 1;
-				omimMap.put(m_yes, freq);
-			} else {
-				int notFreq = omimMap.get(m_no);
-				notFreq = notFreq + 1;
-				omimMap.put(m_no, notFreq);
+		int notFreq = countEmptyValues(omimColumn);
+		omimMap.put(m_yes, omimColumn.size() - notFreq);
+		omimMap.put(m_no, notFreq);
+		return omimMap;
+	}
+
+	/**
+	 * Counts the loci which have the empty value in an annotation column. The
+	 * values are compared by their codes, so no value is decoded.
+	 * 
+	 * @param column
+	 *            annotation column.
+	 * @return number of empty values
+	 */
+	private int countEmptyValues(AnnotationColumn column) {
+		int nrOfEmptyValues = 0;
+		for (int i = 0; i < column.size(); i++) {
+			if (column.isEmpty(i)) {
+				nrOfEmptyValues++;
 			}
 		}
-		return omimMap;
+		return nrOfEmptyValues;
 	}
 
 	/**
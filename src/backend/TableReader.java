@@ -0,0 +1,179 @@
+package backend;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Reads a whole table of the remote database into primitive arrays, to build
+ * a local index of it.
+ *
+ * The statements of Database.createStatement() are scroll insensitive, so the
+ * mysql driver holds the whole result in memory before the first row can be
+ * read; a chrN_rmsk table of several hundred thousand rows then exists twice,
+ * as driver rows and as the index. The reader uses a streaming statement
+ * instead (forward only, read only, fetch size Integer.MIN_VALUE), which
+ * hands out each row as it arrives from the server.
+ *
+ * Each row is decoded straight into one int array per column: coordinates
+ * with getInt(), and text columns as their code in the AnnotationDictionary.
+ * No object is kept per row, and the arrays grow by doubling. While reading,
+ * the number of rows and the rows per second are logged every few seconds.
+ *
+ * @author mkumar
+ * @since v1.1
+ */
+public class TableReader {
+	private static final Logger logger = Logger.getLogger(TableReader.class);
+	// the column holds an integer, eg. a coordinate
+	public static final int INT = 0;
+	// the column holds text, read as a code in the AnnotationDictionary
+	public static final int CODE = 1;
+	private static final int INITIAL_CAPACITY = 4096;
+	private static final long PROGRESS_INTERVAL_NANOS = 2000000000L;
+
+	private String m_table;
+	private String[] m_columnNames;
+	private int[] m_types;
+	private String m_orderBy = "";
+	private int[][] m_columns;
+	private int m_size = 0;
+	private long m_nanos = 0;
+
+	/**
+	 * Constructor
+	 *
+	 * @param table
+	 *            table to read, eg. chr1_rmsk
+	 * @param columnNames
+	 *            columns to read, in the order of the arrays
+	 * @param types
+	 *            type of each column, INT or CODE
+	 */
+	public TableReader(String table, String[] columnNames, int[] types) {
+		super();
+		if (columnNames.length != types.length) {
+			throw new IllegalArgumentException("one type per column expected");
+		}
+		this.m_table = table;
+		this.m_columnNames = columnNames;
+		this.m_types = types;
+		this.m_columns = new int[columnNames.length][INITIAL_CAPACITY];
+	}
+
+	/**
+	 * Constructor for a table whose rows must be read in a given order.
+	 *
+	 * @param table
+	 *            table to read, eg. refGene
+	 * @param columnNames
+	 *            columns to read, in the order of the arrays
+	 * @param types
+	 *            type of each column, INT or CODE
+	 * @param orderBy
+	 *            order clause of the query, eg. " ORDER BY txStart"
+	 */
+	public TableReader(String table, String[] columnNames, int[] types,
+			String orderBy) {
+		this(table, columnNames, types);
+		this.m_orderBy = orderBy;
+	}
+
+	/**
+	 * Reads all rows of the table, in the order given to the constructor, or
+	 * else in the order in which the database returns them.
+	 *
+	 * @param pool
+	 *            pool of connections to the database
+	 * @throws SQLException
+	 *             if the table cannot be read completely
+	 */
+	public void read(ConnectionPool pool) throws SQLException {
+		AnnotationDictionary dictionary = AnnotationDictionary.getInstance();
+		StringBuilder query = new StringBuilder("SELECT ");
+		for (int k = 0; k < m_columnNames.length; k++) {
+			query.append(k == 0 ? "" : ", ").append(m_columnNames[k]);
+		}
+		query.append(" FROM ").append(m_table).append(m_orderBy);
+
+		long startTime = System.nanoTime();
+		long nextProgressTime = startTime + PROGRESS_INTERVAL_NANOS;
+		m_size = 0;
+		Statement st = null;
+		ResultSet rs = null;
+		try {
+			st = Database.createStreamingStatement(pool);
+			rs = Database.executeQuery(st, query.toString());
+			int nrOfColumns = m_columns.length;
+			while (rs.next()) {
+				if (m_size == m_columns[0].length) {
+					for (int k = 0; k < nrOfColumns; k++) {
+						m_columns[k] = Arrays.copyOf(m_columns[k], m_size * 2);
+					}
+				}
+				for (int k = 0; k < nrOfColumns; k++) {
+					m_columns[k][m_size] = m_types[k] == INT ? rs.getInt(k + 1)
+							: dictionary.encode(rs.getString(k + 1));
+				}
+				m_size++;
+				// the clock is read only every 1024 rows
+				if ((m_size & 1023) == 0 && System.nanoTime() > nextProgressTime) {
+					logger.info("read " + m_size + " rows of " + m_table
+							+ " so far, " + getRowsPerSecond(m_size,
+							System.nanoTime() - startTime) + " rows/s");
+					nextProgressTime += PROGRESS_INTERVAL_NANOS;
+				}
+			}
+		} finally {
+			try {
+				if (rs != null) {
+					rs.close();
+				}
+			} catch (SQLException ex) {
+				logger.debug("cannot close resultset of " + m_table);
+			}
+			Database.releaseStatement(pool, st);
+		}
+		m_nanos = System.nanoTime() - startTime;
+		QueryPlanner.recordQuery(startTime, m_size);
+		logger.info("read " + m_size + " rows of " + m_table + " in "
+				+ m_nanos / 1000000 + " ms, " + getRowsPerSecond() + " rows/s");
+	}
+
+	/**
+	 * Returns the number of rows read.
+	 *
+	 * @return number of rows
+	 */
+	public int size() {
+		return m_size;
+	}
+
+	/**
+	 * Returns the values of a column, one per row. The array may be longer
+	 * than the number of rows.
+	 *
+	 * @param k
+	 *            index of the column, as given to the constructor
+	 * @return values, or dictionary codes for a CODE column
+	 */
+	public int[] getColumn(int k) {
+		return m_columns[k];
+	}
+
+	/**
+	 * Returns the speed of the last read.
+	 *
+	 * @return rows per second
+	 */
+	public long getRowsPerSecond() {
+		return getRowsPerSecond(m_size, m_nanos);
+	}
+
+	private static long getRowsPerSecond(int nrOfRows, long nanos) {
+		return nanos <= 0 ? 0 : nrOfRows * 1000000000L / nanos;
+	}
+}
@@ -2,9 +2,10 @@ package backend;
 
 import gui.GUI;
 
-import java.sql.Connection;
-import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Map;
 
+import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
 
 import org.apache.log4j.Logger;
@@ -29,6 +30,46 @@ public class TaskManager implements Runnable {
 		this.m_gui = gui;
 	}
 
+	/**
+	 * Constructor for adding the tracks which are selected now, but missing in
+	 * the tab of a dataset which is already annotated. Only the missing tracks
+	 * are fetched, for the loci of the dataset; the input file is not read
+	 * again, and the columns of the tab are reused (eg. the genes for omim).
+	 * 
+	 * @param gui
+	 *            object of the class GUI.
+	 * @param locusStore
+	 *            store of loci of the tab
+	 * @param cytoBandColumn
+	 *            column of cytoband data of the tab, or null
+	 * @param geneColumn
+	 *            column of gene data of the tab, or null
+	 * @param repeatsNameColumn
+	 *            column of repeats name data of the tab, or null
+	 * @param repeatsClassColumn
+	 *            column of repeats class data of the tab, or null
+	 * @param repeatsFamilyColumn
+	 *            column of repeats family data of the tab, or null
+	 * @param omimColumn
+	 *            column of omim data of the tab, or null
+	 */
+	public TaskManager(GUI gui, LocusStore locusStore,
+			AnnotationColumn cytoBandColumn, AnnotationColumn geneColumn,
+			AnnotationColumn repeatsNameColumn,
+			AnnotationColumn repeatsClassColumn,
+			AnnotationColumn repeatsFamilyColumn, AnnotationColumn omimColumn) {
+		super();
+		this.m_gui = gui;
+		this.m_isAddingTracks = true;
+		this.locusStore = locusStore;
+		this.cytoBandColumn = cytoBandColumn;
+		this.geneColumn = geneColumn;
+		this.repeatsNameColumn = repeatsNameColumn;
+		this.repeatsClassColumn = repeatsClassColumn;
+		this.repeatsFamilyColumn = repeatsFamilyColumn;
+		this.omimColumn = omimColumn;
+	}
+
 	/**
 	 * This method overrides the run method for the Runnable interface. It
 	 * handles all tasks that need to be done, including calling all classes
@@ -38,45 +79,268 @@ public class TaskManager implements Runnable {
 	@Override
 	public void run() {
 		logger.debug("in TaskManager (new thread): runs in the background");
-		updateProgressBar(0);
+		// the dictionary of the assembly is kept while the dataset is
+		// annotated; its tab keeps it afterwards
+		String assembly = AnnotationDictionary.getInstance().getAssembly();
+		AnnotationDictionary.retain(assembly);
+		try {
+			annotate();
+		} catch (IllegalStateException ex) {
+			// a column allocated just after the tab was closed
+			if (!m_isAddingTracks || !locusStore.getColumnStorage().isReleased()) {
+				throw ex;
+			}
+			logger.info("tab closed, tracks not added");
+		} finally {
+			AnnotationDictionary.release(assembly);
+			dropUnusedAssemblies();
+			// a table which failed in this run is tried again in the next
+			LocusPrefilter.clearFailures();
+			if (m_isAddingTracks) {
+				// also if the tracks were not added, because the annotation
+				// was interrupted or failed, or the tab was closed
+				SwingUtilities.invokeLater(new Runnable() {
+					@Override
+					public void run() {
+						m_gui.endAddingTracks(locusStore);
+					}
+				});
+			}
+		}
+	}
 
-		locusArray = new ReadInputFile(m_gui.getInputFileName())
-				.getLocusArray();
+	/**
+	 * Drops the dictionaries of the assemblies which are no longer selected
+	 * or shown in a tab, with the local indexes of their tables.
+	 */
+	public static void dropUnusedAssemblies() {
+		for (String assembly : AnnotationDictionary.dropUnused()) {
+			GetGenes.dropIndex(assembly);
+			GetCytoBand.dropIndex(assembly);
+			GetRepeats.dropIndexes(assembly);
+		}
+	}
 
-		updateProgressBar(10);
+	/**
+	 * Fetches the selected tracks and hands them to the GUI.
+	 */
+	private void annotate() {
+		if (!m_isAddingTracks) {
+			updateProgressBar(0);
 
-		st = new Database().establishConnection(m_gui, con);
+			// one storage per dataset, released when its tab is closed
+			columnStorage = new ColumnStorage();
+			locusStore = new ReadInputFile(m_gui.getInputFileName(),
+					columnStorage).getLocusStore();
+
+			updateProgressBar(10);
+		} else if (locusStore.getColumnStorage().isReleased()) {
+			logger.info("tab closed, tracks not added");
+			return;
+		}
+
+		// with a local snapshot, or with all results in the result cache, the
+		// remote database is not needed
+		connectionPool = new Database().getConnectionPool(m_gui,
+				isDatabaseRequired());
 		updateProgressBar(35);
 
-		if (GlobalParameters.FIND_CYTOBAND) {
-			cytoBandArray = new GetCytoBand(locusArray, st).fetchCytoBand();
+		// the independent tracks run at the same time, each with its queries
+		// spread over the connection pool; omim only needs the genes. tracks
+		// which the tab already has are not fetched again
+		StageScheduler scheduler = new StageScheduler();
+		if (GlobalParameters.FIND_CYTOBAND && cytoBandColumn == null) {
+			scheduler.addStage("cytoband", new Runnable() {
+				@Override
+				public void run() {
+					cytoBandColumn = new GetCytoBand(locusStore, connectionPool)
+							.fetchCytoBand();
+				}
+			});
+		}
+
+		boolean isGeneStage = GlobalParameters.FIND_GENE && geneColumn == null;
+		if (isGeneStage) {
+			scheduler.addStage("genes", new Runnable() {
+				@Override
+				public void run() {
+					gene = new GetGenes(locusStore, connectionPool);
+					geneColumn = gene.getGeneColumn();
+				}
+			});
 		}
-		updateProgressBar(55);
 
-		if (GlobalParameters.FIND_GENE) {
-			gene = new GetGenes(locusArray, st);
-			geneArray = gene.getGeneArray();
+		if (GlobalParameters.FIND_REPEATS && repeatsNameColumn == null) {
+			scheduler.addStage("repeats", new Runnable() {
+				@Override
+				public void run() {
+					GetRepeats repInfo = new GetRepeats(locusStore,
+							connectionPool);
+					repeatsNameColumn = repInfo.getRepNameColumn();
+					repeatsClassColumn = repInfo.getRepClassColumn();
+					repeatsFamilyColumn = repInfo.getRepFamilyColumn();
+				}
+			});
 		}
-		updateProgressBar(75);
-		
-		if (GlobalParameters.FIND_REPEATS) {
-			GetRepeats repInfo = new GetRepeats(locusArray, st);
-			repeatsNameArray = repInfo.getRepNameArray();
-			repeatsClassArray = repInfo.getRepClassArray();
-			repeatsFamilyArray = repInfo.getRepFamilyArray();
+
+		if (GlobalParameters.FIND_OMIM && omimColumn == null) {
+			Runnable omimTask = new Runnable() {
+				@Override
+				public void run() {
+					omimColumn = new GetOmim(geneColumn, locusStore)
+							.getOmimColumn();
+				}
+			};
+			if (isGeneStage) {
+				scheduler.addStage("omim", omimTask, "genes");
+			} else {
+				scheduler.addStage("omim", omimTask);
+			}
 		}
-		updateProgressBar(90);
 
-		if (GlobalParameters.FIND_OMIM)
-			omimArray = new GetOmim(geneArray).getOmimArray();
+		scheduler.setListener(new StageScheduler.Listener() {
+			@Override
+			public void stageCompleted(String name, int nrOfCompletedStages,
+					int nrOfStages) {
+				updateProgressBar(35 + 65 * nrOfCompletedStages / nrOfStages);
+			}
+		});
+		try {
+			scheduler.run(GlobalParameters.MAX_CONCURRENT_TRACKS);
+		} catch (InterruptedException ie) {
+			logger.info("annotation of " + m_gui.getInputFileName()
+					+ " interrupted");
+			return;
+		}
+		if (m_isAddingTracks && locusStore.getColumnStorage().isReleased()) {
+			// the tab was closed while the tracks were fetched; their stages
+			// failed to allocate their columns, which is not an error
+			logger.info("tab closed, tracks not added");
+			return;
+		}
 		updateProgressBar(100);
+		if (!scheduler.getFailedStages().isEmpty()) {
+			// the selected tracks which failed are shown as failed
+			fillFailedColumns();
+			reportFailedStages(scheduler.getFailedStages());
+		}
+		AnnotationCache cache = AnnotationCache.getInstance();
+		if (cache != null) {
+			logger.info("annotation cache: " + cache.getHits() + " hits, "
+					+ cache.getMisses() + " misses, " + cache.size()
+					+ " entries");
+		}
+		logger.debug(SharedQueries.getNrOfSharedQueries()
+				+ " queries shared with other datasets so far");
+		logger.debug(SharedQueries.getNrOfHedgedQueries()
+				+ " slow queries hedged so far, "
+				+ SharedQueries.getNrOfHedgesWon() + " answered by the hedge");
+		logger.info("remote database: limit of "
+				+ ConcurrencyLimiter.getInstance().getLimit()
+				+ " queries in flight");
 
-		m_gui.displayResults(locusArray, cytoBandArray, geneArray,
-				repeatsNameArray, repeatsClassArray, repeatsFamilyArray,
-				omimArray, st);
+		if (m_isAddingTracks) {
+			SwingUtilities.invokeLater(new Runnable() {
+				@Override
+				public void run() {
+					m_gui.displayAddedTracks(locusStore, cytoBandColumn,
+							geneColumn, repeatsNameColumn, repeatsClassColumn,
+							repeatsFamilyColumn, omimColumn, connectionPool);
+				}
+			});
+			return;
+		}
+		m_gui.displayResults(locusStore, cytoBandColumn, geneColumn,
+				repeatsNameColumn, repeatsClassColumn, repeatsFamilyColumn,
+				omimColumn, connectionPool);
 
 	}
 
+	/**
+	 * Gives each selected track which has no column, because its stage failed
+	 * or was skipped, a column in which every locus has the failed value.
+	 */
+	private void fillFailedColumns() {
+		if (GlobalParameters.FIND_CYTOBAND && cytoBandColumn == null) {
+			cytoBandColumn = newFailedColumn();
+		}
+		if (GlobalParameters.FIND_GENE && geneColumn == null) {
+			geneColumn = newFailedColumn();
+		}
+		if (GlobalParameters.FIND_REPEATS && repeatsNameColumn == null) {
+			repeatsNameColumn = newFailedColumn();
+			repeatsClassColumn = newFailedColumn();
+			repeatsFamilyColumn = newFailedColumn();
+		}
+		if (GlobalParameters.FIND_OMIM && omimColumn == null) {
+			omimColumn = newFailedColumn();
+		}
+	}
+
+	private AnnotationColumn newFailedColumn() {
+		AnnotationColumn column = new AnnotationColumn(locusStore);
+		for (int i = 0; i < column.size(); i++) {
+			column.setCode(i, AnnotationDictionary.FAILED_CODE);
+		}
+		return column;
+	}
+
+	/**
+	 * Tells the user which tracks could not be fetched.
+	 * 
+	 * @param failedStages
+	 *            cause of the failure by name of the stage
+	 */
+	private void reportFailedStages(Map<String, Throwable> failedStages) {
+		final StringBuilder message = new StringBuilder(
+				"The following tracks could not be fetched and are marked as "
+						+ GlobalParameters.STR_FAILED_VALUE + ":");
+		for (Map.Entry<String, Throwable> failedStage : failedStages
+				.entrySet()) {
+			message.append("\n").append(failedStage.getKey()).append(": ")
+					.append(failedStage.getValue());
+		}
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				JOptionPane.showMessageDialog(m_gui, message.toString(),
+						"Error", JOptionPane.ERROR_MESSAGE);
+			}
+		});
+	}
+
+	/**
+	 * Checks whether the selected tracks need the remote database.
+	 * 
+	 * @return false if there is a local snapshot, or if the annotation cache
+	 *         holds all selected tracks, which are not in the tab yet, for all
+	 *         loci
+	 */
+	private boolean isDatabaseRequired() {
+		if (AnnotationSnapshot.getInstance() != null) {
+			return false;
+		}
+		AnnotationCache cache = AnnotationCache.getInstance();
+		if (cache == null) {
+			return true;
+		}
+		ArrayList<String> tracks = new ArrayList<String>();
+		if (GlobalParameters.FIND_CYTOBAND && cytoBandColumn == null) {
+			tracks.add(ResultCache.TRACK_CYTOBAND);
+		}
+		if (GlobalParameters.FIND_GENE && geneColumn == null) {
+			tracks.add(ResultCache.TRACK_GENES);
+		}
+		if (GlobalParameters.FIND_REPEATS && repeatsNameColumn == null) {
+			// the coverage of the repeat index is not cached
+			if (GlobalParameters.USE_LOCAL_REPEATS_INDEX) {
+				return true;
+			}
+			tracks.add(ResultCache.TRACK_REPEATS);
+		}
+		return !cache.containsAll(tracks, locusStore);
+	}
+
 	/**
 	 * Method to update value of progress bar on runtime.
 	 * 
@@ -93,15 +357,16 @@ public class TaskManager implements Runnable {
 	}
 
 	// Variables declaration
-	private Connection con = null;
-	private Statement st;
+	private boolean m_isAddingTracks = false;
+	private ConnectionPool connectionPool;
 	private GetGenes gene;
-	private Locus[] locusArray;
-	private String[] cytoBandArray = null;
-	private String[] geneArray = null;
-	private String[] repeatsNameArray = null;
-	private String[] repeatsClassArray = null;
-	private String[] repeatsFamilyArray = null;
-	private String[] omimArray = null;
+	private ColumnStorage columnStorage;
+	private LocusStore locusStore;
+	private AnnotationColumn cytoBandColumn = null;
+	private AnnotationColumn geneColumn = null;
+	private AnnotationColumn repeatsNameColumn = null;
+	private AnnotationColumn repeatsClassColumn = null;
+	private AnnotationColumn repeatsFamilyColumn = null;
+	private AnnotationColumn omimColumn = null;
 	// End of variables declaration
 }
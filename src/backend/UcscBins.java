@@ -0,0 +1,96 @@
+package backend;
+
+/**
+ * The hierarchical binning scheme of the UCSC genome browser.
+ *
+ * Tables of the UCSC database such as refGene and the rmsk tables have a
+ * 'bin' column, on which they are indexed. Every feature is put into the
+ * smallest bin that holds it completely; there are bins of 128 kb, 1 Mb,
+ * 8 Mb, 64 Mb and one bin of 512 Mb. A feature can only overlap a region if
+ * it lies in one of the bins which overlap the region, so adding "bin IN
+ * (...)" to a range query lets the server use the index instead of scanning
+ * the whole chromosome.
+ *
+ * @author mkumar
+ * @since v1.1
+ */
+public class UcscBins {
+	// offsets of the first bin of each level, from the smallest bins up
+	private static final int[] BIN_OFFSETS = { 512 + 64 + 8 + 1, 64 + 8 + 1,
+			8 + 1, 1, 0 };
+	// the smallest bins are 2^17 bases, each level up is 2^3 times larger
+	private static final int BIN_FIRST_SHIFT = 17;
+	private static final int BIN_NEXT_SHIFT = 3;
+	// largest coordinate covered by the standard scheme, 2^29
+	private static final int MAX_BIN_COORDINATE = 512 * 1024 * 1024;
+
+	private UcscBins() {
+	}
+
+	/**
+	 * Returns all bins that overlap the region [start, end).
+	 *
+	 * @param start
+	 *            start coordinate of the region, 0-based
+	 * @param end
+	 *            end coordinate of the region, exclusive
+	 * @return bins overlapping the region, or null if the region lies outside
+	 *         of the standard binning scheme
+	 */
+	public static int[] getBins(int start, int end) {
+		start = Math.max(start, 0);
+		end = Math.max(end, start + 1);
+		if (end > MAX_BIN_COORDINATE) {
+			return null;
+		}
+
+		int nrOfBins = 0;
+		int startBin = start >> BIN_FIRST_SHIFT;
+		int endBin = (end - 1) >> BIN_FIRST_SHIFT;
+		for (int level = 0; level < BIN_OFFSETS.length; level++) {
+			nrOfBins += endBin - startBin + 1;
+			startBin >>= BIN_NEXT_SHIFT;
+			endBin >>= BIN_NEXT_SHIFT;
+		}
+
+		int[] bins = new int[nrOfBins];
+		int i = 0;
+		startBin = start >> BIN_FIRST_SHIFT;
+		endBin = (end - 1) >> BIN_FIRST_SHIFT;
+		for (int level = 0; level < BIN_OFFSETS.length; level++) {
+			for (int bin = startBin; bin <= endBin; bin++) {
+				bins[i++] = BIN_OFFSETS[level] + bin;
+			}
+			startBin >>= BIN_NEXT_SHIFT;
+			endBin >>= BIN_NEXT_SHIFT;
+		}
+		return bins;
+	}
+
+	/**
+	 * Returns an sql condition which restricts a query to the bins that
+	 * overlap the region [start, end), eg. " AND bin IN (585,73,9,1,0)". The
+	 * condition is empty if the region lies outside of the standard binning
+	 * scheme.
+	 *
+	 * @param start
+	 *            start coordinate of the region, 0-based
+	 * @param end
+	 *            end coordinate of the region, exclusive
+	 * @return condition to append to the WHERE clause of a query
+	 */
+	public static String getBinCondition(int start, int end) {
+		int[] bins = getBins(start, end);
+		if (bins == null) {
+			return "";
+		}
+		StringBuilder condition = new StringBuilder(" AND bin IN (");
+		for (int i = 0; i < bins.length; i++) {
+			if (i > 0) {
+				condition.append(',');
+			}
+			condition.append(bins[i]);
+		}
+		return condition.append(')').toString();
+	}
+}
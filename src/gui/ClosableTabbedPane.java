@@ -95,6 +95,7 @@ public class ClosableTabbedPane extends JTabbedPane {
 		 */
 		private void removeFromLists(){
 			m_arrayOfLists = m_gui.getArrayOfLists();
+			m_gui.releaseDataset(selectedTab);
 			
 			// remove from array
 			for(int i=0; i < m_arrayOfLists.length; i++){
@@ -31,6 +31,7 @@ import org.apache.log4j.Logger;
 
 import backend.GlobalParameters;
 import backend.Locus;
+import backend.LocusStore;
 import backend.Pair;
 
 /**
@@ -48,17 +49,17 @@ public class CompareDatasets extends JFrame {
 	/**
 	 * Constructor
 	 * 
-	 * @param listOfLocusArray
-	 *            list containing all locus arrays.
+	 * @param listOfLocusStore
+	 *            list containing all locus stores.
 	 * @param listOfFileNames
 	 *            list containing all file names
 	 */
-	public CompareDatasets(ArrayList<Locus[]> listOfLocusArray,
+	public CompareDatasets(ArrayList<LocusStore> listOfLocusStore,
 			ArrayList<String> listOfFileNames) {
 		logger.info("generating comparison table for all datasets");
 		setTitle("Comparison Table");
 
-		m_listOfLocusArray = new ArrayList<Locus[]>(listOfLocusArray);
+		m_listOfLocusStore = new ArrayList<LocusStore>(listOfLocusStore);
 		m_listOfFileNames = new ArrayList<String>(listOfFileNames);
 		comparisonMap = createComparisonMap();
 		createTable(comparisonMap);
@@ -90,8 +91,8 @@ public class CompareDatasets extends JFrame {
 	 * the presence / absence of this pair in all datasets. This is later used to determine which datasets contain
 	 * a given locus and which ones do not.
 	 * 
-	 * @param listOfLocusArray
-	 *            list of locus array
+	 * @param listOfLocusStore
+	 *            list of locus stores
 	 * @return comparisonMap a map with global mapping from
 	 *         each-chromosome-number (1-22 and X and Y) :
 	 *         list-of-all-pairs-associated-with-that-chrNr-in-all-datasets
@@ -103,17 +104,19 @@ public class CompareDatasets extends JFrame {
 		ArrayList<Pair> pairList;
 		mergedLociList = new ArrayList<Locus>();
 
-		// for each locus array in the list of locus array
-		for (Locus[] thisLocusArray : m_listOfLocusArray) {
+		// for each locus store in the list of locus stores
+		for (int datasetIndex = 0; datasetIndex < m_listOfLocusStore.size(); datasetIndex++) {
 
-			// for each individual locus in locus array
-			for (Locus thisLocus : thisLocusArray) {
+			// for each individual locus in locus store
+			LocusStore.Cursor cursor = m_listOfLocusStore.get(datasetIndex)
+					.cursor();
+			while (cursor.next()) {
 
-				String thisChr = thisLocus.getChr();
-				int thisStartPos = thisLocus.getStartPos();
-				int thisEndPos = thisLocus.getEndPos();
+				String thisChr = cursor.getChr();
+				int thisStartPos = cursor.getStartPos();
+				int thisEndPos = cursor.getEndPos();
 				Pair thisPair = new Pair(thisStartPos, thisEndPos);
-				thisPair.boolArr = new boolean[m_listOfLocusArray.size()];
+				thisPair.boolArr = new boolean[m_listOfLocusStore.size()];
 
 				// if map already contains this chr
 				if (compareMap.containsKey(thisChr)) {
@@ -161,7 +164,7 @@ public class CompareDatasets extends JFrame {
 					pairList = new ArrayList<Pair>();
 				}
 
-				thisPair.boolArr[m_listOfLocusArray.indexOf(thisLocusArray)] = true;
+				thisPair.boolArr[datasetIndex] = true;
 				pairList.add(thisPair);
 				mergedLociList.add(new Locus(thisChr, thisPair));
 				// finally, add to map
@@ -477,7 +480,7 @@ public class CompareDatasets extends JFrame {
 	// variable declaration
 	private Map<String, ArrayList<Pair>> comparisonMap;
 	private ArrayList<Locus> mergedLociList;
-	private ArrayList<Locus[]> m_listOfLocusArray;
+	private ArrayList<LocusStore> m_listOfLocusStore;
 	private ArrayList<String> m_listOfFileNames;
 	private JScrollPane scrollPane;
 	private JTable table;
@@ -13,7 +13,6 @@ import java.awt.event.ItemListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.print.PrinterException;
-import java.sql.Statement;
 import java.util.ArrayList;
 
 import javax.swing.JButton;
@@ -39,9 +38,12 @@ import net.miginfocom.swing.MigLayout;
 
 import org.apache.log4j.Logger;
 
+import backend.AnnotationColumn;
+import backend.AnnotationDictionary;
+import backend.ConnectionPool;
 import backend.GlobalParameters;
 import backend.Start;
-import backend.Locus;
+import backend.LocusStore;
 import backend.OpenBrowser;
 import backend.ResultsTable;
 import backend.Statistics;
@@ -78,14 +80,15 @@ public class GUI extends JFrame implements ClipboardOwner {
 		m_resultsTableObject = new ResultsTable();
 		m_stats = new Statistics();
 		listOfFileNames = new ArrayList<String>();
-		listOfLocusArray = new ArrayList<Locus[]>();
-		listOfCytoBandArray = new ArrayList<String[]>();
-		listOfGeneArray = new ArrayList<String[]>();
-		listOfRepeatsNameArray = new ArrayList<String[]>();
-		listOfRepeatsClassArray = new ArrayList<String[]>();
-		listOfRepeatsFamilyArray = new ArrayList<String[]>();
-		listOfOmimArray = new ArrayList<String[]>();
-		listOfTables = new ArrayList<JTable>();		
+		listOfLocusStore = new ArrayList<LocusStore>();
+		listOfCytoBandColumn = new ArrayList<AnnotationColumn>();
+		listOfGeneColumn = new ArrayList<AnnotationColumn>();
+		listOfRepeatsNameColumn = new ArrayList<AnnotationColumn>();
+		listOfRepeatsClassColumn = new ArrayList<AnnotationColumn>();
+		listOfRepeatsFamilyColumn = new ArrayList<AnnotationColumn>();
+		listOfOmimColumn = new ArrayList<AnnotationColumn>();
+		listOfTables = new ArrayList<JTable>();
+		listOfAssemblies = new ArrayList<String>();		
 
 		setMenuBar();
 		setMenuBarActionListeners();
@@ -124,6 +127,7 @@ public class GUI extends JFrame implements ClipboardOwner {
 		restart = new JMenuItem("Restart");
 		exit = new JMenuItem("Exit");
 		settings = new JMenuItem("Settings");
+		addTracks = new JMenuItem("Add Selected Tracks to Tab");
 		compare = new JMenuItem("Compare Datasets");
 		sizeChart = new JMenuItem("Size Distribution");
 		chrBarChart = new JMenuItem("Chromosome Distribution");
@@ -190,35 +194,35 @@ public class GUI extends JFrame implements ClipboardOwner {
 		// size distribution
 		sizeChart.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent evt) {
-				sizeActionPerformed(listOfLocusArray
+				sizeActionPerformed(listOfLocusStore
 						.get(GlobalParameters.TABBED_PANE_ACTIVE_TAB_INDEX));
 			}
 		});
 		// chromosomes bar chart
 		chrBarChart.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent evt) {
-				chrBarChartActionPerformed(listOfLocusArray
+				chrBarChartActionPerformed(listOfLocusStore
 						.get(GlobalParameters.TABBED_PANE_ACTIVE_TAB_INDEX));
 			}
 		});
 		// chromosomes pie chart
 		chrPieChart.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent evt) {
-				chrPieChartActionPerformed(listOfLocusArray
+				chrPieChartActionPerformed(listOfLocusStore
 						.get(GlobalParameters.TABBED_PANE_ACTIVE_TAB_INDEX));
 			}
 		});
 		// genes pie chart
 		genePieChart.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent evt) {
-				genePieChartActionPerformed(listOfGeneArray
+				genePieChartActionPerformed(listOfGeneColumn
 						.get(GlobalParameters.TABBED_PANE_ACTIVE_TAB_INDEX));
 			}
 		});
 		// omim pie chart
 		omimPieChart.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent evt) {
-				omimPieChartActionPerformed(listOfOmimArray
+				omimPieChartActionPerformed(listOfOmimColumn
 						.get(GlobalParameters.TABBED_PANE_ACTIVE_TAB_INDEX));
 			}
 		});
@@ -228,6 +232,12 @@ public class GUI extends JFrame implements ClipboardOwner {
 				new Settings();
 			}
 		});
+		// tracks selected in the settings after the tab was annotated
+		addTracks.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent evt) {
+				addTracksActionPerformed();
+			}
+		});
 	}
 
 	/**
@@ -279,51 +289,55 @@ public class GUI extends JFrame implements ClipboardOwner {
 	 * Displays the results table after all the information has been fetched
 	 * from the database.
 	 * 
-	 * @param locusArray
-	 *            an array of input loci.
-	 * @param cytoBandArray
-	 *            an array of cytoband information
-	 * @param geneArray
-	 *            an array of gene information
-	 * @param repeatsNameArray
-	 *            an array of repeats name information
-	 * @param repeatsClassArray
-	 *            an array of repeats class information
-	 * @param repeatsFamilyArray
-	 *            an array of repeats family information
-	 * @param omimArray
-	 *            an array of omim information
-	 * @param st
-	 *            statement object from the database connection
+	 * @param locusStore
+	 *            a store of input loci.
+	 * @param cytoBandColumn
+	 *            a column of cytoband information
+	 * @param geneColumn
+	 *            a column of gene information
+	 * @param repeatsNameColumn
+	 *            a column of repeats name information
+	 * @param repeatsClassColumn
+	 *            a column of repeats class information
+	 * @param repeatsFamilyColumn
+	 *            a column of repeats family information
+	 * @param omimColumn
+	 *            a column of omim information
+	 * @param connectionPool
+	 *            pool of connections to the database
 	 * 
 	 * @see backend.GetCytoBand
 	 * @see backend.GetGenes
 	 * @see backend.GetRepeats
 	 * @see backend.GetOmim
 	 * @see backend.Database
-	 * @see Statement
+	 * @see backend.ConnectionPool
 	 */
-	public void displayResults(Locus[] locusArray, String[] cytoBandArray,
-			String[] geneArray, String[] repeatsNameArray,
-			String[] repeatsClassArray, String[] repeatsFamilyArray,
-			String[] omimArray, Statement st) {
+	public void displayResults(LocusStore locusStore,
+			AnnotationColumn cytoBandColumn, AnnotationColumn geneColumn,
+			AnnotationColumn repeatsNameColumn,
+			AnnotationColumn repeatsClassColumn,
+			AnnotationColumn repeatsFamilyColumn, AnnotationColumn omimColumn,
+			ConnectionPool connectionPool) {
 		logger.debug("inside GUI.displayResults");
-		this.m_st = st;
+		this.m_connectionPool = connectionPool;
 
 		// do these only once
 		if (tabbedPane.getTabCount() == 0) {
 			addCheckBoxesToViewMenu();
 			addItemsToMenuBar();
 		}
+		// the tracks selected in the settings can change between datasets
+		addTrackItemsToMenus();
 
-		m_resultsTableObject.setTable(locusArray, cytoBandArray, geneArray,
-				repeatsNameArray, repeatsClassArray, repeatsFamilyArray,
-				omimArray);
+		m_resultsTableObject.setTable(locusStore, cytoBandColumn, geneColumn,
+				repeatsNameColumn, repeatsClassColumn, repeatsFamilyColumn,
+				omimColumn);
 
 		JTable table = m_resultsTableObject.getTable();
 		setPopupMenu(table);
-		addToLists(locusArray, cytoBandArray, geneArray, repeatsNameArray,
-				repeatsClassArray, repeatsFamilyArray, omimArray, table);
+		addToLists(locusStore, cytoBandColumn, geneColumn, repeatsNameColumn,
+				repeatsClassColumn, repeatsFamilyColumn, omimColumn, table);
 		setLayoutOfResultsPanel(table);
 	}
 
@@ -334,39 +348,45 @@ public class GUI extends JFrame implements ClipboardOwner {
 	 * that file from the remote database. All the fetched information is stored
 	 * in respective arrays. To be able to open multiple datasets in tabs, a
 	 * master list of arrays is maintained for each track type, e.g.
-	 * listOfLocusArray contains all the locus arrays, where each locusArray
-	 * contains the list of loci of that dataset.
+	 * listOfLocusStore contains all the locus stores, where each locusStore
+	 * contains the loci of that dataset.
 	 * 
 	 * 
-	 * @param locusArray
-	 *            array of loci, from input file.
-	 * @param cytoBandArray
-	 *            array of cytoband data.
-	 * @param geneArray
-	 *            array of gene data.
-	 * @param repeatsNameArray
-	 *            array of repeats name data.
-	 * @param repeatsClassArray
-	 *            array of repeats class data.
-	 * @param repeatsFamilyArray
-	 *            array of repeats family data.
-	 * @param omimArray
-	 *            array of omim data.
+	 * @param locusStore
+	 *            store of loci, from input file.
+	 * @param cytoBandColumn
+	 *            column of cytoband data.
+	 * @param geneColumn
+	 *            column of gene data.
+	 * @param repeatsNameColumn
+	 *            column of repeats name data.
+	 * @param repeatsClassColumn
+	 *            column of repeats class data.
+	 * @param repeatsFamilyColumn
+	 *            column of repeats family data.
+	 * @param omimColumn
+	 *            column of omim data.
 	 */
-	private void addToLists(Locus[] locusArray, String[] cytoBandArray,
-			String[] geneArray, String[] repeatsNameArray,
-			String[] repeatsClassArray, String[] repeatsFamilyArray,
-			String[] omimArray, JTable table) {
+	private void addToLists(LocusStore locusStore,
+			AnnotationColumn cytoBandColumn, AnnotationColumn geneColumn,
+			AnnotationColumn repeatsNameColumn,
+			AnnotationColumn repeatsClassColumn,
+			AnnotationColumn repeatsFamilyColumn, AnnotationColumn omimColumn,
+			JTable table) {
 
 		listOfFileNames.add(selectedFileName);
-		listOfLocusArray.add(locusArray);
-		listOfCytoBandArray.add(cytoBandArray);
-		listOfGeneArray.add(geneArray);
-		listOfRepeatsNameArray.add(repeatsNameArray);
-		listOfRepeatsClassArray.add(repeatsClassArray);
-		listOfRepeatsFamilyArray.add(repeatsFamilyArray);
-		listOfOmimArray.add(omimArray);
+		listOfLocusStore.add(locusStore);
+		listOfCytoBandColumn.add(cytoBandColumn);
+		listOfGeneColumn.add(geneColumn);
+		listOfRepeatsNameColumn.add(repeatsNameColumn);
+		listOfRepeatsClassColumn.add(repeatsClassColumn);
+		listOfRepeatsFamilyColumn.add(repeatsFamilyColumn);
+		listOfOmimColumn.add(omimColumn);
 		listOfTables.add(table);
+		String assembly = AnnotationDictionary.getInstance().getAssembly();
+		listOfAssemblies.add(assembly);
+		// the dictionary of the assembly is kept while the tab is open
+		AnnotationDictionary.retain(assembly);
 		
 		// add all lists to a master array,
 		// and pass this array to the Tabbed pane,
@@ -376,16 +396,17 @@ public class GUI extends JFrame implements ClipboardOwner {
 		
 		// and initialize this array for every new dataset
 		// so this initialization statement should stay here
-		arrayOfLists = new ArrayList[9];
+		arrayOfLists = new ArrayList[10];
 		arrayOfLists[0] = listOfFileNames;
-		arrayOfLists[1] = listOfLocusArray;
-		arrayOfLists[2] = listOfCytoBandArray;
-		arrayOfLists[3] = listOfGeneArray;
-		arrayOfLists[4] = listOfRepeatsNameArray;
-		arrayOfLists[5] = listOfRepeatsClassArray;
-		arrayOfLists[6] = listOfRepeatsFamilyArray;
-		arrayOfLists[7] = listOfOmimArray;
+		arrayOfLists[1] = listOfLocusStore;
+		arrayOfLists[2] = listOfCytoBandColumn;
+		arrayOfLists[3] = listOfGeneColumn;
+		arrayOfLists[4] = listOfRepeatsNameColumn;
+		arrayOfLists[5] = listOfRepeatsClassColumn;
+		arrayOfLists[6] = listOfRepeatsFamilyColumn;
+		arrayOfLists[7] = listOfOmimColumn;
 		arrayOfLists[8] = listOfTables;
+		arrayOfLists[9] = listOfAssemblies;
 		
 	}
 
@@ -422,46 +443,63 @@ public class GUI extends JFrame implements ClipboardOwner {
 		viewMenu.add(sizeCheckBox);
 		GlobalParameters.SHOW_SIZE = true;
 
-		// add others based on user selection
-		if (GlobalParameters.FIND_CYTOBAND) {
+		ItemListener checkBoxListener = new ItemListener() {
+			public void itemStateChanged(ItemEvent evt) {
+				viewCheckBoxActionPerformed(evt);
+			}
+		};
+
+		// add listeners on viewMenuitems
+		sizeCheckBox.addItemListener(checkBoxListener);
+		cytoBandCheckBox.addItemListener(checkBoxListener);
+		geneCheckBox.addItemListener(checkBoxListener);
+		repeatsNameCheckBox.addItemListener(checkBoxListener);
+		repeatsClassCheckBox.addItemListener(checkBoxListener);
+		repeatsFamilyCheckBox.addItemListener(checkBoxListener);
+		omimCheckBox.addItemListener(checkBoxListener);
+	}
+
+	/**
+	 * Adds the check boxes of the selected tracks to the view menu, and their
+	 * charts to the plot menu, unless they are there already.
+	 * 
+	 * Based on user specification for tracks to query, this method adds the
+	 * check box for each track once, such that the user can choose to view or
+	 * not view that track in the results tables which have it.
+	 */
+	private void addTrackItemsToMenus() {
+		if (GlobalParameters.FIND_CYTOBAND
+				&& !viewMenu.isMenuComponent(cytoBandCheckBox)) {
 			viewMenu.add(cytoBandCheckBox);
 			GlobalParameters.SHOW_CYTOBAND = true;
 		}
-		if (GlobalParameters.FIND_GENE) {
+		if (GlobalParameters.FIND_GENE
+				&& !viewMenu.isMenuComponent(geneCheckBox)) {
 			viewMenu.add(geneCheckBox);
 			GlobalParameters.SHOW_GENE = true;
 		}
-		if (GlobalParameters.FIND_REPEATS) {
+		if (GlobalParameters.FIND_REPEATS
+				&& !viewMenu.isMenuComponent(repeatsNameCheckBox)) {
 			viewMenu.add(repeatsNameCheckBox);
 			GlobalParameters.SHOW_REPEATS_NAME = true;
-		}
-		if (GlobalParameters.FIND_REPEATS) {
 			viewMenu.add(repeatsClassCheckBox);
 			GlobalParameters.SHOW_REPEATS_CLASS = true;
-		}
-		if (GlobalParameters.FIND_REPEATS) {
 			viewMenu.add(repeatsFamilyCheckBox);
 			GlobalParameters.SHOW_REPEATS_FAMILY = true;
 		}
-		if (GlobalParameters.FIND_OMIM) {
+		if (GlobalParameters.FIND_OMIM
+				&& !viewMenu.isMenuComponent(omimCheckBox)) {
 			viewMenu.add(omimCheckBox);
 			GlobalParameters.SHOW_OMIM = true;
 		}
-
-		ItemListener checkBoxListener = new ItemListener() {
-			public void itemStateChanged(ItemEvent evt) {
-				viewCheckBoxActionPerformed(evt);
-			}
-		};
-
-		// add listeners on viewMenuitems
-		sizeCheckBox.addItemListener(checkBoxListener);
-		cytoBandCheckBox.addItemListener(checkBoxListener);
-		geneCheckBox.addItemListener(checkBoxListener);
-		repeatsNameCheckBox.addItemListener(checkBoxListener);
-		repeatsClassCheckBox.addItemListener(checkBoxListener);
-		repeatsFamilyCheckBox.addItemListener(checkBoxListener);
-		omimCheckBox.addItemListener(checkBoxListener);
+		if (GlobalParameters.FIND_GENE
+				&& !pieChartMenu.isMenuComponent(genePieChart)) {
+			pieChartMenu.add(genePieChart);
+		}
+		if (GlobalParameters.FIND_OMIM
+				&& !pieChartMenu.isMenuComponent(omimPieChart)) {
+			pieChartMenu.add(omimPieChart);
+		}
 	}
 
 	/**
@@ -480,8 +518,9 @@ public class GUI extends JFrame implements ClipboardOwner {
 		fileMenu.add(restart);
 		fileMenu.add(exit);
 
-		// remove edit menu
-		menuBar.remove(editMenu);
+		// the settings stay available, for new datasets and for tracks
+		// added to a tab
+		editMenu.add(addTracks);
 
 		menuBar.add(viewMenu);
 		menuBar.add(compareMenu);
@@ -496,12 +535,6 @@ public class GUI extends JFrame implements ClipboardOwner {
 		plotMenu.add(pieChartMenu);
 
 		pieChartMenu.add(chrPieChart);
-		if (GlobalParameters.FIND_GENE) {
-			pieChartMenu.add(genePieChart);
-		}
-		if (GlobalParameters.FIND_OMIM) {
-			pieChartMenu.add(omimPieChart);
-		}
 	}
 
 	/**
@@ -610,24 +643,26 @@ public class GUI extends JFrame implements ClipboardOwner {
 				popupOmim.setEnabled(false);
 				popupCopyOmim.setEnabled(false);
 
-				// enable Neighboring genes popup item if the user has requested for
-				// the Gene track
-				if (GlobalParameters.FIND_GENE) {
+				// enable Neighboring genes popup item if the tab has the Gene
+				// track
+				AnnotationColumn geneColumn = listOfGeneColumn
+						.get(GlobalParameters.TABBED_PANE_ACTIVE_TAB_INDEX);
+				AnnotationColumn omimColumn = listOfOmimColumn
+						.get(GlobalParameters.TABBED_PANE_ACTIVE_TAB_INDEX);
+				popupCopyCytoBand.setEnabled(listOfCytoBandColumn
+						.get(GlobalParameters.TABBED_PANE_ACTIVE_TAB_INDEX) != null);
+				if (geneColumn != null) {
 					popupNGenes.setEnabled(true);
 					// enable lookup on genecards.org if selected locus has a non-empty gene value
-					if (listOfGeneArray
-							.get(GlobalParameters.TABBED_PANE_ACTIVE_TAB_INDEX)[table
-							.getSelectedRow()] != GlobalParameters.STR_EMPTY_VALUE) {
+					if (!geneColumn.isEmpty(table.getSelectedRow())) {
 						popupGenecards.setEnabled(true);
 						popupCopyGene.setEnabled(true);
 					}
 				}
 
-				// enable omim popup item if the user has requested for omim data
-				if (GlobalParameters.FIND_OMIM
-						&& (listOfOmimArray
-								.get(GlobalParameters.TABBED_PANE_ACTIVE_TAB_INDEX)[table
-								.getSelectedRow()] != GlobalParameters.STR_EMPTY_VALUE)) {
+				// enable omim popup item if the tab has omim data
+				if (omimColumn != null
+						&& !omimColumn.isEmpty(table.getSelectedRow())) {
 					// enable lookup on omim.org if selected row has a non-empty value
 					popupOmim.setEnabled(true);
 					popupCopyOmim.setEnabled(true);
@@ -744,13 +779,13 @@ public class GUI extends JFrame implements ClipboardOwner {
 			SwingUtilities.invokeLater(new Runnable() {
 				public void run() {
 					new NeighboringGenes(
-							listOfLocusArray
+							listOfLocusStore
 									.get(GlobalParameters.TABBED_PANE_ACTIVE_TAB_INDEX),
-							listOfGeneArray
+							listOfGeneColumn
 									.get(GlobalParameters.TABBED_PANE_ACTIVE_TAB_INDEX),
 							listOfTables
 									.get(GlobalParameters.TABBED_PANE_ACTIVE_TAB_INDEX)
-									.getSelectedRow(), m_st);
+									.getSelectedRow(), m_connectionPool);
 				}
 			});	
 		}
@@ -760,7 +795,7 @@ public class GUI extends JFrame implements ClipboardOwner {
 			logger.debug("going to UCSC");
 			// call the appropriate class
 			new OpenBrowser(
-					listOfLocusArray
+					listOfLocusStore
 							.get(GlobalParameters.TABBED_PANE_ACTIVE_TAB_INDEX),
 					listOfTables.get(
 							GlobalParameters.TABBED_PANE_ACTIVE_TAB_INDEX)
@@ -772,11 +807,11 @@ public class GUI extends JFrame implements ClipboardOwner {
 			logger.debug("going to Genecards.org");
 			// call the appropriate class
 			new OpenBrowser(
-					listOfLocusArray
+					listOfLocusStore
 							.get(GlobalParameters.TABBED_PANE_ACTIVE_TAB_INDEX),
 					listOfTables.get(
 							GlobalParameters.TABBED_PANE_ACTIVE_TAB_INDEX)
-							.getSelectedRow()).goToGenecards(listOfGeneArray
+							.getSelectedRow()).goToGenecards(listOfGeneColumn
 					.get(GlobalParameters.TABBED_PANE_ACTIVE_TAB_INDEX));
 		}
 		// if go to omim is selected
@@ -785,11 +820,11 @@ public class GUI extends JFrame implements ClipboardOwner {
 			logger.debug("going to OMIM database");
 			// go to omim database
 			new OpenBrowser(
-					listOfLocusArray
+					listOfLocusStore
 							.get(GlobalParameters.TABBED_PANE_ACTIVE_TAB_INDEX),
 					listOfTables.get(
 							GlobalParameters.TABBED_PANE_ACTIVE_TAB_INDEX)
-							.getSelectedRow()).goToOMIM(listOfOmimArray
+							.getSelectedRow()).goToOMIM(listOfOmimColumn
 					.get(GlobalParameters.TABBED_PANE_ACTIVE_TAB_INDEX));
 		}
 	}
@@ -807,30 +842,30 @@ public class GUI extends JFrame implements ClipboardOwner {
 				GlobalParameters.TABBED_PANE_ACTIVE_TAB_INDEX).getSelectedRow();
 		// copy locus
 		if (popupCopyEvent.getActionCommand().equals(popupCopyLocus.getText())) {
-			String temp_locus = listOfLocusArray
-					.get(GlobalParameters.TABBED_PANE_ACTIVE_TAB_INDEX)[rowIndex]
-					.toString();
+			String temp_locus = listOfLocusStore
+					.get(GlobalParameters.TABBED_PANE_ACTIVE_TAB_INDEX)
+					.getLocusString(rowIndex);
 			sel = new StringSelection(temp_locus);
 		}
 		// copy cytoband
 		else if (popupCopyEvent.getActionCommand().equals(
 				popupCopyCytoBand.getText())) {
-			String temp_cytoBand = listOfCytoBandArray
-					.get(GlobalParameters.TABBED_PANE_ACTIVE_TAB_INDEX)[rowIndex];
+			String temp_cytoBand = listOfCytoBandColumn
+					.get(GlobalParameters.TABBED_PANE_ACTIVE_TAB_INDEX).get(rowIndex);
 			sel = new StringSelection(temp_cytoBand);
 		}
 		// copy gene
 		else if (popupCopyEvent.getActionCommand().equals(
 				popupCopyGene.getText())) {
-			String temp_gene = listOfGeneArray
-					.get(GlobalParameters.TABBED_PANE_ACTIVE_TAB_INDEX)[rowIndex];
+			String temp_gene = listOfGeneColumn
+					.get(GlobalParameters.TABBED_PANE_ACTIVE_TAB_INDEX).get(rowIndex);
 			sel = new StringSelection(temp_gene);
 		}
 		// copy omim
 		else if (popupCopyEvent.getActionCommand().equals(
 				popupCopyOmim.getText())) {
-			String temp_omim = listOfOmimArray
-					.get(GlobalParameters.TABBED_PANE_ACTIVE_TAB_INDEX)[rowIndex];
+			String temp_omim = listOfOmimColumn
+					.get(GlobalParameters.TABBED_PANE_ACTIVE_TAB_INDEX).get(rowIndex);
 			sel = new StringSelection(temp_omim);
 		}
 		// unknown copy command
@@ -936,51 +971,54 @@ public class GUI extends JFrame implements ClipboardOwner {
 	 * selected in the menu bar.
 	 */
 	private void compareActionPerformed() {
-		new CompareDatasets(listOfLocusArray, listOfFileNames);
+		new CompareDatasets(listOfLocusStore, listOfFileNames);
 	}
 
 	/**
 	 * Plots a histogram of the size distribution.
 	 * 
-	 * @param locusArray
+	 * @param locusStore
 	 */
-	private void sizeActionPerformed(final Locus[] locusArray) {
+	private void sizeActionPerformed(final LocusStore locusStore) {
 		new DrawHistogram(m_stats.getHistogramDatasetForSizeDist(m_stats
-				.getSizeDist(locusArray)), "Size distribution");
+				.getSizeDist(locusStore)), "Size distribution");
 	}
 
 	/**
 	 * Plots a bar chart for the chromosome distribution.
 	 * 
-	 * @param locusArray
+	 * @param locusStore
 	 */
-	private void chrBarChartActionPerformed(Locus[] locusArray) {
+	private void chrBarChartActionPerformed(LocusStore locusStore) {
 		new DrawBarChart(m_stats.getBarDatasetForChrDist(m_stats
-				.getChrDistForBarChart(locusArray)), "Chromosome Distribution", "Chr Nr", "Frequency");
+				.getChrDistForBarChart(locusStore)), "Chromosome Distribution", "Chr Nr", "Frequency");
 	}
 
 	/**
 	 * Plots a pie chart for the chromosome distribution.
 	 * 
-	 * @param locusArray
+	 * @param locusStore
 	 */
-	private void chrPieChartActionPerformed(Locus[] locusArray) {
+	private void chrPieChartActionPerformed(LocusStore locusStore) {
 
 		new DrawPieChart(m_stats.getPieDatasetForChrDist(m_stats
-				.getChrDistForPieChart(locusArray)), "Chromosome Distribution");
+				.getChrDistForPieChart(locusStore)), "Chromosome Distribution");
 
 	}
 
 	/**
 	 * Plots a pie chart which shows how many loci lie within a known gene.
 	 * 
-	 * @param geneArray
+	 * @param geneColumn
 	 * 
 	 */
-	private void genePieChartActionPerformed(String[] geneArray) {
-
+	private void genePieChartActionPerformed(AnnotationColumn geneColumn) {
+		// the active tab may have been annotated without genes
+		if (geneColumn == null) {
+			return;
+		}
 		new DrawPieChart(m_stats.getPieDatasetForGeneDist(m_stats
-				.getGeneDist(geneArray)), "How many are within known genes");
+				.getGeneDist(geneColumn)), "How many are within known genes");
 
 	}
 
@@ -992,9 +1030,12 @@ public class GUI extends JFrame implements ClipboardOwner {
 	 * 
 	 * @see gui.DrawPieChart
 	 */
-	private void omimPieChartActionPerformed(String[] omimArray) {
+	private void omimPieChartActionPerformed(AnnotationColumn omimColumn) {
+		if (omimColumn == null) {
+			return;
+		}
 		new DrawPieChart(m_stats.getPieDatasetForOmim(m_stats
-				.getOmimDist(omimArray)),
+				.getOmimDist(omimColumn)),
 				"How many are/are-not associated with an OMIM accession number");
 
 	}
@@ -1022,6 +1063,142 @@ public class GUI extends JFrame implements ClipboardOwner {
 		return listOfTables;
 	}
 
+	/**
+	 * Fetches the tracks which are selected in the settings, but missing in
+	 * the active tab, and adds their columns to its table. Only the missing
+	 * tracks are fetched; the loci and the other columns of the tab are kept.
+	 */
+	private void addTracksActionPerformed() {
+		final int tabIndex = GlobalParameters.TABBED_PANE_ACTIVE_TAB_INDEX;
+		if (tabIndex < 0 || tabIndex >= listOfLocusStore.size()) {
+			return;
+		}
+		// the loci of the tab are coordinates of the assembly it was
+		// annotated with
+		if (!listOfAssemblies.get(tabIndex).equals(
+				AnnotationDictionary.getInstance().getAssembly())) {
+			JOptionPane.showMessageDialog(this, "This dataset was annotated "
+					+ "with " + listOfAssemblies.get(tabIndex)
+					+ ". Select this assembly in the settings to add tracks.",
+					"Add Tracks", JOptionPane.INFORMATION_MESSAGE);
+			return;
+		}
+		if (!(GlobalParameters.FIND_CYTOBAND && listOfCytoBandColumn
+				.get(tabIndex) == null)
+				&& !(GlobalParameters.FIND_GENE && listOfGeneColumn
+						.get(tabIndex) == null)
+				&& !(GlobalParameters.FIND_REPEATS && listOfRepeatsNameColumn
+						.get(tabIndex) == null)
+				&& !(GlobalParameters.FIND_OMIM && listOfOmimColumn
+						.get(tabIndex) == null)) {
+			JOptionPane.showMessageDialog(this, "All tracks selected in the "
+					+ "settings are shown in this tab already.", "Add Tracks",
+					JOptionPane.INFORMATION_MESSAGE);
+			return;
+		}
+
+		addTracks.setEnabled(false);
+		tabbedPane.setTitleAt(tabIndex, listOfFileNames.get(tabIndex)
+				+ " (adding tracks..)");
+		new Thread(new TaskManager(this, listOfLocusStore.get(tabIndex),
+				listOfCytoBandColumn.get(tabIndex), listOfGeneColumn
+						.get(tabIndex), listOfRepeatsNameColumn.get(tabIndex),
+				listOfRepeatsClassColumn.get(tabIndex),
+				listOfRepeatsFamilyColumn.get(tabIndex), listOfOmimColumn
+						.get(tabIndex))).start();
+	}
+
+	/**
+	 * Adds the columns of the tracks fetched after the dataset was annotated
+	 * to its tab. Columns which the tab had before are passed back unchanged.
+	 * 
+	 * @param locusStore
+	 *            store of loci of the tab
+	 * @param cytoBandColumn
+	 *            a column of cytoband information, or null
+	 * @param geneColumn
+	 *            a column of gene information, or null
+	 * @param repeatsNameColumn
+	 *            a column of repeats name information, or null
+	 * @param repeatsClassColumn
+	 *            a column of repeats class information, or null
+	 * @param repeatsFamilyColumn
+	 *            a column of repeats family information, or null
+	 * @param omimColumn
+	 *            a column of omim information, or null
+	 * @param connectionPool
+	 *            pool of connections to the database
+	 */
+	public void displayAddedTracks(LocusStore locusStore,
+			AnnotationColumn cytoBandColumn, AnnotationColumn geneColumn,
+			AnnotationColumn repeatsNameColumn,
+			AnnotationColumn repeatsClassColumn,
+			AnnotationColumn repeatsFamilyColumn, AnnotationColumn omimColumn,
+			ConnectionPool connectionPool) {
+		logger.debug("inside GUI.displayAddedTracks");
+		this.m_connectionPool = connectionPool;
+		// the tab may have been closed in the meantime
+		int tabIndex = listOfLocusStore.indexOf(locusStore);
+		if (tabIndex == -1) {
+			return;
+		}
+
+		ArrayList<String> headers = new ArrayList<String>();
+		ArrayList<AnnotationColumn> columns = new ArrayList<AnnotationColumn>();
+		if (listOfCytoBandColumn.get(tabIndex) == null
+				&& cytoBandColumn != null) {
+			listOfCytoBandColumn.set(tabIndex, cytoBandColumn);
+			headers.add(GlobalParameters.STR_CYTOBAND);
+			columns.add(cytoBandColumn);
+		}
+		if (listOfGeneColumn.get(tabIndex) == null && geneColumn != null) {
+			listOfGeneColumn.set(tabIndex, geneColumn);
+			headers.add(GlobalParameters.STR_GENE);
+			columns.add(geneColumn);
+		}
+		if (listOfRepeatsNameColumn.get(tabIndex) == null
+				&& repeatsNameColumn != null) {
+			listOfRepeatsNameColumn.set(tabIndex, repeatsNameColumn);
+			listOfRepeatsClassColumn.set(tabIndex, repeatsClassColumn);
+			listOfRepeatsFamilyColumn.set(tabIndex, repeatsFamilyColumn);
+			headers.add(GlobalParameters.STR_REPEATS_NAME);
+			headers.add(GlobalParameters.STR_REPEATS_CLASS);
+			headers.add(GlobalParameters.STR_REPEATS_FAMILY);
+			columns.add(repeatsNameColumn);
+			columns.add(repeatsClassColumn);
+			columns.add(repeatsFamilyColumn);
+		}
+		if (listOfOmimColumn.get(tabIndex) == null && omimColumn != null) {
+			listOfOmimColumn.set(tabIndex, omimColumn);
+			headers.add(GlobalParameters.STR_OMIM);
+			columns.add(omimColumn);
+		}
+
+		addTrackItemsToMenus();
+		m_resultsTableObject.addColumns(tabIndex, headers
+				.toArray(new String[headers.size()]), columns
+				.toArray(new AnnotationColumn[columns.size()]));
+		logger.info("added " + headers.size() + " columns to "
+				+ listOfFileNames.get(tabIndex));
+	}
+
+	/**
+	 * Enables adding tracks again, and resets the title of the tab to which
+	 * they were added. Called when adding the tracks ended, whether they were
+	 * added or not.
+	 * 
+	 * @param locusStore
+	 *            store of loci of the tab
+	 */
+	public void endAddingTracks(LocusStore locusStore) {
+		addTracks.setEnabled(true);
+		// the tab may have been closed in the meantime
+		int tabIndex = listOfLocusStore.indexOf(locusStore);
+		if (tabIndex != -1) {
+			tabbedPane.setTitleAt(tabIndex, listOfFileNames.get(tabIndex));
+		}
+	}
+
 	/**
 	 * This method returns the name of the input file.
 	 * 
@@ -1031,6 +1208,20 @@ public class GUI extends JFrame implements ClipboardOwner {
 		return inputFileLocation;
 	}
 	
+	/**
+	 * Releases the storage of a dataset when its tab is closed. This must be
+	 * called before the dataset is removed from the lists.
+	 * 
+	 * @param tabIndex
+	 *            index of the tab which is closed
+	 */
+	protected void releaseDataset(int tabIndex) {
+		listOfLocusStore.get(tabIndex).getColumnStorage().release();
+		m_resultsTableObject.removeTable(tabIndex);
+		AnnotationDictionary.release(listOfAssemblies.get(tabIndex));
+		TaskManager.dropUnusedAssemblies();
+	}
+
 	/**
 	 * This method returns an array, which contains an arraylist as
 	 * each of its element. Each arraylist, in turn, holds arrays as its
@@ -1079,6 +1270,7 @@ public class GUI extends JFrame implements ClipboardOwner {
 	private JMenuItem restart;
 	private JMenuItem exit;
 	private JMenuItem settings;
+	private JMenuItem addTracks;
 	private JMenuItem compare;
 	private JMenuItem sizeChart;
 	private JMenuItem chrBarChart;
@@ -1107,19 +1299,20 @@ public class GUI extends JFrame implements ClipboardOwner {
 	private String inputFileLocation;
 	private String selectedFileName;
 	private ArrayList<String> listOfFileNames;
-	private ArrayList<Locus[]> listOfLocusArray;
-	private ArrayList<String[]> listOfCytoBandArray;
-	private ArrayList<String[]> listOfGeneArray;
-	private ArrayList<String[]> listOfRepeatsNameArray;
-	private ArrayList<String[]> listOfRepeatsClassArray;
-	private ArrayList<String[]> listOfRepeatsFamilyArray;
-	private ArrayList<String[]> listOfOmimArray;
+	private ArrayList<LocusStore> listOfLocusStore;
+	private ArrayList<AnnotationColumn> listOfCytoBandColumn;
+	private ArrayList<AnnotationColumn> listOfGeneColumn;
+	private ArrayList<AnnotationColumn> listOfRepeatsNameColumn;
+	private ArrayList<AnnotationColumn> listOfRepeatsClassColumn;
+	private ArrayList<AnnotationColumn> listOfRepeatsFamilyColumn;
+	private ArrayList<AnnotationColumn> listOfOmimColumn;
 	private ArrayList<JTable> listOfTables;
+	private ArrayList<String> listOfAssemblies;
 	@SuppressWarnings("rawtypes")
 	private ArrayList[] arrayOfLists;
 	private Statistics m_stats;
 	private ResultsTable m_resultsTableObject;
-	private Statement m_st;
+	private ConnectionPool m_connectionPool;
 	private static final Clipboard CLIPBOARD = Toolkit.getDefaultToolkit()
 			.getSystemClipboard();
 	// end of variable declaration
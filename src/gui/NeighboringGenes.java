@@ -6,9 +6,10 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.FocusEvent;
 import java.awt.event.FocusListener;
-import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.swing.JButton;
 import javax.swing.JFormattedTextField;
@@ -29,8 +30,14 @@ import net.miginfocom.swing.MigLayout;
 
 import org.apache.log4j.Logger;
 
+import backend.AnnotationColumn;
+import backend.AnnotationSnapshot;
+import backend.ConnectionPool;
+import backend.Database;
 import backend.GlobalParameters;
-import backend.Locus;
+import backend.LocusStore;
+import backend.SharedQueries;
+import backend.UcscBins;
 
 /**
  * This class finds the nearest upstream - downstream neighboring genes for a
@@ -46,24 +53,25 @@ public class NeighboringGenes extends JFrame {
 	/**
 	 * Constructor
 	 * 
-	 * @param locusArray
-	 *            array of loci
-	 * @param geneArray
-	 *            array of gene data
+	 * @param locusStore
+	 *            store of loci
+	 * @param geneColumn
+	 *            column of gene data
 	 * @param selectedRowIndex
 	 *            index of the selected row in the UI
-	 * @param statement
-	 *            statement object for database connection
+	 * @param connectionPool
+	 *            pool of connections to the database
 	 */
-	public NeighboringGenes(Locus[] locusArray, String[] geneArray,
-			int selectedRowIndex, Statement statement) {
+	public NeighboringGenes(LocusStore locusStore,
+			AnnotationColumn geneColumn, int selectedRowIndex,
+			ConnectionPool connectionPool) {
 		super();
 		logger.info("inside Neighboring Genes");
 
-		m_locusArray = locusArray;
-		m_geneArray = geneArray;
+		m_locusStore = locusStore;
+		m_geneColumn = geneColumn;
 		m_selectedRowIndex = selectedRowIndex;
-		m_statement = statement;
+		m_connectionPool = connectionPool;
 		initComponents();
 		setLocationRelativeTo(null);
 		setVisible(true);
@@ -76,7 +84,7 @@ public class NeighboringGenes extends JFrame {
 	 */
 	private void initComponents() {
 		setTitle("Neighboring Genes");
-		locusLabel = new JLabel(m_locusArray[m_selectedRowIndex].toString());
+		locusLabel = new JLabel(m_locusStore.getLocusString(m_selectedRowIndex));
 		getAtmostLabel = new JLabel("Show atmost");
 		genesLabel = new JLabel("genes");
 		withinLabel = new JLabel("that lie within");
@@ -92,9 +100,9 @@ public class NeighboringGenes extends JFrame {
 		downStreamTable = new JTable();
 		closeButton = new JButton("Close");
 
-		chr = m_locusArray[m_selectedRowIndex].getChr();
-		startPos = m_locusArray[m_selectedRowIndex].getStartPos();
-		endPos = m_locusArray[m_selectedRowIndex].getEndPos();
+		chr = m_locusStore.getChr(m_selectedRowIndex);
+		startPos = m_locusStore.getStartPos(m_selectedRowIndex);
+		endPos = m_locusStore.getEndPos(m_selectedRowIndex);
 
 		// focus listener on maxGenesField, from user-specified value
 		maxGenesField.setValue(GlobalParameters.MAX_NR_OF_NEIGHBORING_GENES_TO_DISPLAY);
@@ -154,6 +162,9 @@ public class NeighboringGenes extends JFrame {
 						- GlobalParameters.MAX_BASE_PAIRS_FOR_NEIGHBORING_GENES)
 				+ " AND "
 				+ startPos
+				+ UcscBins.getBinCondition(startPos
+						- GlobalParameters.MAX_BASE_PAIRS_FOR_NEIGHBORING_GENES
+						- 1, startPos)
 				+ " ORDER BY txEnd DESC LIMIT "
 				+ Integer
 						.toString(GlobalParameters.MAX_NR_OF_NEIGHBORING_GENES_TO_DISPLAY + 20);
@@ -165,6 +176,9 @@ public class NeighboringGenes extends JFrame {
 				+ " AND "
 				+ Integer.toString(endPos
 						+ GlobalParameters.MAX_BASE_PAIRS_FOR_NEIGHBORING_GENES)
+				+ UcscBins.getBinCondition(endPos, endPos
+						+ GlobalParameters.MAX_BASE_PAIRS_FOR_NEIGHBORING_GENES
+						+ 1)
 				+ " ORDER BY txStart LIMIT "
 				+ Integer
 						.toString(GlobalParameters.MAX_NR_OF_NEIGHBORING_GENES_TO_DISPLAY + 20);
@@ -193,76 +207,25 @@ public class NeighboringGenes extends JFrame {
 	private String[][] fetchFromServer(String query, int position,
 			String neighbor) {
 		logger.info("fetching neighboring genes");
-		String[][] array = new String[GlobalParameters.MAX_NR_OF_NEIGHBORING_GENES_TO_DISPLAY][numOfColumnsInTable - 1];
-
-		ResultSet rs = null;
-		try {
 
-			rs = m_statement.executeQuery(query);
-			// reverse read the result set
-			rs.beforeFirst();
-			// if some result exists
-			int j = 0;
-			String currentEntry = null;
-			String prevEntry = null;
-			while (rs.next()) {
-				// if the locus lies in some gene, then
-				// do not display that gene name in the neighboring genes list
-				if (rs.getString(2).equals(m_geneArray[m_selectedRowIndex])) {
-					continue;
-				}
-
-				// show only unique genes in neighboring genes
-				// do not store transcripts of genes
-				if (j == 0) {
-					String firstEntry = rs.getString(2);
-					currentEntry = firstEntry;
-					prevEntry = null;
-					int distance = Math.abs(position
-							- Integer.parseInt(rs.getString(1)));
-					// start positions are 0-based, end positions are 1-based
-					// hence need to add 1 to distance for all downstream
-					// genes
-					if (neighbor.equals("up"))
-						array[j][0] = Integer.toString(distance);
-					else
-						array[j][0] = Integer.toString(distance + 1);
-					array[j][1] = firstEntry;
-					j++;
-
-				} else {
-					prevEntry = currentEntry;
-					currentEntry = rs.getString(2);
-
-					if (currentEntry.equals(prevEntry)) {
-						continue;
-					} else {
-						int distance = Math.abs(position
-								- Integer.parseInt(rs.getString(1)));
-						// start positions are 0-based, end positions are
-						// 1-based
-						// hence need to add 1 to distance for all downstream
-						// genes
-						if (neighbor.equals("up"))
-							array[j][0] = Integer.toString(distance);
-						else
-							array[j][0] = Integer.toString(distance + 1);
-						array[j][1] = currentEntry;
-						j++;
-						
-						// j should always be <
-						// MAX_NUMBER_OF_NEIGHBORING_GENES_TO_DISPLAY,
-						// but
-						// we don't need to perform a manual check for it,
-						// the
-						// while
-						// loop does that already (from LIMIT condition)
-						if (j == GlobalParameters.MAX_NR_OF_NEIGHBORING_GENES_TO_DISPLAY)
-							break;
-					}
-				}
-			}
+		// with a local snapshot, the genes are looked up without any query
+		AnnotationSnapshot snapshot = AnnotationSnapshot.getInstance();
+		AnnotationSnapshot.Track track = snapshot == null ? null : snapshot
+				.getTrack(AnnotationSnapshot.TRACK_REFGENE);
+		if (track != null) {
+			return toArray(fetchFromSnapshot(track, neighbor), position,
+					neighbor);
+		}
 
+		List<String[]> rows = new ArrayList<String[]>();
+		Statement statement = null;
+		try {
+			// a connection of its own, so that the query does not interfere
+			// with tracks which are still being fetched. the same query of
+			// another window in flight is shared
+			statement = Database.createStatement(m_connectionPool);
+			rows = SharedQueries.executeQuery(m_connectionPool,
+					statement, query, 2, 0);
 		} catch (final SQLException sqlExcep) {
 			logger.debug("cannot execute refGene upstream query");
 			JOptionPane
@@ -271,13 +234,81 @@ public class NeighboringGenes extends JFrame {
 					"Unable to fetch neighboring genes",
 					"Error", JOptionPane.ERROR_MESSAGE);
 		} finally {
-			try {
-				if (rs != null) {
-					rs.close();
-				}
-			} catch (SQLException ex) {
-				logger.debug("cannot close resultset for neighboring genes query");
+			Database.releaseStatement(m_connectionPool, statement);
+		}
+		return toArray(rows, position, neighbor);
+	}
+
+	/**
+	 * Looks up the neighboring genes in the refGene track of the local
+	 * snapshot. The rows are the same as those of the upstream or downstream
+	 * sql query.
+	 * 
+	 * @param track refGene track of the snapshot
+	 * @param neighbor up or down, to specify whether upstream or downstream genes are being searched for
+	 * @return rows of coordinate and gene name, nearest first
+	 */
+	private List<String[]> fetchFromSnapshot(AnnotationSnapshot.Track track,
+			String neighbor) {
+		int limit = GlobalParameters.MAX_NR_OF_NEIGHBORING_GENES_TO_DISPLAY + 20;
+		int[] genes;
+		if (neighbor.equals("up")) {
+			genes = track.findEndingBetween(chr, startPos
+					- GlobalParameters.MAX_BASE_PAIRS_FOR_NEIGHBORING_GENES,
+					startPos, limit);
+		} else {
+			genes = track.findStartingBetween(chr, endPos, endPos
+					+ GlobalParameters.MAX_BASE_PAIRS_FOR_NEIGHBORING_GENES,
+					limit);
+		}
+		List<String[]> rows = new ArrayList<String[]>();
+		for (int row : genes) {
+			int coordinate = neighbor.equals("up") ? track.getEnd(row) : track
+					.getStart(row);
+			rows.add(new String[] { Integer.toString(coordinate),
+					track.getValue(row, 0) });
+		}
+		return rows;
+	}
+
+	/**
+	 * Stores the neighboring genes in a 2dArray, with their distance from the
+	 * locus.
+	 * 
+	 * @param rows rows of coordinate and gene name, nearest first
+	 * @param position start or end coordinate, whichever is applicable
+	 * @param neighbor up or down, to specify whether upstream or downstream genes are being searched for
+	 * @return 2D array containing neighboring genes data
+	 */
+	private String[][] toArray(List<String[]> rows, int position,
+			String neighbor) {
+		String[][] array = new String[GlobalParameters.MAX_NR_OF_NEIGHBORING_GENES_TO_DISPLAY][numOfColumnsInTable - 1];
+		int j = 0;
+		String prevEntry = null;
+		for (String[] row : rows) {
+			// if the locus lies in some gene, then
+			// do not display that gene name in the neighboring genes list
+			if (row[1].equals(m_geneColumn.get(m_selectedRowIndex))) {
+				continue;
+			}
+			// show only unique genes in neighboring genes
+			// do not store transcripts of genes
+			if (row[1].equals(prevEntry)) {
+				continue;
 			}
+			prevEntry = row[1];
+			int distance = Math.abs(position - Integer.parseInt(row[0]));
+			// start positions are 0-based, end positions are 1-based
+			// hence need to add 1 to distance for all downstream
+			// genes
+			if (neighbor.equals("up"))
+				array[j][0] = Integer.toString(distance);
+			else
+				array[j][0] = Integer.toString(distance + 1);
+			array[j][1] = row[1];
+			j++;
+			if (j == GlobalParameters.MAX_NR_OF_NEIGHBORING_GENES_TO_DISPLAY)
+				break;
 		}
 		return array;
 	}
@@ -422,6 +453,9 @@ public class NeighboringGenes extends JFrame {
 						- GlobalParameters.MAX_BASE_PAIRS_FOR_NEIGHBORING_GENES)
 				+ " AND "
 				+ startPos
+				+ UcscBins.getBinCondition(startPos
+						- GlobalParameters.MAX_BASE_PAIRS_FOR_NEIGHBORING_GENES
+						- 1, startPos)
 				+ " ORDER BY txEnd DESC LIMIT "
 				+ Integer
 						.toString(GlobalParameters.MAX_NR_OF_NEIGHBORING_GENES_TO_DISPLAY + 20);
@@ -433,6 +467,9 @@ public class NeighboringGenes extends JFrame {
 				+ " AND "
 				+ Integer.toString(endPos
 						+ GlobalParameters.MAX_BASE_PAIRS_FOR_NEIGHBORING_GENES)
+				+ UcscBins.getBinCondition(endPos, endPos
+						+ GlobalParameters.MAX_BASE_PAIRS_FOR_NEIGHBORING_GENES
+						+ 1)
 				+ " ORDER BY txStart LIMIT "
 				+ Integer
 						.toString(GlobalParameters.MAX_NR_OF_NEIGHBORING_GENES_TO_DISPLAY + 20);
@@ -447,7 +484,7 @@ public class NeighboringGenes extends JFrame {
 	}
 
 	// variable declaration
-	private Statement m_statement;
+	private ConnectionPool m_connectionPool;
 	private String chr;
 	private int startPos;
 	private int endPos;
@@ -461,8 +498,8 @@ public class NeighboringGenes extends JFrame {
 	private JTable upStreamTable;
 	private JTable downStreamTable;
 	private JButton closeButton;
-	private Locus[] m_locusArray;
-	private String[] m_geneArray;
+	private LocusStore m_locusStore;
+	private AnnotationColumn m_geneColumn;
 	private int m_selectedRowIndex;
 	private String[] headers;
 	private String[][] tableContents;
@@ -6,8 +6,10 @@ import java.awt.event.ActionListener;
 import java.awt.event.ItemEvent;
 import java.awt.event.ItemListener;
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.util.HashMap;
 import java.util.Map;
@@ -32,7 +34,13 @@ import net.miginfocom.swing.MigLayout;
 
 import org.apache.log4j.Logger;
 
+import backend.AnnotationCache;
+import backend.AnnotationDictionary;
 import backend.GlobalParameters;
+import backend.LocusPrefilter;
+import backend.ParallelQueries;
+import backend.SnapshotImporter;
+import backend.TaskManager;
 
 /**
  * This class contains methods that manage global settings for the tool, eg.
@@ -63,6 +71,7 @@ public class Settings extends JFrame implements ListSelectionListener {
 		setLoginPanel();
 		setFindPanel();
 		setUpdateOmimPanel();
+		setOfflinePanel();
 		setLayoutOfComponents();
 	}
 
@@ -123,6 +132,7 @@ public class Settings extends JFrame implements ListSelectionListener {
 		geneCheckBox = new JCheckBox();
 		repeatsCheckBox = new JCheckBox();
 		omimCheckBox = new JCheckBox();
+		virtualThreadsCheckBox = new JCheckBox();
 
 		cytoBandCheckBox.setText(GlobalParameters.STR_CYTOBAND);
 		if (GlobalParameters.FIND_CYTOBAND)
@@ -167,6 +177,24 @@ public class Settings extends JFrame implements ListSelectionListener {
 				checkBoxInFindActionPerformed(arg0);
 			}
 		});
+
+		virtualThreadsCheckBox.setText("Query each locus on a virtual thread (Java 21 and later)");
+		if (GlobalParameters.USE_VIRTUAL_THREADS)
+			virtualThreadsCheckBox.setSelected(true);
+		else
+			virtualThreadsCheckBox.setSelected(false);
+		if (!ParallelQueries.isVirtualThreadAvailable()) {
+			virtualThreadsCheckBox.setSelected(false);
+			virtualThreadsCheckBox.setEnabled(false);
+			virtualThreadsCheckBox
+					.setToolTipText("Not available with Java "
+							+ System.getProperty("java.version"));
+		}
+		virtualThreadsCheckBox.addItemListener(new ItemListener() {
+			public void itemStateChanged(ItemEvent arg0) {
+				checkBoxInFindActionPerformed(arg0);
+			}
+		});
 	}
 
 	/**
@@ -192,6 +220,9 @@ public class Settings extends JFrame implements ListSelectionListener {
 		findPanel.add(getOmimLabel, "gap para, wrap");
 		findPanel.add(omimCheckBox, "gap para, wrap");
 		addGap(findPanel, 8);
+		findPanel.add(new JLabel("Per-locus queries"), "gap para, wrap");
+		findPanel.add(virtualThreadsCheckBox, "gap para, wrap");
+		addGap(findPanel, 8);
 		findPanel.add(closeButton, "bottom, left");
 	}
 
@@ -258,6 +289,99 @@ public class Settings extends JFrame implements ListSelectionListener {
 		updateOmimPanel.add(closeButton);
 	}
 
+	/**
+	 * this method sets the offline-data panel, from which a local snapshot of
+	 * the UCSC tables is imported.
+	 */
+	private void setOfflinePanel() {
+		dumpDirTextField = new JTextField(20);
+
+		JButton browseDumpDirButton = new JButton("Browse");
+		browseDumpDirButton.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent evt) {
+				JFileChooser dirChooser = new JFileChooser();
+				dirChooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+				if (dirChooser.showOpenDialog(Settings.this) == JFileChooser.APPROVE_OPTION) {
+					dumpDirTextField.setText(dirChooser.getSelectedFile()
+							.getPath());
+				}
+			}
+		});
+
+		importButton = new JButton("Import");
+		importButton.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent evt) {
+				importButtonActionPerformed();
+			}
+		});
+
+		JButton closeButton = new JButton("Close");
+		closeButton.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent evt) {
+				Settings.this.dispose();
+			}
+		});
+
+		offlinePanel.setLayout(new MigLayout());
+		offlinePanel.add(new JLabel("Offline data"), "wrap");
+		offlinePanel.add(new JLabel(
+				"To annotate without connecting to the UCSC database,"),
+				"wrap");
+		offlinePanel.add(new JLabel(
+				"download refGene.txt.gz, cytoBand.txt.gz and rmsk.txt.gz"),
+				"wrap");
+		offlinePanel.add(new JLabel(
+				"(chrN_rmsk.txt.gz for hg18) of the selected assembly from"),
+				"wrap");
+		offlinePanel.add(new JLabel(
+				"hgdownload.cse.ucsc.edu into one directory, and import it."),
+				"wrap");
+		addGap(offlinePanel, 2);
+		offlinePanel.add(new JLabel("Directory:"), "split 3");
+		offlinePanel.add(dumpDirTextField);
+		offlinePanel.add(browseDumpDirButton, "wrap");
+		offlinePanel.add(importButton, "wrap");
+		addGap(offlinePanel, 3);
+		offlinePanel.add(closeButton);
+	}
+
+	/**
+	 * action performed on the import button, imports the table dumps in the
+	 * background
+	 */
+	private void importButtonActionPerformed() {
+		final File dumpDir = new File(dumpDirTextField.getText());
+		final String assembly = AnnotationDictionary.getInstance()
+				.getAssembly();
+		importButton.setEnabled(false);
+		new Thread(new Runnable() {
+			public void run() {
+				String message;
+				int messageType;
+				try {
+					new SnapshotImporter(dumpDir, assembly).importDumps();
+					message = "Offline data of " + assembly + " imported";
+					messageType = JOptionPane.INFORMATION_MESSAGE;
+				} catch (final IOException ioe) {
+					logger.error("cannot import table dumps: "
+							+ ioe.getMessage());
+					message = "Offline data not imported. Please make sure the directory holds the UCSC table dumps";
+					messageType = JOptionPane.ERROR_MESSAGE;
+				}
+				final String finalMessage = message;
+				final int finalMessageType = messageType;
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						importButton.setEnabled(true);
+						JOptionPane.showMessageDialog(Settings.this,
+								finalMessage, "Offline data",
+								finalMessageType);
+					}
+				});
+			}
+		}).start();
+	}
+
 	/**
 	 * browse button action performed, opens file chooser dialog
 	 */
@@ -370,7 +494,8 @@ public class Settings extends JFrame implements ListSelectionListener {
 		Display login = new Display(m_strLogin, loginPanel);
 		Display find = new Display(m_strFind, findPanel);
 		Display updateOmim = new Display(m_strupdateOmim, updateOmimPanel);
-		Display[] displays = { login, find, updateOmim };
+		Display offline = new Display(m_strOffline, offlinePanel);
+		Display[] displays = { login, find, updateOmim, offline };
 
 		listLeft = new JList(displays);
 		listLeft.setSelectedIndex(0);
@@ -435,6 +560,9 @@ public class Settings extends JFrame implements ListSelectionListener {
 			} else {
 				GlobalParameters.FIND_OMIM = true;
 			}
+		} else if (checkBoxItemEvent.getItemSelectable() == virtualThreadsCheckBox) {
+			GlobalParameters.USE_VIRTUAL_THREADS = virtualThreadsCheckBox
+					.isSelected();
 		}
 	}
 
@@ -454,6 +582,12 @@ public class Settings extends JFrame implements ListSelectionListener {
 			GlobalParameters.IS_HG18_ON_UCSC = false;
 			GlobalParameters.IS_HG19_ON_UCSC = true;
 		}
+		// cached annotations hold codes of the dictionary of the old assembly
+		AnnotationCache.clearInstance();
+		// the prefilters are rebuilt for the tables of the new assembly
+		LocusPrefilter.clearAll();
+		// the old assembly is dropped unless one of its tabs is still open
+		TaskManager.dropUnusedAssemblies();
 	}
 
 	// variable declaration
@@ -463,10 +597,12 @@ public class Settings extends JFrame implements ListSelectionListener {
 	private JPanel loginPanel = new JPanel();
 	private JPanel findPanel = new JPanel();
 	private JPanel updateOmimPanel = new JPanel();
+	private JPanel offlinePanel = new JPanel();
 	private JList listLeft;
 	private String m_strLogin = "Login";
 	private String m_strFind = "Tracks";
 	private String m_strupdateOmim = "Update OMIM";
+	private String m_strOffline = "Offline data";
 	private JComboBox assemblyDropDown;
 	private String[] assemblyOptions = { "hg18", "hg19" };
 	private JCheckBox cytoBandCheckBox;
@@ -474,10 +610,13 @@ public class Settings extends JFrame implements ListSelectionListener {
 	private JCheckBox repeatsCheckBox;
 	private JLabel getOmimLabel;
 	private JCheckBox omimCheckBox;
+	private JCheckBox virtualThreadsCheckBox;
 	private String mim2geneFileLocation;
 	private JTextField mim2geneTextField;
 	private JButton browseButton;
 	private JButton updateButton;
+	private JTextField dumpDirTextField;
+	private JButton importButton;
 
 	// end of variable declaration
 